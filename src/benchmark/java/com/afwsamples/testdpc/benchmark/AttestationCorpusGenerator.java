@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.benchmark;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import org.bouncycastle.asn1.ASN1Boolean;
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1Enumerated;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.DERSet;
+import org.bouncycastle.asn1.DERTaggedObject;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.KeyUsage;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+/**
+ * Writes the synthetic attestation chains of {@code src/benchmark/resources/attestation}.
+ *
+ * <p>The chains are signed by a made-up root, so they don't verify, but their key descriptions
+ * have the versions, tags and sizes of the chains of real devices.
+ *
+ * <p>Usage: {@code bazel run //:attestation_corpus_generator -- CORPUS_DIR}, with the absolute path
+ * of the corpus directory, since {@code bazel run} doesn't run in the workspace.
+ */
+public final class AttestationCorpusGenerator {
+
+  private static final String KEY_DESCRIPTION_OID = "1.3.6.1.4.1.11129.2.1.17";
+
+  private static final int SECURITY_LEVEL_TRUSTED_ENVIRONMENT = 1;
+  private static final int SECURITY_LEVEL_STRONG_BOX = 2;
+
+  private static final int KM_ALGORITHM_RSA = 1;
+  private static final int KM_ALGORITHM_EC = 3;
+
+  /** Brand, device, product, manufacturer and model of the devices that attest their IDs. */
+  private static final String[][] DEVICES = {
+    {"google", "oriole", "oriole", "Google", "Pixel 6"},
+    {"google", "redfin", "redfin", "Google", "Pixel 5"},
+    {"samsung", "o1s", "o1sxeea", "samsung", "SM-G991B"},
+    {"motorola", "rhode", "rhode_g", "motorola", "moto g52"},
+  };
+
+  private final SecureRandom mRandom = new SecureRandom();
+  private final long mNow = System.currentTimeMillis();
+  private long mSerialNumber;
+
+  private AttestationCorpusGenerator() {}
+
+  public static void main(String[] args) throws Exception {
+    if (args.length != 1) {
+      System.err.println("Usage: attestation_corpus_generator CORPUS_DIR");
+      System.exit(2);
+    }
+    Path corpus = Paths.get(args[0]);
+    AttestationCorpusGenerator generator = new AttestationCorpusGenerator();
+    generator.writeChains(corpus.resolve("tee"), SECURITY_LEVEL_TRUSTED_ENVIRONMENT);
+    generator.writeChains(corpus.resolve("strongbox"), SECURITY_LEVEL_STRONG_BOX);
+  }
+
+  /** Writes one chain per device and key algorithm, with and without ID attestation. */
+  private void writeChains(Path dir, int securityLevel) throws Exception {
+    Files.createDirectories(dir);
+    String level = securityLevel == SECURITY_LEVEL_STRONG_BOX ? "StrongBox" : "TEE";
+    KeyPair root = generateKeyPair("EC", 384);
+    byte[] rootCertificate =
+        certificate(root, "Synthetic " + level + " Attestation Root", root, null, null);
+    KeyPair intermediate = generateKeyPair("EC", 256);
+    byte[] intermediateCertificate =
+        certificate(
+            intermediate,
+            "Synthetic " + level + " Attestation Intermediate",
+            root,
+            "Synthetic " + level + " Attestation Root",
+            null);
+
+    int count = 0;
+    for (int i = 0; i < DEVICES.length; i++) {
+      String[] device = DEVICES[i];
+      for (int algorithm : new int[] {KM_ALGORITHM_EC, KM_ALGORITHM_RSA}) {
+        boolean attestIds = (i + algorithm) % 2 == 0;
+        KeyPair key =
+            algorithm == KM_ALGORITHM_EC
+                ? generateKeyPair("EC", 256)
+                : generateKeyPair("RSA", 2048);
+        byte[] leaf =
+            certificate(
+                key,
+                "Android Keystore Key",
+                intermediate,
+                "Synthetic " + level + " Attestation Intermediate",
+                keyDescription(securityLevel, algorithm, i, attestIds ? device : null));
+        String name = device[1] + (algorithm == KM_ALGORITHM_EC ? "-ec" : "-rsa") + ".pem";
+        try (Writer writer = Files.newBufferedWriter(dir.resolve(name), StandardCharsets.UTF_8)) {
+          for (byte[] certificate : new byte[][] {leaf, intermediateCertificate, rootCertificate}) {
+            writer.write("-----BEGIN CERTIFICATE-----\n");
+            writer.write(Base64.getMimeEncoder(64, new byte[] {'\n'}).encodeToString(certificate));
+            writer.write("\n-----END CERTIFICATE-----\n");
+          }
+        }
+        count++;
+      }
+    }
+    System.out.println("Wrote " + count + " chains to " + dir);
+  }
+
+  /**
+   * A KeyDescription like the ones of keys generated by Keymaster 4 (TEE) and 4.1 (StrongBox),
+   * for the TestDPC app.
+   */
+  private ASN1Encodable keyDescription(
+      int securityLevel, int algorithm, int deviceIndex, String[] attestedIds) {
+    boolean strongBox = securityLevel == SECURITY_LEVEL_STRONG_BOX;
+    int osVersion = 110000 + 10000 * (deviceIndex % 3);
+    int patchLevel = 202201 + deviceIndex;
+
+    ASN1EncodableVector softwareEnforced = new ASN1EncodableVector();
+    softwareEnforced.add(tagged(701, new ASN1Integer(mNow - TimeUnit.DAYS.toMillis(deviceIndex))));
+    softwareEnforced.add(tagged(709, new DEROctetString(encode(attestationApplicationId()))));
+
+    ASN1EncodableVector teeEnforced = new ASN1EncodableVector();
+    teeEnforced.add(tagged(1, new DERSet(new ASN1Encodable[] {integer(2), integer(3)})));
+    teeEnforced.add(tagged(2, integer(algorithm)));
+    teeEnforced.add(tagged(3, integer(algorithm == KM_ALGORITHM_EC ? 256 : 2048)));
+    teeEnforced.add(tagged(5, new DERSet(new ASN1Encodable[] {integer(0), integer(4)})));
+    if (algorithm == KM_ALGORITHM_EC) {
+      teeEnforced.add(tagged(10, integer(1)));
+    } else {
+      teeEnforced.add(tagged(6, new DERSet(new ASN1Encodable[] {integer(3), integer(5)})));
+      teeEnforced.add(tagged(200, integer(65537)));
+    }
+    teeEnforced.add(tagged(503, DERNull.INSTANCE));
+    teeEnforced.add(tagged(702, integer(0)));
+    teeEnforced.add(tagged(704, rootOfTrust()));
+    teeEnforced.add(tagged(705, integer(osVersion)));
+    teeEnforced.add(tagged(706, integer(patchLevel)));
+    if (attestedIds != null) {
+      for (int i = 0; i < attestedIds.length; i++) {
+        // Brand, device and product are tags 710 to 712, manufacturer and model 716 and 717
+        int tag = i < 3 ? 710 + i : 713 + i;
+        teeEnforced.add(tagged(tag, utf8(attestedIds[i])));
+      }
+    }
+    teeEnforced.add(tagged(718, integer(patchLevel * 100 + 5)));
+    teeEnforced.add(tagged(719, integer(patchLevel * 100 + 5)));
+
+    ASN1EncodableVector keyDescription = new ASN1EncodableVector();
+    keyDescription.add(integer(strongBox ? 4 : 3));
+    keyDescription.add(new ASN1Enumerated(securityLevel));
+    keyDescription.add(integer(strongBox ? 41 : 4));
+    keyDescription.add(new ASN1Enumerated(securityLevel));
+    keyDescription.add(new DEROctetString(randomBytes(32)));
+    keyDescription.add(new DEROctetString(new byte[0]));
+    keyDescription.add(new DERSequence(softwareEnforced));
+    keyDescription.add(new DERSequence(teeEnforced));
+    return new DERSequence(keyDescription);
+  }
+
+  private ASN1Encodable attestationApplicationId() {
+    ASN1Encodable packageInfo =
+        new DERSequence(new ASN1Encodable[] {utf8("com.afwsamples.testdpc"), integer(9010)});
+    return new DERSequence(
+        new ASN1Encodable[] {
+          new DERSet(packageInfo), new DERSet(new DEROctetString(randomBytes(32)))
+        });
+  }
+
+  /** A locked device with a verified boot, as on the devices that pass attestation. */
+  private ASN1Encodable rootOfTrust() {
+    return new DERSequence(
+        new ASN1Encodable[] {
+          new DEROctetString(randomBytes(32)),
+          ASN1Boolean.TRUE,
+          new ASN1Enumerated(0),
+          new DEROctetString(randomBytes(32))
+        });
+  }
+
+  /**
+   * A certificate valid for a year, with an attestation extension if {@code keyDescription} isn't
+   * {@code null}, or else marked as a CA certificate. {@code issuerName} is {@code null} for a
+   * self-signed certificate.
+   */
+  private byte[] certificate(
+      KeyPair subject,
+      String subjectName,
+      KeyPair issuer,
+      String issuerName,
+      ASN1Encodable keyDescription)
+      throws IOException, OperatorCreationException {
+    X509v3CertificateBuilder builder =
+        new X509v3CertificateBuilder(
+            new X500Name("CN=" + (issuerName == null ? subjectName : issuerName)),
+            BigInteger.valueOf(++mSerialNumber),
+            new Date(mNow - TimeUnit.DAYS.toMillis(1)),
+            new Date(mNow + TimeUnit.DAYS.toMillis(365)),
+            new X500Name("CN=" + subjectName),
+            SubjectPublicKeyInfo.getInstance(subject.getPublic().getEncoded()));
+    if (keyDescription != null) {
+      builder.addExtension(Extension.keyUsage, true, new KeyUsage(KeyUsage.digitalSignature));
+      builder.addExtension(new ASN1ObjectIdentifier(KEY_DESCRIPTION_OID), false, keyDescription);
+    } else {
+      builder.addExtension(Extension.basicConstraints, true, new BasicConstraints(true));
+      builder.addExtension(Extension.keyUsage, true, new KeyUsage(KeyUsage.keyCertSign));
+    }
+    return builder
+        .build(new JcaContentSignerBuilder("SHA256withECDSA").build(issuer.getPrivate()))
+        .getEncoded();
+  }
+
+  private static KeyPair generateKeyPair(String algorithm, int size)
+      throws GeneralSecurityException {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance(algorithm);
+    generator.initialize(size);
+    return generator.generateKeyPair();
+  }
+
+  private byte[] randomBytes(int count) {
+    byte[] bytes = new byte[count];
+    mRandom.nextBytes(bytes);
+    return bytes;
+  }
+
+  private static ASN1Encodable tagged(int tag, ASN1Encodable value) {
+    return new DERTaggedObject(/* explicit= */ true, tag, value);
+  }
+
+  private static ASN1Integer integer(long value) {
+    return new ASN1Integer(value);
+  }
+
+  private static DEROctetString utf8(String value) {
+    return new DEROctetString(value.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static byte[] encode(ASN1Encodable value) {
+    try {
+      return value.toASN1Primitive().getEncoded();
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
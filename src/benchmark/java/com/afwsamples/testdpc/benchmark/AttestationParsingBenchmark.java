@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.benchmark;
+
+import com.afwsamples.testdpc.policy.utils.Attestation;
+import com.afwsamples.testdpc.policy.utils.AttestationApplicationId;
+import com.afwsamples.testdpc.policy.utils.AttestationCache;
+import com.afwsamples.testdpc.policy.utils.AuthorizationList;
+import com.afwsamples.testdpc.policy.utils.RootOfTrust;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * JMH benchmark of parsing attestation extensions with {@link Attestation}, over the leaf
+ * certificates of the TEE and StrongBox chains in {@code src/benchmark/resources/attestation}.
+ *
+ * <p>Usage: {@code bazel run //:attestation_parsing_benchmark}. JMH options go after {@code --},
+ * such as {@code -prof gc} for the bytes allocated per operation, or {@code -p corpus=DIR} to
+ * measure another corpus with the same layout.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class AttestationParsingBenchmark {
+
+  private static final String KEY_DESCRIPTION_OID = "1.3.6.1.4.1.11129.2.1.17";
+
+  /** Directory with one subdirectory of chains per security level, relative to the runfiles. */
+  @Param({"src/benchmark/resources/attestation"})
+  public String corpus;
+
+  @Param({"tee", "strongbox"})
+  public String securityLevel;
+
+  private X509Certificate[] mCertificates;
+  private byte[][] mExtensionValues;
+  private int mNext;
+
+  @Setup
+  public void loadCorpus() throws IOException, CertificateException {
+    int expectedLevel =
+        securityLevel.equals("strongbox")
+            ? Attestation.KM_SECURITY_LEVEL_STRONG_BOX
+            : Attestation.KM_SECURITY_LEVEL_TRUSTED_ENVIRONMENT;
+    List<X509Certificate> leaves = readLeaves(Paths.get(corpus, securityLevel));
+    if (leaves.isEmpty()) {
+      throw new IllegalStateException(
+          "No attestation certificates in " + Paths.get(corpus, securityLevel).toAbsolutePath());
+    }
+    mCertificates = leaves.toArray(new X509Certificate[0]);
+    mExtensionValues = new byte[mCertificates.length][];
+    for (int i = 0; i < mCertificates.length; i++) {
+      mExtensionValues[i] = mCertificates[i].getExtensionValue(KEY_DESCRIPTION_OID);
+      // Fail now rather than measure something that silently fails
+      Attestation attestation = new Attestation(mExtensionValues[i]);
+      if (attestation.getAttestationSecurityLevel() != expectedLevel) {
+        throw new IllegalStateException(
+            "Certificate "
+                + i
+                + " of the "
+                + securityLevel
+                + " corpus has security level "
+                + Attestation.securityLevelToString(attestation.getAttestationSecurityLevel()));
+      }
+      // Decodes every field
+      attestation.toString();
+    }
+    AttestationCache.getInstance().clear();
+  }
+
+  @Benchmark
+  public int parse() throws CertificateParsingException {
+    return new Attestation(mExtensionValues[nextIndex()]).getAttestationVersion();
+  }
+
+  @Benchmark
+  public void parseAndRead(Blackhole blackhole) throws CertificateParsingException {
+    readFields(new Attestation(mExtensionValues[nextIndex()]), blackhole);
+  }
+
+  @Benchmark
+  public String parseAndToString() throws CertificateParsingException {
+    return new Attestation(mExtensionValues[nextIndex()]).toString();
+  }
+
+  /** Lookups of certificates already parsed, then reading their fields. */
+  @Benchmark
+  public void cachedRead(Blackhole blackhole) throws CertificateParsingException {
+    readFields(AttestationCache.getInstance().get(mCertificates[nextIndex()]), blackhole);
+  }
+
+  private int nextIndex() {
+    int index = mNext;
+    mNext = (index + 1) % mCertificates.length;
+    return index;
+  }
+
+  /**
+   * Reads the fields shown after generating a key and checked by {@code AttestationVerifier}. Any
+   * of them may be missing from real certificates.
+   */
+  private static void readFields(Attestation attestation, Blackhole blackhole) {
+    AuthorizationList teeEnforced = attestation.getTeeEnforced();
+    blackhole.consume(attestation.getAttestationChallenge());
+    blackhole.consume(attestation.getAttestationSecurityLevel());
+    blackhole.consume(teeEnforced.getSerialNumber());
+    blackhole.consume(teeEnforced.getOsPatchLevel());
+    blackhole.consume(teeEnforced.getPurposes());
+    RootOfTrust rootOfTrust = teeEnforced.getRootOfTrust();
+    blackhole.consume(rootOfTrust == null ? -1 : rootOfTrust.getVerifiedBootState());
+    AttestationApplicationId applicationId =
+        attestation.getSoftwareEnforced().getAttestationApplicationId();
+    blackhole.consume(applicationId == null ? null : applicationId.getAttestationPackageInfos());
+  }
+
+  /** Reads the first certificate of each chain file (PEM or DER) in {@code dir}. */
+  private static List<X509Certificate> readLeaves(Path dir)
+      throws IOException, CertificateException {
+    CertificateFactory factory = CertificateFactory.getInstance("X.509");
+    List<Path> files;
+    try (Stream<Path> list = Files.list(dir)) {
+      files = list.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+    }
+    List<X509Certificate> leaves = new ArrayList<>(files.size());
+    for (Path file : files) {
+      try (InputStream in = Files.newInputStream(file)) {
+        Collection<? extends Certificate> chain = factory.generateCertificates(in);
+        if (chain.isEmpty()) {
+          continue;
+        }
+        X509Certificate leaf = (X509Certificate) chain.iterator().next();
+        if (leaf.getExtensionValue(KEY_DESCRIPTION_OID) != null) {
+          leaves.add(leaf);
+        }
+      }
+    }
+    return leaves;
+  }
+}
@@ -27,14 +27,20 @@ import android.os.AsyncTask;
 import android.os.Build.VERSION_CODES;
 import android.os.Process;
 import android.preference.PreferenceManager;
+import android.provider.Settings;
 import android.text.TextUtils;
 import android.util.Log;
 import android.widget.Toast;
-import com.afwsamples.testdpc.common.Util;
-import java.io.File;
-import java.io.FileOutputStream;
+import com.afwsamples.testdpc.common.NotificationUtil;
+import com.afwsamples.testdpc.policy.networklogs.NetworkLogRecord;
+import com.afwsamples.testdpc.policy.networklogs.NetworkLogStats;
+import com.afwsamples.testdpc.policy.networklogs.NetworkLogStore;
+import com.afwsamples.testdpc.policy.securitylogs.SecurityEventAnomalyDetector;
+import com.afwsamples.testdpc.policy.securitylogs.SecurityEventFormatter;
+import com.afwsamples.testdpc.policy.securitylogs.SecurityLogArchive;
+import com.afwsamples.testdpc.policy.securitylogs.SecurityLogRecord;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.text.DateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
@@ -44,8 +50,6 @@ import java.util.List;
  * DeviceAdminReceiver and DelegatedAdminReceiver.
  */
 public class CommonReceiverOperations {
-  public static final String NETWORK_LOGS_FILE_PREFIX = "network_logs_";
-
   private static final String TAG = "AdminReceiver";
 
   public static String onChoosePrivateKeyAlias(Context context, int uid) {
@@ -93,41 +97,105 @@ public class CommonReceiverOperations {
 
     showToast(context, context.getString(R.string.on_network_logs_available_success, batchToken));
 
-    ArrayList<String> loggedEvents = new ArrayList<>();
-    if (Util.SDK_INT >= VERSION_CODES.P) {
-      for (NetworkEvent event : events) {
-        loggedEvents.add(event.toString());
+    ArrayList<NetworkLogRecord> records = new ArrayList<>(events.size());
+    for (NetworkEvent event : events) {
+      records.add(NetworkLogRecord.from(event));
+    }
+    new EventSavingTask(context, batchToken, records).execute();
+  }
+
+  /**
+   * Retrieves the available security logs into {@link SecurityLogArchive}, along with the
+   * pre-reboot logs the first time this is called after a reboot.
+   */
+  @TargetApi(VERSION_CODES.N)
+  public static void onSecurityLogsAvailable(Context context, ComponentName admin) {
+    Log.i(TAG, "onSecurityLogsAvailable()");
+    new SecurityLogArchivingTask(context, admin).execute();
+  }
+
+  @TargetApi(VERSION_CODES.N)
+  private static class SecurityLogArchivingTask extends AsyncTask<Void, Void, Void> {
+
+    private Context mContext;
+    private ComponentName mAdmin;
+
+    public SecurityLogArchivingTask(Context context, ComponentName admin) {
+      mContext = context.getApplicationContext();
+      mAdmin = admin;
+    }
+
+    @Override
+    protected Void doInBackground(Void... params) {
+      DevicePolicyManager dpm =
+          (DevicePolicyManager) mContext.getSystemService(Context.DEVICE_POLICY_SERVICE);
+      SecurityLogArchive archive = SecurityLogArchive.getInstance(mContext);
+      try {
+        List<SecurityLogRecord> records = SecurityLogRecord.from(dpm.retrieveSecurityLogs(mAdmin));
+        archive.ingest(records);
+        notifyAnomalies(
+            mContext, SecurityEventAnomalyDetector.getInstance(mContext).onEvents(records));
+
+        int bootCount =
+            Settings.Global.getInt(
+                mContext.getContentResolver(),
+                Settings.Global.BOOT_COUNT,
+                SecurityLogArchive.NO_BOOT_COUNT);
+        if (bootCount != SecurityLogArchive.NO_BOOT_COUNT
+            && archive.needsPreRebootMerge(bootCount)) {
+          archive.ingest(SecurityLogRecord.from(dpm.retrievePreRebootSecurityLogs(mAdmin)));
+          archive.setPreRebootMerged(bootCount);
+        }
+      } catch (SecurityException e) {
+        Log.e(TAG, "Exception while retrieving security logs", e);
+      } catch (IOException e) {
+        Log.e(TAG, "Failed archiving security logs", e);
       }
-    } else {
-      events.forEach(event -> loggedEvents.add(event.toString()));
+      return null;
+    }
+  }
+
+  private static void notifyAnomalies(
+      Context context, List<SecurityEventAnomalyDetector.Alert> alerts) {
+    for (SecurityEventAnomalyDetector.Alert alert : alerts) {
+      SecurityEventAnomalyDetector.Rule rule = alert.rule;
+      String message =
+          context.getString(
+              R.string.security_anomaly_message,
+              alert.count,
+              SecurityEventFormatter.getTagName(rule.tag),
+              rule.windowSeconds,
+              DateFormat.getDateTimeInstance().format(new Date(alert.timeMillis)));
+      // One notification per rule, replaced by its later alerts
+      NotificationUtil.showNotification(
+          context,
+          R.string.security_anomaly_title,
+          message,
+          rule.name,
+          NotificationUtil.SECURITY_ANOMALY_NOTIFICATION_ID);
     }
-    new EventSavingTask(context, batchToken, loggedEvents).execute();
   }
 
   private static class EventSavingTask extends AsyncTask<Void, Void, Void> {
 
     private Context mContext;
     private long mBatchToken;
-    private List<String> mLoggedEvents;
+    private List<NetworkLogRecord> mRecords;
 
-    public EventSavingTask(Context context, long batchToken, ArrayList<String> loggedEvents) {
+    public EventSavingTask(Context context, long batchToken, List<NetworkLogRecord> records) {
       mContext = context;
       mBatchToken = batchToken;
-      mLoggedEvents = loggedEvents;
+      mRecords = records;
     }
 
     @Override
     protected Void doInBackground(Void... params) {
-      Date timestamp = new Date();
-      String filename = NETWORK_LOGS_FILE_PREFIX + mBatchToken + "_" + timestamp.getTime() + ".txt";
-      File file = new File(mContext.getExternalFilesDir(null), filename);
-      try (OutputStream os = new FileOutputStream(file)) {
-        for (String event : mLoggedEvents) {
-          os.write((event + "\n").getBytes());
-        }
-        Log.d(TAG, "Saved network logs to file: " + filename);
+      try {
+        NetworkLogStore.Batch batch =
+            NetworkLogStore.getInstance(mContext).append(mBatchToken, mRecords);
+        NetworkLogStats.getInstance(mContext).add(batch, mRecords);
       } catch (IOException e) {
-        Log.e(TAG, "Failed saving network events to file" + filename, e);
+        Log.e(TAG, "Failed saving network events of batch " + mBatchToken, e);
       }
       return null;
     }
@@ -36,4 +36,10 @@ public class DelegatedAdminReceiver extends android.app.admin.DelegatedAdminRece
       Context context, Intent intent, long batchToken, int networkLogsCount) {
     CommonReceiverOperations.onNetworkLogsAvailable(context, null, batchToken, networkLogsCount);
   }
+
+  @TargetApi(VERSION_CODES.S)
+  @Override
+  public void onSecurityLogsAvailable(Context context, Intent intent) {
+    CommonReceiverOperations.onSecurityLogsAvailable(context, null);
+  }
 }
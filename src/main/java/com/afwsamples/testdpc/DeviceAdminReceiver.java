@@ -30,6 +30,7 @@ import android.os.Build.VERSION_CODES;
 import android.os.ParcelFileDescriptor;
 import android.os.PersistableBundle;
 import android.os.Process;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.util.Log;
@@ -37,21 +38,15 @@ import android.widget.Toast;
 import androidx.core.app.NotificationCompat;
 import com.afwsamples.testdpc.common.NotificationUtil;
 import com.afwsamples.testdpc.common.Util;
+import com.afwsamples.testdpc.policy.bugreport.BugreportIndex;
+import com.afwsamples.testdpc.policy.bugreport.BugreportIngester;
+import com.afwsamples.testdpc.policy.keyguard.FailedPasswordAttemptLog;
 import com.afwsamples.testdpc.provision.PostProvisioningTask;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Date;
 
 /** Handles events related to the managed profile. */
@@ -61,9 +56,8 @@ public class DeviceAdminReceiver extends android.app.admin.DeviceAdminReceiver {
   public static final String ACTION_PASSWORD_REQUIREMENTS_CHANGED =
       "com.afwsamples.testdpc.policy.PASSWORD_REQUIREMENTS_CHANGED";
 
-  private static final String LOGS_DIR = "logs";
-
-  private static final String FAILED_PASSWORD_LOG_FILE = "failed_pw_attempts_timestamps.log";
+  /** The notification inbox only shows a few lines, so older attempts aren't read. */
+  private static final int MAX_FAILED_PASSWORD_ATTEMPTS_SHOWN = 10;
 
   private static final int CHANGE_PASSWORD_NOTIFICATION_ID = 101;
   private static final int PASSWORD_FAILED_NOTIFICATION_ID = 102;
@@ -111,6 +105,7 @@ public class DeviceAdminReceiver extends android.app.admin.DeviceAdminReceiver {
   public void onSecurityLogsAvailable(Context context, Intent intent) {
     Log.i(TAG, "onSecurityLogsAvailable() called");
     showToast(context, R.string.on_security_logs_available);
+    CommonReceiverOperations.onSecurityLogsAvailable(context, getComponentName(context));
   }
 
   /*
@@ -171,36 +166,38 @@ public class DeviceAdminReceiver extends android.app.admin.DeviceAdminReceiver {
     new AsyncTask<Void, Void, String>() {
       @Override
       protected String doInBackground(Void... params) {
-        File outputBugreportFile;
+        ParcelFileDescriptor inputPfd;
+        try {
+          inputPfd = context.getContentResolver().openFileDescriptor(bugreportUri, "r");
+        } catch (IOException | SecurityException e) {
+          Log.e(TAG, "Unable to open bugreport " + bugreportUri, e);
+          return context.getString(R.string.received_bugreport_failed_retrieval);
+        }
+
+        File outputBugreportFile =
+            new File(context.getExternalFilesDir(null), bugreportUri.getLastPathSegment());
+        Log.i(TAG, "Writing bugreport to " + outputBugreportFile);
+        BugreportProgressNotification notification = new BugreportProgressNotification(context);
         String message;
-        InputStream in;
-        OutputStream out;
         try {
-          ParcelFileDescriptor mInputPfd =
-              context.getContentResolver().openFileDescriptor(bugreportUri, "r");
-          in = new FileInputStream(mInputPfd.getFileDescriptor());
-          outputBugreportFile =
-              new File(context.getExternalFilesDir(null), bugreportUri.getLastPathSegment());
-          Log.i(TAG, "Writing bugreport to " + outputBugreportFile);
-          out = new FileOutputStream(outputBugreportFile);
-          byte[] buffer = new byte[1024];
-          int read;
-          long totalRead = 0;
-          while ((read = in.read(buffer)) != -1) {
-            totalRead += read;
-            out.write(buffer, 0, read);
-          }
-          in.close();
-          out.close();
+          BugreportIngester.Result ingested =
+              BugreportIngester.ingest(
+                  inputPfd, outputBugreportFile, bugreportFileHash, notification);
           message =
               context.getString(
                   R.string.received_bugreport,
-                  outputBugreportFile.getPath(),
-                  bugreportFileHash,
-                  totalRead);
+                  ingested.file.getPath(),
+                  ingested.hash,
+                  ingested.size);
           Log.i(TAG, message);
+          indexBugreport(ingested.file);
+        } catch (BugreportIngester.HashMismatchException e) {
+          Log.e(TAG, "Discarded bugreport " + bugreportUri, e);
+          message =
+              context.getString(
+                  R.string.received_bugreport_hash_mismatch, e.actualHash, e.expectedHash);
         } catch (IOException e) {
-          Log.e(TAG, e.getMessage());
+          Log.e(TAG, "Unable to copy bugreport " + bugreportUri, e);
           message = context.getString(R.string.received_bugreport_failed_retrieval);
         }
         return message;
@@ -210,11 +207,73 @@ public class DeviceAdminReceiver extends android.app.admin.DeviceAdminReceiver {
       protected void onPostExecute(String message) {
         NotificationUtil.showNotification(
             context, R.string.bugreport_title, message, NotificationUtil.BUGREPORT_NOTIFICATION_ID);
+        // Only now, so the process is kept alive by the broadcast until the copy is done
         result.finish();
       }
     }.execute();
   }
 
+  /** Indexes a saved bugreport for the bugreport-section shell command. */
+  private static void indexBugreport(File bugreport) {
+    try {
+      BugreportIndex index = BugreportIndex.getOrBuild(bugreport);
+      Log.i(TAG, "Indexed " + index.getSections().size() + " sections of " + bugreport);
+    } catch (IOException e) {
+      // The bugreport is still saved, and the index is built again on first use
+      Log.w(TAG, "Unable to index bugreport " + bugreport, e);
+    }
+  }
+
+  /** Shows the progress of a bugreport copy, updated at most every half second. */
+  private static final class BugreportProgressNotification
+      implements BugreportIngester.ProgressListener {
+    private static final long NOTIFICATION_INTERVAL_MS = 500;
+
+    private final Context mContext;
+    private final NotificationManager mNotificationManager;
+    private final NotificationCompat.Builder mBuilder;
+    private long mLastUpdate;
+
+    BugreportProgressNotification(Context context) {
+      mContext = context;
+      mNotificationManager =
+          (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+      mBuilder =
+          NotificationUtil.getNotificationBuilder(context)
+              .setSmallIcon(R.drawable.ic_launcher)
+              .setContentTitle(context.getString(R.string.bugreport_title))
+              .setOnlyAlertOnce(true)
+              .setOngoing(true)
+              .setProgress(0, 0, /* indeterminate= */ true);
+      mNotificationManager.notify(NotificationUtil.BUGREPORT_NOTIFICATION_ID, mBuilder.build());
+    }
+
+    @Override
+    public void onProgress(long bytesCopied, long bytesTotal) {
+      long now = SystemClock.elapsedRealtime();
+      if (now - mLastUpdate < NOTIFICATION_INTERVAL_MS) {
+        return;
+      }
+      mLastUpdate = now;
+      long copiedMegabytes = bytesCopied / (1024 * 1024);
+      if (bytesTotal < 0) {
+        mBuilder.setContentText(
+            mContext.getString(R.string.received_bugreport_progress_unknown, copiedMegabytes));
+      } else {
+        // Notification progress is an int, so report it in thousandths
+        int progress = bytesTotal == 0 ? 1000 : (int) (bytesCopied * 1000 / bytesTotal);
+        mBuilder
+            .setProgress(1000, progress, /* indeterminate= */ false)
+            .setContentText(
+                mContext.getString(
+                    R.string.received_bugreport_progress,
+                    copiedMegabytes,
+                    bytesTotal / (1024 * 1024)));
+      }
+      mNotificationManager.notify(NotificationUtil.BUGREPORT_NOTIFICATION_ID, mBuilder.build());
+    }
+  }
+
   @TargetApi(VERSION_CODES.N)
   @Override
   public void onBugreportFailed(Context context, Intent intent, int failureCode) {
@@ -359,7 +418,7 @@ public class DeviceAdminReceiver extends android.app.admin.DeviceAdminReceiver {
   @TargetApi(VERSION_CODES.O)
   @Override
   @SuppressWarnings("UnspecifiedImmutableFlag") // TODO(b/210723613): proper fix
-  public void onPasswordFailed(Context context, Intent intent, UserHandle user) {
+  public void onPasswordFailed(final Context context, Intent intent, UserHandle user) {
     if (!Process.myUserHandle().equals(user)) {
       // This password failure was on another user, for example a parent profile. Ignore it.
       return;
@@ -379,16 +438,6 @@ public class DeviceAdminReceiver extends android.app.admin.DeviceAdminReceiver {
             .getResources()
             .getQuantityString(R.plurals.password_failed_attempts_title, attempts, attempts);
 
-    ArrayList<Date> previousFailedAttempts = getFailedPasswordAttempts(context);
-    Date date = new Date();
-    previousFailedAttempts.add(date);
-    Collections.sort(previousFailedAttempts, Collections.<Date>reverseOrder());
-    try {
-      saveFailedPasswordAttempts(context, previousFailedAttempts);
-    } catch (IOException e) {
-      Log.e(TAG, "Unable to save failed password attempts", e);
-    }
-
     String content =
         maxAttempts == 0
             ? context.getString(R.string.password_failed_no_limit_set)
@@ -409,18 +458,38 @@ public class DeviceAdminReceiver extends android.app.admin.DeviceAdminReceiver {
                 new Intent(DevicePolicyManager.ACTION_SET_NEW_PASSWORD), /* flags */
                 PendingIntent.FLAG_IMMUTABLE));
 
-    NotificationCompat.InboxStyle inboxStyle = new NotificationCompat.InboxStyle();
-    inboxStyle.setBigContentTitle(title);
+    final long now = System.currentTimeMillis();
+    final PendingResult result = goAsync();
+    new AsyncTask<Void, Void, long[]>() {
+      @Override
+      protected long[] doInBackground(Void... params) {
+        FailedPasswordAttemptLog log = FailedPasswordAttemptLog.getInstance(context);
+        try {
+          log.append(now);
+          return log.getLatest(MAX_FAILED_PASSWORD_ATTEMPTS_SHOWN);
+        } catch (IOException e) {
+          Log.e(TAG, "Unable to save failed password attempts", e);
+          return new long[] {now};
+        }
+      }
+
+      @Override
+      protected void onPostExecute(long[] latestAttempts) {
+        NotificationCompat.InboxStyle inboxStyle = new NotificationCompat.InboxStyle();
+        inboxStyle.setBigContentTitle(title);
 
-    final DateFormat dateFormat = SimpleDateFormat.getDateTimeInstance();
-    for (Date d : previousFailedAttempts) {
-      inboxStyle.addLine(dateFormat.format(d));
-    }
-    warn.setStyle(inboxStyle);
+        final DateFormat dateFormat = SimpleDateFormat.getDateTimeInstance();
+        for (long time : latestAttempts) {
+          inboxStyle.addLine(dateFormat.format(new Date(time)));
+        }
+        warn.setStyle(inboxStyle);
 
-    NotificationManager nm =
-        (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
-    nm.notify(PASSWORD_FAILED_NOTIFICATION_ID, warn.build());
+        NotificationManager nm =
+            (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+        nm.notify(PASSWORD_FAILED_NOTIFICATION_ID, warn.build());
+        result.finish();
+      }
+    }.execute();
   }
 
   @Deprecated
@@ -431,10 +500,23 @@ public class DeviceAdminReceiver extends android.app.admin.DeviceAdminReceiver {
 
   @TargetApi(VERSION_CODES.O)
   @Override
-  public void onPasswordSucceeded(Context context, Intent intent, UserHandle user) {
-    if (Process.myUserHandle().equals(user)) {
-      logFile(context).delete();
+  public void onPasswordSucceeded(final Context context, Intent intent, UserHandle user) {
+    if (!Process.myUserHandle().equals(user)) {
+      return;
     }
+    final PendingResult result = goAsync();
+    new AsyncTask<Void, Void, Void>() {
+      @Override
+      protected Void doInBackground(Void... params) {
+        FailedPasswordAttemptLog.getInstance(context).clear();
+        return null;
+      }
+
+      @Override
+      protected void onPostExecute(Void unused) {
+        result.finish();
+      }
+    }.execute();
   }
 
   @Deprecated
@@ -458,64 +540,6 @@ public class DeviceAdminReceiver extends android.app.admin.DeviceAdminReceiver {
     Log.i(TAG, "Device admin enabled in user with serial number: " + serialNumber);
   }
 
-  private static File logFile(Context context) {
-    File parent = context.getDir(LOGS_DIR, Context.MODE_PRIVATE);
-    return new File(parent, FAILED_PASSWORD_LOG_FILE);
-  }
-
-  private static ArrayList<Date> getFailedPasswordAttempts(Context context) {
-    File logFile = logFile(context);
-    ArrayList<Date> result = new ArrayList<Date>();
-
-    if (!logFile.exists()) {
-      return result;
-    }
-
-    FileInputStream fis = null;
-    try {
-      fis = new FileInputStream(logFile);
-      BufferedReader br = new BufferedReader(new InputStreamReader(fis));
-
-      String line = null;
-      while ((line = br.readLine()) != null && line.length() > 0) {
-        result.add(new Date(Long.parseLong(line)));
-      }
-
-      br.close();
-    } catch (IOException e) {
-      Log.e(TAG, "Unable to read failed password attempts", e);
-    } finally {
-      if (fis != null) {
-        try {
-          fis.close();
-        } catch (IOException e) {
-          Log.e(TAG, "Unable to close failed password attempts log file", e);
-        }
-      }
-    }
-
-    return result;
-  }
-
-  private static void saveFailedPasswordAttempts(Context context, ArrayList<Date> attempts)
-      throws IOException {
-    File logFile = logFile(context);
-
-    if (!logFile.exists()) {
-      logFile.createNewFile();
-    }
-
-    FileOutputStream fos = new FileOutputStream(logFile);
-    BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(fos));
-
-    for (Date date : attempts) {
-      bw.write(Long.toString(date.getTime()));
-      bw.newLine();
-    }
-
-    bw.close();
-  }
-
   @SuppressWarnings("UnspecifiedImmutableFlag") // TODO(b/210723613): proper fix
   private static void updatePasswordConstraintNotification(Context context) {
     final DevicePolicyManager dpm =
@@ -492,7 +492,6 @@ public interface DevicePolicyManagerGateway {
    */
   int getPersonalAppsSuspendedReasons();
 
-  // TODO(b/171350084): use on CosuConfig
   /** See {@link android.app.admin.DevicePolicyManager#enableSystemApp(ComponentName, String)}. */
   void enableSystemApp(
       String packageName, @NonNull Consumer<Void> onSuccess, @NonNull Consumer<Exception> onError);
@@ -620,6 +619,16 @@ public interface DevicePolicyManagerGateway {
    */
   boolean getCameraDisabledByAnyAdmin();
 
+  /**
+   * See {@link android.app.admin.DevicePolicyManager#setScreenCaptureDisabled(ComponentName,
+   * boolean)}.
+   */
+  void setScreenCaptureDisabled(
+      boolean disabled, @NonNull Consumer<Void> onSuccess, @NonNull Consumer<Exception> onError);
+
+  /** See {@link android.app.admin.DevicePolicyManager#getScreenCaptureDisabled(ComponentName)}. */
+  boolean getScreenCaptureDisabled();
+
   /**
    * See {@link android.app.admin.DevicePolicyManager#setStatusBarDisabled(ComponentName, boolean)}.
    */
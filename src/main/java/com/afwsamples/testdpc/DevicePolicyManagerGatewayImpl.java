@@ -36,8 +36,10 @@ import android.security.keystore.KeyGenParameterSpec;
 import android.security.AttestedKeyPair;
 import android.util.Log;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.afwsamples.testdpc.common.ReflectionUtil;
+import com.afwsamples.testdpc.common.SingleFlight;
 import com.afwsamples.testdpc.common.Util;
 import com.google.common.base.Joiner;
 import java.util.ArrayList;
@@ -48,17 +50,27 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 public final class DevicePolicyManagerGatewayImpl implements DevicePolicyManagerGateway {
 
   private static final String TAG = "DevicePolicyManagerGate";
 
+  /**
+   * Coalesces identical reads issued concurrently (for example by the UI, {@link ShellCommand} and
+   * receivers), so they share a single binder call. Shared by all instances of the process, and
+   * keyed by {@link #readKey(ComponentName, boolean, String)}. Writes that change a coalesced value
+   * call {@link #forgetInFlightReads()} so later reads don't share a read that started before them.
+   */
+  private static final SingleFlight<String, Object> sReads = new SingleFlight<>();
+
   private final DevicePolicyManager mDevicePolicyManager;
   private final UserManager mUserManager;
   private final ComponentName mAdminComponentName;
   private final PackageManager mPackageManager;
   private final LocationManager mLocationManager;
+  private final boolean mParentProfile;
 
   public DevicePolicyManagerGatewayImpl(@NonNull Context context) {
     this(
@@ -75,11 +87,22 @@ public final class DevicePolicyManagerGatewayImpl implements DevicePolicyManager
       @NonNull PackageManager pm,
       @NonNull LocationManager lm,
       @NonNull ComponentName admin) {
+    this(dpm, um, pm, lm, admin, /* parentProfile= */ false);
+  }
+
+  private DevicePolicyManagerGatewayImpl(
+      @NonNull DevicePolicyManager dpm,
+      @NonNull UserManager um,
+      @NonNull PackageManager pm,
+      @NonNull LocationManager lm,
+      @NonNull ComponentName admin,
+      boolean parentProfile) {
     mDevicePolicyManager = dpm;
     mUserManager = um;
     mPackageManager = pm;
     mLocationManager = lm;
     mAdminComponentName = admin;
+    mParentProfile = parentProfile;
 
     Log.d(TAG, "constructor: admin=" + mAdminComponentName + ", dpm=" + dpm);
   }
@@ -91,7 +114,40 @@ public final class DevicePolicyManagerGatewayImpl implements DevicePolicyManager
     UserManager um = context.getSystemService(UserManager.class);
     PackageManager pm = context.getPackageManager();
     LocationManager lm = context.getSystemService(LocationManager.class);
-    return new DevicePolicyManagerGatewayImpl(dpm, um, pm, lm, admin);
+    return new DevicePolicyManagerGatewayImpl(dpm, um, pm, lm, admin, /* parentProfile= */ true);
+  }
+
+  /**
+   * Runs a read-only {@code call}, sharing the result with concurrent calls using the same {@code
+   * key} (see {@link SingleFlight}). The result must not be modified by the caller.
+   */
+  @SuppressWarnings("unchecked")
+  public static <T> T coalesceRead(@NonNull String key, @NonNull Supplier<T> call) {
+    return (T) sReads.run(key, call::get);
+  }
+
+  /** Gets how many reads were made, and how many of them shared another in-flight read. */
+  public static long[] getReadStats() {
+    return new long[] {sReads.getCalls(), sReads.getCoalescedCalls()};
+  }
+
+  /**
+   * Gets the key used to coalesce a read, which must identify everything its result depends on:
+   * the admin it's made for ({@code null} if none), whether it's made on the parent profile
+   * instance, and the read itself (like {@code getDelegatedScopes(com.example)}).
+   */
+  @NonNull
+  public static String readKey(
+      @Nullable ComponentName admin, boolean parentProfile, @NonNull String read) {
+    return (parentProfile ? "parent:" : "") + admin + "#" + read;
+  }
+
+  private <T> T coalesce(String read, Supplier<T> call) {
+    return coalesceRead(readKey(mAdminComponentName, mParentProfile, read), call);
+  }
+
+  private static void forgetInFlightReads() {
+    sReads.forgetInFlight();
   }
 
   @Override
@@ -109,7 +165,9 @@ public final class DevicePolicyManagerGatewayImpl implements DevicePolicyManager
     if (mAdminComponentName == null) {
       return false;
     }
-    return mDevicePolicyManager.isProfileOwnerApp(mAdminComponentName.getPackageName());
+    return coalesce(
+        "isProfileOwnerApp",
+        () -> mDevicePolicyManager.isProfileOwnerApp(mAdminComponentName.getPackageName()));
   }
 
   @Override
@@ -118,12 +176,16 @@ public final class DevicePolicyManagerGatewayImpl implements DevicePolicyManager
       return false;
     }
 
-    return mDevicePolicyManager.isDeviceOwnerApp(mAdminComponentName.getPackageName());
+    return coalesce(
+        "isDeviceOwnerApp",
+        () -> mDevicePolicyManager.isDeviceOwnerApp(mAdminComponentName.getPackageName()));
   }
 
   @Override
   public boolean isOrganizationOwnedDeviceWithManagedProfile() {
-    return mDevicePolicyManager.isOrganizationOwnedDeviceWithManagedProfile();
+    return coalesce(
+        "isOrganizationOwnedDeviceWithManagedProfile",
+        mDevicePolicyManager::isOrganizationOwnedDeviceWithManagedProfile);
   }
 
   @Override
@@ -326,7 +388,7 @@ public final class DevicePolicyManagerGatewayImpl implements DevicePolicyManager
 
   @Override
   public boolean isAffiliatedUser() {
-    boolean isIt = mDevicePolicyManager.isAffiliatedUser();
+    boolean isIt = coalesce("isAffiliatedUser", mDevicePolicyManager::isAffiliatedUser);
     Log.d(TAG, "isAffiliatedUser(): " + isIt);
     return isIt;
   }
@@ -335,6 +397,7 @@ public final class DevicePolicyManagerGatewayImpl implements DevicePolicyManager
   public void setAffiliationIds(Set<String> ids) {
     Log.d(TAG, "setAffiliationIds(" + ids + ")");
     mDevicePolicyManager.setAffiliationIds(mAdminComponentName, ids);
+    forgetInFlightReads();
   }
 
   @Override
@@ -347,7 +410,10 @@ public final class DevicePolicyManagerGatewayImpl implements DevicePolicyManager
   @Override
   public Set<String> getUserRestrictions() {
     Log.d(TAG, "getUserRestrictions()");
-    Bundle restrictions = mDevicePolicyManager.getUserRestrictions(mAdminComponentName);
+    Bundle restrictions =
+        coalesce(
+            "getUserRestrictions",
+            () -> mDevicePolicyManager.getUserRestrictions(mAdminComponentName));
     return restrictions.keySet().stream()
         .filter(k -> restrictions.getBoolean(k))
         .collect(Collectors.toSet());
@@ -367,6 +433,7 @@ public final class DevicePolicyManagerGatewayImpl implements DevicePolicyManager
       } else {
         mDevicePolicyManager.clearUserRestriction(mAdminComponentName, userRestriction);
       }
+      forgetInFlightReads();
       onSuccess.accept(null);
     } catch (Exception e) {
       onError.accept(e);
@@ -385,7 +452,9 @@ public final class DevicePolicyManagerGatewayImpl implements DevicePolicyManager
     if (Log.isLoggable(TAG, Log.VERBOSE)) {
       Log.v(TAG, "hasUserRestriction(" + userRestriction + ")");
     }
-    return mUserManager.hasUserRestriction(userRestriction);
+    return coalesce(
+        "hasUserRestriction(" + userRestriction + ")",
+        () -> mUserManager.hasUserRestriction(userRestriction));
   }
 
   @Override
@@ -464,6 +533,7 @@ public final class DevicePolicyManagerGatewayImpl implements DevicePolicyManager
 
     try {
       mDevicePolicyManager.setNetworkLoggingEnabled(mAdminComponentName, enabled);
+      forgetInFlightReads();
       onSuccess.accept(null);
     } catch (Exception e) {
       onError.accept(e);
@@ -478,7 +548,10 @@ public final class DevicePolicyManagerGatewayImpl implements DevicePolicyManager
 
   @Override
   public boolean isNetworkLoggingEnabled() {
-    boolean isIt = mDevicePolicyManager.isNetworkLoggingEnabled(mAdminComponentName);
+    boolean isIt =
+        coalesce(
+            "isNetworkLoggingEnabled",
+            () -> mDevicePolicyManager.isNetworkLoggingEnabled(mAdminComponentName));
     Log.d(TAG, "isNetworkLoggingEnabled(): " + isIt);
     return isIt;
   }
@@ -504,6 +577,7 @@ public final class DevicePolicyManagerGatewayImpl implements DevicePolicyManager
 
     try {
       mDevicePolicyManager.setSecurityLoggingEnabled(mAdminComponentName, enabled);
+      forgetInFlightReads();
       onSuccess.accept(null);
     } catch (Exception e) {
       onError.accept(e);
@@ -512,7 +586,10 @@ public final class DevicePolicyManagerGatewayImpl implements DevicePolicyManager
 
   @Override
   public boolean isSecurityLoggingEnabled() {
-    boolean isIt = mDevicePolicyManager.isSecurityLoggingEnabled(mAdminComponentName);
+    boolean isIt =
+        coalesce(
+            "isSecurityLoggingEnabled",
+            () -> mDevicePolicyManager.isSecurityLoggingEnabled(mAdminComponentName));
     Log.d(TAG, "isSecurityLoggingEnabled(): " + isIt);
     return isIt;
   }
@@ -645,6 +722,7 @@ public final class DevicePolicyManagerGatewayImpl implements DevicePolicyManager
 
     try {
       mDevicePolicyManager.removeActiveAdmin(mAdminComponentName);
+      forgetInFlightReads();
       onSuccess.accept(null);
     } catch (Exception e) {
       onError.accept(e);
@@ -657,6 +735,7 @@ public final class DevicePolicyManagerGatewayImpl implements DevicePolicyManager
 
     try {
       mDevicePolicyManager.clearDeviceOwnerApp(mAdminComponentName.getPackageName());
+      forgetInFlightReads();
       onSuccess.accept(null);
     } catch (Exception e) {
       onError.accept(e);
@@ -669,6 +748,7 @@ public final class DevicePolicyManagerGatewayImpl implements DevicePolicyManager
 
     try {
       mDevicePolicyManager.clearProfileOwner(mAdminComponentName);
+      forgetInFlightReads();
       onSuccess.accept(null);
     } catch (Exception e) {
       onError.accept(e);
@@ -739,6 +819,7 @@ public final class DevicePolicyManagerGatewayImpl implements DevicePolicyManager
 
     try {
       mDevicePolicyManager.transferOwnership(mAdminComponentName, target, bundle);
+      forgetInFlightReads();
       onSuccess.accept(null);
     } catch (Exception e) {
       onError.accept(e);
@@ -880,6 +961,7 @@ public final class DevicePolicyManagerGatewayImpl implements DevicePolicyManager
     Log.d(TAG, "setLockTaskFeatures(" + features + ")");
     try {
       mDevicePolicyManager.setLockTaskFeatures(mAdminComponentName, flags);
+      forgetInFlightReads();
       onSuccess.accept(null);
     } catch (Exception e) {
       onError.accept(e);
@@ -888,7 +970,10 @@ public final class DevicePolicyManagerGatewayImpl implements DevicePolicyManager
 
   @Override
   public int getLockTaskFeatures() {
-    int flags = mDevicePolicyManager.getLockTaskFeatures(mAdminComponentName);
+    int flags =
+        coalesce(
+            "getLockTaskFeatures",
+            () -> mDevicePolicyManager.getLockTaskFeatures(mAdminComponentName));
     Log.d(
         TAG, "getLockTaskFeatures(): " + Util.lockTaskFeaturesToString(flags) + " (" + flags + ")");
     return flags;
@@ -1059,6 +1144,23 @@ public final class DevicePolicyManagerGatewayImpl implements DevicePolicyManager
     return mDevicePolicyManager.getCameraDisabled(/* admin= */ null);
   }
 
+  @Override
+  public void setScreenCaptureDisabled(
+      boolean disabled, Consumer<Void> onSuccess, Consumer<Exception> onError) {
+    Log.d(TAG, "setScreenCaptureDisabled(" + disabled + ")");
+    try {
+      mDevicePolicyManager.setScreenCaptureDisabled(mAdminComponentName, disabled);
+      onSuccess.accept(null);
+    } catch (Exception e) {
+      onError.accept(e);
+    }
+  }
+
+  @Override
+  public boolean getScreenCaptureDisabled() {
+    return mDevicePolicyManager.getScreenCaptureDisabled(mAdminComponentName);
+  }
+
   @Override
   public void setStatusBarDisabled(
       boolean disabled, Consumer<Void> onSuccess, Consumer<Exception> onError) {
@@ -1237,6 +1339,7 @@ public final class DevicePolicyManagerGatewayImpl implements DevicePolicyManager
     Log.d(TAG, "setDelegatedScopes(" + delegatePackage + ", " + scopes + ")");
     try {
       mDevicePolicyManager.setDelegatedScopes(mAdminComponentName, delegatePackage, scopes);
+      forgetInFlightReads();
       Log.d(TAG, "set successfully");
       onSuccess.accept(null);
     } catch (Exception e) {
@@ -1246,16 +1349,20 @@ public final class DevicePolicyManagerGatewayImpl implements DevicePolicyManager
 
   @Override
   public List<String> getDelegatedScopes(String delegatePackage) {
-    List<String> scopes = mDevicePolicyManager.getDelegatedScopes(mAdminComponentName,
-        delegatePackage);
+    List<String> scopes =
+        coalesce(
+            "getDelegatedScopes(" + delegatePackage + ")",
+            () -> mDevicePolicyManager.getDelegatedScopes(mAdminComponentName, delegatePackage));
     Log.d(TAG, "getDelegatedScopes(" + delegatePackage + "): " + scopes + ")");
     return scopes;
   }
 
   @Override
   public List<String> getDelegatePackages(String delegationScope) {
-    List<String> packages = mDevicePolicyManager.getDelegatePackages(mAdminComponentName,
-        delegationScope);
+    List<String> packages =
+        coalesce(
+            "getDelegatePackages(" + delegationScope + ")",
+            () -> mDevicePolicyManager.getDelegatePackages(mAdminComponentName, delegationScope));
     Log.d(TAG, "getDelegatedPackages(" + packages + "): " + packages + ")");
     return packages;
   }
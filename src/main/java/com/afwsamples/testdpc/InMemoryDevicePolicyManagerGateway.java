@@ -0,0 +1,1455 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc;
+
+import android.app.admin.DevicePolicyManager;
+import android.app.admin.NetworkEvent;
+import android.app.admin.SecurityLog.SecurityEvent;
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.graphics.Bitmap;
+import android.os.Bundle;
+import android.os.PersistableBundle;
+import android.os.UserHandle;
+import android.os.UserManager;
+import android.security.AttestedKeyPair;
+import android.security.keystore.KeyGenParameterSpec;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * {@link DevicePolicyManagerGateway} that keeps all policy state in memory, so {@link ShellCommand}
+ * and other gateway clients can be exercised on a plain JVM (for example, in Robolectric tests and
+ * benchmarks) without a device.
+ *
+ * <p>It models users, user restrictions, packages (suspended / hidden / uninstall-blocked state),
+ * lock task state, key pairs and their grants, delegations and the simple admin settings. Every
+ * call can optionally be delayed by an artificial latency (see {@link #setLatency(long, TimeUnit)})
+ * to approximate the cost of a binder transaction. Operations that cannot be modeled (like
+ * {@link #getDevicePolicyManager()}) throw {@link UnsupportedOperationException}.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class InMemoryDevicePolicyManagerGateway implements DevicePolicyManagerGateway {
+
+  private final ComponentName mAdmin;
+  private final Object mLock = new Object();
+
+  private volatile long mLatencyNanos;
+
+  // Ownership / device state
+  private boolean mDeviceOwner;
+  private boolean mProfileOwner;
+  private boolean mOrganizationOwned;
+  private boolean mHeadlessSystemUserMode;
+  private boolean mUserForeground = true;
+  private boolean mAffiliated;
+
+  // Users
+  private final Map<Long, UserHandle> mUsersBySerialNumber = new LinkedHashMap<>();
+  private final Set<UserHandle> mRunningUsers = new HashSet<>();
+  private long mNextSerialNumber = 1;
+  private int mNextUserId = 10;
+  @Nullable private UserHandle mForegroundUser;
+  @Nullable private Bitmap mUserIcon;
+  @Nullable private CharSequence mStartUserSessionMessage;
+  @Nullable private CharSequence mEndUserSessionMessage;
+  private boolean mLogoutEnabled;
+  private final Set<String> mAffiliationIds = new LinkedHashSet<>();
+
+  // Restrictions and settings
+  private final Set<String> mUserRestrictions = new LinkedHashSet<>();
+  private final Map<String, String> mSecureSettings = new HashMap<>();
+  private final Map<String, String> mGlobalSettings = new HashMap<>();
+  @Nullable private CharSequence mOrganizationName;
+  @Nullable private CharSequence mDeviceOwnerLockScreenInfo;
+  private boolean mNetworkLoggingEnabled;
+  private boolean mSecurityLoggingEnabled;
+  private boolean mUsbDataSignalingEnabled = true;
+  private boolean mPreferentialNetworkServiceEnabled;
+  private boolean mLocationEnabled = true;
+  private boolean mKeyguardDisabled;
+  private int mKeyguardDisabledFeatures;
+  private boolean mCameraDisabled;
+  private boolean mScreenCaptureDisabled;
+  private boolean mStatusBarDisabled;
+  private int mMaximumFailedPasswordsForWipe;
+  private int mPasswordQuality = DevicePolicyManager.PASSWORD_QUALITY_UNSPECIFIED;
+  private int mRequiredPasswordComplexity = DevicePolicyManager.PASSWORD_COMPLEXITY_NONE;
+  private boolean mActivePasswordSufficient = true;
+  private boolean mPersonalAppsSuspended;
+  private long mLastBugReportRequestTime = -1;
+
+  // Packages
+  private final Set<String> mInstalledPackages = new LinkedHashSet<>();
+  private final Set<String> mDisabledSystemApps = new LinkedHashSet<>();
+  private final Set<String> mSuspendedPackages = new HashSet<>();
+  private final Set<String> mHiddenPackages = new HashSet<>();
+  private final Set<String> mUninstallBlockedPackages = new HashSet<>();
+  private final List<String> mUserControlDisabledPackages = new ArrayList<>();
+  private final List<String> mMeteredDataDisabledPackages = new ArrayList<>();
+  @Nullable private List<String> mPermittedInputMethods;
+  private final Map<String, Bundle> mApplicationRestrictions = new HashMap<>();
+  private final Map<String, Integer> mPermissionGrantStates = new HashMap<>();
+  private final Map<String, List<String>> mDelegatedScopes = new LinkedHashMap<>();
+
+  // Lock task
+  private String[] mLockTaskPackages = new String[0];
+  private int mLockTaskFeatures;
+
+  // Keys: alias -> (uid -> packages)
+  private final Map<String, Map<Integer, Set<String>>> mKeyPairs = new LinkedHashMap<>();
+  private final Map<String, Integer> mPackageUids = new HashMap<>();
+  private int mNextUid = 10_000;
+
+  public InMemoryDevicePolicyManagerGateway(@NonNull ComponentName admin) {
+    mAdmin = admin;
+    UserHandle systemUser = UserHandle.of(0);
+    mUsersBySerialNumber.put(0L, systemUser);
+    mRunningUsers.add(systemUser);
+    mForegroundUser = systemUser;
+    mInstalledPackages.add(admin.getPackageName());
+  }
+
+  /** Sets the artificial latency added to every gateway call (defaults to none). */
+  public InMemoryDevicePolicyManagerGateway setLatency(long latency, @NonNull TimeUnit unit) {
+    mLatencyNanos = unit.toNanos(latency);
+    return this;
+  }
+
+  /** Makes the admin the device owner (or not). */
+  public InMemoryDevicePolicyManagerGateway setDeviceOwner(boolean deviceOwner) {
+    synchronized (mLock) {
+      mDeviceOwner = deviceOwner;
+    }
+    return this;
+  }
+
+  /** Makes the admin a profile owner (or not). */
+  public InMemoryDevicePolicyManagerGateway setProfileOwner(boolean profileOwner) {
+    synchronized (mLock) {
+      mProfileOwner = profileOwner;
+    }
+    return this;
+  }
+
+  /** Adds installed packages that the package-related calls will recognize. */
+  public InMemoryDevicePolicyManagerGateway addInstalledPackages(@NonNull String... packageNames) {
+    synchronized (mLock) {
+      mInstalledPackages.addAll(Arrays.asList(packageNames));
+    }
+    return this;
+  }
+
+  /** Adds system apps that are installed but disabled for the user. */
+  public InMemoryDevicePolicyManagerGateway addDisabledSystemApps(@NonNull String... packageNames) {
+    synchronized (mLock) {
+      mInstalledPackages.addAll(Arrays.asList(packageNames));
+      mDisabledSystemApps.addAll(Arrays.asList(packageNames));
+    }
+    return this;
+  }
+
+  private void simulateBinderCall() {
+    long latencyNanos = mLatencyNanos;
+    if (latencyNanos > 0) {
+      LockSupport.parkNanos(latencyNanos);
+    }
+  }
+
+  private void checkInstalled(String packageName) throws NameNotFoundException {
+    if (!mInstalledPackages.contains(packageName)) {
+      throw new NameNotFoundException(packageName);
+    }
+  }
+
+  private int uidOf(String packageName) {
+    Integer uid = mPackageUids.get(packageName);
+    if (uid == null) {
+      uid = mNextUid++;
+      mPackageUids.put(packageName, uid);
+    }
+    return uid;
+  }
+
+  /** Runs a mutation, reporting exceptions thrown by it to {@code onError}. */
+  private <T> void mutate(
+      @NonNull Mutation<T> mutation,
+      @NonNull Consumer<T> onSuccess,
+      @NonNull Consumer<Exception> onError) {
+    simulateBinderCall();
+    T result;
+    try {
+      synchronized (mLock) {
+        result = mutation.apply();
+      }
+    } catch (Exception e) {
+      onError.accept(e);
+      return;
+    }
+    onSuccess.accept(result);
+  }
+
+  private interface Mutation<T> {
+    T apply() throws Exception;
+  }
+
+  @Override
+  public ComponentName getAdmin() {
+    return mAdmin;
+  }
+
+  @Override
+  public DevicePolicyManager getDevicePolicyManager() {
+    throw new UnsupportedOperationException("No DevicePolicyManager on " + this);
+  }
+
+  @Override
+  public boolean isDeviceOwnerApp() {
+    simulateBinderCall();
+    synchronized (mLock) {
+      return mDeviceOwner;
+    }
+  }
+
+  @Override
+  public boolean isProfileOwnerApp() {
+    simulateBinderCall();
+    synchronized (mLock) {
+      return mProfileOwner;
+    }
+  }
+
+  @Override
+  public boolean isOrganizationOwnedDeviceWithManagedProfile() {
+    simulateBinderCall();
+    synchronized (mLock) {
+      return mOrganizationOwned;
+    }
+  }
+
+  @Override
+  public boolean isHeadlessSystemUserMode() {
+    simulateBinderCall();
+    synchronized (mLock) {
+      return mHeadlessSystemUserMode;
+    }
+  }
+
+  @Override
+  public boolean isUserForeground() {
+    simulateBinderCall();
+    synchronized (mLock) {
+      return mUserForeground;
+    }
+  }
+
+  @Override
+  public List<UserHandle> listForegroundAffiliatedUsers() {
+    simulateBinderCall();
+    synchronized (mLock) {
+      return mForegroundUser == null || !mAffiliated
+          ? Collections.emptyList()
+          : Collections.singletonList(mForegroundUser);
+    }
+  }
+
+  @Override
+  public void createAndManageUser(
+      String name, int flags, Consumer<UserHandle> onSuccess, Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          UserHandle user = UserHandle.of(mNextUserId++);
+          mUsersBySerialNumber.put(mNextSerialNumber++, user);
+          return user;
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public void setUserIcon(Bitmap icon, Consumer<Void> onSuccess, Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          mUserIcon = icon;
+          return null;
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public void setStartUserSessionMessage(
+      CharSequence message, Consumer<Void> onSuccess, Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          mStartUserSessionMessage = message;
+          return null;
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public CharSequence getStartUserSessionMessage() {
+    simulateBinderCall();
+    synchronized (mLock) {
+      return mStartUserSessionMessage == null ? "" : mStartUserSessionMessage;
+    }
+  }
+
+  @Override
+  public void setEndUserSessionMessage(
+      CharSequence message, Consumer<Void> onSuccess, Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          mEndUserSessionMessage = message;
+          return null;
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public CharSequence getEndUserSessionMessage() {
+    simulateBinderCall();
+    synchronized (mLock) {
+      return mEndUserSessionMessage == null ? "" : mEndUserSessionMessage;
+    }
+  }
+
+  @Override
+  public UserHandle getUserHandle(long serialNumber) {
+    simulateBinderCall();
+    synchronized (mLock) {
+      return mUsersBySerialNumber.get(serialNumber);
+    }
+  }
+
+  @Override
+  public long getSerialNumber(UserHandle user) {
+    simulateBinderCall();
+    synchronized (mLock) {
+      for (Map.Entry<Long, UserHandle> entry : mUsersBySerialNumber.entrySet()) {
+        if (entry.getValue().equals(user)) {
+          return entry.getKey();
+        }
+      }
+      return -1;
+    }
+  }
+
+  @Override
+  public void removeUser(
+      UserHandle userHandle, Consumer<Void> onSuccess, Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          if (userHandle.equals(mForegroundUser)
+              || !mUsersBySerialNumber.values().remove(userHandle)) {
+            throw new FailedOperationException("removeUser(%s)", userHandle);
+          }
+          mRunningUsers.remove(userHandle);
+          return null;
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public void switchUser(
+      UserHandle userHandle, Consumer<Void> onSuccess, Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          if (!mUsersBySerialNumber.containsValue(userHandle)) {
+            throw new FailedOperationException("switchUser(%s)", userHandle);
+          }
+          mForegroundUser = userHandle;
+          mRunningUsers.add(userHandle);
+          return null;
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public void startUserInBackground(
+      UserHandle userHandle, Consumer<Integer> onSuccess, Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          if (!mUsersBySerialNumber.containsValue(userHandle)) {
+            throw new FailedUserOperationException(
+                UserManager.USER_OPERATION_ERROR_UNKNOWN, "startUserInBackground(%s)", userHandle);
+          }
+          mRunningUsers.add(userHandle);
+          return UserManager.USER_OPERATION_SUCCESS;
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public void stopUser(
+      UserHandle userHandle, Consumer<Integer> onSuccess, Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          if (userHandle.equals(mForegroundUser)) {
+            throw new FailedUserOperationException(
+                UserManager.USER_OPERATION_ERROR_CURRENT_USER, "stopUser(%s)", userHandle);
+          }
+          mRunningUsers.remove(userHandle);
+          return UserManager.USER_OPERATION_SUCCESS;
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public boolean isLogoutEnabled() {
+    simulateBinderCall();
+    synchronized (mLock) {
+      return mLogoutEnabled;
+    }
+  }
+
+  @Override
+  public void setLogoutEnabled(
+      boolean enabled, Consumer<Void> onSuccess, Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          mLogoutEnabled = enabled;
+          return null;
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public void logoutUser(Consumer<Integer> onSuccess, Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          if (!mLogoutEnabled) {
+            throw new FailedUserOperationException(
+                UserManager.USER_OPERATION_ERROR_UNKNOWN, "logoutUser()");
+          }
+          return UserManager.USER_OPERATION_SUCCESS;
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public boolean isAffiliatedUser() {
+    simulateBinderCall();
+    synchronized (mLock) {
+      return mAffiliated;
+    }
+  }
+
+  @Override
+  public void setAffiliationIds(Set<String> ids) {
+    simulateBinderCall();
+    synchronized (mLock) {
+      mAffiliationIds.clear();
+      mAffiliationIds.addAll(ids);
+      mAffiliated = !ids.isEmpty();
+    }
+  }
+
+  @Override
+  public Set<String> getAffiliationIds() {
+    simulateBinderCall();
+    synchronized (mLock) {
+      return new LinkedHashSet<>(mAffiliationIds);
+    }
+  }
+
+  @Override
+  public Set<String> getUserRestrictions() {
+    simulateBinderCall();
+    synchronized (mLock) {
+      return new LinkedHashSet<>(mUserRestrictions);
+    }
+  }
+
+  @Override
+  public void setUserRestriction(
+      String userRestriction,
+      boolean enabled,
+      Consumer<Void> onSuccess,
+      Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          if (enabled) {
+            mUserRestrictions.add(userRestriction);
+          } else {
+            mUserRestrictions.remove(userRestriction);
+          }
+          return null;
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public void setUserRestriction(String userRestriction, boolean enabled) {
+    setUserRestriction(userRestriction, enabled, (v) -> {}, (e) -> {});
+  }
+
+  @Override
+  public boolean hasUserRestriction(String userRestriction) {
+    simulateBinderCall();
+    synchronized (mLock) {
+      return mUserRestrictions.contains(userRestriction);
+    }
+  }
+
+  @Override
+  public void lockNow(Consumer<Void> onSuccess, Consumer<Exception> onError) {
+    mutate(() -> null, onSuccess, onError);
+  }
+
+  @Override
+  public void lockNow(int flags, Consumer<Void> onSuccess, Consumer<Exception> onError) {
+    mutate(() -> null, onSuccess, onError);
+  }
+
+  @Override
+  public void reboot(Consumer<Void> onSuccess, Consumer<Exception> onError) {
+    mutate(() -> null, onSuccess, onError);
+  }
+
+  @Override
+  public void wipeData(int flags, Consumer<Void> onSuccess, Consumer<Exception> onError) {
+    mutate(() -> null, onSuccess, onError);
+  }
+
+  @Override
+  public void requestBugreport(Consumer<Void> onSuccess, Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          mLastBugReportRequestTime = System.currentTimeMillis();
+          return null;
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public long getLastBugReportRequestTime() {
+    simulateBinderCall();
+    synchronized (mLock) {
+      return mLastBugReportRequestTime;
+    }
+  }
+
+  @Override
+  public void setNetworkLoggingEnabled(
+      boolean enabled, Consumer<Void> onSuccess, Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          mNetworkLoggingEnabled = enabled;
+          return null;
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public void setNetworkLoggingEnabled(boolean enabled) {
+    setNetworkLoggingEnabled(enabled, (v) -> {}, (e) -> {});
+  }
+
+  @Override
+  public boolean isNetworkLoggingEnabled() {
+    simulateBinderCall();
+    synchronized (mLock) {
+      return mNetworkLoggingEnabled;
+    }
+  }
+
+  @Override
+  public long getLastNetworkLogRetrievalTime() {
+    simulateBinderCall();
+    return -1;
+  }
+
+  @Override
+  public List<NetworkEvent> retrieveNetworkLogs(long batchToken) {
+    simulateBinderCall();
+    return null;
+  }
+
+  @Override
+  public void setSecurityLoggingEnabled(
+      boolean enabled, Consumer<Void> onSuccess, Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          mSecurityLoggingEnabled = enabled;
+          return null;
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public boolean isSecurityLoggingEnabled() {
+    simulateBinderCall();
+    synchronized (mLock) {
+      return mSecurityLoggingEnabled;
+    }
+  }
+
+  @Override
+  public long getLastSecurityLogRetrievalTime() {
+    simulateBinderCall();
+    return -1;
+  }
+
+  @Override
+  public List<SecurityEvent> retrieveSecurityLogs() {
+    simulateBinderCall();
+    return null;
+  }
+
+  @Override
+  public List<SecurityEvent> retrievePreRebootSecurityLogs() {
+    simulateBinderCall();
+    return null;
+  }
+
+  @Override
+  public void setOrganizationName(
+      CharSequence title, Consumer<Void> onSuccess, Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          mOrganizationName = title;
+          return null;
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public CharSequence getOrganizationName() {
+    simulateBinderCall();
+    synchronized (mLock) {
+      return mOrganizationName;
+    }
+  }
+
+  @Override
+  public void setUserControlDisabledPackages(
+      List<String> packages, Consumer<Void> onSuccess, Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          mUserControlDisabledPackages.clear();
+          if (packages != null) {
+            mUserControlDisabledPackages.addAll(packages);
+          }
+          return null;
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public List<String> getUserControlDisabledPackages() {
+    simulateBinderCall();
+    synchronized (mLock) {
+      return new ArrayList<>(mUserControlDisabledPackages);
+    }
+  }
+
+  @Override
+  public boolean setPermittedInputMethods(
+      List<String> packageNames, Consumer<Void> onSuccess, Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          mPermittedInputMethods = packageNames == null ? null : new ArrayList<>(packageNames);
+          return null;
+        },
+        onSuccess,
+        onError);
+    return true;
+  }
+
+  @Override
+  public boolean setPermittedInputMethods(List<String> packageNames) {
+    return setPermittedInputMethods(packageNames, (v) -> {}, (e) -> {});
+  }
+
+  @Override
+  public void removeActiveAdmin(Consumer<Void> onSuccess, Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          mDeviceOwner = false;
+          mProfileOwner = false;
+          return null;
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public void clearDeviceOwnerApp(Consumer<Void> onSuccess, Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          mDeviceOwner = false;
+          return null;
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public void clearProfileOwner(Consumer<Void> onSuccess, Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          mProfileOwner = false;
+          return null;
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public void setPasswordQuality(
+      int quality, Consumer<Void> onSuccess, Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          mPasswordQuality = quality;
+          return null;
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public int getPasswordQuality() {
+    simulateBinderCall();
+    synchronized (mLock) {
+      return mPasswordQuality;
+    }
+  }
+
+  @Override
+  public void setRequiredPasswordComplexity(
+      int quality, Consumer<Void> onSuccess, Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          mRequiredPasswordComplexity = quality;
+          return null;
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public int getRequiredPasswordComplexity() {
+    simulateBinderCall();
+    synchronized (mLock) {
+      return mRequiredPasswordComplexity;
+    }
+  }
+
+  @Override
+  public boolean isActivePasswordSufficient() {
+    simulateBinderCall();
+    synchronized (mLock) {
+      return mActivePasswordSufficient;
+    }
+  }
+
+  @Override
+  public boolean isActivePasswordSufficientForDeviceRequirement() {
+    simulateBinderCall();
+    synchronized (mLock) {
+      return mActivePasswordSufficient;
+    }
+  }
+
+  @Override
+  public void transferOwnership(
+      ComponentName target,
+      PersistableBundle bundle,
+      Consumer<Void> onSuccess,
+      Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          throw new UnsupportedOperationException("transferOwnership(" + target + ")");
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public void setUsbDataSignalingEnabled(
+      boolean enabled, Consumer<Void> onSuccess, Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          mUsbDataSignalingEnabled = enabled;
+          return null;
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public void setUsbDataSignalingEnabled(boolean enabled) {
+    setUsbDataSignalingEnabled(enabled, (v) -> {}, (e) -> {});
+  }
+
+  @Override
+  public void setPreferentialNetworkServiceEnabled(
+      boolean enabled, Consumer<Void> onSuccess, Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          mPreferentialNetworkServiceEnabled = enabled;
+          return null;
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public boolean isPreferentialNetworkServiceEnabled() {
+    simulateBinderCall();
+    synchronized (mLock) {
+      return mPreferentialNetworkServiceEnabled;
+    }
+  }
+
+  @Override
+  public void setPackagesSuspended(
+      String[] packageNames,
+      boolean suspended,
+      Consumer<String[]> onSuccess,
+      Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          List<String> failed = new ArrayList<>();
+          for (String packageName : packageNames) {
+            if (!mInstalledPackages.contains(packageName)) {
+              failed.add(packageName);
+            } else if (suspended) {
+              mSuspendedPackages.add(packageName);
+            } else {
+              mSuspendedPackages.remove(packageName);
+            }
+          }
+          return failed.toArray(new String[0]);
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public boolean isPackageSuspended(String packageName) throws NameNotFoundException {
+    simulateBinderCall();
+    synchronized (mLock) {
+      checkInstalled(packageName);
+      return mSuspendedPackages.contains(packageName);
+    }
+  }
+
+  @Override
+  public void setApplicationHidden(
+      String packageName, boolean hidden, Consumer<Void> onSuccess, Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          if (!mInstalledPackages.contains(packageName)) {
+            throw new FailedOperationException(
+                "setApplicationHidden(%s, %b)", packageName, hidden);
+          }
+          if (hidden) {
+            mHiddenPackages.add(packageName);
+          } else {
+            mHiddenPackages.remove(packageName);
+          }
+          return null;
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public boolean isApplicationHidden(String packageName) throws NameNotFoundException {
+    simulateBinderCall();
+    synchronized (mLock) {
+      checkInstalled(packageName);
+      return mHiddenPackages.contains(packageName);
+    }
+  }
+
+  @Override
+  public void setPersonalAppsSuspended(
+      boolean suspended, Consumer<Void> onSuccess, Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          mPersonalAppsSuspended = suspended;
+          return null;
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public int getPersonalAppsSuspendedReasons() {
+    simulateBinderCall();
+    synchronized (mLock) {
+      return mPersonalAppsSuspended
+          ? DevicePolicyManager.PERSONAL_APPS_SUSPENDED_EXPLICITLY
+          : DevicePolicyManager.PERSONAL_APPS_NOT_SUSPENDED;
+    }
+  }
+
+  @Override
+  public void enableSystemApp(
+      String packageName, Consumer<Void> onSuccess, Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          if (!mDisabledSystemApps.remove(packageName)) {
+            throw new IllegalArgumentException("Only system apps can be enabled: " + packageName);
+          }
+          return null;
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public void enableSystemApp(
+      Intent intent, Consumer<Integer> onSuccess, Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          String packageName = intent.getPackage();
+          return packageName != null && mDisabledSystemApps.remove(packageName) ? 1 : 0;
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public List<String> getDisabledSystemApps() {
+    simulateBinderCall();
+    synchronized (mLock) {
+      return new ArrayList<>(mDisabledSystemApps);
+    }
+  }
+
+  @Override
+  public void setLockTaskPackages(
+      String[] packages, Consumer<Void> onSuccess, Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          mLockTaskPackages = packages.clone();
+          return null;
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public String[] getLockTaskPackages() {
+    simulateBinderCall();
+    synchronized (mLock) {
+      return mLockTaskPackages.clone();
+    }
+  }
+
+  @Override
+  public void setLockTaskFeatures(
+      int flags, Consumer<Void> onSuccess, Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          mLockTaskFeatures = flags;
+          return null;
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public int getLockTaskFeatures() {
+    simulateBinderCall();
+    synchronized (mLock) {
+      return mLockTaskFeatures;
+    }
+  }
+
+  @Override
+  public boolean isLockTaskPermitted(String packageName) {
+    simulateBinderCall();
+    synchronized (mLock) {
+      return Arrays.asList(mLockTaskPackages).contains(packageName);
+    }
+  }
+
+  @Override
+  public void setApplicationRestrictions(
+      String packageName,
+      Bundle settings,
+      Consumer<Void> onSuccess,
+      Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          mApplicationRestrictions.put(packageName, new Bundle(settings));
+          return null;
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public Bundle getApplicationRestrictions(String packageName) {
+    simulateBinderCall();
+    synchronized (mLock) {
+      Bundle settings = mApplicationRestrictions.get(packageName);
+      return settings == null ? new Bundle() : new Bundle(settings);
+    }
+  }
+
+  @Override
+  public Bundle getSelfRestrictions() {
+    return getApplicationRestrictions(mAdmin.getPackageName());
+  }
+
+  @Override
+  public void setPermissionGrantState(
+      String packageName,
+      String permission,
+      int grantState,
+      Consumer<Void> onSuccess,
+      Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          if (!mInstalledPackages.contains(packageName)) {
+            throw new FailedOperationException(
+                "setPermissionGrantState(%s, %s, %d)", packageName, permission, grantState);
+          }
+          mPermissionGrantStates.put(packageName + "/" + permission, grantState);
+          return null;
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public int getPermissionGrantState(String packageName, String permission) {
+    simulateBinderCall();
+    synchronized (mLock) {
+      Integer grantState = mPermissionGrantStates.get(packageName + "/" + permission);
+      return grantState == null ? DevicePolicyManager.PERMISSION_GRANT_STATE_DEFAULT : grantState;
+    }
+  }
+
+  @Override
+  public boolean canAdminGrantSensorsPermissions() {
+    simulateBinderCall();
+    return true;
+  }
+
+  @Override
+  public void setLocationEnabled(
+      boolean enabled, Consumer<Void> onSuccess, Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          mLocationEnabled = enabled;
+          return null;
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public boolean isLocationEnabled() {
+    simulateBinderCall();
+    synchronized (mLock) {
+      return mLocationEnabled;
+    }
+  }
+
+  @Override
+  public void setDeviceOwnerLockScreenInfo(
+      CharSequence info, Consumer<Void> onSuccess, Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          mDeviceOwnerLockScreenInfo = info;
+          return null;
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public CharSequence getDeviceOwnerLockScreenInfo() {
+    simulateBinderCall();
+    synchronized (mLock) {
+      return mDeviceOwnerLockScreenInfo;
+    }
+  }
+
+  @Override
+  public void setKeyguardDisabled(
+      boolean disabled, Consumer<Void> onSuccess, Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          mKeyguardDisabled = disabled;
+          return null;
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public void setKeyguardDisabledFeatures(
+      int which, Consumer<Void> onSuccess, Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          mKeyguardDisabledFeatures = which;
+          return null;
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public int getKeyguardDisabledFeatures() {
+    simulateBinderCall();
+    synchronized (mLock) {
+      return mKeyguardDisabledFeatures;
+    }
+  }
+
+  @Override
+  public void setCameraDisabled(
+      boolean disabled, Consumer<Void> onSuccess, Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          mCameraDisabled = disabled;
+          return null;
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public boolean getCameraDisabled() {
+    simulateBinderCall();
+    synchronized (mLock) {
+      return mCameraDisabled;
+    }
+  }
+
+  @Override
+  public boolean getCameraDisabledByAnyAdmin() {
+    return getCameraDisabled();
+  }
+
+  @Override
+  public void setScreenCaptureDisabled(
+      boolean disabled, Consumer<Void> onSuccess, Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          mScreenCaptureDisabled = disabled;
+          return null;
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public boolean getScreenCaptureDisabled() {
+    simulateBinderCall();
+    synchronized (mLock) {
+      return mScreenCaptureDisabled;
+    }
+  }
+
+  @Override
+  public void setStatusBarDisabled(
+      boolean disabled, Consumer<Void> onSuccess, Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          mStatusBarDisabled = disabled;
+          return null;
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public void setMaximumFailedPasswordsForWipe(
+      int max, Consumer<Void> onSuccess, Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          mMaximumFailedPasswordsForWipe = max;
+          return null;
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public int getMaximumFailedPasswordsForWipe() {
+    simulateBinderCall();
+    synchronized (mLock) {
+      return mMaximumFailedPasswordsForWipe;
+    }
+  }
+
+  @Override
+  public void installExistingPackage(
+      String packageName, Consumer<Void> onSuccess, Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          if (!mInstalledPackages.contains(packageName)) {
+            throw new FailedOperationException("installExistingPackage(%s)", packageName);
+          }
+          return null;
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public void setUninstallBlocked(
+      String packageName,
+      boolean uninstallBlocked,
+      Consumer<Void> onSuccess,
+      Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          if (uninstallBlocked) {
+            mUninstallBlockedPackages.add(packageName);
+          } else {
+            mUninstallBlockedPackages.remove(packageName);
+          }
+          return null;
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public boolean isUninstallBlocked(String packageName) {
+    simulateBinderCall();
+    synchronized (mLock) {
+      return mUninstallBlockedPackages.contains(packageName);
+    }
+  }
+
+  @Override
+  public void setSecureSetting(
+      String setting, String value, Consumer<Void> onSuccess, Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          mSecureSettings.put(setting, value);
+          return null;
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public void setGlobalSetting(
+      String setting, String value, Consumer<Void> onSuccess, Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          mGlobalSettings.put(setting, value);
+          return null;
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public boolean isDeviceIdAttestationSupported() {
+    simulateBinderCall();
+    return false;
+  }
+
+  @Override
+  public boolean isUniqueDeviceAttestationSupported() {
+    simulateBinderCall();
+    return false;
+  }
+
+  @Override
+  public boolean hasKeyPair(String alias) {
+    simulateBinderCall();
+    synchronized (mLock) {
+      return mKeyPairs.containsKey(alias);
+    }
+  }
+
+  @Override
+  public void generateKeyPair(
+      String algorithm,
+      KeyGenParameterSpec keySpec,
+      int idAttestationFlags,
+      Consumer<AttestedKeyPair> onSuccess,
+      Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          mKeyPairs.put(keySpec.getKeystoreAlias(), new HashMap<>());
+          return new AttestedKeyPair(/* keyPair= */ null, Collections.emptyList());
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public void removeKeyPair(
+      String alias, Consumer<Boolean> onSuccess, Consumer<Exception> onError) {
+    mutate(() -> mKeyPairs.remove(alias) != null, onSuccess, onError);
+  }
+
+  @Override
+  public void grantKeyPairToApp(
+      String alias, String packageName, Consumer<Boolean> onSuccess, Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          Map<Integer, Set<String>> grants = mKeyPairs.get(alias);
+          if (grants == null || !mInstalledPackages.contains(packageName)) {
+            return false;
+          }
+          return grants.computeIfAbsent(uidOf(packageName), (u) -> new HashSet<>())
+              .add(packageName);
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public Map<Integer, Set<String>> getKeyPairGrants(String alias) {
+    simulateBinderCall();
+    synchronized (mLock) {
+      Map<Integer, Set<String>> grants = mKeyPairs.get(alias);
+      Map<Integer, Set<String>> copy = new HashMap<>();
+      if (grants != null) {
+        grants.forEach((uid, packages) -> copy.put(uid, new HashSet<>(packages)));
+      }
+      return copy;
+    }
+  }
+
+  @Override
+  public void revokeKeyPairFromApp(
+      String alias, String packageName, Consumer<Boolean> onSuccess, Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          Map<Integer, Set<String>> grants = mKeyPairs.get(alias);
+          if (grants == null) {
+            return false;
+          }
+          Set<String> packages = grants.get(uidOf(packageName));
+          if (packages == null || !packages.remove(packageName)) {
+            return false;
+          }
+          if (packages.isEmpty()) {
+            grants.remove(uidOf(packageName));
+          }
+          return true;
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public void setDelegatedScopes(
+      String delegatePackage,
+      List<String> scopes,
+      Consumer<Void> onSuccess,
+      Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          if (scopes.isEmpty()) {
+            mDelegatedScopes.remove(delegatePackage);
+          } else {
+            mDelegatedScopes.put(delegatePackage, new ArrayList<>(scopes));
+          }
+          return null;
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public List<String> getDelegatedScopes(String delegatePackage) {
+    simulateBinderCall();
+    synchronized (mLock) {
+      List<String> scopes = mDelegatedScopes.get(delegatePackage);
+      return scopes == null ? new ArrayList<>() : new ArrayList<>(scopes);
+    }
+  }
+
+  @Override
+  public List<String> getDelegatePackages(String delegationScope) {
+    simulateBinderCall();
+    synchronized (mLock) {
+      List<String> packages = new ArrayList<>();
+      mDelegatedScopes.forEach(
+          (pkg, scopes) -> {
+            if (scopes.contains(delegationScope)) {
+              packages.add(pkg);
+            }
+          });
+      return packages;
+    }
+  }
+
+  @Override
+  public void setMeteredDataDisabledPackages(
+      List<String> packageNames, Consumer<List<String>> onSuccess, Consumer<Exception> onError) {
+    mutate(
+        () -> {
+          mMeteredDataDisabledPackages.clear();
+          mMeteredDataDisabledPackages.addAll(packageNames);
+          return packageNames;
+        },
+        onSuccess,
+        onError);
+  }
+
+  @Override
+  public List<String> getMeteredDataDisabledPackages() {
+    simulateBinderCall();
+    synchronized (mLock) {
+      return new ArrayList<>(mMeteredDataDisabledPackages);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "InMemoryDevicePolicyManagerGateway[" + mAdmin + "]";
+  }
+}
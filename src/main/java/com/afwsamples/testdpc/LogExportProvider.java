@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc;
+
+import android.app.NotificationManager;
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.provider.OpenableColumns;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.core.app.NotificationCompat;
+import com.afwsamples.testdpc.common.NotificationUtil;
+import com.afwsamples.testdpc.policy.logexport.LogExporter;
+import com.afwsamples.testdpc.policy.networklogs.NetworkLogStore;
+import com.afwsamples.testdpc.policy.securitylogs.SecurityLogArchive;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Content Provider streaming the saved network logs and the archived security logs as
+ * gzip-compressed text, for instance through {@code adb shell content read --uri
+ * content://com.afwsamples.testdpc.logexport/security_logs.gz?from=<millis>&to=<millis> >
+ * security_logs.gz}.
+ *
+ * <p>The export is written to a pipe as it is read from storage, so it's never staged in memory or
+ * on disk. {@code from} and {@code to} are optional and in milliseconds since the epoch. Progress
+ * is shown in a notification.
+ */
+public final class LogExportProvider extends ContentProvider {
+
+  private static final String TAG = LogExportProvider.class.getSimpleName();
+
+  static final String AUTHORITY = "com.afwsamples.testdpc.logexport";
+
+  static final String NETWORK_LOGS_PATH = "network_logs.gz";
+  static final String SECURITY_LOGS_PATH = "security_logs.gz";
+
+  private static final String PARAM_FROM = "from";
+  private static final String PARAM_TO = "to";
+
+  private static final String MIME_TYPE = "application/gzip";
+
+  /** Minimum time between updates of the progress notification. */
+  private static final long NOTIFICATION_INTERVAL_MS = 500;
+
+  private static final String[] COLUMNS =
+      new String[] {OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE};
+
+  private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+
+  @Override
+  public boolean onCreate() {
+    return true;
+  }
+
+  @Nullable
+  @Override
+  public Cursor query(
+      @NonNull Uri uri,
+      @Nullable String[] projection,
+      @Nullable String selection,
+      @Nullable String[] selectionArgs,
+      @Nullable String sortOrder) {
+    if (!isKnownPath(uri)) {
+      return null;
+    }
+    // The size isn't known until the export is done
+    MatrixCursor cursor = new MatrixCursor(COLUMNS, 1);
+    cursor.addRow(new Object[] {uri.getLastPathSegment(), null});
+    return cursor;
+  }
+
+  @Nullable
+  @Override
+  public String getType(@NonNull Uri uri) {
+    return isKnownPath(uri) ? MIME_TYPE : null;
+  }
+
+  @Nullable
+  @Override
+  public Uri insert(@NonNull Uri uri, @Nullable ContentValues values) {
+    throw new UnsupportedOperationException("Log exports are read-only");
+  }
+
+  @Override
+  public int delete(
+      @NonNull Uri uri, @Nullable String selection, @Nullable String[] selectionArgs) {
+    throw new UnsupportedOperationException("Log exports are read-only");
+  }
+
+  @Override
+  public int update(
+      @NonNull Uri uri,
+      @Nullable ContentValues values,
+      @Nullable String selection,
+      @Nullable String[] selectionArgs) {
+    throw new UnsupportedOperationException("Log exports are read-only");
+  }
+
+  @Override
+  public ParcelFileDescriptor openFile(@NonNull Uri uri, @NonNull String mode)
+      throws FileNotFoundException {
+    if (!"r".equals(mode)) {
+      throw new FileNotFoundException("Log exports are read-only: " + uri);
+    }
+    LogExporter.Source source;
+    try {
+      source = createSource(uri);
+    } catch (NumberFormatException e) {
+      throw new FileNotFoundException("Invalid time range: " + uri);
+    }
+    if (source == null) {
+      throw new FileNotFoundException("Unknown log export: " + uri);
+    }
+    ParcelFileDescriptor[] pipe;
+    try {
+      pipe = ParcelFileDescriptor.createReliablePipe();
+    } catch (IOException e) {
+      throw new FileNotFoundException("Cannot create pipe: " + e);
+    }
+    Log.i(TAG, "Exporting " + uri);
+    ParcelFileDescriptor writeSide = pipe[1];
+    mExecutor.execute(() -> export(uri, source, writeSide));
+    return pipe[0];
+  }
+
+  @Nullable
+  private LogExporter.Source createSource(Uri uri) {
+    String from = uri.getQueryParameter(PARAM_FROM);
+    String to = uri.getQueryParameter(PARAM_TO);
+    long fromMillis = from == null ? Long.MIN_VALUE : Long.parseLong(from);
+    long toMillis = to == null ? Long.MAX_VALUE : Long.parseLong(to);
+    String path = uri.getLastPathSegment();
+    if (NETWORK_LOGS_PATH.equals(path)) {
+      return LogExporter.networkLogs(
+          NetworkLogStore.getInstance(getContext()), fromMillis, toMillis);
+    }
+    if (SECURITY_LOGS_PATH.equals(path)) {
+      return LogExporter.securityLogs(
+          SecurityLogArchive.getInstance(getContext()), fromMillis, toMillis);
+    }
+    return null;
+  }
+
+  private void export(Uri uri, LogExporter.Source source, ParcelFileDescriptor writeSide) {
+    Context context = getContext();
+    ProgressNotification notification = new ProgressNotification(context, uri);
+    try {
+      // The pipe is closed through writeSide, so that errors reach the reader
+      OutputStream out = new FileOutputStream(writeSide.getFileDescriptor());
+      long count = LogExporter.export(source, out, notification);
+      out.flush();
+      writeSide.close();
+      notification.finish(context.getString(R.string.log_export_done, count));
+    } catch (IOException e) {
+      // Also happens when the reader closes the pipe before the end
+      Log.e(TAG, "Error exporting " + uri, e);
+      notification.finish(context.getString(R.string.log_export_failed));
+      try {
+        writeSide.closeWithError(String.valueOf(e.getMessage()));
+      } catch (IOException closeException) {
+        Log.w(TAG, "Error closing pipe of " + uri, closeException);
+      }
+    }
+  }
+
+  private static boolean isKnownPath(Uri uri) {
+    String path = uri.getLastPathSegment();
+    return NETWORK_LOGS_PATH.equals(path) || SECURITY_LOGS_PATH.equals(path);
+  }
+
+  /** Shows the progress of an export, updated at most every {@link #NOTIFICATION_INTERVAL_MS}. */
+  private static final class ProgressNotification implements LogExporter.ProgressListener {
+    private final Context mContext;
+    private final NotificationManager mNotificationManager;
+    private final NotificationCompat.Builder mBuilder;
+    private long mLastUpdate;
+
+    ProgressNotification(Context context, Uri uri) {
+      mContext = context;
+      mNotificationManager =
+          (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+      mBuilder =
+          NotificationUtil.getNotificationBuilder(context)
+              .setSmallIcon(R.drawable.ic_launcher)
+              .setContentTitle(
+                  context.getString(R.string.log_export_title, uri.getLastPathSegment()))
+              .setOnlyAlertOnce(true)
+              .setOngoing(true)
+              .setProgress(0, 0, /* indeterminate= */ true);
+      mNotificationManager.notify(NotificationUtil.LOG_EXPORT_NOTIFICATION_ID, mBuilder.build());
+    }
+
+    @Override
+    public void onProgress(long eventsWritten, long eventsTotal) {
+      long now = SystemClock.elapsedRealtime();
+      if (now - mLastUpdate < NOTIFICATION_INTERVAL_MS) {
+        return;
+      }
+      mLastUpdate = now;
+      // Notification progress is an int, so report it in thousandths
+      int progress = eventsTotal == 0 ? 0 : (int) (eventsWritten * 1000 / eventsTotal);
+      mBuilder
+          .setProgress(1000, progress, /* indeterminate= */ false)
+          .setContentText(
+              mContext.getString(R.string.log_export_progress, eventsWritten, eventsTotal));
+      mNotificationManager.notify(NotificationUtil.LOG_EXPORT_NOTIFICATION_ID, mBuilder.build());
+    }
+
+    void finish(String text) {
+      mBuilder.setProgress(0, 0, /* indeterminate= */ false).setOngoing(false).setContentText(text);
+      mNotificationManager.notify(NotificationUtil.LOG_EXPORT_NOTIFICATION_ID, mBuilder.build());
+    }
+  }
+}
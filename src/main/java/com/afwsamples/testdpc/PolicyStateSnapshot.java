@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc;
+
+import android.os.Bundle;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import com.afwsamples.testdpc.common.Util;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Point-in-time capture of every readable {@link DevicePolicyManagerGateway} property.
+ *
+ * <p>Properties are read in parallel (one gateway call per task) and kept as canonical strings, so
+ * two snapshots can be compared with {@link #diff(PolicyStateSnapshot, PolicyStateSnapshot)} and
+ * persisted as a small versioned JSON document (see {@link #toJson()} and {@link
+ * #fromJson(String)}).
+ */
+public final class PolicyStateSnapshot {
+
+  private static final String TAG = "PolicyStateSnapshot";
+
+  /** Version of the JSON document; bump it when the format changes incompatibly. */
+  public static final int VERSION = 1;
+
+  private static final String KEY_VERSION = "version";
+  private static final String KEY_TIMESTAMP = "timestamp";
+  private static final String KEY_PROPERTIES = "properties";
+
+  private static final String ERROR_PREFIX = "error: ";
+
+  private final long mTimestamp;
+  private final Map<String, String> mProperties;
+
+  private PolicyStateSnapshot(long timestamp, @NonNull Map<String, String> properties) {
+    mTimestamp = timestamp;
+    mProperties = Collections.unmodifiableMap(properties);
+  }
+
+  /**
+   * Reads all properties of {@code gateway}, running each read as a separate task on {@code
+   * executor}.
+   */
+  public static PolicyStateSnapshot capture(
+      @NonNull DevicePolicyManagerGateway gateway, @NonNull ExecutorService executor)
+      throws InterruptedException {
+    Map<String, Callable<Object>> readers = readers(gateway);
+    Map<String, Future<Object>> futures = new LinkedHashMap<>(readers.size());
+    long timestamp = System.currentTimeMillis();
+    for (Map.Entry<String, Callable<Object>> reader : readers.entrySet()) {
+      futures.put(reader.getKey(), executor.submit(reader.getValue()));
+    }
+
+    Map<String, String> properties = new TreeMap<>();
+    for (Map.Entry<String, Future<Object>> future : futures.entrySet()) {
+      String value;
+      try {
+        value = canonicalize(future.getValue().get());
+      } catch (ExecutionException e) {
+        Log.w(TAG, "Error reading " + future.getKey(), e.getCause());
+        value = ERROR_PREFIX + e.getCause();
+      }
+      properties.put(future.getKey(), value);
+    }
+    return new PolicyStateSnapshot(timestamp, properties);
+  }
+
+  private static Map<String, Callable<Object>> readers(DevicePolicyManagerGateway gateway) {
+    Map<String, Callable<Object>> readers = new LinkedHashMap<>();
+    readers.put("isDeviceOwnerApp", gateway::isDeviceOwnerApp);
+    readers.put("isProfileOwnerApp", gateway::isProfileOwnerApp);
+    readers.put("isAffiliatedUser", gateway::isAffiliatedUser);
+    readers.put("affiliationIds", gateway::getAffiliationIds);
+    readers.put("userRestrictions", gateway::getUserRestrictions);
+    readers.put("isLogoutEnabled", gateway::isLogoutEnabled);
+    readers.put("startUserSessionMessage", gateway::getStartUserSessionMessage);
+    readers.put("endUserSessionMessage", gateway::getEndUserSessionMessage);
+    readers.put("organizationName", gateway::getOrganizationName);
+    readers.put("userControlDisabledPackages", gateway::getUserControlDisabledPackages);
+    readers.put("passwordQuality", gateway::getPasswordQuality);
+    readers.put("requiredPasswordComplexity", gateway::getRequiredPasswordComplexity);
+    readers.put("isActivePasswordSufficient", gateway::isActivePasswordSufficient);
+    readers.put("lastBugReportRequestTime", gateway::getLastBugReportRequestTime);
+    readers.put("isNetworkLoggingEnabled", gateway::isNetworkLoggingEnabled);
+    readers.put("lastNetworkLogRetrievalTime", gateway::getLastNetworkLogRetrievalTime);
+    readers.put("isSecurityLoggingEnabled", gateway::isSecurityLoggingEnabled);
+    readers.put("lastSecurityLogRetrievalTime", gateway::getLastSecurityLogRetrievalTime);
+    readers.put("personalAppsSuspendedReasons", gateway::getPersonalAppsSuspendedReasons);
+    readers.put("disabledSystemApps", gateway::getDisabledSystemApps);
+    readers.put("lockTaskPackages", gateway::getLockTaskPackages);
+    readers.put("lockTaskFeatures", gateway::getLockTaskFeatures);
+    readers.put("canAdminGrantSensorsPermissions", gateway::canAdminGrantSensorsPermissions);
+    readers.put("isLocationEnabled", gateway::isLocationEnabled);
+    readers.put("deviceOwnerLockScreenInfo", gateway::getDeviceOwnerLockScreenInfo);
+    readers.put("keyguardDisabledFeatures", gateway::getKeyguardDisabledFeatures);
+    readers.put("cameraDisabled", gateway::getCameraDisabled);
+    readers.put("cameraDisabledByAnyAdmin", gateway::getCameraDisabledByAnyAdmin);
+    readers.put("screenCaptureDisabled", gateway::getScreenCaptureDisabled);
+    readers.put("maximumFailedPasswordsForWipe", gateway::getMaximumFailedPasswordsForWipe);
+    readers.put("isDeviceIdAttestationSupported", gateway::isDeviceIdAttestationSupported);
+    readers.put(
+        "isUniqueDeviceAttestationSupported", gateway::isUniqueDeviceAttestationSupported);
+    readers.put("selfRestrictions", gateway::getSelfRestrictions);
+    if (Util.isAtLeastS()) {
+      readers.put(
+          "isOrganizationOwnedDeviceWithManagedProfile",
+          gateway::isOrganizationOwnedDeviceWithManagedProfile);
+      readers.put("isHeadlessSystemUserMode", gateway::isHeadlessSystemUserMode);
+      readers.put("isUserForeground", gateway::isUserForeground);
+      readers.put("foregroundAffiliatedUsers", gateway::listForegroundAffiliatedUsers);
+      readers.put(
+          "isPreferentialNetworkServiceEnabled", gateway::isPreferentialNetworkServiceEnabled);
+      readers.put("meteredDataDisabledPackages", gateway::getMeteredDataDisabledPackages);
+    }
+    return readers;
+  }
+
+  /**
+   * Converts a property value to a string that doesn't depend on iteration order of unordered
+   * collections.
+   */
+  private static String canonicalize(@Nullable Object value) {
+    if (value == null) {
+      return "null";
+    }
+    if (value instanceof Object[]) {
+      return Arrays.toString((Object[]) value);
+    }
+    if (value instanceof Set) {
+      TreeSet<String> sorted = new TreeSet<>();
+      for (Object element : (Set<?>) value) {
+        sorted.add(String.valueOf(element));
+      }
+      return sorted.toString();
+    }
+    if (value instanceof Bundle) {
+      Bundle bundle = (Bundle) value;
+      Map<String, String> sorted = new TreeMap<>();
+      for (String key : bundle.keySet()) {
+        sorted.put(key, String.valueOf(bundle.get(key)));
+      }
+      return sorted.toString();
+    }
+    return value.toString();
+  }
+
+  /** Gets the time (in milliseconds since epoch) the snapshot was taken. */
+  public long getTimestamp() {
+    return mTimestamp;
+  }
+
+  /** Gets the captured properties, sorted by name. */
+  @NonNull
+  public Map<String, String> getProperties() {
+    return mProperties;
+  }
+
+  /** Serializes the snapshot as a JSON document. */
+  @NonNull
+  public String toJson() throws JSONException {
+    JSONObject properties = new JSONObject();
+    for (Map.Entry<String, String> property : mProperties.entrySet()) {
+      properties.put(property.getKey(), property.getValue());
+    }
+    return new JSONObject()
+        .put(KEY_VERSION, VERSION)
+        .put(KEY_TIMESTAMP, mTimestamp)
+        .put(KEY_PROPERTIES, properties)
+        .toString();
+  }
+
+  /** Parses a snapshot previously serialized by {@link #toJson()}. */
+  @NonNull
+  public static PolicyStateSnapshot fromJson(@NonNull String json) throws JSONException {
+    JSONObject root = new JSONObject(json);
+    int version = root.getInt(KEY_VERSION);
+    if (version > VERSION) {
+      throw new JSONException("Unsupported snapshot version " + version + " (max " + VERSION + ")");
+    }
+    JSONObject jsonProperties = root.getJSONObject(KEY_PROPERTIES);
+    Map<String, String> properties = new TreeMap<>();
+    for (Iterator<String> keys = jsonProperties.keys(); keys.hasNext(); ) {
+      String key = keys.next();
+      properties.put(key, jsonProperties.getString(key));
+    }
+    return new PolicyStateSnapshot(root.getLong(KEY_TIMESTAMP), properties);
+  }
+
+  /**
+   * Compares two snapshots, returning one {@link Difference} per property that was added, removed
+   * or changed (sorted by property name).
+   */
+  @NonNull
+  public static List<Difference> diff(
+      @NonNull PolicyStateSnapshot before, @NonNull PolicyStateSnapshot after) {
+    TreeSet<String> names = new TreeSet<>(before.mProperties.keySet());
+    names.addAll(after.mProperties.keySet());
+    List<Difference> differences = new ArrayList<>();
+    for (String name : names) {
+      String oldValue = before.mProperties.get(name);
+      String newValue = after.mProperties.get(name);
+      if (!Objects.equals(oldValue, newValue)) {
+        differences.add(new Difference(name, oldValue, newValue));
+      }
+    }
+    return differences;
+  }
+
+  /** A property whose value differs between two snapshots. */
+  public static final class Difference {
+    public final String name;
+    @Nullable public final String oldValue;
+    @Nullable public final String newValue;
+
+    private Difference(String name, @Nullable String oldValue, @Nullable String newValue) {
+      this.name = name;
+      this.oldValue = oldValue;
+      this.newValue = newValue;
+    }
+
+    @Override
+    public String toString() {
+      if (oldValue == null) {
+        return "+ " + name + ": " + newValue;
+      }
+      if (newValue == null) {
+        return "- " + name + ": " + oldValue;
+      }
+      return "* " + name + ": " + oldValue + " -> " + newValue;
+    }
+  }
+}
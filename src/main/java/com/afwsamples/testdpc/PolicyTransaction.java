@@ -0,0 +1,563 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc;
+
+import android.app.admin.DevicePolicyManager;
+import android.content.ContentResolver;
+import android.provider.Settings;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+/**
+ * Groups a sequence of {@link DevicePolicyManagerGateway} mutations so they can be undone as a
+ * whole.
+ *
+ * <p>Mutations must be made through the gateway returned by {@link
+ * #wrap(DevicePolicyManagerGateway)}: before each mutation, the transaction reads the value it's
+ * about to change, and once the mutation succeeds it records how to restore that value. {@link
+ * #rollback()} then restores the recorded values in reverse order, while {@link #commit()} just
+ * forgets them. Mutations that don't change anything are not recorded, so a rollback only touches
+ * what actually changed.
+ *
+ * <p>Some mutations can't be undone because their previous value can't be read (like {@code
+ * setStatusBarDisabled()} or {@code enableSystemApp()}); they're still applied, but reported by
+ * {@link #getIrreversibleChanges()}.
+ *
+ * <p>A process-wide transaction can be started with {@link #begin(ContentResolver)}, so mutations
+ * made by separate {@link ShellCommand} invocations are part of the same transaction.
+ */
+public final class PolicyTransaction {
+
+  private static final String TAG = "PolicyTransaction";
+
+  private static final long UNDO_TIMEOUT_SECONDS = 10;
+
+  private static final Object sLock = new Object();
+
+  @Nullable private static PolicyTransaction sActive;
+
+  /**
+   * Reads the current value a mutation would change, returning the arguments (without callbacks)
+   * that restore it, or {@code null} if the mutation wouldn't change anything.
+   */
+  private interface UndoArgs {
+    @Nullable
+    Object[] read(
+        @NonNull DevicePolicyManagerGateway gateway,
+        @Nullable ContentResolver resolver,
+        @NonNull Object[] args)
+        throws Exception;
+  }
+
+  private static final Map<String, UndoArgs> UNDO_ARGS = new HashMap<>();
+
+  static {
+    UNDO_ARGS.put(
+        "setStartUserSessionMessage",
+        (gateway, resolver, args) -> ifChanged(gateway.getStartUserSessionMessage(), args[0]));
+    UNDO_ARGS.put(
+        "setEndUserSessionMessage",
+        (gateway, resolver, args) -> ifChanged(gateway.getEndUserSessionMessage(), args[0]));
+    UNDO_ARGS.put(
+        "setLogoutEnabled",
+        (gateway, resolver, args) -> ifChanged(gateway.isLogoutEnabled(), args[0]));
+    UNDO_ARGS.put(
+        "setAffiliationIds",
+        (gateway, resolver, args) ->
+            ifChanged(new HashSet<>(gateway.getAffiliationIds()), args[0]));
+    UNDO_ARGS.put(
+        "setUserRestriction",
+        (gateway, resolver, args) -> {
+          boolean enabled = gateway.getUserRestrictions().contains(args[0]);
+          return enabled == (boolean) args[1] ? null : new Object[] {args[0], enabled};
+        });
+    UNDO_ARGS.put(
+        "setNetworkLoggingEnabled",
+        (gateway, resolver, args) -> ifChanged(gateway.isNetworkLoggingEnabled(), args[0]));
+    UNDO_ARGS.put(
+        "setSecurityLoggingEnabled",
+        (gateway, resolver, args) -> ifChanged(gateway.isSecurityLoggingEnabled(), args[0]));
+    UNDO_ARGS.put(
+        "setOrganizationName",
+        (gateway, resolver, args) -> ifChanged(gateway.getOrganizationName(), args[0]));
+    UNDO_ARGS.put(
+        "setUserControlDisabledPackages",
+        (gateway, resolver, args) ->
+            ifChanged(new ArrayList<>(gateway.getUserControlDisabledPackages()), args[0]));
+    UNDO_ARGS.put(
+        "setPasswordQuality",
+        (gateway, resolver, args) -> ifChanged(gateway.getPasswordQuality(), args[0]));
+    UNDO_ARGS.put(
+        "setRequiredPasswordComplexity",
+        (gateway, resolver, args) -> ifChanged(gateway.getRequiredPasswordComplexity(), args[0]));
+    UNDO_ARGS.put(
+        "setPreferentialNetworkServiceEnabled",
+        (gateway, resolver, args) ->
+            ifChanged(gateway.isPreferentialNetworkServiceEnabled(), args[0]));
+    UNDO_ARGS.put(
+        "setPackagesSuspended",
+        (gateway, resolver, args) -> {
+          // Only restore the packages whose state was actually changed
+          boolean suspended = (boolean) args[1];
+          List<String> changed = new ArrayList<>();
+          for (String packageName : (String[]) args[0]) {
+            if (gateway.isPackageSuspended(packageName) != suspended) {
+              changed.add(packageName);
+            }
+          }
+          return changed.isEmpty()
+              ? null
+              : new Object[] {changed.toArray(new String[0]), !suspended};
+        });
+    UNDO_ARGS.put(
+        "setApplicationHidden",
+        (gateway, resolver, args) -> {
+          boolean hidden = gateway.isApplicationHidden((String) args[0]);
+          return hidden == (boolean) args[1] ? null : new Object[] {args[0], hidden};
+        });
+    UNDO_ARGS.put(
+        "setPersonalAppsSuspended",
+        (gateway, resolver, args) ->
+            ifChanged(
+                (gateway.getPersonalAppsSuspendedReasons()
+                        & DevicePolicyManager.PERSONAL_APPS_SUSPENDED_EXPLICITLY)
+                    != 0,
+                args[0]));
+    UNDO_ARGS.put(
+        "setLockTaskPackages",
+        (gateway, resolver, args) -> {
+          String[] packages = gateway.getLockTaskPackages();
+          return Arrays.equals(packages, (String[]) args[0]) ? null : new Object[] {packages};
+        });
+    UNDO_ARGS.put(
+        "setLockTaskFeatures",
+        (gateway, resolver, args) -> ifChanged(gateway.getLockTaskFeatures(), args[0]));
+    UNDO_ARGS.put(
+        "setApplicationRestrictions",
+        (gateway, resolver, args) ->
+            // Bundles can't be compared, so always restore them
+            new Object[] {args[0], gateway.getApplicationRestrictions((String) args[0])});
+    UNDO_ARGS.put(
+        "setPermissionGrantState",
+        (gateway, resolver, args) -> {
+          int state = gateway.getPermissionGrantState((String) args[0], (String) args[1]);
+          return state == (int) args[2] ? null : new Object[] {args[0], args[1], state};
+        });
+    UNDO_ARGS.put(
+        "setLocationEnabled",
+        (gateway, resolver, args) -> ifChanged(gateway.isLocationEnabled(), args[0]));
+    UNDO_ARGS.put(
+        "setDeviceOwnerLockScreenInfo",
+        (gateway, resolver, args) -> ifChanged(gateway.getDeviceOwnerLockScreenInfo(), args[0]));
+    UNDO_ARGS.put(
+        "setKeyguardDisabledFeatures",
+        (gateway, resolver, args) -> ifChanged(gateway.getKeyguardDisabledFeatures(), args[0]));
+    UNDO_ARGS.put(
+        "setCameraDisabled",
+        (gateway, resolver, args) -> ifChanged(gateway.getCameraDisabled(), args[0]));
+    UNDO_ARGS.put(
+        "setScreenCaptureDisabled",
+        (gateway, resolver, args) -> ifChanged(gateway.getScreenCaptureDisabled(), args[0]));
+    UNDO_ARGS.put(
+        "setMaximumFailedPasswordsForWipe",
+        (gateway, resolver, args) ->
+            ifChanged(gateway.getMaximumFailedPasswordsForWipe(), args[0]));
+    UNDO_ARGS.put(
+        "setUninstallBlocked",
+        (gateway, resolver, args) -> {
+          boolean blocked = gateway.isUninstallBlocked((String) args[0]);
+          return blocked == (boolean) args[1] ? null : new Object[] {args[0], blocked};
+        });
+    UNDO_ARGS.put(
+        "setSecureSetting",
+        (gateway, resolver, args) -> {
+          String value = Settings.Secure.getString(requireResolver(resolver), (String) args[0]);
+          return Objects.equals(value, args[1]) ? null : new Object[] {args[0], value};
+        });
+    UNDO_ARGS.put(
+        "setGlobalSetting",
+        (gateway, resolver, args) -> {
+          String value = Settings.Global.getString(requireResolver(resolver), (String) args[0]);
+          return Objects.equals(value, args[1]) ? null : new Object[] {args[0], value};
+        });
+    UNDO_ARGS.put(
+        "setDelegatedScopes",
+        (gateway, resolver, args) -> {
+          List<String> scopes = new ArrayList<>(gateway.getDelegatedScopes((String) args[0]));
+          return scopes.equals(args[1]) ? null : new Object[] {args[0], scopes};
+        });
+    UNDO_ARGS.put(
+        "setMeteredDataDisabledPackages",
+        (gateway, resolver, args) ->
+            ifChanged(new ArrayList<>(gateway.getMeteredDataDisabledPackages()), args[0]));
+  }
+
+  /** Prefixes of the gateway methods that don't change the device state. */
+  private static final List<String> READ_PREFIXES =
+      Arrays.asList("get", "is", "has", "can", "list", "retrieve");
+
+  private final Object mLock = new Object();
+
+  @Nullable private final ContentResolver mResolver;
+
+  private final List<Change> mChanges = new ArrayList<>();
+  private final List<String> mIrreversibleChanges = new ArrayList<>();
+  private boolean mClosed;
+
+  /**
+   * Default constructor.
+   *
+   * @param resolver used to read the previous value of settings; if {@code null}, changes to
+   *     settings can't be rolled back.
+   */
+  public PolicyTransaction(@Nullable ContentResolver resolver) {
+    mResolver = resolver;
+  }
+
+  /**
+   * Starts a process-wide transaction; gateways passed to {@link
+   * #wrapIfActive(DevicePolicyManagerGateway)} will record their mutations into it until it's
+   * committed or rolled back.
+   */
+  @NonNull
+  public static PolicyTransaction begin(@Nullable ContentResolver resolver) {
+    synchronized (sLock) {
+      if (sActive != null) {
+        throw new IllegalStateException("Transaction already in progress: " + sActive);
+      }
+      sActive = new PolicyTransaction(resolver);
+      Log.i(TAG, "Started transaction");
+      return sActive;
+    }
+  }
+
+  /** Gets the transaction started by {@link #begin(ContentResolver)}, if any. */
+  @Nullable
+  public static PolicyTransaction getActive() {
+    synchronized (sLock) {
+      return sActive;
+    }
+  }
+
+  /**
+   * Returns a gateway that records mutations made to {@code gateway} into the active transaction,
+   * or {@code gateway} itself if there is none.
+   */
+  @NonNull
+  public static DevicePolicyManagerGateway wrapIfActive(
+      @NonNull DevicePolicyManagerGateway gateway) {
+    PolicyTransaction transaction = getActive();
+    return transaction == null ? gateway : transaction.wrap(gateway);
+  }
+
+  /** Returns a gateway whose mutations are recorded into this transaction. */
+  @NonNull
+  public DevicePolicyManagerGateway wrap(@NonNull DevicePolicyManagerGateway gateway) {
+    return (DevicePolicyManagerGateway)
+        Proxy.newProxyInstance(
+            DevicePolicyManagerGateway.class.getClassLoader(),
+            new Class<?>[] {DevicePolicyManagerGateway.class},
+            new Recorder(gateway));
+  }
+
+  /** Gets how many reversible changes were recorded so far. */
+  public int getChangeCount() {
+    synchronized (mLock) {
+      return mChanges.size();
+    }
+  }
+
+  /** Gets the changes that were applied but can't be rolled back. */
+  @NonNull
+  public List<String> getIrreversibleChanges() {
+    synchronized (mLock) {
+      return new ArrayList<>(mIrreversibleChanges);
+    }
+  }
+
+  /** Keeps all changes made so far and closes the transaction. */
+  public void commit() {
+    synchronized (mLock) {
+      checkNotClosed();
+      Log.i(TAG, "Committing " + mChanges.size() + " changes");
+      mChanges.clear();
+      mClosed = true;
+    }
+    clearIfActive();
+  }
+
+  /**
+   * Undoes all reversible changes made so far, in reverse order, and closes the transaction.
+   *
+   * @return errors of changes that couldn't be undone (empty if all of them were undone).
+   */
+  @NonNull
+  public List<Exception> rollback() {
+    List<Change> changes;
+    synchronized (mLock) {
+      checkNotClosed();
+      changes = new ArrayList<>(mChanges);
+      mChanges.clear();
+      mClosed = true;
+    }
+    clearIfActive();
+
+    Log.i(TAG, "Rolling back " + changes.size() + " changes");
+    Collections.reverse(changes);
+    List<Exception> errors = new ArrayList<>();
+    for (Change change : changes) {
+      try {
+        change.undo();
+      } catch (Exception e) {
+        Log.e(TAG, "Error undoing " + change, e);
+        errors.add(e);
+      }
+    }
+    return errors;
+  }
+
+  @Override
+  public String toString() {
+    synchronized (mLock) {
+      return "PolicyTransaction[changes="
+          + mChanges.size()
+          + ", irreversible="
+          + mIrreversibleChanges.size()
+          + (mClosed ? ", closed" : "")
+          + "]";
+    }
+  }
+
+  private void checkNotClosed() {
+    if (mClosed) {
+      throw new IllegalStateException("Transaction already closed");
+    }
+  }
+
+  private void clearIfActive() {
+    synchronized (sLock) {
+      if (sActive == this) {
+        sActive = null;
+      }
+    }
+  }
+
+  private void record(@NonNull Change change) {
+    synchronized (mLock) {
+      if (mClosed) {
+        Log.w(TAG, "Not recording " + change + " after transaction was closed");
+        return;
+      }
+      Log.v(TAG, "Recording " + change);
+      mChanges.add(change);
+    }
+  }
+
+  private void recordIrreversible(@NonNull String description) {
+    synchronized (mLock) {
+      if (!mClosed) {
+        Log.w(TAG, "Can't undo " + description);
+        mIrreversibleChanges.add(description);
+      }
+    }
+  }
+
+  @Nullable
+  private static Object[] ifChanged(@Nullable Object oldValue, @Nullable Object newValue) {
+    // CharSequences are compared by content, as their implementations don't override equals()
+    Object oldComparable = oldValue instanceof CharSequence ? oldValue.toString() : oldValue;
+    Object newComparable = newValue instanceof CharSequence ? newValue.toString() : newValue;
+    return Objects.equals(oldComparable, newComparable) ? null : new Object[] {oldValue};
+  }
+
+  private static ContentResolver requireResolver(@Nullable ContentResolver resolver) {
+    if (resolver == null) {
+      throw new UnsupportedOperationException("no ContentResolver to read settings");
+    }
+    return resolver;
+  }
+
+  private static boolean isRead(Method method) {
+    for (String prefix : READ_PREFIXES) {
+      if (method.getName().startsWith(prefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean hasCallbacks(Method method) {
+    Class<?>[] types = method.getParameterTypes();
+    return types.length >= 2
+        && types[types.length - 2] == Consumer.class
+        && types[types.length - 1] == Consumer.class;
+  }
+
+  private static String describe(Method method, Object[] args, int length) {
+    StringBuilder description = new StringBuilder(method.getName()).append('(');
+    for (int i = 0; i < length; i++) {
+      if (i > 0) {
+        description.append(", ");
+      }
+      Object arg = args[i];
+      description.append(arg instanceof Object[] ? Arrays.toString((Object[]) arg) : arg);
+    }
+    return description.append(')').toString();
+  }
+
+  /** Records the mutations made through a gateway. */
+  private final class Recorder implements InvocationHandler {
+
+    private final DevicePolicyManagerGateway mDelegate;
+
+    private Recorder(@NonNull DevicePolicyManagerGateway delegate) {
+      mDelegate = delegate;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      if (method.getDeclaringClass() == Object.class || isRead(method)) {
+        return invokeDelegate(method, args);
+      }
+      Object[] actualArgs = args == null ? new Object[0] : args.clone();
+      String description =
+          describe(
+              method, actualArgs, hasCallbacks(method) ? actualArgs.length - 2 : actualArgs.length);
+
+      UndoArgs undoArgs = UNDO_ARGS.get(method.getName());
+      if (undoArgs == null) {
+        recordIrreversible(description);
+        return invokeDelegate(method, actualArgs);
+      }
+      Object[] restoreArgs;
+      try {
+        restoreArgs = undoArgs.read(mDelegate, mResolver, actualArgs);
+      } catch (Exception e) {
+        Log.w(TAG, "Could not read previous state for " + description, e);
+        recordIrreversible(description);
+        return invokeDelegate(method, actualArgs);
+      }
+      if (restoreArgs == null) {
+        Log.v(TAG, "Not recording " + description + " as it doesn't change anything");
+        return invokeDelegate(method, actualArgs);
+      }
+      Change change = new Change(mDelegate, method, restoreArgs, description);
+
+      if (hasCallbacks(method)) {
+        // Only record it once it succeeded
+        int onSuccessIndex = actualArgs.length - 2;
+        @SuppressWarnings("unchecked")
+        Consumer<Object> onSuccess = (Consumer<Object>) actualArgs[onSuccessIndex];
+        actualArgs[onSuccessIndex] =
+            (Consumer<Object>)
+                (result) -> {
+                  record(change);
+                  onSuccess.accept(result);
+                };
+        return invokeDelegate(method, actualArgs);
+      }
+      Object result = invokeDelegate(method, actualArgs);
+      if (!Boolean.FALSE.equals(result)) {
+        record(change);
+      }
+      return result;
+    }
+
+    private Object invokeDelegate(Method method, Object[] args) throws Throwable {
+      try {
+        return method.invoke(mDelegate, args);
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+    }
+  }
+
+  /** A recorded change, and how to undo it. */
+  private static final class Change {
+    private final DevicePolicyManagerGateway mGateway;
+    private final Method mMethod;
+    private final Object[] mRestoreArgs;
+    private final String mDescription;
+
+    private Change(
+        DevicePolicyManagerGateway gateway,
+        Method method,
+        Object[] restoreArgs,
+        String description) {
+      mGateway = gateway;
+      mMethod = method;
+      mRestoreArgs = restoreArgs;
+      mDescription = description;
+    }
+
+    private void undo() throws Exception {
+      Log.d(
+          TAG,
+          "Undoing "
+              + mDescription
+              + ": "
+              + describe(mMethod, mRestoreArgs, mRestoreArgs.length));
+      if (!hasCallbacks(mMethod)) {
+        invoke(mRestoreArgs);
+        return;
+      }
+      CompletableFuture<Void> done = new CompletableFuture<>();
+      Object[] args = Arrays.copyOf(mRestoreArgs, mRestoreArgs.length + 2);
+      args[args.length - 2] = (Consumer<Object>) (result) -> done.complete(null);
+      args[args.length - 1] = (Consumer<Exception>) done::completeExceptionally;
+      invoke(args);
+      try {
+        done.get(UNDO_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+      } catch (ExecutionException e) {
+        throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+      } catch (TimeoutException e) {
+        throw new TimeoutException("Timed out undoing " + mDescription);
+      }
+    }
+
+    private void invoke(Object[] args) throws Exception {
+      try {
+        mMethod.invoke(mGateway, args);
+      } catch (InvocationTargetException e) {
+        throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+      }
+    }
+
+    @Override
+    public String toString() {
+      return mDescription;
+    }
+  }
+}
@@ -41,11 +41,41 @@ import android.security.keystore.KeyProperties;
 import android.util.Log;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 import com.afwsamples.testdpc.common.Util;
+import com.afwsamples.testdpc.feedback.AppStatesStore;
+import com.afwsamples.testdpc.policy.bugreport.BugreportIndex;
+import com.afwsamples.testdpc.policy.keymanagement.KeyPool;
+import com.afwsamples.testdpc.policy.networklogs.NetworkLogStats;
+import com.afwsamples.testdpc.policy.networklogs.NetworkLogStore;
+import com.afwsamples.testdpc.policy.securitylogs.SecurityEventAnomalyDetector;
+import com.afwsamples.testdpc.policy.securitylogs.SecurityEventFormatter;
+import com.afwsamples.testdpc.policy.securitylogs.SecurityLogArchive;
+import com.afwsamples.testdpc.policy.securitylogs.SecurityLogQuery;
+import com.afwsamples.testdpc.policy.securitylogs.SecurityLogQueryEngine;
+import com.afwsamples.testdpc.policy.securitylogs.SecurityLogRecord;
+import com.afwsamples.testdpc.policy.utils.Attestation;
+import com.afwsamples.testdpc.policy.utils.AttestationCache;
+import com.afwsamples.testdpc.policy.utils.AttestationPolicy;
+import com.afwsamples.testdpc.policy.utils.AttestationVerifier;
+import com.afwsamples.testdpc.trace.GatewayTrace;
+import com.afwsamples.testdpc.trace.GatewayTraceRecorder;
+import com.afwsamples.testdpc.trace.GatewayTraceReplayer;
 import com.afwsamples.testdpc.util.flags.Flags;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.text.DateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
@@ -53,8 +83,11 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
+import org.json.JSONException;
 
 /**
  * Provides a CLI (command-line interface) to TestDPC through {@code dumpsys}.
@@ -63,6 +96,9 @@ import java.util.stream.Collectors;
  */
 final class ShellCommand {
   private static final String TAG = "TestDPCShellCommand";
+  private static final String SNAPSHOTS_DIR = "snapshots";
+  private static final String TRACES_DIR = "traces";
+  private static final int SNAPSHOT_THREADS = 8;
 
   private final Context mContext;
   private final PrintWriter mWriter;
@@ -74,10 +110,24 @@ final class ShellCommand {
 
   public ShellCommand(
       @NonNull Context context, @NonNull PrintWriter writer, @Nullable String[] args) {
+    this(
+        context,
+        writer,
+        args,
+        PolicyTransaction.wrapIfActive(
+            GatewayTraceRecorder.wrapIfRecording(new DevicePolicyManagerGatewayImpl(context))));
+  }
+
+  @VisibleForTesting
+  ShellCommand(
+      @NonNull Context context,
+      @NonNull PrintWriter writer,
+      @Nullable String[] args,
+      @NonNull DevicePolicyManagerGateway gateway) {
     mContext = context;
     mWriter = writer;
     mArgs = args;
-    mDevicePolicyManagerGateway = new DevicePolicyManagerGatewayImpl(context);
+    mDevicePolicyManagerGateway = gateway;
     Log.d(TAG, "constructor: pid=" + Process.myPid() + ", process name=" + Util.myProcessName()
         + ", args=" + Arrays.toString(args));
   }
@@ -141,6 +191,50 @@ final class ShellCommand {
         });
 
     flags.addCommand(command("dump", this::dumpState).setDescription("Dump internal state."));
+    flags.addCommand(
+        command("snapshot", this::snapshot, optional(namedParam(String.class, "name")))
+            .setDescription(
+                "Capture all readable policy state in one pass (reading it in parallel). When a"
+                    + " name is given, the snapshot is saved so it can be used by diff-snapshot."));
+    flags.addCommand(
+        command(
+                "diff-snapshot",
+                this::diffSnapshot,
+                ordinalParam(String.class, "before"),
+                optional(namedParam(String.class, "after")))
+            .setDescription(
+                "Compare a saved snapshot with another saved snapshot (or with the current state"
+                    + " when --after is not given)."));
+    flags.addCommand(
+        command(
+                "start-gateway-trace", this::startGatewayTrace, ordinalParam(String.class, "name"))
+            .setDescription(
+                "Start recording all DevicePolicyManagerGateway calls made by shell commands into"
+                    + " the given trace."));
+    flags.addCommand(
+        command("stop-gateway-trace", this::stopGatewayTrace)
+            .setDescription("Stop recording DevicePolicyManagerGateway calls."));
+    flags.addCommand(
+        command(
+                "replay-gateway-trace",
+                this::replayGatewayTrace,
+                ordinalParam(String.class, "name"),
+                optional(namedParam(boolean.class, "fake")))
+            .setDescription(
+                "Replay the calls of the given trace (against an in-memory gateway when --fake is"
+                    + " true) and compare their latency with the recorded one. Destructive calls"
+                    + " (like wipe-data) are skipped."));
+    flags.addCommand(
+        command("begin", this::beginTransaction)
+            .setDescription(
+                "Start a transaction: the previous value of everything changed by the next"
+                    + " commands is recorded, until commit or rollback is called."));
+    flags.addCommand(
+        command("commit", this::commitTransaction)
+            .setDescription("Keep the changes made since begin."));
+    flags.addCommand(
+        command("rollback", this::rollbackTransaction)
+            .setDescription("Undo the changes made since begin, in reverse order."));
     flags.addCommand(
         command(
                 "create-user",
@@ -262,6 +356,26 @@ final class ShellCommand {
             command("retrieve-network-logs", this::retrieveNetworkLogs,
                     ordinalParam(Long.class, "batch-token"))
                     .setDescription("Retrieves the network logs."));
+    flags.addCommand(
+        command(
+                "network-log-stats",
+                this::networkLogStats,
+                optional(namedParam(String.class, "by")),
+                optional(namedParam(String.class, "sort")),
+                optional(namedParam(int.class, "top")))
+            .setDescription(
+                "Prints the packages (--by package, the default) or domains (--by domain) with the"
+                    + " most network events saved by TestDPC, sorted by --sort events (the"
+                    + " default), dns, connects or peers."));
+    flags.addCommand(
+        command(
+                "network-log-budget",
+                this::networkLogBudget,
+                optional(namedParam(long.class, "megabytes")))
+            .setDescription(
+                "Prints the disk used by the network logs saved by TestDPC, after setting its"
+                    + " budget to --megabytes if given. The oldest logs are deleted to stay"
+                    + " within it."));
     flags.addCommand(
             command(
                     "set-security-logging-enabled",
@@ -275,11 +389,109 @@ final class ShellCommand {
             command("get-last-security-log-retrieval-time", this::getLastSecurityLogRetrievalTime)
                     .setDescription("Prints the last time the device owner retrieved the security log."));
     flags.addCommand(
-            command("retrieve-security-logs", this::retrieveSecurityLogs)
-                    .setDescription("Retrieves the security logs."));
+            command(
+                    "retrieve-security-logs",
+                    this::retrieveSecurityLogs,
+                    optional(namedParam(boolean.class, "archived")))
+                    .setDescription(
+                        "Retrieves the security logs, or reads the ones archived by TestDPC when"
+                            + " --archived is true. Retrieved logs are added to the archive."));
     flags.addCommand(
             command("retrieve-pre-reboot-security-logs", this::retrievePreRebootSecurityLogs)
                     .setDescription("Retrieves the pre-reboot security logs."));
+    flags.addCommand(
+        command(
+                "query-security-logs",
+                this::querySecurityLogs,
+                repeated(namedParam(String.class, "tags")),
+                optional(namedParam(long.class, "from")),
+                optional(namedParam(long.class, "to")),
+                optional(namedParam(int.class, "field")),
+                optional(namedParam(String.class, "equals")),
+                optional(namedParam(String.class, "order")),
+                optional(namedParam(int.class, "limit")))
+            .setDescription(
+                "Queries the security logs archived by TestDPC: events with one of the --tags"
+                    + " values (names like APP_PROCESS_START, or numbers), logged between --from"
+                    + " and --to (in milliseconds since the epoch), whose data field at index"
+                    + " --field is --equals, ordered by time (--order asc, the default, or desc)"
+                    + " and cut at --limit (100 by default)."));
+    flags.addCommand(
+        command(
+                "bugreport-section",
+                this::bugreportSection,
+                ordinalParam(String.class, "file"),
+                ordinalParam(String.class, "section"))
+            .setDescription(
+                "Prints a section (such as DUMPSYS, SYSTEM LOG or dumpsys <service>) of a"
+                    + " bugreport saved by TestDPC, given its file name. Prints the sections if"
+                    + " there is no such section."));
+    flags.addCommand(
+        command(
+                "list-app-states",
+                this::listAppStates,
+                optional(namedParam(String.class, "package")),
+                optional(namedParam(long.class, "since")),
+                optional(namedParam(String.class, "severity")),
+                optional(namedParam(boolean.class, "history")))
+            .setDescription(
+                "Lists the latest keyed app state of each app and key, or every state kept when"
+                    + " --history is true, of --package, set since --since (in milliseconds"
+                    + " since the epoch), with --severity info or error."));
+    flags.addCommand(
+        command(
+                "verify-attestation",
+                this::verifyAttestation,
+                ordinalParam(String.class, "alias"),
+                optional(namedParam(int.class, "flags")),
+                optional(namedParam(String.class, "roots")),
+                optional(namedParam(int.class, "min-os-patch-level")),
+                optional(namedParam(boolean.class, "allow-software")))
+            .setDescription(
+                "Generates an attested key with the given alias and verifies its attestation"
+                    + " chain: signatures, validity periods, CA intermediates, a root that is one"
+                    + " of Google's attestation roots or, with --roots, of the certificates in that"
+                    + " file (PEM or DER), and a policy requiring a TEE or"
+                    + " StrongBox key (any security level and boot state with --allow-software),"
+                    + " a verified boot with a locked bootloader, and an OS patch level (YYYYMM)"
+                    + " of at least --min-os-patch-level."));
+    flags.addCommand(
+        command(
+                "set-key-pool",
+                this::setKeyPool,
+                namedParam(int.class, "depth"),
+                optional(namedParam(String.class, "prefix")),
+                optional(namedParam(boolean.class, "ec")),
+                optional(namedParam(boolean.class, "strongbox")),
+                optional(namedParam(boolean.class, "user-selectable")))
+            .setDescription(
+                "Keeps --depth keys generated ahead of time, refilled while the device is"
+                    + " charging or idle, with aliases starting with --prefix ("
+                    + KeyPool.DEFAULT_PREFIX
+                    + " by default). The keys are RSA (EC with --ec), in StrongBox with"
+                    + " --strongbox, and selectable by the user with --user-selectable. A"
+                    + " --depth of 0 disables the pool."));
+    flags.addCommand(
+        command("take-pooled-key", this::takePooledKey)
+            .setDescription(
+                "Takes a key out of the pool (see set-key-pool) and prints its alias."));
+    flags.addCommand(
+        command("refill-key-pool", this::refillKeyPool)
+            .setDescription("Refills the key pool now, without waiting for charging or idle."));
+    flags.addCommand(
+        command("get-security-anomaly-rules", this::getSecurityAnomalyRules)
+            .setDescription(
+                "Prints the rules raising alerts for bursts of security events."));
+    flags.addCommand(
+        command(
+                "set-security-anomaly-rule",
+                this::setSecurityAnomalyRule,
+                ordinalParam(String.class, "rule"),
+                namedParam(int.class, "threshold"),
+                namedParam(long.class, "window-seconds"))
+            .setDescription(
+                "Sets how many events of a rule (see get-security-anomaly-rules) within"
+                    + " --window-seconds raise an alert. A --threshold of 0 disables the rule."));
     flags.addCommand(
         command("clear-organization-name", this::clearOrganizationName)
             .setDescription("Clear the organisation name."));
@@ -619,6 +831,198 @@ final class ShellCommand {
         mDevicePolicyManagerGateway.isDeviceIdAttestationSupported());
     mWriter.printf("isUniqueDeviceAttestationSupported: %b\n",
         mDevicePolicyManagerGateway.isUniqueDeviceAttestationSupported());
+    long[] readStats = DevicePolicyManagerGatewayImpl.getReadStats();
+    mWriter.printf("gatewayReads: %d (%d coalesced)\n", readStats[0], readStats[1]);
+    long[] attestationStats = AttestationCache.getInstance().getStats();
+    mWriter.printf(
+        "attestationCache: %d entries, %d hits, %d misses\n",
+        AttestationCache.getInstance().size(), attestationStats[0], attestationStats[1]);
+    long[] chainStats = AttestationVerifier.getStats();
+    mWriter.printf(
+        "attestationSignatures: %d verified, %d cached\n", chainStats[1], chainStats[0]);
+    KeyPool keyPool = KeyPool.getInstance(mContext);
+    long[] refillStats = keyPool.getRefillStats();
+    mWriter.printf(
+        "keyPool: %d/%d ready, %d generated (%d failed), refill latency %d ms last, %d ms avg,"
+            + " %d ms max\n",
+        keyPool.getReadyCount(),
+        keyPool.getDepth(),
+        refillStats[0],
+        refillStats[1],
+        refillStats[2],
+        refillStats[3],
+        refillStats[4]);
+  }
+
+  private void snapshot(String name) {
+    PolicyStateSnapshot snapshot;
+    try {
+      snapshot = captureSnapshot();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      onError(e, "Interrupted while capturing snapshot");
+      return;
+    }
+    if (name == null) {
+      snapshot.getProperties().forEach((k, v) -> mWriter.printf("%s: %s\n", k, v));
+      return;
+    }
+    try {
+      File file = getSnapshotFile(name);
+      file.getParentFile().mkdirs();
+      Files.write(file.toPath(), snapshot.toJson().getBytes(StandardCharsets.UTF_8));
+      onSuccess(
+          "Saved %d properties to snapshot '%s' (%s)",
+          snapshot.getProperties().size(), name, file);
+    } catch (IOException | JSONException | IllegalArgumentException e) {
+      onError(e, "Error saving snapshot '%s'", name);
+    }
+  }
+
+  private void diffSnapshot(String beforeName, String afterName) {
+    PolicyStateSnapshot before;
+    PolicyStateSnapshot after;
+    try {
+      before = loadSnapshot(beforeName);
+      after = afterName == null ? captureSnapshot() : loadSnapshot(afterName);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      onError(e, "Interrupted while capturing snapshot");
+      return;
+    } catch (IOException | JSONException | IllegalArgumentException e) {
+      onError(e, "Error loading snapshots");
+      return;
+    }
+    List<PolicyStateSnapshot.Difference> differences = PolicyStateSnapshot.diff(before, after);
+    if (differences.isEmpty()) {
+      mWriter.println("No differences");
+      return;
+    }
+    int size = differences.size();
+    mWriter.printf("%d difference%s:\n", size, size == 1 ? "" : "s");
+    differences.forEach((d) -> mWriter.printf("  %s\n", d));
+  }
+
+  private PolicyStateSnapshot captureSnapshot() throws InterruptedException {
+    ExecutorService executor = Executors.newFixedThreadPool(SNAPSHOT_THREADS);
+    try {
+      return PolicyStateSnapshot.capture(mDevicePolicyManagerGateway, executor);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private PolicyStateSnapshot loadSnapshot(String name) throws IOException, JSONException {
+    byte[] json = Files.readAllBytes(getSnapshotFile(name).toPath());
+    return PolicyStateSnapshot.fromJson(new String(json, StandardCharsets.UTF_8));
+  }
+
+  private File getSnapshotFile(String name) {
+    File dir = new File(mContext.getFilesDir(), SNAPSHOTS_DIR);
+    return new File(dir, checkFileName(name) + ".json");
+  }
+
+  /**
+   * Checks that a user supplied name can be used as a file name, so it can't point outside of the
+   * directory it is resolved in.
+   */
+  private static String checkFileName(String name) {
+    if (name.isEmpty()
+        || name.contains("/")
+        || name.contains(File.separator)
+        || name.contains("..")) {
+      throw new IllegalArgumentException("Invalid name: " + name);
+    }
+    return name;
+  }
+
+  private void startGatewayTrace(String name) {
+    try {
+      File file = getTraceFile(name);
+      GatewayTraceRecorder.start(file);
+      onSuccess("Recording gateway calls to %s", file);
+    } catch (IOException | IllegalStateException | IllegalArgumentException e) {
+      onError(e, "Error starting gateway trace %s", name);
+    }
+  }
+
+  private void stopGatewayTrace() {
+    try {
+      File file = GatewayTraceRecorder.stop();
+      if (file == null) {
+        mWriter.println("Not recording");
+        return;
+      }
+      onSuccess("Stopped recording gateway calls to %s", file);
+    } catch (IOException e) {
+      onError(e, "Error stopping gateway trace");
+    }
+  }
+
+  private void replayGatewayTrace(String name, Boolean fake) {
+    List<GatewayTrace.Call> calls;
+    try {
+      calls = GatewayTrace.read(getTraceFile(name));
+    } catch (IOException | IllegalArgumentException e) {
+      onError(e, "Error reading gateway trace %s", name);
+      return;
+    }
+    DevicePolicyManagerGateway target =
+        fake != null && fake
+            ? new InMemoryDevicePolicyManagerGateway(mDevicePolicyManagerGateway.getAdmin())
+            : mDevicePolicyManagerGateway;
+    Map<String, GatewayTraceReplayer.MethodStats> stats =
+        new GatewayTraceReplayer().replay(calls, target);
+    mWriter.printf("Replayed %d calls on %s:\n", calls.size(), target);
+    stats.forEach((method, s) -> mWriter.printf("  %s: %s\n", method, s));
+  }
+
+  private File getTraceFile(String name) {
+    File dir = new File(mContext.getFilesDir(), TRACES_DIR);
+    return new File(dir, checkFileName(name) + ".trace");
+  }
+
+  private void beginTransaction() {
+    try {
+      PolicyTransaction.begin(mContext.getContentResolver());
+      onSuccess("Transaction started");
+    } catch (IllegalStateException e) {
+      onError(e, "Error starting transaction");
+    }
+  }
+
+  private void commitTransaction() {
+    PolicyTransaction transaction = PolicyTransaction.getActive();
+    if (transaction == null) {
+      mWriter.println("No transaction in progress");
+      return;
+    }
+    int changes = transaction.getChangeCount();
+    transaction.commit();
+    onSuccess("Committed %d changes", changes);
+    printIrreversibleChanges(transaction);
+  }
+
+  private void rollbackTransaction() {
+    PolicyTransaction transaction = PolicyTransaction.getActive();
+    if (transaction == null) {
+      mWriter.println("No transaction in progress");
+      return;
+    }
+    int changes = transaction.getChangeCount();
+    List<Exception> errors = transaction.rollback();
+    for (Exception error : errors) {
+      onError(error, "Error rolling back change");
+    }
+    onSuccess("Rolled back %d of %d changes", changes - errors.size(), changes);
+    printIrreversibleChanges(transaction);
+  }
+
+  private void printIrreversibleChanges(PolicyTransaction transaction) {
+    List<String> irreversible = transaction.getIrreversibleChanges();
+    if (!irreversible.isEmpty()) {
+      printCollection("irreversible change", irreversible);
+    }
   }
 
   private void createUser(String name, int flags) {
@@ -826,6 +1230,45 @@ final class ShellCommand {
     }
   }
 
+  private void networkLogStats(String by, String sort, Integer top) {
+    int dimension = NetworkLogStats.BY_PACKAGE;
+    if ("domain".equals(by)) {
+      dimension = NetworkLogStats.BY_DOMAIN;
+    } else if (by != null && !"package".equals(by)) {
+      mWriter.printf("Invalid --by: %s\n", by);
+      return;
+    }
+    int sortBy = NetworkLogStats.SORT_BY_EVENTS;
+    if ("dns".equals(sort)) {
+      sortBy = NetworkLogStats.SORT_BY_DNS_LOOKUPS;
+    } else if ("connects".equals(sort)) {
+      sortBy = NetworkLogStats.SORT_BY_CONNECTS;
+    } else if ("peers".equals(sort)) {
+      sortBy = NetworkLogStats.SORT_BY_DISTINCT_PEERS;
+    } else if (sort != null && !"events".equals(sort)) {
+      mWriter.printf("Invalid --sort: %s\n", sort);
+      return;
+    }
+    NetworkLogStats stats = NetworkLogStats.getInstance(mContext);
+    List<NetworkLogStats.Counters> counters;
+    int keyCount;
+    try {
+      counters = stats.getTop(dimension, sortBy, top == null ? 10 : top);
+      keyCount = stats.getKeyCount(dimension);
+    } catch (IOException e) {
+      onError(e, "Error reading network log stats");
+      return;
+    }
+    String noun = dimension == NetworkLogStats.BY_DOMAIN ? "domains" : "packages";
+    mWriter.printf("%d of %d %s:\n", counters.size(), keyCount, noun);
+    long now = NetworkLogStats.getBucket(System.currentTimeMillis());
+    for (NetworkLogStats.Counters c : counters) {
+      mWriter.printf(
+          "  %s: %s last24h=%d\n",
+          c.key.isEmpty() ? "(unknown)" : c.key, c.describe(5), c.getRecentEvents(now, 24));
+    }
+  }
+
   private void setSecurityLoggingEnabled(boolean enabled) {
       Log.i(TAG, "setSecurityLoggingEnabled(" + enabled + ")");
       mDevicePolicyManagerGateway.setSecurityLoggingEnabled(
@@ -842,12 +1285,192 @@ final class ShellCommand {
       printTime(mDevicePolicyManagerGateway.getLastSecurityLogRetrievalTime());
   }
 
-  private void retrieveSecurityLogs() {
-    printSecurityLogs(mDevicePolicyManagerGateway.retrieveSecurityLogs());
+  private void retrieveSecurityLogs(Boolean archived) {
+    if (archived != null && archived) {
+      try {
+        printSecurityLogs(SecurityLogArchive.getInstance(mContext).readAll());
+      } catch (IOException e) {
+        onError(e, "Error reading archived security logs");
+      }
+      return;
+    }
+    printSecurityLogs(archiveSecurityLogs(mDevicePolicyManagerGateway.retrieveSecurityLogs()));
   }
 
   private void retrievePreRebootSecurityLogs() {
-    printSecurityLogs(mDevicePolicyManagerGateway.retrievePreRebootSecurityLogs());
+    printSecurityLogs(
+        archiveSecurityLogs(mDevicePolicyManagerGateway.retrievePreRebootSecurityLogs()));
+  }
+
+  private void querySecurityLogs(
+      String[] tags,
+      Long fromMillis,
+      Long toMillis,
+      Integer field,
+      String equals,
+      String order,
+      Integer limit) {
+    SecurityLogQuery.Builder builder = SecurityLogQuery.builder();
+    try {
+      if (tags != null) {
+        for (String tag : tags) {
+          builder.addTag(SecurityEventFormatter.parseTag(tag));
+        }
+      }
+      builder.setTimeRange(
+          fromMillis == null ? Long.MIN_VALUE : TimeUnit.MILLISECONDS.toNanos(fromMillis),
+          toMillis == null ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toNanos(toMillis));
+      if (field != null || equals != null) {
+        if (field == null || equals == null) {
+          mWriter.println("--field and --equals must be used together");
+          return;
+        }
+        builder.setDataEquals(field, equals);
+      }
+      if ("desc".equals(order)) {
+        builder.setDescending(true);
+      } else if (order != null && !"asc".equals(order)) {
+        mWriter.printf("Invalid --order: %s\n", order);
+        return;
+      }
+      builder.setLimit(limit == null ? 100 : limit);
+    } catch (IllegalArgumentException e) {
+      mWriter.println(e.getMessage());
+      return;
+    }
+    SecurityLogQuery query = builder.build();
+    SecurityLogQueryEngine.Result result;
+    try {
+      result = SecurityLogQueryEngine.getInstance(mContext).execute(query);
+    } catch (IOException e) {
+      onError(e, "Error querying archived security logs");
+      return;
+    }
+    mWriter.printf(
+        "%d events (%d segments read, %d skipped, %d events examined):\n",
+        result.records.size(),
+        result.segmentsRead,
+        result.segmentsSkipped,
+        result.eventsExamined);
+    DateFormat dateFormat = DateFormat.getDateTimeInstance();
+    for (SecurityLogRecord record : result.records) {
+      mWriter.printf("\t%s\n", SecurityEventFormatter.format(record, dateFormat));
+    }
+  }
+
+  private void networkLogBudget(Long megabytes) {
+    NetworkLogStore store = NetworkLogStore.getInstance(mContext);
+    int batches;
+    try {
+      if (megabytes != null) {
+        NetworkLogStore.setDiskBudget(mContext, megabytes * 1024 * 1024);
+      }
+      batches = store.getBatches().size();
+    } catch (IOException | IllegalArgumentException e) {
+      onError(e, "Error setting network log budget to %d MB", megabytes);
+      return;
+    }
+    mWriter.printf(
+        "%d batches using %d of %d bytes\n", batches, store.getTotalBytes(), store.getMaxBytes());
+  }
+
+  private void bugreportSection(String fileName, String sectionName) {
+    File file;
+    try {
+      // Bugreports are saved there, and the index is written next to the bugreport
+      file = resolveInDirectory(mContext.getExternalFilesDir(null), fileName);
+    } catch (IOException | IllegalArgumentException e) {
+      onError(e, "Invalid bugreport %s", fileName);
+      return;
+    }
+    try {
+      BugreportIndex index = BugreportIndex.getOrBuild(file);
+      BugreportIndex.Section section = index.findSection(sectionName);
+      if (section == null) {
+        mWriter.printf("No section %s in %s, sections:\n", sectionName, file);
+        for (BugreportIndex.Section s : index.getSections()) {
+          mWriter.printf("  %s\n", s);
+        }
+        return;
+      }
+      index.copySection(file, section, mWriter);
+    } catch (IOException e) {
+      onError(e, "Error reading section %s of bugreport %s", sectionName, file);
+    }
+  }
+
+  /**
+   * Resolves a user supplied path, absolute or relative to {@code dir}, checking that it doesn't
+   * point outside of {@code dir}.
+   */
+  private static File resolveInDirectory(@Nullable File dir, String path) throws IOException {
+    if (dir == null) {
+      throw new IOException("Directory of " + path + " is not available");
+    }
+    File file = new File(path);
+    if (!file.isAbsolute()) {
+      file = new File(dir, path);
+    }
+    File canonical = file.getCanonicalFile();
+    if (!canonical.toPath().startsWith(dir.getCanonicalFile().toPath())) {
+      throw new IllegalArgumentException(path + " is not in " + dir);
+    }
+    return canonical;
+  }
+
+  private void listAppStates(
+      String packageName, Long since, String severityName, Boolean history) {
+    int severity = AppStatesStore.ANY_SEVERITY;
+    if (severityName != null) {
+      try {
+        severity = AppStatesStore.parseSeverity(severityName);
+      } catch (IllegalArgumentException e) {
+        mWriter.printf("Invalid --severity: %s\n", severityName);
+        return;
+      }
+    }
+    long sinceMillis = since == null ? 0 : since;
+    AppStatesStore store = AppStatesStore.getInstance(mContext);
+    List<AppStatesStore.AppState> states =
+        history != null && history
+            ? store.getHistory(packageName, sinceMillis, severity)
+            : store.getLatest(packageName, sinceMillis, severity);
+    mWriter.printf("%d states:\n", states.size());
+    for (AppStatesStore.AppState state : states) {
+      mWriter.printf("  %s\n", state);
+    }
+  }
+
+  private void getSecurityAnomalyRules() {
+    for (SecurityEventAnomalyDetector.Rule rule :
+        SecurityEventAnomalyDetector.getRules(mContext)) {
+      mWriter.println(rule);
+    }
+  }
+
+  private void setSecurityAnomalyRule(String rule, int threshold, long windowSeconds) {
+    try {
+      SecurityEventAnomalyDetector.setRule(mContext, rule, threshold, windowSeconds);
+    } catch (IllegalArgumentException e) {
+      onError(e, "Error setting security anomaly rule %s", rule);
+      return;
+    }
+    onSuccess("Security anomaly rule %s set to %d events in %ds", rule, threshold, windowSeconds);
+  }
+
+  @Nullable
+  private List<SecurityLogRecord> archiveSecurityLogs(@Nullable List<SecurityEvent> events) {
+    if (events == null) {
+      return null;
+    }
+    List<SecurityLogRecord> records = SecurityLogRecord.from(events);
+    try {
+      int added = SecurityLogArchive.getInstance(mContext).ingest(records);
+      Log.i(TAG, "Archived " + added + " new security events");
+    } catch (IOException e) {
+      Log.e(TAG, "Error archiving security logs", e);
+    }
+    return records;
   }
 
   private void clearOrganizationName() {
@@ -1317,6 +1940,87 @@ final class ShellCommand {
     post(()->handleDeviceAttestationKeyPair(alias, flags));
   }
 
+  private void verifyAttestation(
+      String alias,
+      Integer flags,
+      String rootsPath,
+      Integer minOsPatchLevel,
+      Boolean allowSoftware) {
+    // Google's attestation roots unless given
+    List<X509Certificate> roots = null;
+    if (rootsPath != null) {
+      roots = new ArrayList<>();
+      try (InputStream in = new FileInputStream(rootsPath)) {
+        for (Certificate root :
+            CertificateFactory.getInstance("X.509").generateCertificates(in)) {
+          roots.add((X509Certificate) root);
+        }
+      } catch (IOException | CertificateException e) {
+        onError(e, "Error reading trusted roots from %s", rootsPath);
+        return;
+      }
+    }
+    AttestationPolicy.Builder policy = AttestationPolicy.builder();
+    try {
+      if (minOsPatchLevel != null) {
+        policy.setMinOsPatchLevel(minOsPatchLevel);
+      }
+    } catch (IllegalArgumentException e) {
+      onError(e, "Invalid --min-os-patch-level");
+      return;
+    }
+    if (allowSoftware != null && allowSoftware) {
+      policy
+          .setMinSecurityLevel(Attestation.KM_SECURITY_LEVEL_SOFTWARE)
+          .setRequireVerifiedBoot(false);
+    }
+    // Cannot call dpm.generateKeyPair() on main thread
+    warnAboutAsyncCall();
+    AttestationVerifier verifier =
+        roots == null
+            ? new AttestationVerifier(policy.build())
+            : new AttestationVerifier(roots, policy.build());
+    post(() -> handleVerifyAttestation(alias, flags == null ? 0 : flags, verifier));
+  }
+
+  private void setKeyPool(
+      int depth, String prefix, Boolean ec, Boolean strongBox, Boolean userSelectable) {
+    KeyPool pool = KeyPool.getInstance(mContext);
+    try {
+      pool.configure(
+          depth,
+          prefix == null ? KeyPool.DEFAULT_PREFIX : prefix,
+          ec != null && ec,
+          strongBox != null && strongBox,
+          userSelectable != null && userSelectable);
+    } catch (IllegalArgumentException e) {
+      onError(e, "Error configuring key pool");
+      return;
+    }
+    onSuccess("Key pool set: %s", pool);
+  }
+
+  private void takePooledKey() {
+    KeyPool pool = KeyPool.getInstance(mContext);
+    String alias = pool.take();
+    if (alias == null) {
+      mWriter.printf("No pooled key ready (%d/%d)\n", pool.getReadyCount(), pool.getDepth());
+      return;
+    }
+    onSuccess("Took pooled key %s", alias);
+  }
+
+  private void refillKeyPool() {
+    // Cannot call dpm.generateKeyPair() on main thread
+    warnAboutAsyncCall();
+    post(
+        () -> {
+          KeyPool pool = KeyPool.getInstance(mContext);
+          int generated = pool.refill(() -> false);
+          onSuccessLog("Generated %d pooled keys: %s", generated, pool);
+        });
+  }
+
   private void removeKeyPair(String alias) {
     mDevicePolicyManagerGateway.removeKeyPair(alias,
         (v) -> onSuccess("%s certificate withalias %s", (v ? "Removed" : "Didn't remove"), alias),
@@ -1406,6 +2110,30 @@ final class ShellCommand {
             alias, flags, keySpec));
   }
 
+  private void handleVerifyAttestation(String alias, int flags, AttestationVerifier verifier) {
+    KeyGenParameterSpec keySpec = buildRsaKeySpecWithKeyAttestation(alias);
+    mDevicePolicyManagerGateway.generateKeyPair("RSA", keySpec, flags,
+        (keyPair) -> verifyAttestationRecord(alias, keyPair.getAttestationRecord(), verifier),
+        (e) -> onErrorLog(e, "Error generating key with alias %s and flags %d", alias, flags));
+  }
+
+  private void verifyAttestationRecord(
+      String alias, List<Certificate> chain, AttestationVerifier verifier) {
+    if (chain == null) {
+      onErrorLog(new IllegalStateException("No attestation record"), "Cannot verify %s", alias);
+      return;
+    }
+    try {
+      AttestationVerifier.Result result = verifier.verify(chain);
+      onSuccessLog(
+          "Attestation of %s (%d certificates, %s): %s",
+          alias, chain.size(), verifier.getPolicy(), result);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      onErrorLog(e, "Interrupted while verifying attestation of %s", alias);
+    }
+  }
+
   private void post(Runnable r) {
     if (mHandler == null) {
       HandlerThread handlerThread = new HandlerThread("ShellCommandThread");
@@ -1452,16 +2180,18 @@ final class ShellCommand {
     mWriter.printf("%d (%s)\n", time, formattedDate);
   }
 
-  private void printSecurityLogs(List<SecurityEvent> events) {
+  private void printSecurityLogs(List<SecurityLogRecord> events) {
     if (events == null || events.isEmpty()) {
       mWriter.println("N/A");
       return;
     }
     mWriter.printf("%d events:\n", events.size());
     for (int i = 0; i < events.size(); i++) {
-      SecurityEvent event = events.get(i);
+      SecurityLogRecord event = events.get(i);
       // TODO: print more stuff
-      mWriter.printf("\t%d: id=%d tag=%d\n", i, event.getId(), event.getTag());
+      mWriter.printf(
+          "\t%d: id=%d tag=%d (%s)\n",
+          i, event.id, event.tag, SecurityEventFormatter.getTagName(event.tag));
     }
   }
 
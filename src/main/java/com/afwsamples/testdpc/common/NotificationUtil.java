@@ -5,6 +5,7 @@ import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.content.Context;
 import android.os.Build.VERSION_CODES;
+import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 import androidx.annotation.StringRes;
 import androidx.core.app.NotificationCompat;
@@ -24,9 +25,21 @@ public class NotificationUtil {
   public static final int DEVICE_OWNER_CHANGED_ID = 9;
   public static final int TRANSFER_OWNERSHIP_COMPLETE_ID = 10;
   public static final int TRANSFER_AFFILIATED_PROFILE_OWNERSHIP_COMPLETE_ID = 11;
+  public static final int LOG_EXPORT_NOTIFICATION_ID = 12;
+  public static final int SECURITY_ANOMALY_NOTIFICATION_ID = 13;
 
   public static void showNotification(
       Context context, @StringRes int titleId, String msg, int notificationId) {
+    showNotification(context, titleId, msg, /* tag= */ null, notificationId);
+  }
+
+  /** Same as above, with a tag telling apart notifications that have the same id. */
+  public static void showNotification(
+      Context context,
+      @StringRes int titleId,
+      String msg,
+      @Nullable String tag,
+      int notificationId) {
     NotificationManager notificationManager =
         (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
     Notification notification =
@@ -36,7 +49,7 @@ public class NotificationUtil {
             .setContentText(msg)
             .setStyle(new NotificationCompat.BigTextStyle().bigText(msg))
             .build();
-    notificationManager.notify(notificationId, notification);
+    notificationManager.notify(tag, notificationId, notification);
   }
 
   public static NotificationCompat.Builder getNotificationBuilder(Context context) {
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.common;
+
+import androidx.annotation.NonNull;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent calls that have the same key: while a call is in flight, other callers with
+ * the same key wait for it and share its result (or exception) instead of issuing their own call.
+ *
+ * <p>Results are not cached: once the in-flight call completes, the next call with that key runs
+ * again. Callers sharing a result must not modify it.
+ */
+public final class SingleFlight<K, V> {
+
+  private final ConcurrentHashMap<K, FutureTask<V>> mInFlight = new ConcurrentHashMap<>();
+  private final AtomicLong mCalls = new AtomicLong();
+  private final AtomicLong mCoalescedCalls = new AtomicLong();
+
+  /**
+   * Runs {@code call}, unless a call with the same {@code key} is already in flight, in which case
+   * it waits for that call and returns its result.
+   *
+   * <p>Runtime exceptions and errors thrown by the call are rethrown to all callers sharing it.
+   */
+  public V run(@NonNull K key, @NonNull Supplier<V> call) {
+    mCalls.incrementAndGet();
+    FutureTask<V> task = new FutureTask<>(call::get);
+    FutureTask<V> inFlight = mInFlight.putIfAbsent(key, task);
+    if (inFlight == null) {
+      try {
+        task.run();
+      } finally {
+        mInFlight.remove(key, task);
+      }
+      inFlight = task;
+    } else {
+      mCoalescedCalls.incrementAndGet();
+    }
+    return getUninterruptibly(inFlight);
+  }
+
+  /**
+   * Makes the calls started after this one run again instead of sharing the calls currently in
+   * flight, which may have read a value that was changed since. Callers already waiting for an
+   * in-flight call still get its result.
+   */
+  public void forgetInFlight() {
+    mInFlight.clear();
+  }
+
+  /** Gets how many calls were made to {@link #run(Object, Supplier)}. */
+  public long getCalls() {
+    return mCalls.get();
+  }
+
+  /** Gets how many of those calls shared the result of another in-flight call. */
+  public long getCoalescedCalls() {
+    return mCoalescedCalls.get();
+  }
+
+  private static <V> V getUninterruptibly(FutureTask<V> task) {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          return task.get();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+          }
+          if (cause instanceof Error) {
+            throw (Error) cause;
+          }
+          throw new RuntimeException(cause);
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
@@ -28,6 +28,8 @@ import androidx.annotation.IntDef;
 import androidx.annotation.StringRes;
 import androidx.preference.Preference;
 import androidx.preference.PreferenceViewHolder;
+import com.afwsamples.testdpc.DevicePolicyManagerGateway;
+import com.afwsamples.testdpc.DevicePolicyManagerGatewayImpl;
 import com.afwsamples.testdpc.R;
 import com.afwsamples.testdpc.common.Util;
 import java.lang.annotation.Retention;
@@ -89,6 +91,7 @@ public class DpcPreferenceHelper {
 
   private Context mContext;
   private Preference mPreference;
+  private DevicePolicyManagerGateway mDevicePolicyManagerGateway;
 
   private CharSequence mConstraintViolationSummary = null;
   private List<CustomConstraint> mCustomConstraints = new ArrayList<>();
@@ -100,6 +103,7 @@ public class DpcPreferenceHelper {
   public DpcPreferenceHelper(Context context, Preference preference, AttributeSet attrs) {
     mContext = context;
     mPreference = preference;
+    mDevicePolicyManagerGateway = new DevicePolicyManagerGatewayImpl(context);
 
     final TypedArray a = context.obtainStyledAttributes(attrs, R.styleable.DpcPreference);
 
@@ -250,17 +254,18 @@ public class DpcPreferenceHelper {
     return null;
   }
 
+  // Every preference of a screen checks its constraints at the same time, so these reads go
+  // through the gateway to be coalesced with the identical ones in flight (including the ones made
+  // by the gateway for other callers, like ShellCommand).
   private int getCurrentAdmin() {
-    final DevicePolicyManager dpm =
-        (DevicePolicyManager) mContext.getSystemService(Context.DEVICE_POLICY_SERVICE);
-    final String packageName = mContext.getPackageName();
+    final DevicePolicyManagerGateway gateway = mDevicePolicyManagerGateway;
 
-    if (dpm.isDeviceOwnerApp(packageName)) {
+    if (gateway.isDeviceOwnerApp()) {
       return ADMIN_DEVICE_OWNER;
     }
-    if (dpm.isProfileOwnerApp(packageName)) {
+    if (gateway.isProfileOwnerApp()) {
       Boolean orgOwned =
-          Util.SDK_INT >= VERSION_CODES.R && dpm.isOrganizationOwnedDeviceWithManagedProfile();
+          Util.SDK_INT >= VERSION_CODES.R && gateway.isOrganizationOwnedDeviceWithManagedProfile();
       if (orgOwned) {
         return ADMIN_ORG_OWNED_PROFILE_OWNER;
       } else {
@@ -278,7 +283,13 @@ public class DpcPreferenceHelper {
     final DevicePolicyManager dpm =
         (DevicePolicyManager) mContext.getSystemService(Context.DEVICE_POLICY_SERVICE);
     final String packageName = mContext.getPackageName();
-    return dpm.getDelegatedScopes(null, packageName);
+    // Made as a delegate (no admin), unlike DevicePolicyManagerGateway.getDelegatedScopes()
+    return DevicePolicyManagerGatewayImpl.coalesceRead(
+        DevicePolicyManagerGatewayImpl.readKey(
+            /* admin= */ null,
+            /* parentProfile= */ false,
+            "getDelegatedScopes(" + packageName + ")"),
+        () -> dpm.getDelegatedScopes(null, packageName));
   }
 
   private int getCurrentUser() {
@@ -16,23 +16,30 @@
 
 package com.afwsamples.testdpc.cosu;
 
-import android.annotation.TargetApi;
 import android.app.DownloadManager;
 import android.app.admin.DevicePolicyManager;
 import android.content.ComponentName;
 import android.content.Context;
+import android.location.LocationManager;
 import android.os.Build.VERSION_CODES;
 import android.os.Handler;
 import android.os.ParcelFileDescriptor;
+import android.os.UserManager;
 import android.util.Log;
 import android.util.Xml;
+import com.afwsamples.testdpc.DevicePolicyManagerGateway;
+import com.afwsamples.testdpc.DevicePolicyManagerGatewayImpl;
+import com.afwsamples.testdpc.PolicyTransaction;
 import com.afwsamples.testdpc.common.PackageInstallationUtils;
 import com.afwsamples.testdpc.common.Util;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.function.Consumer;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
@@ -119,57 +126,77 @@ import org.xmlpull.v1.XmlPullParserException;
     }
   }
 
+  /**
+   * Applies the policies of the config as a {@link PolicyTransaction}: if any of them fails, the
+   * ones already applied are rolled back, so the device is not left half-configured.
+   */
   public boolean applyPolicies(ComponentName admin) {
-    DevicePolicyManager dpm =
-        (DevicePolicyManager) mContext.getSystemService(Context.DEVICE_POLICY_SERVICE);
-
-    try {
-      dpm.setLockTaskPackages(admin, getKioskApps());
-    } catch (SecurityException e) {
-      Log.d(CosuUtils.TAG, "Exception when setting lock task packages", e);
-      return false;
-    }
+    DevicePolicyManagerGateway dpmGateway =
+        new DevicePolicyManagerGatewayImpl(
+            (DevicePolicyManager) mContext.getSystemService(Context.DEVICE_POLICY_SERVICE),
+            (UserManager) mContext.getSystemService(Context.USER_SERVICE),
+            mContext.getPackageManager(),
+            (LocationManager) mContext.getSystemService(Context.LOCATION_SERVICE),
+            admin);
+    PolicyTransaction transaction = new PolicyTransaction(mContext.getContentResolver());
+    DevicePolicyManagerGateway gateway = transaction.wrap(dpmGateway);
+    List<Exception> errors = new ArrayList<>();
+    Consumer<Void> onSuccess = (v) -> {};
+    Consumer<Exception> onError = errors::add;
+
+    gateway.setLockTaskPackages(getKioskApps(), onSuccess, onError);
 
     // hide apps
     for (String pkg : mHideApps) {
-      dpm.setApplicationHidden(admin, pkg, true);
+      gateway.setApplicationHidden(pkg, true, onSuccess, onError);
     }
 
     // enable system apps
     for (String pkg : mEnableSystemApps) {
-      try {
-        dpm.enableSystemApp(admin, pkg);
-      } catch (IllegalArgumentException e) {
-        Log.w(
-            CosuUtils.TAG,
-            "Failed to enable " + pkg + ". Operation is only allowed for system apps.");
-      }
+      gateway.enableSystemApp(
+          pkg,
+          onSuccess,
+          (e) ->
+              Log.w(
+                  CosuUtils.TAG,
+                  "Failed to enable " + pkg + ". Operation is only allowed for system apps."));
     }
 
     // set user restrictions
     for (String userRestriction : mUserRestrictions) {
-      dpm.addUserRestriction(admin, userRestriction);
+      gateway.setUserRestriction(userRestriction, true, onSuccess, onError);
     }
 
     for (GlobalSetting globalSetting : mGlobalSettings) {
-      dpm.setGlobalSetting(admin, globalSetting.key, globalSetting.value);
+      gateway.setGlobalSetting(globalSetting.key, globalSetting.value, onSuccess, onError);
     }
 
     if (Util.SDK_INT >= VERSION_CODES.M) {
-      disableKeyGuardAndStatusBar(dpm, admin);
+      // These fail when a password is set, which doesn't prevent the rest of the set up
+      Consumer<Exception> onWarning = (e) -> Log.w(CosuUtils.TAG, "Ignoring " + e);
+      gateway.setStatusBarDisabled(mDisableStatusBar, onSuccess, onWarning);
+      gateway.setKeyguardDisabled(mDisableKeyguard, onSuccess, onWarning);
     }
-    dpm.setScreenCaptureDisabled(admin, mDisableScreenCapture);
-    dpm.setCameraDisabled(admin, mDisableCamera);
+    gateway.setScreenCaptureDisabled(mDisableScreenCapture, onSuccess, onError);
+    gateway.setCameraDisabled(mDisableCamera, onSuccess, onError);
 
+    if (!errors.isEmpty()) {
+      for (Exception e : errors) {
+        Log.e(CosuUtils.TAG, "Exception when applying policies", e);
+      }
+      List<Exception> rollbackErrors = transaction.rollback();
+      Log.w(
+          CosuUtils.TAG,
+          "Rolled back policies ("
+              + rollbackErrors.size()
+              + " errors); not rolled back: "
+              + transaction.getIrreversibleChanges());
+      return false;
+    }
+    transaction.commit();
     return true;
   }
 
-  @TargetApi(VERSION_CODES.M)
-  private void disableKeyGuardAndStatusBar(DevicePolicyManager dpm, ComponentName admin) {
-    dpm.setStatusBarDisabled(admin, mDisableStatusBar);
-    dpm.setKeyguardDisabled(admin, mDisableKeyguard);
-  }
-
   public void initiateDownloadAndInstall(Handler handler) {
     for (DownloadAppInfo ai : mDownloadApps) {
       ai.downloadId = CosuUtils.startDownload(mDownloadManager, handler, ai.downloadLocation);
@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.feedback;
+
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.content.Context;
+import android.os.Build.VERSION_CODES;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+import androidx.core.app.NotificationCompat;
+import androidx.core.app.NotificationManagerCompat;
+import androidx.enterprise.feedback.ReceivedKeyedAppState;
+import com.afwsamples.testdpc.R;
+import com.afwsamples.testdpc.common.Util;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Shows keyed app states as notifications, one per (package, key), without flooding {@link
+ * NotificationManager} when apps send many states.
+ *
+ * <p>The first state of a key is shown right away. States of that key received in the next {@link
+ * #COALESCE_WINDOW_MS} are coalesced: only the last one is shown, when the window ends, with the
+ * number of states it replaced. On top of that, at most {@link #MAX_UPDATES_PER_SECOND}
+ * notifications are posted per second; the others wait for the next flush.
+ */
+public final class AppStatesNotifier {
+
+  private static final String CHANNEL_ID = "KeyedAppStates";
+  private static final String CHANNEL_NAME = "Keyed App States";
+
+  /** Notifications are told apart by their tag, the package and key of their state. */
+  private static final int NOTIFICATION_ID = 0;
+
+  @VisibleForTesting static final long COALESCE_WINDOW_MS = 2000;
+  @VisibleForTesting static final int MAX_UPDATES_PER_SECOND = 5;
+  private static final long RATE_WINDOW_MS = 1000;
+
+  private static AppStatesNotifier sInstance;
+
+  private final Context mContext;
+  private final NotificationManagerCompat mNotificationManager;
+  private final Handler mHandler;
+  private final LongSupplier mClock;
+  private final Runnable mFlush = this::flush;
+
+  /** Last time a notification was posted, by tag; only for tags posted in the last window. */
+  private final Map<String, Long> mLastPosted = new HashMap<>();
+
+  /** States waiting to be shown, by tag, oldest first. */
+  private final Map<String, PendingState> mPending = new LinkedHashMap<>();
+
+  /** Times of the notifications posted in the last {@link #RATE_WINDOW_MS}. */
+  private final ArrayDeque<Long> mRecentPosts = new ArrayDeque<>();
+
+  private boolean mChannelCreated;
+  private boolean mFlushScheduled;
+
+  @VisibleForTesting
+  AppStatesNotifier(
+      @NonNull Context context, @NonNull Handler handler, @NonNull LongSupplier clock) {
+    mContext = context;
+    mNotificationManager = NotificationManagerCompat.from(context);
+    mHandler = handler;
+    mClock = clock;
+  }
+
+  public static synchronized AppStatesNotifier getInstance(@NonNull Context context) {
+    if (sInstance == null) {
+      sInstance =
+          new AppStatesNotifier(
+              context.getApplicationContext(),
+              new Handler(Looper.getMainLooper()),
+              SystemClock::uptimeMillis);
+    }
+    return sInstance;
+  }
+
+  /** Forgets the instance returned by {@link #getInstance}. */
+  @VisibleForTesting
+  static synchronized void resetInstance() {
+    sInstance = null;
+  }
+
+  /** Shows a batch of states, in the order they were received. */
+  public synchronized void onStates(
+      @NonNull Collection<ReceivedKeyedAppState> states, boolean requestSync) {
+    createNotificationChannel();
+    long now = mClock.getAsLong();
+    for (ReceivedKeyedAppState state : states) {
+      String tag = getTag(state);
+      PendingState pending = mPending.get(tag);
+      if (pending != null) {
+        pending.coalesce(state, requestSync);
+      } else if (getNextPostTime(tag) <= now && tryAcquire(now)) {
+        post(tag, state, requestSync, /* coalesced= */ 0, now);
+      } else {
+        mPending.put(tag, new PendingState(state, requestSync));
+      }
+    }
+    scheduleFlush(now);
+  }
+
+  /** Posts the pending states that are due, as far as the rate limit allows. */
+  @VisibleForTesting
+  synchronized void flush() {
+    mFlushScheduled = false;
+    long now = mClock.getAsLong();
+    Iterator<Map.Entry<String, PendingState>> it = mPending.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<String, PendingState> entry = it.next();
+      if (getNextPostTime(entry.getKey()) > now) {
+        continue;
+      }
+      if (!tryAcquire(now)) {
+        break;
+      }
+      PendingState pending = entry.getValue();
+      post(entry.getKey(), pending.state, pending.requestSync, pending.coalesced, now);
+      it.remove();
+    }
+    // Forget the keys that can be posted right away again
+    Iterator<Map.Entry<String, Long>> posted = mLastPosted.entrySet().iterator();
+    while (posted.hasNext()) {
+      Map.Entry<String, Long> entry = posted.next();
+      if (now - entry.getValue() >= COALESCE_WINDOW_MS && !mPending.containsKey(entry.getKey())) {
+        posted.remove();
+      }
+    }
+    scheduleFlush(now);
+  }
+
+  @VisibleForTesting
+  synchronized int getPendingCount() {
+    return mPending.size();
+  }
+
+  private void scheduleFlush(long now) {
+    if (mFlushScheduled) {
+      return;
+    }
+    long next = Long.MAX_VALUE;
+    for (String tag : mPending.keySet()) {
+      next = Math.min(next, getNextPostTime(tag));
+    }
+    if (next == Long.MAX_VALUE) {
+      return;
+    }
+    if (mRecentPosts.size() >= MAX_UPDATES_PER_SECOND) {
+      next = Math.max(next, mRecentPosts.peekFirst() + RATE_WINDOW_MS);
+    }
+    mHandler.postDelayed(mFlush, Math.max(0, next - now));
+    mFlushScheduled = true;
+  }
+
+  private long getNextPostTime(String tag) {
+    Long lastPosted = mLastPosted.get(tag);
+    return lastPosted == null ? Long.MIN_VALUE : lastPosted + COALESCE_WINDOW_MS;
+  }
+
+  /** Takes one of the notifications allowed in the last second, if any is left. */
+  private boolean tryAcquire(long now) {
+    while (!mRecentPosts.isEmpty() && now - mRecentPosts.peekFirst() >= RATE_WINDOW_MS) {
+      mRecentPosts.removeFirst();
+    }
+    if (mRecentPosts.size() >= MAX_UPDATES_PER_SECOND) {
+      return false;
+    }
+    mRecentPosts.addLast(now);
+    return true;
+  }
+
+  private void post(
+      String tag, ReceivedKeyedAppState state, boolean requestSync, int coalesced, long now) {
+    StringBuilder text =
+        new StringBuilder()
+            .append(state.getTimestamp())
+            .append(' ')
+            .append(state.getData())
+            .append(" (")
+            .append(state.getMessage())
+            .append(')');
+    if (requestSync) {
+      text.append("\nSYNC REQUESTED");
+    }
+    if (coalesced > 0) {
+      text.append('\n').append(coalesced).append(" earlier updates not shown");
+    }
+    NotificationCompat.Builder notificationBuilder =
+        new NotificationCompat.Builder(mContext, CHANNEL_ID)
+            .setSmallIcon(R.drawable.arrow_down)
+            .setOnlyAlertOnce(true)
+            .setContentTitle(tag + " " + AppStatesStore.getSeverityName(state.getSeverity()))
+            .setContentText(text);
+    mNotificationManager.notify(tag, NOTIFICATION_ID, notificationBuilder.build());
+    mLastPosted.put(tag, now);
+  }
+
+  private void createNotificationChannel() {
+    if (mChannelCreated) {
+      return;
+    }
+    if (Util.SDK_INT >= VERSION_CODES.O) {
+      NotificationChannel channel =
+          new NotificationChannel(CHANNEL_ID, CHANNEL_NAME, NotificationManager.IMPORTANCE_DEFAULT);
+      NotificationManager notificationManager =
+          mContext.getSystemService(NotificationManager.class);
+      notificationManager.createNotificationChannel(channel);
+    }
+    mChannelCreated = true;
+  }
+
+  private static String getTag(ReceivedKeyedAppState state) {
+    return state.getPackageName() + ":" + state.getKey();
+  }
+
+  /** The last state of a key not shown yet, and how many states it replaced. */
+  private static final class PendingState {
+    ReceivedKeyedAppState state;
+    boolean requestSync;
+    int coalesced;
+
+    PendingState(ReceivedKeyedAppState state, boolean requestSync) {
+      this.state = state;
+      this.requestSync = requestSync;
+    }
+
+    void coalesce(ReceivedKeyedAppState newState, boolean newRequestSync) {
+      state = newState;
+      requestSync |= newRequestSync;
+      coalesced++;
+    }
+  }
+}
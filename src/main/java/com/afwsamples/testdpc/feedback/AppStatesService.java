@@ -15,40 +15,44 @@
  */
 package com.afwsamples.testdpc.feedback;
 
-import android.app.NotificationChannel;
-import android.app.NotificationManager;
-import android.os.Build.VERSION_CODES;
 import android.util.Log;
 import androidx.annotation.VisibleForTesting;
-import androidx.core.app.NotificationCompat;
-import androidx.core.app.NotificationManagerCompat;
 import androidx.enterprise.feedback.KeyedAppState;
 import androidx.enterprise.feedback.KeyedAppStatesService;
 import androidx.enterprise.feedback.ReceivedKeyedAppState;
 import androidx.preference.PreferenceManager;
 import com.afwsamples.testdpc.R;
-import com.afwsamples.testdpc.common.Util;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
- * Receive {@link KeyedAppState} instances and show them as a notification.
+ * Receive {@link KeyedAppState} instances, keep them in the {@link AppStatesStore} and show them as
+ * a notification through the {@link AppStatesNotifier}.
  *
  * <p>Also logs received keyed app states using the tag "KeyedAppStates".
  */
 public class AppStatesService extends KeyedAppStatesService {
 
-  private static final String CHANNEL_ID = "KeyedAppStates";
-  private static final String CHANNEL_NAME = "Keyed App States";
-
   @VisibleForTesting static final String TAG = "KeyedAppStates";
 
-  private int nextNotificationId = 0;
-  private Map<String, Integer> idMapping = new HashMap<>();
+  // Writes batches to the store off the main thread, in the order they were received
+  private final ExecutorService mExecutor;
+
+  public AppStatesService() {
+    this(Executors.newSingleThreadExecutor());
+  }
+
+  @VisibleForTesting
+  AppStatesService(ExecutorService executor) {
+    mExecutor = executor;
+  }
 
   @Override
   public void onReceive(Collection<ReceivedKeyedAppState> states, boolean requestSync) {
+    AppStatesStore store = AppStatesStore.getInstance(this);
+    mExecutor.execute(() -> store.addAll(states));
+
     boolean shouldNotify =
         PreferenceManager.getDefaultSharedPreferences(this)
             .getBoolean(getString(R.string.app_feedback_notifications), false);
@@ -57,15 +61,28 @@ public class AppStatesService extends KeyedAppStatesService {
       return;
     }
 
-    createNotificationChannel();
-
     for (ReceivedKeyedAppState state : states) {
-      showNotification(state, requestSync);
+      log(state, requestSync);
     }
+    AppStatesNotifier.getInstance(this).onStates(states, requestSync);
+  }
+
+  @Override
+  public void onDestroy() {
+    // Already queued batches are still written
+    mExecutor.shutdown();
+    super.onDestroy();
   }
 
-  private void showNotification(ReceivedKeyedAppState state, boolean requestSync) {
-    final String logMessage =
+  private static void log(ReceivedKeyedAppState state, boolean requestSync) {
+    int priority = state.getSeverity() == KeyedAppState.SEVERITY_ERROR ? Log.ERROR : Log.INFO;
+    // Chatty apps send many states, only build the message if it's logged
+    if (!Log.isLoggable(TAG, priority)) {
+      return;
+    }
+    Log.println(
+        priority,
+        TAG,
         state.getTimestamp()
             + " "
             + state.getPackageName()
@@ -76,50 +93,6 @@ public class AppStatesService extends KeyedAppStatesService {
             + " ("
             + state.getMessage()
             + ")"
-            + (requestSync ? " - SYNC REQUESTED" : "");
-
-    if (state.getSeverity() == KeyedAppState.SEVERITY_ERROR) {
-      Log.e(TAG, logMessage);
-    } else {
-      Log.i(TAG, logMessage);
-    }
-
-    final String severity =
-        (state.getSeverity() == KeyedAppState.SEVERITY_ERROR)
-            ? "ERROR"
-            : (state.getSeverity() == KeyedAppState.SEVERITY_INFO) ? "INFO" : "UNKNOWN";
-
-    NotificationCompat.Builder notificationBuilder =
-        new NotificationCompat.Builder(this, CHANNEL_ID)
-            .setSmallIcon(R.drawable.arrow_down)
-            .setContentTitle(state.getPackageName() + ":" + state.getKey() + " " + severity)
-            .setContentText(
-                state.getTimestamp()
-                    + " "
-                    + state.getData()
-                    + " ("
-                    + state.getMessage()
-                    + ")"
-                    + (requestSync ? "\nSYNC REQUESTED" : ""));
-    NotificationManagerCompat notificationManager = NotificationManagerCompat.from(this);
-    notificationManager.notify(getIdForState(state), notificationBuilder.build());
-  }
-
-  private void createNotificationChannel() {
-    if (Util.SDK_INT >= VERSION_CODES.O) {
-      NotificationChannel channel =
-          new NotificationChannel(CHANNEL_ID, CHANNEL_NAME, NotificationManager.IMPORTANCE_DEFAULT);
-      NotificationManager notificationManager = getSystemService(NotificationManager.class);
-      notificationManager.createNotificationChannel(channel);
-    }
-  }
-
-  private int getIdForState(ReceivedKeyedAppState state) {
-    String key = state.getPackageName() + ":" + state.getKey();
-
-    if (!idMapping.containsKey(key)) {
-      idMapping.put(key, nextNotificationId++);
-    }
-    return idMapping.get(key);
+            + (requestSync ? " - SYNC REQUESTED" : ""));
   }
 }
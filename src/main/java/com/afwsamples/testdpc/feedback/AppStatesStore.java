@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.feedback;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
+import androidx.enterprise.feedback.KeyedAppState;
+import androidx.enterprise.feedback.ReceivedKeyedAppState;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the keyed app states received by {@link AppStatesService}: the latest state of each
+ * (package, key), and a history of the last {@link #MAX_HISTORY_PER_KEY} states of each.
+ *
+ * <p>The latest states are in their own table, keyed by package and key, so listing them doesn't
+ * scan the history. A batch of states is added in one transaction.
+ */
+@WorkerThread
+public class AppStatesStore extends SQLiteOpenHelper {
+
+  private static final String TAG = "AppStatesStore";
+
+  private static final String DATABASE_NAME = "app_states.db";
+  private static final int DATABASE_VERSION = 1;
+
+  /** States kept in the history of each (package, key). */
+  @VisibleForTesting static final int MAX_HISTORY_PER_KEY = 50;
+
+  /** Severity meaning "any severity" in queries. */
+  public static final int ANY_SEVERITY = -1;
+
+  private static final String HISTORY_TABLE = "history";
+  private static final String LATEST_TABLE = "latest";
+
+  private static final String COLUMN_DEFINITIONS =
+      Columns.PACKAGE
+          + " TEXT NOT NULL,"
+          + Columns.KEY
+          + " TEXT NOT NULL,"
+          + Columns.SEVERITY
+          + " INTEGER NOT NULL,"
+          + Columns.MESSAGE
+          + " TEXT,"
+          + Columns.DATA
+          + " TEXT,"
+          + Columns.TIMESTAMP
+          + " INTEGER NOT NULL";
+  private static final String CREATE_TABLE_HISTORY =
+      "CREATE TABLE "
+          + HISTORY_TABLE
+          + " ("
+          + Columns._ID
+          + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+          + COLUMN_DEFINITIONS
+          + ");";
+  private static final String CREATE_INDEX_HISTORY_KEY =
+      "CREATE INDEX history_key ON "
+          + HISTORY_TABLE
+          + " ("
+          + Columns.PACKAGE
+          + ", "
+          + Columns.KEY
+          + ", "
+          + Columns._ID
+          + ");";
+  private static final String CREATE_INDEX_HISTORY_TIMESTAMP =
+      "CREATE INDEX history_timestamp ON "
+          + HISTORY_TABLE
+          + " ("
+          + Columns.TIMESTAMP
+          + ");";
+  private static final String CREATE_TABLE_LATEST =
+      "CREATE TABLE "
+          + LATEST_TABLE
+          + " ("
+          + COLUMN_DEFINITIONS
+          + ", PRIMARY KEY ("
+          + Columns.PACKAGE
+          + ", "
+          + Columns.KEY
+          + "));";
+  // Deletes the states of a (package, key) older than the last MAX_HISTORY_PER_KEY
+  private static final String TRIM_HISTORY_SQL =
+      "DELETE FROM "
+          + HISTORY_TABLE
+          + " WHERE "
+          + Columns.PACKAGE
+          + " = ? AND "
+          + Columns.KEY
+          + " = ? AND "
+          + Columns._ID
+          + " <= (SELECT "
+          + Columns._ID
+          + " FROM "
+          + HISTORY_TABLE
+          + " WHERE "
+          + Columns.PACKAGE
+          + " = ? AND "
+          + Columns.KEY
+          + " = ? ORDER BY "
+          + Columns._ID
+          + " DESC LIMIT 1 OFFSET "
+          + MAX_HISTORY_PER_KEY
+          + ")";
+
+  private static AppStatesStore sInstance;
+
+  @VisibleForTesting
+  AppStatesStore(@NonNull Context context, @Nullable String name) {
+    super(context, name, null, DATABASE_VERSION);
+  }
+
+  public static synchronized AppStatesStore getInstance(@NonNull Context context) {
+    if (sInstance == null) {
+      sInstance = new AppStatesStore(context.getApplicationContext(), DATABASE_NAME);
+    }
+    return sInstance;
+  }
+
+  /** Closes and forgets the instance returned by {@link #getInstance}. */
+  @VisibleForTesting
+  static synchronized void resetInstance() {
+    if (sInstance != null) {
+      sInstance.close();
+      sInstance = null;
+    }
+  }
+
+  @Override
+  public void onCreate(SQLiteDatabase db) {
+    db.execSQL(CREATE_TABLE_HISTORY);
+    db.execSQL(CREATE_INDEX_HISTORY_KEY);
+    db.execSQL(CREATE_INDEX_HISTORY_TIMESTAMP);
+    db.execSQL(CREATE_TABLE_LATEST);
+  }
+
+  @Override
+  public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {}
+
+  /** Adds a batch of states, in the order they were received. */
+  public void addAll(@NonNull Collection<ReceivedKeyedAppState> states) {
+    if (states.isEmpty()) {
+      return;
+    }
+    // Each (package, key) only needs trimming once per batch
+    Map<String, String[]> keys = new LinkedHashMap<>();
+    SQLiteDatabase db = getWritableDatabase();
+    db.beginTransaction();
+    try {
+      for (ReceivedKeyedAppState state : states) {
+        ContentValues values = toContentValues(state);
+        db.insert(HISTORY_TABLE, null, values);
+        db.insertWithOnConflict(LATEST_TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        keys.put(
+            state.getPackageName() + ':' + state.getKey(),
+            new String[] {state.getPackageName(), state.getKey()});
+      }
+      for (String[] key : keys.values()) {
+        db.execSQL(TRIM_HISTORY_SQL, new Object[] {key[0], key[1], key[0], key[1]});
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+    Log.d(TAG, "Added " + states.size() + " states of " + keys.size() + " keys");
+  }
+
+  /**
+   * Gets the latest state of each (package, key), newest first.
+   *
+   * @param packageName package of the states, or {@code null} for any package
+   * @param sinceMillis minimum timestamp of the states
+   * @param severity severity of the states, or {@link #ANY_SEVERITY}
+   */
+  @NonNull
+  public List<AppState> getLatest(@Nullable String packageName, long sinceMillis, int severity) {
+    return query(LATEST_TABLE, packageName, sinceMillis, severity);
+  }
+
+  /** Same as {@link #getLatest}, but for all the states kept in the history. */
+  @NonNull
+  public List<AppState> getHistory(@Nullable String packageName, long sinceMillis, int severity) {
+    return query(HISTORY_TABLE, packageName, sinceMillis, severity);
+  }
+
+  private List<AppState> query(
+      String table, @Nullable String packageName, long sinceMillis, int severity) {
+    StringBuilder selection = new StringBuilder(Columns.TIMESTAMP + " >= ?");
+    List<String> args = new ArrayList<>(3);
+    args.add(Long.toString(sinceMillis));
+    if (packageName != null) {
+      selection.append(" AND ").append(Columns.PACKAGE).append(" = ?");
+      args.add(packageName);
+    }
+    if (severity != ANY_SEVERITY) {
+      selection.append(" AND ").append(Columns.SEVERITY).append(" = ?");
+      args.add(Integer.toString(severity));
+    }
+    List<AppState> states = new ArrayList<>();
+    try (Cursor cursor =
+        getReadableDatabase()
+            .query(
+                table,
+                Columns.ALL,
+                selection.toString(),
+                args.toArray(new String[0]),
+                /* groupBy= */ null,
+                /* having= */ null,
+                Columns.TIMESTAMP + " DESC")) {
+      while (cursor.moveToNext()) {
+        states.add(
+            new AppState(
+                cursor.getString(0),
+                cursor.getString(1),
+                cursor.getInt(2),
+                cursor.getString(3),
+                cursor.getString(4),
+                cursor.getLong(5)));
+      }
+    }
+    return states;
+  }
+
+  private static ContentValues toContentValues(ReceivedKeyedAppState state) {
+    ContentValues values = new ContentValues();
+    values.put(Columns.PACKAGE, state.getPackageName());
+    values.put(Columns.KEY, state.getKey());
+    values.put(Columns.SEVERITY, state.getSeverity());
+    values.put(Columns.MESSAGE, state.getMessage());
+    values.put(Columns.DATA, state.getData());
+    values.put(Columns.TIMESTAMP, state.getTimestamp());
+    return values;
+  }
+
+  /** A stored keyed app state. */
+  public static final class AppState {
+    public final String packageName;
+    public final String key;
+
+    /** {@link KeyedAppState#SEVERITY_INFO} or {@link KeyedAppState#SEVERITY_ERROR}. */
+    public final int severity;
+
+    @Nullable public final String message;
+    @Nullable public final String data;
+    public final long timestamp;
+
+    AppState(
+        String packageName,
+        String key,
+        int severity,
+        @Nullable String message,
+        @Nullable String data,
+        long timestamp) {
+      this.packageName = packageName;
+      this.key = key;
+      this.severity = severity;
+      this.message = message;
+      this.data = data;
+      this.timestamp = timestamp;
+    }
+
+    @Override
+    public String toString() {
+      return timestamp
+          + " "
+          + packageName
+          + ":"
+          + key
+          + " "
+          + getSeverityName(severity)
+          + " "
+          + data
+          + " ("
+          + message
+          + ")";
+    }
+  }
+
+  /** Gets the name of a {@link KeyedAppState} severity, as shown to users. */
+  @NonNull
+  public static String getSeverityName(int severity) {
+    switch (severity) {
+      case KeyedAppState.SEVERITY_ERROR:
+        return "ERROR";
+      case KeyedAppState.SEVERITY_INFO:
+        return "INFO";
+      default:
+        return "UNKNOWN";
+    }
+  }
+
+  /**
+   * Parses a severity name of {@link #getSeverityName}, ignoring case.
+   *
+   * @throws IllegalArgumentException if it isn't INFO or ERROR
+   */
+  public static int parseSeverity(@NonNull String name) {
+    if ("info".equalsIgnoreCase(name)) {
+      return KeyedAppState.SEVERITY_INFO;
+    }
+    if ("error".equalsIgnoreCase(name)) {
+      return KeyedAppState.SEVERITY_ERROR;
+    }
+    throw new IllegalArgumentException("Invalid severity: " + name);
+  }
+
+  private static final class Columns {
+    private static final String _ID = "_id";
+    private static final String PACKAGE = "package";
+    private static final String KEY = "key";
+    private static final String SEVERITY = "severity";
+    private static final String MESSAGE = "message";
+    private static final String DATA = "data";
+    /** Time the state was set by the app, in milliseconds since the epoch. */
+    private static final String TIMESTAMP = "timestamp";
+
+    private static final String[] ALL = {PACKAGE, KEY, SEVERITY, MESSAGE, DATA, TIMESTAMP};
+  }
+}
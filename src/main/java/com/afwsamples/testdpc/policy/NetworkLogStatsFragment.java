@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy;
+
+import android.annotation.TargetApi;
+import android.app.ListFragment;
+import android.os.AsyncTask;
+import android.os.Build.VERSION_CODES;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
+import android.widget.Spinner;
+import android.widget.TextView;
+import com.afwsamples.testdpc.R;
+import com.afwsamples.testdpc.policy.networklogs.NetworkLogStats;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Shows the packages or domains with the most network events, from {@link NetworkLogStats}. */
+@TargetApi(VERSION_CODES.O)
+public class NetworkLogStatsFragment extends ListFragment
+    implements AdapterView.OnItemSelectedListener {
+
+  private static final String TAG = "NetworkLogStatsFragment";
+
+  private static final int TOP_COUNT = 50;
+  private static final int PORTS_SHOWN = 5;
+
+  private Spinner mDimensionSpinner;
+  private Spinner mSortSpinner;
+  private TextView mStatus;
+  private ArrayAdapter<NetworkLogStats.Counters> mAdapter;
+  private long mNowBucket;
+  /** Incremented for each query, so that stale results are dropped. */
+  private int mGeneration;
+
+  @Override
+  public View onCreateView(
+      final LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
+    View view = inflater.inflate(R.layout.network_log_stats, container, false);
+    mDimensionSpinner = view.findViewById(R.id.network_log_stats_dimension);
+    mDimensionSpinner.setOnItemSelectedListener(this);
+    mSortSpinner = view.findViewById(R.id.network_log_stats_sort);
+    mSortSpinner.setOnItemSelectedListener(this);
+    mStatus = view.findViewById(R.id.network_log_stats_status);
+
+    mAdapter =
+        new ArrayAdapter<NetworkLogStats.Counters>(
+            getActivity(), android.R.layout.simple_list_item_2, android.R.id.text1) {
+          @Override
+          public View getView(int position, View convertView, ViewGroup parent) {
+            View row = super.getView(position, convertView, parent);
+            NetworkLogStats.Counters counters = getItem(position);
+            ((TextView) row.findViewById(android.R.id.text1))
+                .setText(
+                    counters.key.isEmpty()
+                        ? getString(R.string.network_log_stats_unknown)
+                        : counters.key);
+            ((TextView) row.findViewById(android.R.id.text2))
+                .setText(
+                    counters.describe(PORTS_SHOWN)
+                        + " last24h="
+                        + counters.getRecentEvents(mNowBucket, 24));
+            return row;
+          }
+        };
+    setListAdapter(mAdapter);
+    return view;
+  }
+
+  @Override
+  public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+    loadAsync();
+  }
+
+  @Override
+  public void onNothingSelected(AdapterView<?> parent) {}
+
+  private void loadAsync() {
+    // See @array/network_log_stats_dimensions and @array/network_log_stats_sort_orders
+    final int dimension =
+        mDimensionSpinner.getSelectedItemPosition() == 1
+            ? NetworkLogStats.BY_DOMAIN
+            : NetworkLogStats.BY_PACKAGE;
+    final int sortBy = Math.max(0, mSortSpinner.getSelectedItemPosition());
+    final NetworkLogStats stats = NetworkLogStats.getInstance(getActivity());
+    final int generation = ++mGeneration;
+    new AsyncTask<Void, Void, List<NetworkLogStats.Counters>>() {
+      private int mKeyCount;
+
+      @Override
+      protected List<NetworkLogStats.Counters> doInBackground(Void... voids) {
+        try {
+          mKeyCount = stats.getKeyCount(dimension);
+          return stats.getTop(dimension, sortBy, TOP_COUNT);
+        } catch (IOException e) {
+          Log.e(TAG, "Error reading network log stats", e);
+          return null;
+        }
+      }
+
+      @Override
+      protected void onPostExecute(List<NetworkLogStats.Counters> top) {
+        if (!isAdded() || generation != mGeneration) {
+          return;
+        }
+        mAdapter.clear();
+        if (top == null) {
+          mStatus.setText(R.string.network_log_stats_failure);
+          return;
+        }
+        mNowBucket = NetworkLogStats.getBucket(System.currentTimeMillis());
+        mStatus.setText(getString(R.string.network_log_stats_summary, top.size(), mKeyCount));
+        mAdapter.addAll(new ArrayList<>(top));
+      }
+    }.execute();
+  }
+}
@@ -16,124 +16,278 @@
 
 package com.afwsamples.testdpc.policy;
 
-import static com.afwsamples.testdpc.CommonReceiverOperations.NETWORK_LOGS_FILE_PREFIX;
-
 import android.annotation.TargetApi;
-import android.app.ListFragment;
+import android.app.Fragment;
+import android.os.AsyncTask;
 import android.os.Build.VERSION_CODES;
 import android.os.Bundle;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.Log;
-import android.widget.ArrayAdapter;
-import android.widget.ListView;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.Button;
+import android.widget.EditText;
+import android.widget.TextView;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 import com.afwsamples.testdpc.R;
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
+import com.afwsamples.testdpc.policy.networklogs.NetworkLogPager;
+import com.afwsamples.testdpc.policy.networklogs.NetworkLogRecord;
+import com.afwsamples.testdpc.policy.networklogs.NetworkLogStore;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
-import java.util.regex.PatternSyntaxException;
+import java.util.Set;
 
-/** Display the last retrieved batch of NetworkEvents. */
+/**
+ * Displays retrieved batches of NetworkEvents, newest batch first.
+ *
+ * <p>Records are read from {@link NetworkLogStore} a page at a time on a background thread, as
+ * they are scrolled into view.
+ */
 @TargetApi(VERSION_CODES.O)
-public class NetworkLogsFragment extends ListFragment {
+public class NetworkLogsFragment extends Fragment {
 
   private static final String TAG = "NetworkLogsFragment";
 
-  private List<String> mLogs = new ArrayList<>();
-  private ArrayAdapter<String> mAdapter;
+  /** How long to wait for the user to stop typing before filtering. */
+  private static final long FILTER_DELAY_MS = 300;
+
+  private NetworkLogStore mStore;
+  private List<NetworkLogStore.Batch> mBatches = new ArrayList<>();
+  private int mBatchIndex = -1;
+  private NetworkLogPager mPager;
+  private final Set<Integer> mLoadingPages = new HashSet<>();
+  private final NetworkLogAdapter mAdapter = new NetworkLogAdapter();
+
+  private Button mPreviousButton;
+  private Button mNextButton;
+  private TextView mBatchLabel;
+  private EditText mFilter;
+  private TextView mStatus;
+
+  private final Runnable mApplyFilter = () -> openBatch(mBatchIndex);
 
   @Override
   public void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
-    mAdapter =
-        new ArrayAdapter<>(
-            getActivity(), android.R.layout.simple_list_item_1, android.R.id.text1, mLogs);
-    setListAdapter(mAdapter);
+    mStore = NetworkLogStore.getInstance(getActivity());
+  }
+
+  @Override
+  public View onCreateView(
+      LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
+    View view = inflater.inflate(R.layout.network_logs, container, false);
+
+    mPreviousButton = view.findViewById(R.id.previous_batch);
+    mPreviousButton.setOnClickListener(v -> openBatch(mBatchIndex - 1));
+    mNextButton = view.findViewById(R.id.next_batch);
+    mNextButton.setOnClickListener(v -> openBatch(mBatchIndex + 1));
+    mBatchLabel = view.findViewById(R.id.batch_label);
+    mStatus = view.findViewById(R.id.network_logs_status);
+    mFilter = view.findViewById(R.id.network_logs_filter);
+    mFilter.addTextChangedListener(
+        new TextWatcher() {
+          @Override
+          public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+
+          @Override
+          public void onTextChanged(CharSequence s, int start, int before, int count) {}
+
+          @Override
+          public void afterTextChanged(Editable s) {
+            mFilter.removeCallbacks(mApplyFilter);
+            mFilter.postDelayed(mApplyFilter, FILTER_DELAY_MS);
+          }
+        });
+
+    RecyclerView recyclerView = view.findViewById(R.id.network_logs_list);
+    recyclerView.setLayoutManager(new LinearLayoutManager(getActivity()));
+    recyclerView.setAdapter(mAdapter);
+    updateControls();
+    return view;
   }
 
   @Override
   public void onActivityCreated(Bundle savedInstanceState) {
     super.onActivityCreated(savedInstanceState);
-    mLogs = fetchEvents();
-    showEvents(mLogs);
+    loadBatchesAsync();
+  }
+
+  @Override
+  public void onDestroyView() {
+    mFilter.removeCallbacks(mApplyFilter);
+    super.onDestroyView();
+  }
+
+  private void loadBatchesAsync() {
+    mStatus.setText(R.string.network_logs_loading);
+    new AsyncTask<Void, Void, List<NetworkLogStore.Batch>>() {
+      @Override
+      protected List<NetworkLogStore.Batch> doInBackground(Void... voids) {
+        try {
+          return mStore.getBatches();
+        } catch (IOException e) {
+          Log.e(TAG, "Error reading network log batches", e);
+          return null;
+        }
+      }
+
+      @Override
+      protected void onPostExecute(List<NetworkLogStore.Batch> batches) {
+        if (!isAdded()) {
+          return;
+        }
+        if (batches == null) {
+          mStatus.setText(R.string.on_network_logs_available_failure);
+          return;
+        }
+        mBatches = batches;
+        if (batches.isEmpty()) {
+          updateControls();
+          mStatus.setText(R.string.network_logs_no_batches);
+          return;
+        }
+        openBatch(batches.size() - 1);
+      }
+    }.execute();
   }
 
-  private List<String> fetchEvents() {
-    File logsFile = findLastBatch();
-    if (logsFile == null) {
-      return Collections.emptyList();
+  /** Shows the batch at {@code index} in {@link #mBatches}, applying the current filter. */
+  private void openBatch(int index) {
+    if (index < 0 || index >= mBatches.size()) {
+      return;
     }
-    BufferedReader reader = null;
-    try {
-      long batchToken = determineBatchToken(logsFile.getName());
-      mAdapter.add(getContext().getString(R.string.on_network_logs_available_success, batchToken));
-      reader = new BufferedReader(new FileReader(logsFile));
-      ArrayList<String> events = new ArrayList<>();
-      String line;
-      while ((line = reader.readLine()) != null) {
-        Log.v(TAG, "found line: " + line);
-        events.add(line);
+    mBatchIndex = index;
+    mPager = null;
+    mLoadingPages.clear();
+    mAdapter.notifyDataSetChanged();
+    updateControls();
+    mStatus.setText(R.string.network_logs_loading);
+
+    final NetworkLogStore.Batch batch = mBatches.get(index);
+    final String filter = mFilter.getText().toString();
+    new AsyncTask<Void, Void, NetworkLogPager>() {
+      @Override
+      protected NetworkLogPager doInBackground(Void... voids) {
+        try {
+          return NetworkLogPager.create(mStore, batch, filter);
+        } catch (IOException e) {
+          Log.e(TAG, "Error reading network logs batch " + batch.token, e);
+          return null;
+        }
       }
-      return events;
-    } catch (NumberFormatException | IOException e) {
-      mAdapter.add(getString(R.string.on_network_logs_available_failure));
-    } finally {
-      try {
-        if (reader != null) {
-          reader.close();
+
+      @Override
+      protected void onPostExecute(NetworkLogPager pager) {
+        if (!isAdded() || mBatches.indexOf(batch) != mBatchIndex
+            || !filter.equals(mFilter.getText().toString())) {
+          // The user moved on while this was loading.
+          return;
         }
-      } catch (IOException e) {
-        // no-op
+        if (pager == null) {
+          mStatus.setText(
+              getString(R.string.on_network_logs_available_token_failure, batch.token));
+          return;
+        }
+        mPager = pager;
+        mAdapter.notifyDataSetChanged();
+        mStatus.setText(
+            pager.isFiltered()
+                ? getString(
+                    R.string.network_logs_filtered_event_count,
+                    pager.getCount(),
+                    batch.eventCount)
+                : getString(R.string.network_logs_event_count, batch.eventCount));
       }
+    }.execute();
+  }
+
+  private void loadPageAsync(final NetworkLogPager pager, final int page) {
+    if (!mLoadingPages.add(page)) {
+      return;
     }
-    return Collections.emptyList();
+    new AsyncTask<Void, Void, List<NetworkLogRecord>>() {
+      @Override
+      protected List<NetworkLogRecord> doInBackground(Void... voids) {
+        try {
+          return pager.loadPage(page);
+        } catch (IOException e) {
+          Log.e(TAG, "Error reading page " + page + " of network logs", e);
+          return null;
+        }
+      }
+
+      @Override
+      protected void onPostExecute(List<NetworkLogRecord> records) {
+        if (!isAdded() || pager != mPager) {
+          return;
+        }
+        mLoadingPages.remove(page);
+        if (records == null) {
+          mStatus.setText(
+              getString(
+                  R.string.on_network_logs_available_token_failure, pager.getBatch().token));
+          return;
+        }
+        mAdapter.notifyItemRangeChanged(page * NetworkLogPager.PAGE_SIZE, records.size());
+      }
+    }.execute();
   }
 
-  private void showEvents(List<String> logs) {
-    if (logs == null) {
-      Log.w(TAG, "logs == null, are you polling too early?");
-      mAdapter.add(getString(R.string.on_network_logs_available_failure));
+  private void updateControls() {
+    mPreviousButton.setEnabled(mBatchIndex > 0);
+    mNextButton.setEnabled(mBatchIndex >= 0 && mBatchIndex < mBatches.size() - 1);
+    if (mBatchIndex < 0) {
+      mBatchLabel.setText(null);
     } else {
-      Log.d(TAG, "Incoming logs size: " + logs.size());
-      mAdapter.addAll(mLogs);
-      ListView listView = NetworkLogsFragment.this.getListView();
-      listView.setSelection(listView.getCount() - 1);
+      mBatchLabel.setText(
+          getString(
+              R.string.network_logs_batch_label,
+              mBatches.get(mBatchIndex).token,
+              mBatchIndex + 1,
+              mBatches.size()));
     }
   }
 
-  private File findLastBatch() {
-    File path = getContext().getExternalFilesDir(null);
-    if (path == null) {
-      return null;
+  private class NetworkLogAdapter extends RecyclerView.Adapter<NetworkLogAdapter.ViewHolder> {
+
+    @Override
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+      View view =
+          LayoutInflater.from(parent.getContext())
+              .inflate(android.R.layout.simple_list_item_1, parent, false);
+      return new ViewHolder(view);
     }
-    File[] networkLogsFiles =
-        path.listFiles((File file, String s) -> s.startsWith(NETWORK_LOGS_FILE_PREFIX));
-    if (networkLogsFiles == null || networkLogsFiles.length == 0) {
-      return null;
+
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position) {
+      NetworkLogPager pager = mPager;
+      int page = position / NetworkLogPager.PAGE_SIZE;
+      List<NetworkLogRecord> records = pager.getLoadedPage(page);
+      if (records == null) {
+        holder.text.setText(R.string.network_logs_loading);
+        loadPageAsync(pager, page);
+      } else {
+        holder.text.setText(records.get(position % NetworkLogPager.PAGE_SIZE).toString());
+      }
     }
-    // Get the most recent batch. Batches are sorted by the timestamp they were last modified
-    // in, also corresponding to the last value in their file names.
-    return Collections.max(
-        // Can't use Comparator.comparing(): requires default interface methods (min_sdk >= 24).
-        Arrays.asList(networkLogsFiles),
-        (f1, f2) -> Long.signum(f1.lastModified() - f2.lastModified()));
-  }
 
-  private long determineBatchToken(String fileName) throws NumberFormatException {
-    // Name should be "network_logs_X_Y.txt", where X is the batch token
-    String[] fileNameArr = fileName.split("_");
-    if (fileNameArr.length <= 2) {
-      throw new NumberFormatException("Failed parsing the batch from file: " + fileName);
+    @Override
+    public int getItemCount() {
+      return mPager == null ? 0 : mPager.getCount();
     }
-    long batchToken;
-    try {
-      batchToken = Long.parseLong(fileNameArr[2]);
-    } catch (PatternSyntaxException e) {
-      throw new NumberFormatException("Failed parsing the batch from file: " + fileName);
+
+    class ViewHolder extends RecyclerView.ViewHolder {
+      final TextView text;
+
+      ViewHolder(View itemView) {
+        super(itemView);
+        text = itemView.findViewById(android.R.id.text1);
+      }
     }
-    return batchToken;
   }
 }
@@ -348,8 +348,10 @@ public class PolicyManagementFragment extends BaseSearchablePolicyPreferenceFrag
   private static final String EPHEMERAL_USER_KEY = "ephemeral_user";
   private static final String REQUEST_BUGREPORT_KEY = "request_bugreport";
   private static final String REQUEST_NETWORK_LOGS = "request_network_logs";
+  private static final String NETWORK_LOG_STATS = "network_log_stats";
   private static final String REQUEST_SECURITY_LOGS = "request_security_logs";
   private static final String REQUEST_PRE_REBOOT_SECURITY_LOGS = "request_pre_reboot_security_logs";
+  private static final String VIEW_ARCHIVED_SECURITY_LOGS = "view_archived_security_logs";
   private static final String RESET_PASSWORD_KEY = "reset_password";
   private static final String LOCK_NOW_KEY = "lock_now";
   private static final String SET_ACCESSIBILITY_SERVICES_KEY = "set_accessibility_services";
@@ -685,12 +687,14 @@ public class PolicyManagementFragment extends BaseSearchablePolicyPreferenceFrag
         (DpcPreference) findPreference(REQUEST_PRE_REBOOT_SECURITY_LOGS);
     mRequestPreRebootSecurityLogsPreference.setOnPreferenceClickListener(this);
     mRequestPreRebootSecurityLogsPreference.setCustomConstraint(securityLoggingChecker);
+    findPreference(VIEW_ARCHIVED_SECURITY_LOGS).setOnPreferenceClickListener(this);
     mEnableNetworkLoggingPreference = (DpcSwitchPreference) findPreference(ENABLE_NETWORK_LOGGING);
     mEnableNetworkLoggingPreference.setOnPreferenceChangeListener(this);
     mEnableNetworkLoggingPreference.addCustomConstraint(
         this::validateDeviceOwnerOrDelegationNetworkLoggingBeforeS);
     mRequestNetworkLogsPreference = (DpcPreference) findPreference(REQUEST_NETWORK_LOGS);
     mRequestNetworkLogsPreference.setOnPreferenceClickListener(this);
+    findPreference(NETWORK_LOG_STATS).setOnPreferenceClickListener(this);
     final CustomConstraint networkLoggingChecker =
         () -> isNetworkLoggingEnabled() ? NO_CUSTOM_CONSTRAINT : R.string.requires_network_logs;
     mRequestNetworkLogsPreference.setCustomConstraint(networkLoggingChecker);
@@ -1065,12 +1069,18 @@ public class PolicyManagementFragment extends BaseSearchablePolicyPreferenceFrag
     } else if (REQUEST_NETWORK_LOGS.equals(key)) {
       showFragment(new NetworkLogsFragment());
       return true;
+    } else if (NETWORK_LOG_STATS.equals(key)) {
+      showFragment(new NetworkLogStatsFragment());
+      return true;
     } else if (REQUEST_SECURITY_LOGS.equals(key)) {
       showFragment(SecurityLogsFragment.newInstance(false /* preReboot */));
       return true;
     } else if (REQUEST_PRE_REBOOT_SECURITY_LOGS.equals(key)) {
       showFragment(SecurityLogsFragment.newInstance(true /* preReboot */));
       return true;
+    } else if (VIEW_ARCHIVED_SECURITY_LOGS.equals(key)) {
+      showFragment(SecurityLogsFragment.newArchivedInstance());
+      return true;
     } else if (SET_ACCESSIBILITY_SERVICES_KEY.equals(key)) { // Avoid starting the same task twice.
       if (mGetAccessibilityServicesTask != null && !mGetAccessibilityServicesTask.isCancelled()) {
         mGetAccessibilityServicesTask.cancel(true);
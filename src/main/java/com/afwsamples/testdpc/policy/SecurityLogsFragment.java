@@ -17,40 +17,89 @@
 package com.afwsamples.testdpc.policy;
 
 import android.annotation.TargetApi;
-import android.app.ListFragment;
+import android.app.Fragment;
 import android.app.admin.DevicePolicyManager;
-import android.app.admin.SecurityLog;
 import android.app.admin.SecurityLog.SecurityEvent;
 import android.content.ComponentName;
 import android.content.Context;
+import android.os.AsyncTask;
 import android.os.Build.VERSION_CODES;
 import android.os.Bundle;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
-import android.widget.ListView;
+import android.widget.EditText;
+import android.widget.Spinner;
+import android.widget.TextView;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 import com.afwsamples.testdpc.DeviceAdminReceiver;
 import com.afwsamples.testdpc.R;
 import com.afwsamples.testdpc.common.ReflectionUtil;
 import com.afwsamples.testdpc.common.ReflectionUtil.ReflectionIsTemporaryException;
 import com.afwsamples.testdpc.common.Util;
+import com.afwsamples.testdpc.policy.securitylogs.SecurityEventFormatter;
+import com.afwsamples.testdpc.policy.securitylogs.SecurityLogArchive;
+import com.afwsamples.testdpc.policy.securitylogs.SecurityLogFilter;
+import com.afwsamples.testdpc.policy.securitylogs.SecurityLogRecord;
+import java.io.IOException;
+import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * Shows retrieved security logs.
+ *
+ * <p>Events are kept as {@link SecurityLogRecord SecurityLogRecords} and only formatted when they
+ * are bound to a row. Retrieving and filtering them happens on a background thread. Retrieved
+ * events are also added to {@link SecurityLogArchive}, which can be shown instead.
+ */
 @TargetApi(VERSION_CODES.N)
-public class SecurityLogsFragment extends ListFragment {
+public class SecurityLogsFragment extends Fragment {
   private static final String TAG = "ProcessLogsFragment";
 
   private static final String PRE_REBOOT_KEY = "pre-reboot";
+  private static final String ARCHIVED_KEY = "archived";
+
+  /** Hours covered by each entry of {@code R.array.security_logs_time_windows}, 0 for all. */
+  private static final int[] TIME_WINDOWS_HOURS = {0, 1, 24, 24 * 7};
+
+  /** How long to wait for the user to stop typing before filtering. */
+  private static final long FILTER_DELAY_MS = 300;
 
-  private final ArrayList<String> mLogs = new ArrayList<>();
-  private ArrayAdapter<String> mAdapter;
+  /** Retrieved events, or {@code null} until they have been retrieved. */
+  private List<SecurityLogRecord> mEvents;
+  /** Positions in {@link #mEvents} of the events shown. */
+  private int[] mShown = new int[0];
+  /** Incremented for each filter run, so that stale results are dropped. */
+  private int mFilterGeneration;
+  private final SecurityEventAdapter mAdapter = new SecurityEventAdapter();
+  private DateFormat mDateFormat;
+  private String mRetrievedMessage;
 
   private DevicePolicyManager mDevicePolicyManager;
   private ComponentName mAdminName;
   private boolean mPreReboot;
+  private boolean mArchived;
+
+  private int[] mTagChoices;
+  private Spinner mTagSpinner;
+  private Spinner mTimeWindowSpinner;
+  private EditText mFilter;
+  private TextView mStatus;
+  private RecyclerView mRecyclerView;
+
+  private final Runnable mApplyFilter = this::applyFilterAsync;
 
   public static SecurityLogsFragment newInstance(boolean preReboot) {
     final SecurityLogsFragment fragment = new SecurityLogsFragment();
@@ -60,29 +109,151 @@ public class SecurityLogsFragment extends ListFragment {
     return fragment;
   }
 
+  /** Creates a fragment showing the events in {@link SecurityLogArchive}. */
+  public static SecurityLogsFragment newArchivedInstance() {
+    final SecurityLogsFragment fragment = new SecurityLogsFragment();
+    final Bundle args = new Bundle();
+    args.putBoolean(ARCHIVED_KEY, true);
+    fragment.setArguments(args);
+    return fragment;
+  }
+
   @Override
+  @SuppressWarnings("SimpleDateFormat")
   public void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
     mAdminName = DeviceAdminReceiver.getComponentName(getActivity());
     mDevicePolicyManager =
         (DevicePolicyManager) getActivity().getSystemService(Context.DEVICE_POLICY_SERVICE);
-    mAdapter =
-        new ArrayAdapter<>(
-            getActivity(), android.R.layout.simple_list_item_1, android.R.id.text1, mLogs);
     mPreReboot = getArguments().getBoolean(PRE_REBOOT_KEY);
-    setListAdapter(mAdapter);
+    mArchived = getArguments().getBoolean(ARCHIVED_KEY);
+    mDateFormat = new SimpleDateFormat("MM-dd HH:mm:ss.SSS");
+  }
+
+  @Override
+  public View onCreateView(
+      LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
+    View view = inflater.inflate(R.layout.security_logs, container, false);
+
+    AdapterView.OnItemSelectedListener onFilterSelected =
+        new AdapterView.OnItemSelectedListener() {
+          @Override
+          public void onItemSelected(AdapterView<?> parent, View v, int position, long id) {
+            applyFilterAsync();
+          }
+
+          @Override
+          public void onNothingSelected(AdapterView<?> parent) {}
+        };
+    mTagSpinner = view.findViewById(R.id.security_logs_tag);
+    mTagSpinner.setAdapter(createTagAdapter());
+    mTagSpinner.setOnItemSelectedListener(onFilterSelected);
+    mTimeWindowSpinner = view.findViewById(R.id.security_logs_time_window);
+    mTimeWindowSpinner.setOnItemSelectedListener(onFilterSelected);
+
+    mFilter = view.findViewById(R.id.security_logs_filter);
+    mFilter.addTextChangedListener(
+        new TextWatcher() {
+          @Override
+          public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+
+          @Override
+          public void onTextChanged(CharSequence s, int start, int before, int count) {}
+
+          @Override
+          public void afterTextChanged(Editable s) {
+            mFilter.removeCallbacks(mApplyFilter);
+            mFilter.postDelayed(mApplyFilter, FILTER_DELAY_MS);
+          }
+        });
+
+    mStatus = view.findViewById(R.id.security_logs_status);
+    mRecyclerView = view.findViewById(R.id.security_logs_list);
+    mRecyclerView.setLayoutManager(new LinearLayoutManager(getActivity()));
+    mRecyclerView.setAdapter(mAdapter);
+    return view;
   }
 
   @Override
   public void onActivityCreated(Bundle savedInstanceState) {
     super.onActivityCreated(savedInstanceState);
-    mAdapter.add(getString(R.string.security_logs_retrieved_message, new Date().toString()));
-    try {
-      processEvents(getLogs());
-    } catch (SecurityException e) {
-      Log.e(TAG, "Exception thrown when trying to retrieve security logs", e);
-      mAdapter.add(getString(R.string.exception_retrieving_security_logs));
+    mRetrievedMessage =
+        mArchived
+            ? getString(R.string.security_logs_archived_message)
+            : getString(R.string.security_logs_retrieved_message, new Date().toString());
+    mStatus.setText(R.string.security_logs_loading);
+    final SecurityLogArchive archive = SecurityLogArchive.getInstance(getActivity());
+    new AsyncTask<Void, Void, List<SecurityLogRecord>>() {
+      private SecurityException mException;
+
+      @Override
+      protected List<SecurityLogRecord> doInBackground(Void... voids) {
+        if (mArchived) {
+          try {
+            return archive.readAll();
+          } catch (IOException e) {
+            Log.e(TAG, "Error reading archived security logs", e);
+            return null;
+          }
+        }
+        List<SecurityEvent> logs;
+        try {
+          logs = getLogs();
+        } catch (SecurityException e) {
+          mException = e;
+          return null;
+        }
+        if (logs == null) {
+          return null;
+        }
+        List<SecurityLogRecord> records = SecurityLogRecord.from(logs);
+        try {
+          archive.ingest(records);
+        } catch (IOException e) {
+          Log.e(TAG, "Error archiving security logs", e);
+        }
+        return records;
+      }
+
+      @Override
+      protected void onPostExecute(List<SecurityLogRecord> logs) {
+        if (!isAdded()) {
+          return;
+        }
+        if (mException != null) {
+          Log.e(TAG, "Exception thrown when trying to retrieve security logs", mException);
+          mStatus.setText(getString(R.string.exception_retrieving_security_logs));
+          return;
+        }
+        processEvents(logs);
+      }
+    }.execute();
+  }
+
+  @Override
+  public void onDestroyView() {
+    mFilter.removeCallbacks(mApplyFilter);
+    super.onDestroyView();
+  }
+
+  private ArrayAdapter<String> createTagAdapter() {
+    List<Integer> tags = new ArrayList<>();
+    for (int tag : SecurityEventFormatter.getKnownTags()) {
+      tags.add(tag);
+    }
+    Collections.sort(tags, Comparator.comparing(SecurityEventFormatter::getTagName));
+    List<String> labels = new ArrayList<>(tags.size() + 1);
+    labels.add(getString(R.string.security_logs_any_tag));
+    mTagChoices = new int[tags.size() + 1];
+    mTagChoices[0] = SecurityLogFilter.ANY_TAG;
+    for (int i = 0; i < tags.size(); i++) {
+      labels.add(SecurityEventFormatter.getTagName(tags.get(i)));
+      mTagChoices[i + 1] = tags.get(i);
     }
+    ArrayAdapter<String> adapter =
+        new ArrayAdapter<>(getActivity(), android.R.layout.simple_spinner_item, labels);
+    adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+    return adapter;
   }
 
   private boolean hasSecurityLoggingDelegation() {
@@ -113,158 +284,96 @@ public class SecurityLogsFragment extends ListFragment {
         : mDevicePolicyManager.retrieveSecurityLogs(name);
   }
 
-  @SuppressWarnings("SimpleDateFormat")
-  private void processEvents(List<SecurityEvent> logs) {
+  private void processEvents(List<SecurityLogRecord> logs) {
+    if (logs == null && mArchived) {
+      mStatus.setText(R.string.failed_to_read_archived_security_logs);
+      return;
+    }
     if (logs == null) {
       Log.w(TAG, "logs == null, are you polling too early?");
-      final String message =
+      mStatus.setText(
           getString(
               mPreReboot
                   ? R.string.failed_to_retrieve_pre_reboot_security_logs
-                  : R.string.failed_to_retrieve_security_logs);
-      mAdapter.add(message);
-    } else {
-      SimpleDateFormat formatter = new SimpleDateFormat("MM-dd HH:mm:ss.SSS");
-      Log.d(TAG, "Incoming logs size: " + logs.size());
-      for (SecurityEvent event : logs) {
-        StringBuilder sb = new StringBuilder();
-        if (Util.SDK_INT >= VERSION_CODES.P) {
-          sb.append(getEventId(event) + ": ");
-        }
-        sb.append(getStringEventTagFromId(event.getTag()));
-        sb.append(" (")
-            .append(formatter.format(new Date(TimeUnit.NANOSECONDS.toMillis(event.getTimeNanos()))))
-            .append("): ");
-        printData(sb, event.getData());
-        mAdapter.add(sb.toString());
-      }
-      ListView listView = SecurityLogsFragment.this.getListView();
-      listView.setSelection(listView.getCount() - 1);
+                  : R.string.failed_to_retrieve_security_logs));
+      return;
     }
+    Log.d(TAG, "Incoming logs size: " + logs.size());
+    mEvents = logs;
+    applyFilterAsync();
   }
 
-  @TargetApi(VERSION_CODES.P)
-  private long getEventId(SecurityEvent event) {
-    return event.getId();
+  private void applyFilterAsync() {
+    if (mEvents == null) {
+      return;
+    }
+    int hours = TIME_WINDOWS_HOURS[Math.max(0, mTimeWindowSpinner.getSelectedItemPosition())];
+    long sinceNanos =
+        hours == 0
+            ? 0
+            : TimeUnit.MILLISECONDS.toNanos(
+                System.currentTimeMillis() - TimeUnit.HOURS.toMillis(hours));
+    final SecurityLogFilter filter =
+        new SecurityLogFilter(
+            mTagChoices[Math.max(0, mTagSpinner.getSelectedItemPosition())],
+            sinceNanos,
+            mFilter.getText().toString());
+    final List<SecurityLogRecord> events = mEvents;
+    final int generation = ++mFilterGeneration;
+    new AsyncTask<Void, Void, int[]>() {
+      @Override
+      protected int[] doInBackground(Void... voids) {
+        return filter.apply(events);
+      }
+
+      @Override
+      protected void onPostExecute(int[] shown) {
+        if (!isAdded() || generation != mFilterGeneration) {
+          return;
+        }
+        mShown = shown;
+        mAdapter.notifyDataSetChanged();
+        String count =
+            filter.isEmpty()
+                ? getString(R.string.security_logs_event_count, events.size())
+                : getString(
+                    R.string.security_logs_filtered_event_count, shown.length, events.size());
+        mStatus.setText(mRetrievedMessage + "\n" + count);
+        if (shown.length > 0) {
+          mRecyclerView.scrollToPosition(shown.length - 1);
+        }
+      }
+    }.execute();
   }
 
-  private String getStringEventTagFromId(int eventId) {
-    final String eventTag;
-    switch (eventId) {
-      case SecurityLog.TAG_ADB_SHELL_INTERACTIVE:
-        eventTag = "ADB_SHELL_INTERACTIVE";
-        break;
-      case SecurityLog.TAG_ADB_SHELL_CMD:
-        eventTag = "ADB_SHELL_CMD";
-        break;
-      case SecurityLog.TAG_SYNC_RECV_FILE:
-        eventTag = "SYNC_RECV_FILE";
-        break;
-      case SecurityLog.TAG_SYNC_SEND_FILE:
-        eventTag = "SYNC_SEND_FILE";
-        break;
-      case SecurityLog.TAG_APP_PROCESS_START:
-        eventTag = "APP_PROCESS_START";
-        break;
-      case SecurityLog.TAG_KEYGUARD_DISMISSED:
-        eventTag = "KEYGUARD_DISMISSED";
-        break;
-      case SecurityLog.TAG_KEYGUARD_DISMISS_AUTH_ATTEMPT:
-        eventTag = "KEYGUARD_DISMISS_AUTH_ATTEMPT";
-        break;
-      case SecurityLog.TAG_KEYGUARD_SECURED:
-        eventTag = "KEYGUARD_SECURED";
-        break;
-      case SecurityLog.TAG_OS_STARTUP:
-        eventTag = "OS_STARTUP";
-        break;
-      case SecurityLog.TAG_OS_SHUTDOWN:
-        eventTag = "OS_SHUTDOWN";
-        break;
-      case SecurityLog.TAG_LOGGING_STARTED:
-        eventTag = "LOGGING_STARTED";
-        break;
-      case SecurityLog.TAG_LOGGING_STOPPED:
-        eventTag = "LOGGING_STOPPED";
-        break;
-      case SecurityLog.TAG_MEDIA_MOUNT:
-        eventTag = "MEDIA_MOUNT";
-        break;
-      case SecurityLog.TAG_MEDIA_UNMOUNT:
-        eventTag = "MEDIA_UNMOUNT";
-        break;
-      case SecurityLog.TAG_LOG_BUFFER_SIZE_CRITICAL:
-        eventTag = "LOG_BUFFER_SIZE_CRITICAL";
-        break;
-      case SecurityLog.TAG_PASSWORD_EXPIRATION_SET:
-        eventTag = "PASSWORD_EXPIRATION_SET";
-        break;
-      case SecurityLog.TAG_PASSWORD_COMPLEXITY_SET:
-        eventTag = "PASSWORD_COMPLEXITY_SET";
-        break;
-      case SecurityLog.TAG_PASSWORD_HISTORY_LENGTH_SET:
-        eventTag = "PASSWORD_HISTORY_LENGTH_SET";
-        break;
-      case SecurityLog.TAG_MAX_SCREEN_LOCK_TIMEOUT_SET:
-        eventTag = "MAX_SCREEN_LOCK_TIMEOUT_SET";
-        break;
-      case SecurityLog.TAG_MAX_PASSWORD_ATTEMPTS_SET:
-        eventTag = "MAX_PASSWORD_ATTEMPTS_SET";
-        break;
-      case SecurityLog.TAG_KEYGUARD_DISABLED_FEATURES_SET:
-        eventTag = "KEYGUARD_DISABLED_FEATURES_SET";
-        break;
-      case SecurityLog.TAG_REMOTE_LOCK:
-        eventTag = "REMOTE_LOCK";
-        break;
-      case SecurityLog.TAG_WIPE_FAILURE:
-        eventTag = "WIPE_FAILURE";
-        break;
-      case SecurityLog.TAG_KEY_GENERATED:
-        eventTag = "KEY_GENERATED";
-        break;
-      case SecurityLog.TAG_KEY_IMPORT:
-        eventTag = "KEY_IMPORT";
-        break;
-      case SecurityLog.TAG_KEY_DESTRUCTION:
-        eventTag = "KEY_DESTRUCTION";
-        break;
-      case SecurityLog.TAG_USER_RESTRICTION_ADDED:
-        eventTag = "USER_RESTRICTION_ADDED";
-        break;
-      case SecurityLog.TAG_USER_RESTRICTION_REMOVED:
-        eventTag = "USER_RESTRICTION_REMOVED";
-        break;
-      case SecurityLog.TAG_CERT_AUTHORITY_INSTALLED:
-        eventTag = "CERT_AUTHORITY_INSTALLED";
-        break;
-      case SecurityLog.TAG_CERT_AUTHORITY_REMOVED:
-        eventTag = "CERT_AUTHORITY_REMOVED";
-        break;
-      case SecurityLog.TAG_CRYPTO_SELF_TEST_COMPLETED:
-        eventTag = "CRYPTO_SELF_TEST_COMPLETED";
-        break;
-      case SecurityLog.TAG_KEY_INTEGRITY_VIOLATION:
-        eventTag = "KEY_INTEGRITY_VIOLATION";
-        break;
-      case SecurityLog.TAG_CERT_VALIDATION_FAILURE:
-        eventTag = "CERT_VALIDATION_FAILURE";
-        break;
-      default:
-        eventTag = "UNKNOWN(" + eventId + ")";
+  private class SecurityEventAdapter
+      extends RecyclerView.Adapter<SecurityEventAdapter.ViewHolder> {
+
+    @Override
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+      View view =
+          LayoutInflater.from(parent.getContext())
+              .inflate(android.R.layout.simple_list_item_1, parent, false);
+      return new ViewHolder(view);
     }
-    return eventTag;
-  }
 
-  private void printData(StringBuilder sb, Object data) {
-    if (data instanceof Integer
-        || data instanceof Long
-        || data instanceof Float
-        || data instanceof String) {
-      sb.append(data.toString()).append(" ");
-    } else if (data instanceof Object[]) {
-      for (Object item : (Object[]) data) {
-        printData(sb, item);
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position) {
+      SecurityLogRecord record = mEvents.get(mShown[position]);
+      holder.text.setText(SecurityEventFormatter.format(record, mDateFormat));
+    }
+
+    @Override
+    public int getItemCount() {
+      return mShown.length;
+    }
+
+    class ViewHolder extends RecyclerView.ViewHolder {
+      final TextView text;
+
+      ViewHolder(View itemView) {
+        super(itemView);
+        text = itemView.findViewById(android.R.id.text1);
       }
     }
   }
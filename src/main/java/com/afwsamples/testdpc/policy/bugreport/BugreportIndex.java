@@ -0,0 +1,516 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy.bugreport;
+
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Index of a bugreport zip: its entries, and the sections of its main text file, such as {@code
+ * DUMPSYS}, {@code SYSTEM LOG} or the dump of a single service, with their offsets.
+ *
+ * <p>The index is built once, by scanning the main text file, and saved next to the bugreport, so
+ * that a section can be read without going through the whole text file again: {@link
+ * #copySection} skips straight to it. Skipping is a seek when the main file is stored, and only
+ * inflates without decoding when it's compressed; either way, only the section is decoded and
+ * written out.
+ */
+@WorkerThread
+public final class BugreportIndex {
+
+  private static final String TAG = "BugreportIndex";
+
+  @VisibleForTesting static final String INDEX_SUFFIX = ".idx";
+
+  /** Entry of bugreport zips holding the name of the main text file. */
+  private static final String MAIN_ENTRY_NAME_ENTRY = "main_entry.txt";
+
+  private static final int MAGIC = 0x42524958; // "BRIX"
+  private static final int VERSION = 1;
+
+  // Headers of the sections of the main text file, such as "------ SYSTEM LOG (logcat) ------"
+  private static final String SECTION_PREFIX = "------ ";
+  private static final String SECTION_SUFFIX = " ------";
+  private static final String DURATION_MARKER = " was the duration of '";
+  // ...and of the services within DUMPSYS, such as "DUMP OF SERVICE CRITICAL activity:"
+  private static final String SERVICE_PREFIX = "DUMP OF SERVICE ";
+  private static final String[] SERVICE_PRIORITIES = {"CRITICAL ", "HIGH ", "NORMAL "};
+  @VisibleForTesting static final String SERVICE_SECTION_PREFIX = "dumpsys ";
+
+  /** Longest line checked for a section header. */
+  private static final int MAX_HEADER_LENGTH = 512;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final long mBugreportLength;
+  private final long mBugreportLastModified;
+  @Nullable private final String mMainEntry;
+  private final List<Entry> mEntries;
+  private final List<Section> mSections;
+
+  private BugreportIndex(
+      long bugreportLength,
+      long bugreportLastModified,
+      @Nullable String mainEntry,
+      List<Entry> entries,
+      List<Section> sections) {
+    mBugreportLength = bugreportLength;
+    mBugreportLastModified = bugreportLastModified;
+    mMainEntry = mainEntry;
+    mEntries = Collections.unmodifiableList(entries);
+    mSections = Collections.unmodifiableList(sections);
+  }
+
+  /**
+   * Gets the index of {@code bugreport}, building and saving it if it's missing or older than the
+   * bugreport.
+   */
+  @NonNull
+  public static BugreportIndex getOrBuild(@NonNull File bugreport) throws IOException {
+    File indexFile = getIndexFile(bugreport);
+    if (indexFile.exists()) {
+      try {
+        BugreportIndex index = load(indexFile);
+        if (index.isCurrent(bugreport)) {
+          return index;
+        }
+        Log.i(TAG, "Rebuilding stale index of " + bugreport);
+      } catch (IOException e) {
+        Log.w(TAG, "Rebuilding unreadable index of " + bugreport, e);
+      }
+    }
+    BugreportIndex index = build(bugreport);
+    index.save(indexFile);
+    return index;
+  }
+
+  /** Builds the index of {@code bugreport} by scanning its main text file. */
+  @NonNull
+  public static BugreportIndex build(@NonNull File bugreport) throws IOException {
+    long length = bugreport.length();
+    long lastModified = bugreport.lastModified();
+    List<Entry> entries = new ArrayList<>();
+    List<Section> sections = new ArrayList<>();
+    String mainEntry;
+    try (ZipFile zip = new ZipFile(bugreport)) {
+      Enumeration<? extends ZipEntry> zipEntries = zip.entries();
+      while (zipEntries.hasMoreElements()) {
+        ZipEntry entry = zipEntries.nextElement();
+        entries.add(
+            new Entry(
+                entry.getName(), entry.getSize(), entry.getCompressedSize(), entry.getMethod()));
+      }
+      mainEntry = findMainEntry(zip, entries);
+      if (mainEntry != null) {
+        try (InputStream in = zip.getInputStream(zip.getEntry(mainEntry))) {
+          scanSections(in, sections);
+        }
+      }
+    }
+    Log.i(
+        TAG,
+        "Indexed "
+            + entries.size()
+            + " entries and "
+            + sections.size()
+            + " sections of "
+            + bugreport);
+    return new BugreportIndex(length, lastModified, mainEntry, entries, sections);
+  }
+
+  @NonNull
+  public static File getIndexFile(@NonNull File bugreport) {
+    return new File(bugreport.getPath() + INDEX_SUFFIX);
+  }
+
+  /** Name of the main text file of the bugreport, or {@code null} if there is none. */
+  @Nullable
+  public String getMainEntry() {
+    return mMainEntry;
+  }
+
+  @NonNull
+  public List<Entry> getEntries() {
+    return mEntries;
+  }
+
+  /** Sections of the main text file, in the order they appear in it. */
+  @NonNull
+  public List<Section> getSections() {
+    return mSections;
+  }
+
+  /**
+   * Finds a section by name, ignoring case: a section named {@code name}, or else the first one
+   * whose name without its command (such as {@code DUMPSYS} for {@code DUMPSYS
+   * (/system/bin/dumpsys)}) or whose beginning is {@code name}. Dumps of single services are
+   * named {@code dumpsys <service>}.
+   */
+  @Nullable
+  public Section findSection(@NonNull String name) {
+    String query = name.trim().toLowerCase(Locale.US);
+    for (Section section : mSections) {
+      if (section.name.toLowerCase(Locale.US).equals(query)) {
+        return section;
+      }
+    }
+    for (Section section : mSections) {
+      if (section.getShortName().toLowerCase(Locale.US).equals(query)) {
+        return section;
+      }
+    }
+    for (Section section : mSections) {
+      if (section.name.toLowerCase(Locale.US).startsWith(query)) {
+        return section;
+      }
+    }
+    return null;
+  }
+
+  /** Writes the text of {@code section} of {@code bugreport}, returning its length in bytes. */
+  public long copySection(@NonNull File bugreport, @NonNull Section section, @NonNull Writer out)
+      throws IOException {
+    if (mMainEntry == null) {
+      throw new FileNotFoundException("No main entry in " + bugreport);
+    }
+    try (ZipFile zip = new ZipFile(bugreport)) {
+      ZipEntry entry = zip.getEntry(mMainEntry);
+      if (entry == null) {
+        throw new FileNotFoundException("No " + mMainEntry + " in " + bugreport);
+      }
+      try (InputStream in = zip.getInputStream(entry)) {
+        skipFully(in, section.offset);
+        // The main text file is UTF-8, and sections start and end at line breaks
+        InputStreamReader reader =
+            new InputStreamReader(
+                new BoundedInputStream(in, section.length), StandardCharsets.UTF_8);
+        char[] buffer = new char[BUFFER_SIZE];
+        int read;
+        while ((read = reader.read(buffer)) != -1) {
+          out.write(buffer, 0, read);
+        }
+        out.flush();
+      }
+    }
+    return section.length;
+  }
+
+  private boolean isCurrent(File bugreport) {
+    return bugreport.length() == mBugreportLength
+        && bugreport.lastModified() == mBugreportLastModified;
+  }
+
+  @Nullable
+  private static String findMainEntry(ZipFile zip, List<Entry> entries) throws IOException {
+    ZipEntry mainEntryName = zip.getEntry(MAIN_ENTRY_NAME_ENTRY);
+    if (mainEntryName != null) {
+      try (BufferedReader reader =
+          new BufferedReader(
+              new InputStreamReader(zip.getInputStream(mainEntryName), StandardCharsets.UTF_8))) {
+        String name = reader.readLine();
+        if (name != null && zip.getEntry(name.trim()) != null) {
+          return name.trim();
+        }
+      }
+    }
+    // Older bugreports don't say, but their main file is the largest text file
+    Entry largest = null;
+    for (Entry entry : entries) {
+      if (entry.name.endsWith(".txt") && (largest == null || entry.size > largest.size)) {
+        largest = entry;
+      }
+    }
+    return largest == null ? null : largest.name;
+  }
+
+  /** Adds the sections of the text in {@code in}, tracking line starts as byte offsets. */
+  @VisibleForTesting
+  static void scanSections(InputStream in, List<Section> sections) throws IOException {
+    byte[] buffer = new byte[BUFFER_SIZE];
+    byte[] line = new byte[MAX_HEADER_LENGTH];
+    int lineLength = 0;
+    boolean candidate = false;
+    long lineStart = 0;
+    long offset = 0;
+    SectionBuilder builder = new SectionBuilder(sections);
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      for (int i = 0; i < read; i++, offset++) {
+        byte b = buffer[i];
+        if (offset == lineStart) {
+          // Only lines that may be headers are kept
+          candidate = b == '-' || b == 'D';
+          lineLength = 0;
+        }
+        if (b == '\n') {
+          if (candidate) {
+            builder.onLine(new String(line, 0, lineLength, StandardCharsets.UTF_8), lineStart);
+          }
+          lineStart = offset + 1;
+        } else if (candidate) {
+          if (lineLength < line.length) {
+            line[lineLength++] = b;
+          } else {
+            candidate = false;
+          }
+        }
+      }
+    }
+    builder.finish(offset);
+  }
+
+  private static void skipFully(InputStream in, long count) throws IOException {
+    while (count > 0) {
+      long skipped = in.skip(count);
+      if (skipped <= 0) {
+        if (in.read() == -1) {
+          throw new EOFException("Section is past the end of the file");
+        }
+        skipped = 1;
+      }
+      count -= skipped;
+    }
+  }
+
+  @VisibleForTesting
+  void save(File indexFile) throws IOException {
+    File newFile = new File(indexFile.getPath() + ".new");
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(newFile)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(mBugreportLength);
+      out.writeLong(mBugreportLastModified);
+      out.writeUTF(mMainEntry == null ? "" : mMainEntry);
+      out.writeInt(mEntries.size());
+      for (Entry entry : mEntries) {
+        out.writeUTF(entry.name);
+        out.writeLong(entry.size);
+        out.writeLong(entry.compressedSize);
+        out.writeInt(entry.method);
+      }
+      out.writeInt(mSections.size());
+      for (Section section : mSections) {
+        out.writeUTF(section.name);
+        out.writeLong(section.offset);
+        out.writeLong(section.length);
+      }
+    }
+    if (!newFile.renameTo(indexFile)) {
+      throw new IOException("Cannot rename " + newFile + " to " + indexFile);
+    }
+  }
+
+  @VisibleForTesting
+  static BugreportIndex load(File indexFile) throws IOException {
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException("Invalid header in " + indexFile);
+      }
+      long length = in.readLong();
+      long lastModified = in.readLong();
+      String mainEntry = in.readUTF();
+      int entryCount = in.readInt();
+      List<Entry> entries = new ArrayList<>(entryCount);
+      for (int i = 0; i < entryCount; i++) {
+        entries.add(new Entry(in.readUTF(), in.readLong(), in.readLong(), in.readInt()));
+      }
+      int sectionCount = in.readInt();
+      List<Section> sections = new ArrayList<>(sectionCount);
+      for (int i = 0; i < sectionCount; i++) {
+        sections.add(new Section(in.readUTF(), in.readLong(), in.readLong()));
+      }
+      return new BugreportIndex(
+          length, lastModified, mainEntry.isEmpty() ? null : mainEntry, entries, sections);
+    }
+  }
+
+  /** An entry of the bugreport zip. */
+  public static final class Entry {
+    public final String name;
+
+    /** Uncompressed size, or {@code -1} if unknown. */
+    public final long size;
+
+    public final long compressedSize;
+
+    /** {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}. */
+    public final int method;
+
+    Entry(String name, long size, long compressedSize, int method) {
+      this.name = name;
+      this.size = size;
+      this.compressedSize = compressedSize;
+      this.method = method;
+    }
+
+    @Override
+    public String toString() {
+      return name + " (" + size + " bytes, " + compressedSize + " compressed)";
+    }
+  }
+
+  /** A section of the main text file, from its header line to the next section. */
+  public static final class Section {
+    public final String name;
+
+    /** Offset of the header line in the uncompressed main text file. */
+    public final long offset;
+
+    public final long length;
+
+    Section(String name, long offset, long length) {
+      this.name = name;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    /** Name without the command that produced the section, such as {@code DUMPSYS}. */
+    public String getShortName() {
+      int command = name.indexOf(" (");
+      return command < 0 ? name : name.substring(0, command);
+    }
+
+    @Override
+    public String toString() {
+      return name + " @" + offset + " (" + length + " bytes)";
+    }
+  }
+
+  /** Turns header lines into sections, ending each one where the next one of its kind starts. */
+  private static final class SectionBuilder {
+    private final List<Section> mSections;
+    @Nullable private String mSection;
+    private long mSectionStart;
+    @Nullable private String mService;
+    private long mServiceStart;
+
+    SectionBuilder(List<Section> sections) {
+      mSections = sections;
+    }
+
+    void onLine(String line, long offset) {
+      if (line.startsWith(SECTION_PREFIX)
+          && line.endsWith(SECTION_SUFFIX)
+          && !line.contains(DURATION_MARKER)) {
+        // A section also ends the dump of the last service
+        endService(offset);
+        endSection(offset);
+        mSection =
+            line.substring(SECTION_PREFIX.length(), line.length() - SECTION_SUFFIX.length())
+                .trim();
+        mSectionStart = offset;
+      } else if (line.startsWith(SERVICE_PREFIX)) {
+        endService(offset);
+        String service = line.substring(SERVICE_PREFIX.length());
+        for (String priority : SERVICE_PRIORITIES) {
+          if (service.startsWith(priority)) {
+            service = service.substring(priority.length());
+            break;
+          }
+        }
+        if (service.endsWith(":")) {
+          service = service.substring(0, service.length() - 1);
+        }
+        mService = SERVICE_SECTION_PREFIX + service.trim();
+        mServiceStart = offset;
+      }
+    }
+
+    void finish(long end) {
+      endService(end);
+      endSection(end);
+      // Services are added when they end, so put them back in file order
+      Collections.sort(mSections, (a, b) -> Long.compare(a.offset, b.offset));
+    }
+
+    private void endSection(long end) {
+      if (mSection != null) {
+        mSections.add(new Section(mSection, mSectionStart, end - mSectionStart));
+        mSection = null;
+      }
+    }
+
+    private void endService(long end) {
+      if (mService != null) {
+        mSections.add(new Section(mService, mServiceStart, end - mServiceStart));
+        mService = null;
+      }
+    }
+  }
+
+  /** Stops reading after {@code limit} bytes. */
+  private static final class BoundedInputStream extends InputStream {
+    private final InputStream mIn;
+    private long mRemaining;
+
+    BoundedInputStream(InputStream in, long limit) {
+      mIn = in;
+      mRemaining = limit;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (mRemaining <= 0) {
+        return -1;
+      }
+      int b = mIn.read();
+      if (b != -1) {
+        mRemaining--;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      if (mRemaining <= 0) {
+        return -1;
+      }
+      int read = mIn.read(buffer, offset, (int) Math.min(length, mRemaining));
+      if (read > 0) {
+        mRemaining -= read;
+      }
+      return read;
+    }
+  }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy.bugreport;
+
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+
+/**
+ * Saves a bugreport shared with the device owner, checking it against the SHA-256 hash given by
+ * {@code DeviceAdminReceiver.onBugreportShared}.
+ *
+ * <p>The bugreport is copied with {@link FileChannel#transferTo} in chunks, so the bytes don't go
+ * through the Java heap, and each chunk is hashed as soon as it's written, while it's still in the
+ * page cache. The copy goes to a {@code .partial} file that is only renamed once the hash matches,
+ * so a bugreport file is never truncated or corrupt.
+ */
+@WorkerThread
+public final class BugreportIngester {
+
+  private static final String TAG = "BugreportIngester";
+
+  private static final String HASH_ALGORITHM = "SHA-256";
+  private static final String PARTIAL_SUFFIX = ".partial";
+
+  /** Bytes transferred and hashed at once, and so between progress reports. */
+  @VisibleForTesting static final int CHUNK_SIZE = 4 * 1024 * 1024;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /** Receives the progress of a copy. */
+  public interface ProgressListener {
+    /** Called after each chunk; {@code bytesTotal} is {@code -1} if the size isn't known. */
+    void onProgress(long bytesCopied, long bytesTotal);
+  }
+
+  /** Outcome of {@link #ingest}. */
+  public static final class Result {
+    public final File file;
+    public final long size;
+
+    /** SHA-256 hash of the copy, in lowercase hex. */
+    public final String hash;
+
+    Result(File file, long size, String hash) {
+      this.file = file;
+      this.size = size;
+      this.hash = hash;
+    }
+  }
+
+  /** Thrown when the copy doesn't have the expected hash; the copy is deleted. */
+  public static final class HashMismatchException extends IOException {
+    public final String expectedHash;
+    public final String actualHash;
+
+    HashMismatchException(String expectedHash, String actualHash) {
+      super("Expected hash " + expectedHash + " but got " + actualHash);
+      this.expectedHash = expectedHash;
+      this.actualHash = actualHash;
+    }
+  }
+
+  private BugreportIngester() {}
+
+  /**
+   * Copies the bugreport opened as {@code pfd} to {@code destination}, and closes {@code pfd}.
+   *
+   * @param expectedHash hex SHA-256 hash of the bugreport, or {@code null} to skip the check
+   * @throws HashMismatchException if the copy doesn't have {@code expectedHash}
+   */
+  @NonNull
+  public static Result ingest(
+      @NonNull ParcelFileDescriptor pfd,
+      @NonNull File destination,
+      @Nullable String expectedHash,
+      @Nullable ProgressListener listener)
+      throws IOException {
+    File partial = new File(destination.getPath() + PARTIAL_SUFFIX);
+    boolean done = false;
+    // The stream owns pfd, so it's closed whatever happens. The copy is read back to be hashed.
+    try (FileInputStream in = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
+        RandomAccessFile out = new RandomAccessFile(partial, "rw")) {
+      out.setLength(0);
+      MessageDigest digest = newDigest();
+      long size = copy(in.getChannel(), pfd.getStatSize(), out.getChannel(), digest, listener);
+      out.getFD().sync();
+      String hash = toHex(digest.digest());
+      if (expectedHash != null && !expectedHash.equalsIgnoreCase(hash)) {
+        throw new HashMismatchException(expectedHash, hash);
+      }
+      if (!partial.renameTo(destination)) {
+        throw new IOException("Cannot rename " + partial + " to " + destination);
+      }
+      done = true;
+      Log.i(TAG, "Saved " + size + " bytes to " + destination + ", hash " + hash);
+      return new Result(destination, size, hash);
+    } finally {
+      if (!done) {
+        partial.delete();
+      }
+    }
+  }
+
+  /**
+   * Copies {@code in} to {@code out} from their current positions, feeding the bytes copied to
+   * {@code digest}, and returns the number of bytes copied. If {@code size} is negative, {@code
+   * in} isn't a regular file (such as a pipe), and is copied through a buffer until its end.
+   */
+  @VisibleForTesting
+  static long copy(
+      FileChannel in,
+      long size,
+      FileChannel out,
+      MessageDigest digest,
+      @Nullable ProgressListener listener)
+      throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    if (size < 0) {
+      long copied = 0;
+      long reported = 0;
+      int read;
+      while ((read = in.read(buffer)) >= 0) {
+        buffer.flip();
+        digest.update(buffer);
+        buffer.rewind();
+        while (buffer.hasRemaining()) {
+          out.write(buffer);
+        }
+        buffer.clear();
+        copied += read;
+        if (listener != null && copied - reported >= CHUNK_SIZE) {
+          listener.onProgress(copied, -1);
+          reported = copied;
+        }
+      }
+      if (listener != null) {
+        listener.onProgress(copied, copied);
+      }
+      return copied;
+    }
+
+    long inStart = in.position();
+    long outStart = out.position();
+    long copied = 0;
+    while (copied < size) {
+      long count = Math.min(CHUNK_SIZE, size - copied);
+      long transferred = 0;
+      while (transferred < count) {
+        long n = in.transferTo(inStart + copied + transferred, count - transferred, out);
+        if (n <= 0) {
+          throw new IOException("Bugreport truncated at " + (copied + transferred) + "/" + size);
+        }
+        transferred += n;
+      }
+      hashRange(out, outStart + copied, transferred, buffer, digest);
+      copied += transferred;
+      if (listener != null) {
+        listener.onProgress(copied, size);
+      }
+    }
+    if (listener != null && size == 0) {
+      listener.onProgress(0, 0);
+    }
+    return copied;
+  }
+
+  private static void hashRange(
+      FileChannel channel, long position, long count, ByteBuffer buffer, MessageDigest digest)
+      throws IOException {
+    long end = position + count;
+    while (position < end) {
+      buffer.clear();
+      buffer.limit((int) Math.min(buffer.capacity(), end - position));
+      int read = channel.read(buffer, position);
+      if (read <= 0) {
+        throw new IOException("Cannot read back copy at " + position);
+      }
+      buffer.flip();
+      digest.update(buffer);
+      position += read;
+    }
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance(HASH_ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(HASH_ALGORITHM + " is always available", e);
+    }
+  }
+
+  @VisibleForTesting
+  static String toHex(byte[] bytes) {
+    StringBuilder sb = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      sb.append(String.format(Locale.US, "%02x", b));
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy.keyguard;
+
+import android.content.Context;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Times of the latest failed password attempts, kept in a fixed-capacity ring buffer file.
+ *
+ * <p>The file has a header with the number of attempts ever appended, followed by {@code capacity}
+ * slots of epoch milliseconds. Appending an attempt writes one slot and the header, and reading
+ * the latest attempts only reads their slots, so neither depends on how many attempts were made
+ * before. Once the buffer is full, each attempt overwrites the oldest one.
+ */
+@WorkerThread
+public final class FailedPasswordAttemptLog {
+
+  private static final String TAG = "FailedPasswordAttempts";
+
+  private static final String LOGS_DIR = "logs";
+  @VisibleForTesting static final String FILE = "failed_pw_attempts.ring";
+
+  /** Text file of the attempts, one per line, used before the ring buffer. */
+  private static final String LEGACY_FILE = "failed_pw_attempts_timestamps.log";
+
+  public static final int DEFAULT_CAPACITY = 256;
+
+  private static final int MAGIC = 0x46505741; // "FPWA"
+  private static final int VERSION = 1;
+
+  // magic, version, capacity, reserved, then the number of attempts ever appended
+  private static final int HEADER_SIZE = 24;
+  private static final int COUNT_OFFSET = 16;
+  private static final int SLOT_SIZE = 8;
+
+  private static FailedPasswordAttemptLog sInstance;
+
+  private final File mFile;
+  private final int mCapacity;
+
+  // Loaded lazily from the header, see load()
+  private boolean mLoaded;
+  private long mCount;
+
+  @VisibleForTesting
+  FailedPasswordAttemptLog(@NonNull File file, int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Invalid capacity: " + capacity);
+    }
+    mFile = file;
+    mCapacity = capacity;
+  }
+
+  /**
+   * Gets the log of the failed password attempts of this user. The first call may migrate the
+   * legacy log, so it must not be made on the main thread.
+   */
+  public static synchronized FailedPasswordAttemptLog getInstance(@NonNull Context context) {
+    if (sInstance == null) {
+      File dir = context.getDir(LOGS_DIR, Context.MODE_PRIVATE);
+      sInstance = new FailedPasswordAttemptLog(new File(dir, FILE), DEFAULT_CAPACITY);
+      sInstance.migrate(new File(dir, LEGACY_FILE));
+    }
+    return sInstance;
+  }
+
+  /** Appends an attempt made at {@code timeMillis}. */
+  public synchronized void append(long timeMillis) throws IOException {
+    append(new long[] {timeMillis});
+  }
+
+  /** Appends attempts, oldest first, opening the file once for all of them. */
+  private void append(long[] times) throws IOException {
+    load();
+    try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+      if (mCount == 0) {
+        file.setLength(0);
+        file.writeInt(MAGIC);
+        file.writeInt(VERSION);
+        file.writeInt(mCapacity);
+        file.writeInt(0);
+        file.writeLong(0);
+      }
+      // The slots go first, so a torn append loses the oldest attempts rather than the newest.
+      // Attempts that would be overwritten by the following ones aren't written at all.
+      for (int i = Math.max(0, times.length - mCapacity); i < times.length; i++) {
+        file.seek(getSlotOffset(mCount + i));
+        file.writeLong(times[i]);
+      }
+      file.seek(COUNT_OFFSET);
+      file.writeLong(mCount + times.length);
+    }
+    mCount += times.length;
+  }
+
+  /** Gets the times of up to {@code max} latest attempts, newest first. */
+  @NonNull
+  public synchronized long[] getLatest(int max) throws IOException {
+    load();
+    int size = (int) Math.min(Math.min(mCount, mCapacity), Math.max(0, max));
+    long[] times = new long[size];
+    if (size == 0) {
+      return times;
+    }
+    try (RandomAccessFile file = new RandomAccessFile(mFile, "r")) {
+      for (int i = 0; i < size; i++) {
+        file.seek(getSlotOffset(mCount - 1 - i));
+        times[i] = file.readLong();
+      }
+    }
+    return times;
+  }
+
+  /** Gets the number of attempts appended since the log was last cleared. */
+  public synchronized long getCount() throws IOException {
+    load();
+    return mCount;
+  }
+
+  /** Forgets all attempts, for instance once the password was entered successfully. */
+  public synchronized void clear() {
+    if (mFile.exists() && !mFile.delete()) {
+      Log.w(TAG, "Cannot delete " + mFile);
+    }
+    mCount = 0;
+    mLoaded = true;
+  }
+
+  private long getSlotOffset(long index) {
+    return HEADER_SIZE + (index % mCapacity) * SLOT_SIZE;
+  }
+
+  private void load() throws IOException {
+    if (mLoaded) {
+      return;
+    }
+    mCount = 0;
+    if (mFile.exists()) {
+      try (RandomAccessFile file = new RandomAccessFile(mFile, "r")) {
+        if (file.length() >= HEADER_SIZE
+            && file.readInt() == MAGIC
+            && file.readInt() == VERSION
+            && file.readInt() == mCapacity) {
+          file.readInt();
+          long count = file.readLong();
+          // Only trust the slots that are in the file
+          long slots = (file.length() - HEADER_SIZE) / SLOT_SIZE;
+          mCount = count <= slots || slots >= mCapacity ? count : slots;
+        } else {
+          Log.w(TAG, "Discarding " + mFile + " with an invalid header or capacity");
+        }
+      }
+    }
+    mLoaded = true;
+  }
+
+  /** Moves the attempts of the legacy text file to the ring buffer. */
+  @VisibleForTesting
+  synchronized void migrate(@NonNull File legacyFile) {
+    if (!legacyFile.exists()) {
+      return;
+    }
+    List<Long> times = new ArrayList<>();
+    try (BufferedReader reader = new BufferedReader(new FileReader(legacyFile))) {
+      String line;
+      while ((line = reader.readLine()) != null && line.length() > 0) {
+        times.add(Long.parseLong(line));
+      }
+      Collections.sort(times);
+      long[] sorted = new long[times.size()];
+      for (int i = 0; i < sorted.length; i++) {
+        sorted[i] = times.get(i);
+      }
+      append(sorted);
+      Log.i(TAG, "Migrated " + times.size() + " failed password attempts");
+    } catch (IOException | NumberFormatException e) {
+      Log.e(TAG, "Unable to migrate failed password attempts", e);
+    }
+    legacyFile.delete();
+  }
+}
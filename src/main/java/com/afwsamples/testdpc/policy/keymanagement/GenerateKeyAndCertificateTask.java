@@ -35,6 +35,7 @@ import android.widget.TextView;
 import android.widget.Toast;
 import com.afwsamples.testdpc.R;
 import com.afwsamples.testdpc.policy.utils.Attestation;
+import com.afwsamples.testdpc.policy.utils.AttestationCache;
 import com.afwsamples.testdpc.policy.utils.AuthorizationList;
 import com.afwsamples.testdpc.policy.utils.CertificateUtils;
 import java.io.IOException;
@@ -51,11 +52,7 @@ public class GenerateKeyAndCertificateTask extends AsyncTask<Void, Integer, Atte
   public static final String TAG = "PolicyManagement";
 
   final String mAlias;
-  final boolean mIsUserSelectable;
-  private final byte[] mAttestationChallenge;
-  private final int mIdAttestationFlags;
-  private final boolean mUseStrongBox;
-  private final boolean mGenerateEcKey;
+  private final KeyGenerationParameters mParams;
   private final ComponentName mAdminComponentName;
   private final DevicePolicyManager mDevicePolicyManager;
   private final Activity mActivity;
@@ -63,11 +60,7 @@ public class GenerateKeyAndCertificateTask extends AsyncTask<Void, Integer, Atte
   public GenerateKeyAndCertificateTask(
       KeyGenerationParameters params, Activity activity, ComponentName admin) {
     mAlias = params.alias;
-    mIsUserSelectable = params.isUserSelectable;
-    mAttestationChallenge = params.attestationChallenge;
-    mIdAttestationFlags = params.idAttestationFlags;
-    mUseStrongBox = params.useStrongBox;
-    mGenerateEcKey = params.generateEcKey;
+    mParams = params;
     mActivity = activity;
     mAdminComponentName = admin;
     mDevicePolicyManager =
@@ -77,18 +70,32 @@ public class GenerateKeyAndCertificateTask extends AsyncTask<Void, Integer, Atte
   @TargetApi(VERSION_CODES.P)
   @Override
   protected AttestedKeyPair doInBackground(Void... voids) {
+    return generateKeyPair(mDevicePolicyManager, mAdminComponentName, mParams);
+  }
+
+  /**
+   * Generates a key pair and sets a self-signed certificate for it, as the task does in the
+   * background; also used by {@link KeyPool} to generate keys ahead of time.
+   *
+   * @return the key pair, or {@code null} if it couldn't be generated
+   */
+  @TargetApi(VERSION_CODES.P)
+  static AttestedKeyPair generateKeyPair(
+      DevicePolicyManager devicePolicyManager,
+      ComponentName admin,
+      KeyGenerationParameters params) {
     try {
       KeyGenParameterSpec.Builder keySpecBuilder =
           new KeyGenParameterSpec.Builder(
-                  mAlias, KeyProperties.PURPOSE_SIGN | KeyProperties.PURPOSE_VERIFY)
+                  params.alias, KeyProperties.PURPOSE_SIGN | KeyProperties.PURPOSE_VERIFY)
               .setDigests(KeyProperties.DIGEST_SHA256)
-              .setIsStrongBoxBacked(mUseStrongBox);
+              .setIsStrongBoxBacked(params.useStrongBox);
 
-      if (mAttestationChallenge != null) {
-        keySpecBuilder.setAttestationChallenge(mAttestationChallenge);
+      if (params.attestationChallenge != null) {
+        keySpecBuilder.setAttestationChallenge(params.attestationChallenge);
       }
 
-      if (mGenerateEcKey) {
+      if (params.generateEcKey) {
         keySpecBuilder.setKeySize(256);
       } else {
         // RSA key
@@ -99,7 +106,7 @@ public class GenerateKeyAndCertificateTask extends AsyncTask<Void, Integer, Atte
       }
 
       String keyAlgorithm;
-      if (mGenerateEcKey) {
+      if (params.generateEcKey) {
         keyAlgorithm = KeyProperties.KEY_ALGORITHM_EC;
       } else {
         keyAlgorithm = KeyProperties.KEY_ALGORITHM_RSA;
@@ -107,8 +114,8 @@ public class GenerateKeyAndCertificateTask extends AsyncTask<Void, Integer, Atte
 
       KeyGenParameterSpec keySpec = keySpecBuilder.build();
       AttestedKeyPair keyPair =
-          mDevicePolicyManager.generateKeyPair(
-              mAdminComponentName, keyAlgorithm, keySpec, mIdAttestationFlags);
+          devicePolicyManager.generateKeyPair(
+              admin, keyAlgorithm, keySpec, params.idAttestationFlags);
 
       if (keyPair == null) {
         return null;
@@ -131,8 +138,8 @@ public class GenerateKeyAndCertificateTask extends AsyncTask<Void, Integer, Atte
       List<Certificate> certs = new ArrayList<Certificate>();
       certs.add(selfSigned);
 
-      if (!mDevicePolicyManager.setKeyPairCertificate(
-          mAdminComponentName, mAlias, certs, mIsUserSelectable)) {
+      if (!devicePolicyManager.setKeyPairCertificate(
+          admin, params.alias, certs, params.isUserSelectable)) {
         return null;
       }
 
@@ -185,7 +192,7 @@ public class GenerateKeyAndCertificateTask extends AsyncTask<Void, Integer, Atte
         StringBuilder attestationDetails = new StringBuilder();
 
         Attestation attestationRecord =
-            new Attestation((X509Certificate) keyPair.getAttestationRecord().get(0));
+            AttestationCache.getInstance().get((X509Certificate) attestationChain.get(0));
         attestationDetails.append(
             mActivity.getText(R.string.attestation_challenge_description) + "\n");
         attestationDetails.append(new String(attestationRecord.getAttestationChallenge()) + "\n");
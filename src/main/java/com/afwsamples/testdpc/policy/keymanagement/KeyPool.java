@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy.keymanagement;
+
+import android.annotation.TargetApi;
+import android.app.admin.DevicePolicyManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build.VERSION_CODES;
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import com.afwsamples.testdpc.DeviceAdminReceiver;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Pool of key pairs generated ahead of time, so that provisioning a key only has to hand one out.
+ *
+ * <p>The keystore binds the alias of a key when it's generated, so the pool generates its keys
+ * under its own aliases ({@code <prefix><number>}) and {@link #take} returns the oldest one.
+ * Generating a key, especially in StrongBox, takes seconds, so the pool is refilled by {@link
+ * KeyPoolRefillJobService} while the device is charging or idle.
+ *
+ * <p>The configuration and the aliases of the ready keys are kept in shared preferences; the keys
+ * themselves are in the keychain, with self-signed certificates, as generated by {@link
+ * GenerateKeyAndCertificateTask}. The aliases of the keys being generated are kept too, so that a
+ * key left behind by a failed generation, or by the process dying during one, is removed.
+ */
+public final class KeyPool {
+  private static final String TAG = "KeyPool";
+
+  public static final String DEFAULT_PREFIX = "pooled-key-";
+
+  private static final String PREFS_NAME = "key_pool";
+  private static final String KEY_DEPTH = "depth";
+  private static final String KEY_PREFIX = "prefix";
+  private static final String KEY_EC = "ec";
+  private static final String KEY_STRONG_BOX = "strong_box";
+  private static final String KEY_USER_SELECTABLE = "user_selectable";
+  private static final String KEY_NEXT_NUMBER = "next_number";
+  private static final String KEY_READY = "ready";
+  private static final String KEY_PENDING = "pending";
+
+  /** Generates and removes the keys of the pool. */
+  interface KeyGenerator {
+    /** Generates a key pair and its certificate; returns whether it succeeded. */
+    boolean generate(@NonNull KeyGenerationParameters params);
+
+    void remove(@NonNull String alias);
+  }
+
+  private static KeyPool sInstance;
+
+  private final SharedPreferences mPrefs;
+  private final KeyGenerator mGenerator;
+  private final Runnable mScheduleRefill;
+  private final LongSupplier mClock;
+
+  private int mDepth;
+  private String mPrefix;
+  private boolean mEc;
+  private boolean mStrongBox;
+  private boolean mUserSelectable;
+  private int mNextNumber;
+  // Numbers of the ready keys, oldest first
+  private final ArrayDeque<Integer> mReady = new ArrayDeque<>();
+  // Aliases of the keys being generated, which count towards the depth
+  private final Set<String> mPending = new LinkedHashSet<>();
+  // Incremented when the keys change, so keys generated with an older one are discarded
+  private int mTemplateVersion;
+
+  // Refill statistics since the process started
+  private long mGenerated;
+  private long mFailed;
+  private long mLastLatencyMillis;
+  private long mTotalLatencyMillis;
+  private long mMaxLatencyMillis;
+
+  @VisibleForTesting
+  KeyPool(
+      SharedPreferences prefs,
+      KeyGenerator generator,
+      Runnable scheduleRefill,
+      LongSupplier clock) {
+    mPrefs = prefs;
+    mGenerator = generator;
+    mScheduleRefill = scheduleRefill;
+    mClock = clock;
+    mDepth = prefs.getInt(KEY_DEPTH, 0);
+    mPrefix = prefs.getString(KEY_PREFIX, DEFAULT_PREFIX);
+    mEc = prefs.getBoolean(KEY_EC, false);
+    mStrongBox = prefs.getBoolean(KEY_STRONG_BOX, false);
+    mUserSelectable = prefs.getBoolean(KEY_USER_SELECTABLE, false);
+    mNextNumber = prefs.getInt(KEY_NEXT_NUMBER, 1);
+    String ready = prefs.getString(KEY_READY, "");
+    if (!ready.isEmpty()) {
+      for (String number : ready.split(",")) {
+        mReady.add(Integer.parseInt(number));
+      }
+    }
+    // Only left over if the process died while generating them
+    mPending.addAll(prefs.getStringSet(KEY_PENDING, Collections.emptySet()));
+    if (!mPending.isEmpty()) {
+      for (String alias : mPending) {
+        Log.i(TAG, "Removing " + alias + ", which was being generated when the process died");
+        generator.remove(alias);
+      }
+      mPending.clear();
+      save();
+    }
+  }
+
+  @NonNull
+  public static synchronized KeyPool getInstance(@NonNull Context context) {
+    if (sInstance == null) {
+      Context appContext = context.getApplicationContext();
+      sInstance =
+          new KeyPool(
+              appContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE),
+              new DevicePolicyKeyGenerator(appContext),
+              () -> KeyPoolRefillJobService.schedule(appContext),
+              SystemClock::elapsedRealtime);
+    }
+    return sInstance;
+  }
+
+  /**
+   * Sets how many keys to keep ready, and how to generate them. If the keys change, the ready ones
+   * are removed; otherwise only the ones above {@code depth} are. A {@code depth} of {@code 0}
+   * disables the pool.
+   */
+  public void configure(
+      int depth,
+      @NonNull String prefix,
+      boolean ec,
+      boolean strongBox,
+      boolean userSelectable) {
+    if (depth < 0) {
+      throw new IllegalArgumentException("Invalid depth: " + depth);
+    }
+    if (prefix.isEmpty()) {
+      throw new IllegalArgumentException("Empty prefix");
+    }
+    List<String> removed = new ArrayList<>();
+    synchronized (this) {
+      boolean sameKeys =
+          prefix.equals(mPrefix)
+              && ec == mEc
+              && strongBox == mStrongBox
+              && userSelectable == mUserSelectable;
+      if (!sameKeys) {
+        mTemplateVersion++;
+      }
+      while (!mReady.isEmpty() && (!sameKeys || mReady.size() > depth)) {
+        removed.add(mPrefix + mReady.pollLast());
+      }
+      mDepth = depth;
+      mPrefix = prefix;
+      mEc = ec;
+      mStrongBox = strongBox;
+      mUserSelectable = userSelectable;
+      save();
+    }
+    for (String alias : removed) {
+      mGenerator.remove(alias);
+    }
+    if (depth > 0) {
+      mScheduleRefill.run();
+    }
+  }
+
+  /**
+   * Takes the oldest ready key out of the pool and schedules a refill.
+   *
+   * @return the alias of the key, or {@code null} if there is none ready
+   */
+  @Nullable
+  public String take() {
+    String alias = null;
+    int depth;
+    synchronized (this) {
+      Integer number = mReady.pollFirst();
+      if (number != null) {
+        alias = mPrefix + number;
+        save();
+      }
+      depth = mDepth;
+    }
+    if (depth > 0) {
+      mScheduleRefill.run();
+    }
+    return alias;
+  }
+
+  /**
+   * Generates keys one at a time until the pool is full, a key can't be generated, or {@code
+   * isStopped} returns {@code true}.
+   *
+   * @return how many keys were generated
+   */
+  public int refill(@NonNull BooleanSupplier isStopped) {
+    int generated = 0;
+    while (!isStopped.getAsBoolean() && refillOne()) {
+      generated++;
+    }
+    return generated;
+  }
+
+  private boolean refillOne() {
+    KeyGenerationParameters params;
+    int number;
+    int templateVersion;
+    synchronized (this) {
+      if (mReady.size() + mPending.size() >= mDepth) {
+        return false;
+      }
+      number = mNextNumber++;
+      String alias = mPrefix + number;
+      mPending.add(alias);
+      templateVersion = mTemplateVersion;
+      // Saved before generating, so the alias isn't reused, and the key is removed, if the process
+      // dies meanwhile
+      save();
+      params =
+          new KeyGenerationParameters.Builder()
+              .setAlias(alias)
+              .setGenerateEcKey(mEc)
+              .setUseStrongBox(mStrongBox)
+              .setIsUserSelectable(mUserSelectable)
+              .build();
+    }
+
+    long start = mClock.getAsLong();
+    boolean success = mGenerator.generate(params);
+    long latency = mClock.getAsLong() - start;
+
+    boolean keep = false;
+    synchronized (this) {
+      if (success) {
+        mGenerated++;
+        mLastLatencyMillis = latency;
+        mTotalLatencyMillis += latency;
+        mMaxLatencyMillis = Math.max(mMaxLatencyMillis, latency);
+        keep = templateVersion == mTemplateVersion && mReady.size() < mDepth;
+        if (keep) {
+          mPending.remove(params.alias);
+          mReady.addLast(number);
+          save();
+        }
+      } else {
+        mFailed++;
+      }
+    }
+    if (!keep) {
+      if (success) {
+        Log.i(TAG, "Pool changed while generating " + params.alias + ", removing it");
+      } else {
+        // The key pair may have been generated without its certificate
+        Log.w(TAG, "Failed to generate " + params.alias + ", removing it");
+      }
+      mGenerator.remove(params.alias);
+      synchronized (this) {
+        mPending.remove(params.alias);
+        save();
+      }
+    }
+    return success;
+  }
+
+  public synchronized int getDepth() {
+    return mDepth;
+  }
+
+  public synchronized int getReadyCount() {
+    return mReady.size();
+  }
+
+  public synchronized boolean isFull() {
+    return mReady.size() >= mDepth;
+  }
+
+  /**
+   * Gets how many keys were generated and failed to be generated, and the last, average and
+   * maximum time to generate one, in milliseconds.
+   */
+  @NonNull
+  public synchronized long[] getRefillStats() {
+    return new long[] {
+      mGenerated,
+      mFailed,
+      mLastLatencyMillis,
+      mGenerated == 0 ? 0 : mTotalLatencyMillis / mGenerated,
+      mMaxLatencyMillis
+    };
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "KeyPool[depth="
+        + mDepth
+        + ", prefix="
+        + mPrefix
+        + ", ec="
+        + mEc
+        + ", strongBox="
+        + mStrongBox
+        + ", userSelectable="
+        + mUserSelectable
+        + ", ready="
+        + mReady
+        + "]";
+  }
+
+  private void save() {
+    StringBuilder ready = new StringBuilder();
+    for (int number : mReady) {
+      if (ready.length() > 0) {
+        ready.append(',');
+      }
+      ready.append(number);
+    }
+    mPrefs
+        .edit()
+        .putInt(KEY_DEPTH, mDepth)
+        .putString(KEY_PREFIX, mPrefix)
+        .putBoolean(KEY_EC, mEc)
+        .putBoolean(KEY_STRONG_BOX, mStrongBox)
+        .putBoolean(KEY_USER_SELECTABLE, mUserSelectable)
+        .putInt(KEY_NEXT_NUMBER, mNextNumber)
+        .putString(KEY_READY, ready.toString())
+        .putStringSet(KEY_PENDING, new LinkedHashSet<>(mPending))
+        .apply();
+  }
+
+  @TargetApi(VERSION_CODES.P)
+  private static final class DevicePolicyKeyGenerator implements KeyGenerator {
+    private final DevicePolicyManager mDevicePolicyManager;
+    private final ComponentName mAdmin;
+
+    DevicePolicyKeyGenerator(Context context) {
+      mDevicePolicyManager =
+          (DevicePolicyManager) context.getSystemService(Context.DEVICE_POLICY_SERVICE);
+      mAdmin = DeviceAdminReceiver.getComponentName(context);
+    }
+
+    @Override
+    public boolean generate(@NonNull KeyGenerationParameters params) {
+      return GenerateKeyAndCertificateTask.generateKeyPair(mDevicePolicyManager, mAdmin, params)
+          != null;
+    }
+
+    @Override
+    public void remove(@NonNull String alias) {
+      try {
+        mDevicePolicyManager.removeKeyPair(mAdmin, alias);
+      } catch (SecurityException e) {
+        Log.w(TAG, "Not permitted to remove key " + alias, e);
+      }
+    }
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy.keymanagement;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Build.VERSION_CODES;
+import android.util.Log;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Refills the {@link KeyPool} while the device is charging or idle.
+ *
+ * <p>All the constraints of a job must be met for it to run, so there is one job for each. Both
+ * run on a single thread: whichever runs second finds the pool full, or picks up where the first
+ * one was stopped.
+ */
+@TargetApi(VERSION_CODES.P)
+public class KeyPoolRefillJobService extends JobService {
+  private static final String TAG = "KeyPoolRefillJobService";
+
+  private static final int JOB_ID_CHARGING = 1;
+  private static final int JOB_ID_IDLE = 2;
+
+  private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+  private final Map<Integer, AtomicBoolean> mStopped = new ConcurrentHashMap<>();
+
+  /** Schedules the refill jobs, replacing the pending ones. */
+  static void schedule(Context context) {
+    JobScheduler jobScheduler =
+        (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+    ComponentName service = new ComponentName(context, KeyPoolRefillJobService.class);
+    jobScheduler.schedule(
+        new JobInfo.Builder(JOB_ID_CHARGING, service).setRequiresCharging(true).build());
+    jobScheduler.schedule(
+        new JobInfo.Builder(JOB_ID_IDLE, service).setRequiresDeviceIdle(true).build());
+  }
+
+  @Override
+  public boolean onStartJob(JobParameters params) {
+    AtomicBoolean stopped = new AtomicBoolean();
+    mStopped.put(params.getJobId(), stopped);
+    mExecutor.execute(
+        () -> {
+          KeyPool pool = KeyPool.getInstance(this);
+          int generated = pool.refill(stopped::get);
+          Log.i(TAG, "Job " + params.getJobId() + " generated " + generated + " keys: " + pool);
+          if (!stopped.get()) {
+            mStopped.remove(params.getJobId());
+            // Failures are retried on the next refill, when a key is taken or the pool configured
+            jobFinished(params, /* wantsReschedule= */ false);
+          }
+        });
+    return true;
+  }
+
+  @Override
+  public boolean onStopJob(JobParameters params) {
+    AtomicBoolean stopped = mStopped.remove(params.getJobId());
+    if (stopped != null) {
+      stopped.set(true);
+    }
+    return !KeyPool.getInstance(this).isFull();
+  }
+
+  @Override
+  public void onDestroy() {
+    mExecutor.shutdown();
+    super.onDestroy();
+  }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy.logexport;
+
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
+import com.afwsamples.testdpc.policy.networklogs.NetworkLogRecord;
+import com.afwsamples.testdpc.policy.networklogs.NetworkLogStore;
+import com.afwsamples.testdpc.policy.securitylogs.SecurityEventFormatter;
+import com.afwsamples.testdpc.policy.securitylogs.SecurityLogArchive;
+import com.afwsamples.testdpc.policy.securitylogs.SecurityLogRecord;
+import java.io.BufferedWriter;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streams saved logs as gzip-compressed text, one event per line.
+ *
+ * <p>Events are read one network log batch or security log segment at a time and written as they
+ * are read, so memory use doesn't depend on the size of the export.
+ */
+public final class LogExporter {
+
+  private static final String TAG = "LogExporter";
+
+  /** Size of the gzip and text buffers. */
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /** Events written between progress reports. */
+  @VisibleForTesting static final int PROGRESS_INTERVAL = 1000;
+
+  /** Reports the progress of an export. */
+  public interface ProgressListener {
+    /**
+     * @param eventsWritten events written so far
+     * @param eventsTotal upper bound of the events to write; events outside of the time range are
+     *     only skipped as they are read
+     */
+    void onProgress(long eventsWritten, long eventsTotal);
+  }
+
+  /** Events to export, read one chunk at a time. */
+  public interface Source {
+    /** Upper bound of the events to export. */
+    long getEventCountEstimate() throws IOException;
+
+    /**
+     * Writes the lines of the next chunk of events.
+     *
+     * @return number of events written, or {@code -1} when there are no more events
+     */
+    int writeNextChunk(@NonNull Writer writer) throws IOException;
+  }
+
+  private LogExporter() {}
+
+  /**
+   * Exports the events of {@code source} to {@code out} and finishes the gzip stream, leaving
+   * {@code out} open.
+   *
+   * @return number of events written
+   */
+  @WorkerThread
+  public static long export(
+      @NonNull Source source, @NonNull OutputStream out, @Nullable ProgressListener listener)
+      throws IOException {
+    long total = source.getEventCountEstimate();
+    GZIPOutputStream gzip = new GZIPOutputStream(out, BUFFER_SIZE);
+    Writer writer =
+        new BufferedWriter(new OutputStreamWriter(gzip, StandardCharsets.UTF_8), BUFFER_SIZE);
+    long written = 0;
+    long reported = 0;
+    int count;
+    while ((count = source.writeNextChunk(writer)) >= 0) {
+      written += count;
+      if (listener != null && written - reported >= PROGRESS_INTERVAL) {
+        listener.onProgress(written, Math.max(written, total));
+        reported = written;
+      }
+    }
+    writer.flush();
+    gzip.finish();
+    if (listener != null) {
+      listener.onProgress(written, written);
+    }
+    Log.d(TAG, "Exported " + written + " events");
+    return written;
+  }
+
+  /**
+   * Source of the network events saved by {@link NetworkLogStore} with a timestamp between {@code
+   * fromMillis} and {@code toMillis} (inclusive). Each line is the event's {@code toString()}.
+   *
+   * <p>The store isn't locked during the export, so if a batch is evicted before it's read the
+   * export fails rather than silently leave its events out.
+   */
+  @NonNull
+  public static Source networkLogs(
+      @NonNull NetworkLogStore store, long fromMillis, long toMillis) {
+    return new Source() {
+      private List<NetworkLogStore.Batch> mBatches;
+      private int mNext;
+
+      @Override
+      public long getEventCountEstimate() throws IOException {
+        long count = 0;
+        for (NetworkLogStore.Batch batch : getBatches()) {
+          count += batch.eventCount;
+        }
+        return count;
+      }
+
+      @Override
+      public int writeNextChunk(@NonNull Writer writer) throws IOException {
+        List<NetworkLogStore.Batch> batches = getBatches();
+        if (mNext >= batches.size()) {
+          return -1;
+        }
+        NetworkLogStore.Batch batch = batches.get(mNext++);
+        List<NetworkLogRecord> records;
+        try {
+          records = store.readBatch(batch);
+        } catch (FileNotFoundException e) {
+          throw new IOException(batch + " was evicted during the export", e);
+        }
+        int count = 0;
+        for (NetworkLogRecord record : records) {
+          if (record.timestamp >= fromMillis && record.timestamp <= toMillis) {
+            writer.write(record.toString());
+            writer.write('\n');
+            count++;
+          }
+        }
+        return count;
+      }
+
+      private List<NetworkLogStore.Batch> getBatches() throws IOException {
+        if (mBatches == null) {
+          mBatches = store.getBatches(fromMillis, toMillis);
+        }
+        return mBatches;
+      }
+    };
+  }
+
+  /**
+   * Source of the security events archived by {@link SecurityLogArchive} logged between {@code
+   * fromMillis} and {@code toMillis} (inclusive), formatted by {@link SecurityEventFormatter}.
+   *
+   * <p>The archive isn't locked during the export. When a segment is rewritten by concurrent
+   * ingestion, the segments are listed again and the export goes on from the last event read, so
+   * the events merged into the new segment are exported too.
+   */
+  @NonNull
+  public static Source securityLogs(
+      @NonNull SecurityLogArchive archive, long fromMillis, long toMillis) {
+    long fromNanos = TimeUnit.MILLISECONDS.toNanos(fromMillis);
+    long toNanos =
+        toMillis >= TimeUnit.NANOSECONDS.toMillis(Long.MAX_VALUE)
+            ? Long.MAX_VALUE
+            : TimeUnit.MILLISECONDS.toNanos(toMillis + 1) - 1;
+    // Dates are in UTC so that exports from devices in different time zones line up
+    DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ROOT);
+    dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return new Source() {
+      private List<SecurityLogArchive.Segment> mSegments;
+      private int mNext;
+      // Time and id of the last event read, in or out of the time range
+      private boolean mReadAny;
+      private long mLastTimeNanos;
+      private long mLastId;
+
+      @Override
+      public long getEventCountEstimate() throws IOException {
+        long count = 0;
+        for (SecurityLogArchive.Segment segment : getSegments()) {
+          count += segment.eventCount;
+        }
+        return count;
+      }
+
+      @Override
+      public int writeNextChunk(@NonNull Writer writer) throws IOException {
+        List<SecurityLogArchive.Segment> segments = getSegments();
+        if (mNext >= segments.size()) {
+          return -1;
+        }
+        SecurityLogArchive.Segment segment = segments.get(mNext);
+        List<SecurityLogRecord> records;
+        try {
+          records = archive.readSegment(segment);
+        } catch (FileNotFoundException e) {
+          Log.i(TAG, segment + " was replaced during the export, listing the segments again");
+          mSegments = null;
+          mNext = 0;
+          return 0;
+        }
+        mNext++;
+        int count = 0;
+        for (SecurityLogRecord record : records) {
+          // Already read from the segment this one replaced
+          if (mReadAny
+              && (record.timeNanos < mLastTimeNanos
+                  || (record.timeNanos == mLastTimeNanos && record.id <= mLastId))) {
+            continue;
+          }
+          mReadAny = true;
+          mLastTimeNanos = record.timeNanos;
+          mLastId = record.id;
+          if (record.timeNanos >= fromNanos && record.timeNanos <= toNanos) {
+            writer.write(SecurityEventFormatter.format(record, dateFormat));
+            writer.write('\n');
+            count++;
+          }
+        }
+        return count;
+      }
+
+      private List<SecurityLogArchive.Segment> getSegments() throws IOException {
+        if (mSegments == null) {
+          mSegments = new ArrayList<>();
+          for (SecurityLogArchive.Segment segment : archive.getSegments()) {
+            if (segment.maxTimeNanos >= fromNanos
+                && segment.minTimeNanos <= toNanos
+                && (!mReadAny || segment.maxTimeNanos >= mLastTimeNanos)) {
+              mSegments.add(segment);
+            }
+          }
+        }
+        return mSegments;
+      }
+    };
+  }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy.networklogs;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Pages through one {@link NetworkLogStore.Batch}, optionally filtered by package or host.
+ *
+ * <p>Only the pages that were asked for are read from disk, and only the last few of them are kept
+ * in memory. The batch is scanned once when the pager is created, to find where every {@link
+ * #PAGE_SIZE}-th record starts, so a page is read by seeking to it rather than reading the batch
+ * from its start. When filtering, that scan also finds the positions of the matching records, so
+ * the filtered view pages just like the unfiltered one.
+ */
+public final class NetworkLogPager {
+
+  public static final int PAGE_SIZE = 100;
+
+  private static final int MAX_CACHED_PAGES = 8;
+
+  private final NetworkLogStore mStore;
+  private final NetworkLogStore.Batch mBatch;
+
+  /** Offsets where every {@link #PAGE_SIZE}-th record of the batch starts. */
+  private final long[] mOffsets;
+
+  /** Positions in the batch of the matching records, or {@code null} when not filtered. */
+  @Nullable private final int[] mMatches;
+
+  private final Map<Integer, List<NetworkLogRecord>> mPages =
+      new LinkedHashMap<Integer, List<NetworkLogRecord>>(
+          MAX_CACHED_PAGES, 0.75f, /* accessOrder= */ true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, List<NetworkLogRecord>> eldest) {
+          return size() > MAX_CACHED_PAGES;
+        }
+      };
+
+  private NetworkLogPager(
+      NetworkLogStore store,
+      NetworkLogStore.Batch batch,
+      long[] offsets,
+      @Nullable int[] matches) {
+    mStore = store;
+    mBatch = batch;
+    mOffsets = offsets;
+    mMatches = matches;
+  }
+
+  /**
+   * Creates a pager over {@code batch}. When {@code filter} isn't empty, only records whose package
+   * name, host name or address contains it (ignoring case) are paged through.
+   */
+  @NonNull
+  @WorkerThread
+  public static NetworkLogPager create(
+      @NonNull NetworkLogStore store,
+      @NonNull NetworkLogStore.Batch batch,
+      @Nullable String filter)
+      throws IOException {
+    if (filter == null || filter.trim().isEmpty()) {
+      long[] offsets = store.indexBatch(batch, PAGE_SIZE, /* visitor= */ null);
+      return new NetworkLogPager(store, batch, offsets, /* matches= */ null);
+    }
+    MatchCollector matches = new MatchCollector(filter.trim().toLowerCase(Locale.ROOT));
+    long[] offsets = store.indexBatch(batch, PAGE_SIZE, matches);
+    return new NetworkLogPager(
+        store, batch, offsets, Arrays.copyOf(matches.mPositions, matches.mCount));
+  }
+
+  @NonNull
+  public NetworkLogStore.Batch getBatch() {
+    return mBatch;
+  }
+
+  public boolean isFiltered() {
+    return mMatches != null;
+  }
+
+  /** Number of records that can be paged through. */
+  public int getCount() {
+    return mMatches == null ? mBatch.eventCount : mMatches.length;
+  }
+
+  public int getPageCount() {
+    return (getCount() + PAGE_SIZE - 1) / PAGE_SIZE;
+  }
+
+  /** Returns the page if it is in memory, or {@code null} if it has to be loaded first. */
+  @Nullable
+  public synchronized List<NetworkLogRecord> getLoadedPage(int page) {
+    return mPages.get(page);
+  }
+
+  /** Reads {@code page} from disk unless it is already in memory. */
+  @NonNull
+  @WorkerThread
+  public List<NetworkLogRecord> loadPage(int page) throws IOException {
+    List<NetworkLogRecord> records = getLoadedPage(page);
+    if (records != null) {
+      return records;
+    }
+    int start = page * PAGE_SIZE;
+    int end = Math.min(start + PAGE_SIZE, getCount());
+    if (start >= end) {
+      return new ArrayList<>();
+    }
+    if (mMatches == null) {
+      records = readBatch(start, end - start);
+    } else {
+      // Read the matches in runs, so that sparse matches don't drag in the whole batch.
+      records = new ArrayList<>(end - start);
+      int runStart = start;
+      for (int i = start + 1; i <= end; i++) {
+        if (i < end && mMatches[i] - mMatches[runStart] < PAGE_SIZE) {
+          continue;
+        }
+        int first = mMatches[runStart];
+        List<NetworkLogRecord> run = readBatch(first, mMatches[i - 1] - first + 1);
+        for (int j = runStart; j < i; j++) {
+          records.add(run.get(mMatches[j] - first));
+        }
+        runStart = i;
+      }
+    }
+    synchronized (this) {
+      mPages.put(page, records);
+    }
+    return records;
+  }
+
+  private List<NetworkLogRecord> readBatch(int from, int count) throws IOException {
+    return mStore.readBatch(mBatch, from, count, mOffsets, PAGE_SIZE);
+  }
+
+  /** Collects the positions of the records matching a filter. */
+  private static final class MatchCollector implements NetworkLogStore.EventVisitor {
+    private final String mNeedle;
+    private int[] mPositions = new int[16];
+    private int mCount;
+
+    private MatchCollector(String needle) {
+      mNeedle = needle;
+    }
+
+    @Override
+    public void visit(int index, @NonNull NetworkLogRecord record) {
+      if (!matches(record, mNeedle)) {
+        return;
+      }
+      if (mCount == mPositions.length) {
+        mPositions = Arrays.copyOf(mPositions, mCount * 2);
+      }
+      mPositions[mCount++] = index;
+    }
+  }
+
+  private static boolean matches(NetworkLogRecord record, String needle) {
+    if (contains(record.packageName, needle) || contains(record.hostname, needle)) {
+      return true;
+    }
+    for (InetAddress address : record.addresses) {
+      if (contains(address.getHostAddress(), needle)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean contains(@Nullable String haystack, String needle) {
+    return haystack != null && haystack.toLowerCase(Locale.ROOT).contains(needle);
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy.networklogs;
+
+import android.annotation.TargetApi;
+import android.app.admin.ConnectEvent;
+import android.app.admin.DnsEvent;
+import android.app.admin.NetworkEvent;
+import android.os.Build.VERSION_CODES;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import com.afwsamples.testdpc.common.Util;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A {@link NetworkEvent} as saved by {@link NetworkLogStore}: either a DNS lookup or a connection.
+ */
+public final class NetworkLogRecord {
+
+  /** Id used when the event doesn't have one (before Android P). */
+  public static final long NO_ID = -1;
+
+  public static final int TYPE_DNS = 1;
+  public static final int TYPE_CONNECT = 2;
+
+  public final int type;
+  public final long id;
+  public final long timestamp;
+  @Nullable public final String packageName;
+
+  /** Host name looked up, for {@link #TYPE_DNS} records. */
+  @Nullable public final String hostname;
+
+  /** Addresses the host name resolved to, or the address connected to. */
+  @NonNull public final List<InetAddress> addresses;
+
+  /** Total number of addresses resolved, for {@link #TYPE_DNS} records. */
+  public final int totalResolvedAddressCount;
+
+  /** Port connected to, for {@link #TYPE_CONNECT} records. */
+  public final int port;
+
+  private NetworkLogRecord(
+      int type,
+      long id,
+      long timestamp,
+      @Nullable String packageName,
+      @Nullable String hostname,
+      @NonNull List<InetAddress> addresses,
+      int totalResolvedAddressCount,
+      int port) {
+    this.type = type;
+    this.id = id;
+    this.timestamp = timestamp;
+    this.packageName = packageName;
+    this.hostname = hostname;
+    this.addresses = Collections.unmodifiableList(addresses);
+    this.totalResolvedAddressCount = totalResolvedAddressCount;
+    this.port = port;
+  }
+
+  /** Creates a record of a DNS lookup. */
+  @NonNull
+  public static NetworkLogRecord dns(
+      long id,
+      long timestamp,
+      @Nullable String packageName,
+      @Nullable String hostname,
+      @NonNull List<InetAddress> addresses,
+      int totalResolvedAddressCount) {
+    return new NetworkLogRecord(
+        TYPE_DNS,
+        id,
+        timestamp,
+        packageName,
+        hostname,
+        new ArrayList<>(addresses),
+        totalResolvedAddressCount,
+        /* port= */ 0);
+  }
+
+  /** Creates a record of a connection. */
+  @NonNull
+  public static NetworkLogRecord connect(
+      long id,
+      long timestamp,
+      @Nullable String packageName,
+      @Nullable InetAddress address,
+      int port) {
+    List<InetAddress> addresses = new ArrayList<>(1);
+    if (address != null) {
+      addresses.add(address);
+    }
+    return new NetworkLogRecord(
+        TYPE_CONNECT,
+        id,
+        timestamp,
+        packageName,
+        /* hostname= */ null,
+        addresses,
+        /* totalResolvedAddressCount= */ 0,
+        port);
+  }
+
+  /** Converts a {@link NetworkEvent} to a record. */
+  @NonNull
+  @TargetApi(VERSION_CODES.O)
+  public static NetworkLogRecord from(@NonNull NetworkEvent event) {
+    long id = Util.SDK_INT >= VERSION_CODES.P ? event.getId() : NO_ID;
+    if (event instanceof DnsEvent) {
+      DnsEvent dnsEvent = (DnsEvent) event;
+      return dns(
+          id,
+          event.getTimestamp(),
+          event.getPackageName(),
+          dnsEvent.getHostname(),
+          dnsEvent.getInetAddresses(),
+          dnsEvent.getTotalResolvedAddressCount());
+    }
+    ConnectEvent connectEvent = (ConnectEvent) event;
+    return connect(
+        id,
+        event.getTimestamp(),
+        event.getPackageName(),
+        connectEvent.getInetAddress(),
+        connectEvent.getPort());
+  }
+
+  /** Same format as {@link DnsEvent#toString()} and {@link ConnectEvent#toString()}. */
+  @Override
+  public String toString() {
+    if (type == TYPE_DNS) {
+      return String.format(
+          "DnsEvent(%d, %s, %s, %d, %d, %s)",
+          id, hostname, addresses, totalResolvedAddressCount, timestamp, packageName);
+    }
+    return String.format(
+        "ConnectEvent(%d, %s, %d, %d, %s)",
+        id, addresses.isEmpty() ? null : addresses.get(0), port, timestamp, packageName);
+  }
+}
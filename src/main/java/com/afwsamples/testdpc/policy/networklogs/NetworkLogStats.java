@@ -0,0 +1,734 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy.networklogs;
+
+import android.content.Context;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import com.google.common.io.CountingInputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-package and per-domain counters of the events saved in {@link NetworkLogStore}.
+ *
+ * <p>Counters are updated as batches are saved. The counters of each batch (its delta) are
+ * appended to a journal file kept per store segment, so saving a batch only writes that batch's
+ * delta. Loading the counters adds up the deltas, and only batches saved after the last delta are
+ * read from the store. Once the store evicts a segment, the deltas of its batches are subtracted
+ * and its journal file deleted, so the counters only include the events still in the store.
+ * Connections are attributed to the domain the address was last resolved from, when known.
+ *
+ * <p>Each counter keeps an hourly histogram of its events over the last {@link #BUCKETS} hours, in
+ * a ring of primitive ints.
+ */
+public final class NetworkLogStats {
+
+  private static final String TAG = "NetworkLogStats";
+
+  @VisibleForTesting static final String DIR = "network_log_stats_deltas";
+  private static final String DELTAS_PREFIX = "deltas_";
+
+  /** Counters keyed by package name. */
+  public static final int BY_PACKAGE = 0;
+  /** Counters keyed by domain, i.e. host name looked up or connected to. */
+  public static final int BY_DOMAIN = 1;
+
+  public static final int SORT_BY_EVENTS = 0;
+  public static final int SORT_BY_DNS_LOOKUPS = 1;
+  public static final int SORT_BY_CONNECTS = 2;
+  public static final int SORT_BY_DISTINCT_PEERS = 3;
+
+  public static final long BUCKET_MILLIS = TimeUnit.HOURS.toMillis(1);
+  public static final int BUCKETS = 24 * 7;
+
+  /** Peers counted per key; beyond that {@link Counters#isPeerCountCapped()} is set. */
+  private static final int MAX_PEERS = 1024;
+
+  /** Resolved addresses remembered to attribute connections to a domain. */
+  private static final int MAX_RESOLVED_ADDRESSES = 4096;
+
+  private static final int MAGIC = 0x4e4c5354; // NLST
+  private static final int VERSION = 1;
+
+  private static NetworkLogStats sInstance;
+
+  private final NetworkLogStore mStore;
+  private final File mDir;
+
+  // Loaded lazily, see load()
+  private boolean mLoaded;
+  private int mLastSegment;
+  private long mLastOffset = -1;
+  private final List<Map<String, Counters>> mCounters =
+      Arrays.asList(new HashMap<>(), new HashMap<>());
+
+  private final Map<String, String> mResolvedAddresses =
+      new LinkedHashMap<String, String>(16, 0.75f, /* accessOrder= */ true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+          return size() > MAX_RESOLVED_ADDRESSES;
+        }
+      };
+
+  @VisibleForTesting
+  NetworkLogStats(@NonNull NetworkLogStore store, @NonNull File dir) {
+    mStore = store;
+    mDir = dir;
+  }
+
+  /** Gets the counters of the network logs saved by this app. */
+  public static synchronized NetworkLogStats getInstance(@NonNull Context context) {
+    if (sInstance == null) {
+      sInstance =
+          new NetworkLogStats(
+              NetworkLogStore.getInstance(context), new File(context.getFilesDir(), DIR));
+    }
+    return sInstance;
+  }
+
+  /** Adds a batch that was just saved to the store. */
+  public synchronized void add(
+      @NonNull NetworkLogStore.Batch batch, @NonNull List<NetworkLogRecord> records)
+      throws IOException {
+    load();
+    catchUp(batch);
+    if (isAggregated(batch)) {
+      return;
+    }
+    aggregate(batch, records);
+  }
+
+  /** Returns the {@code n} keys with the highest {@code sortBy} metric, highest first. */
+  @NonNull
+  public synchronized List<Counters> getTop(int dimension, int sortBy, int n) throws IOException {
+    load();
+    catchUp(/* until= */ null);
+    PriorityQueue<Counters> top =
+        new PriorityQueue<>(Math.max(1, n), (a, b) -> Long.compare(a.get(sortBy), b.get(sortBy)));
+    for (Counters counters : mCounters.get(dimension).values()) {
+      if (top.size() < n) {
+        top.add(counters.copy());
+      } else if (n > 0 && counters.get(sortBy) > top.peek().get(sortBy)) {
+        top.poll();
+        top.add(counters.copy());
+      }
+    }
+    List<Counters> result = new ArrayList<>(top);
+    Collections.sort(result, (a, b) -> Long.compare(b.get(sortBy), a.get(sortBy)));
+    return result;
+  }
+
+  /** Returns the counters of one package or domain, or {@code null} if it wasn't seen. */
+  @Nullable
+  public synchronized Counters get(int dimension, @NonNull String key) throws IOException {
+    load();
+    catchUp(/* until= */ null);
+    Counters counters = mCounters.get(dimension).get(key);
+    return counters == null ? null : counters.copy();
+  }
+
+  /** Number of distinct packages or domains seen. */
+  public synchronized int getKeyCount(int dimension) throws IOException {
+    load();
+    catchUp(/* until= */ null);
+    return mCounters.get(dimension).size();
+  }
+
+  /** Bucket of the given time, as used by {@link Counters#getHistogram(long)}. */
+  public static long getBucket(long timeMillis) {
+    return Math.floorDiv(timeMillis, BUCKET_MILLIS);
+  }
+
+  /**
+   * Subtracts the batches evicted from the store, and aggregates the batches saved before {@code
+   * until}, or all of them if {@code null}.
+   */
+  private void catchUp(@Nullable NetworkLogStore.Batch until) throws IOException {
+    List<NetworkLogStore.Batch> batches = mStore.getBatches();
+    subtractEvicted(batches.isEmpty() ? Integer.MAX_VALUE : batches.get(0).segment);
+    for (NetworkLogStore.Batch batch : batches) {
+      if (until != null && compare(batch, until) >= 0) {
+        break;
+      }
+      if (!isAggregated(batch)) {
+        aggregate(batch, mStore.readBatch(batch));
+      }
+    }
+  }
+
+  /** Subtracts the deltas of the segments before {@code firstSegment}, and deletes them. */
+  private void subtractEvicted(int firstSegment) throws IOException {
+    for (int segment : listDeltaSegments()) {
+      if (segment >= firstSegment) {
+        break;
+      }
+      File file = getDeltasFile(segment);
+      for (Delta delta : readDeltas(file)) {
+        for (int i = 0; i < mCounters.size(); i++) {
+          Map<String, Counters> counters = mCounters.get(i);
+          for (Counters c : delta.counters.get(i).values()) {
+            Counters total = counters.get(c.key);
+            if (total != null) {
+              total.subtract(c);
+              if (total.getEvents() <= 0) {
+                counters.remove(c.key);
+              }
+            }
+          }
+        }
+      }
+      if (!file.delete()) {
+        throw new IOException("Cannot delete " + file);
+      }
+      Log.i(TAG, "Subtracted the batches of evicted segment " + segment);
+    }
+  }
+
+  private boolean isAggregated(NetworkLogStore.Batch batch) {
+    return batch.segment < mLastSegment
+        || (batch.segment == mLastSegment && batch.offset <= mLastOffset);
+  }
+
+  private static int compare(NetworkLogStore.Batch a, NetworkLogStore.Batch b) {
+    int result = Integer.compare(a.segment, b.segment);
+    return result != 0 ? result : Long.compare(a.offset, b.offset);
+  }
+
+  /** Counts the records of a batch, adding them to the counters and to the journal. */
+  private void aggregate(NetworkLogStore.Batch batch, List<NetworkLogRecord> records)
+      throws IOException {
+    List<Map<String, Counters>> delta = Arrays.asList(new HashMap<>(), new HashMap<>());
+    for (NetworkLogRecord record : records) {
+      String packageName = record.packageName != null ? record.packageName : "";
+      long bucket = getBucket(record.timestamp);
+      Counters byPackage = getOrCreate(delta, BY_PACKAGE, packageName);
+      if (record.type == NetworkLogRecord.TYPE_DNS) {
+        String domain = record.hostname != null ? record.hostname : "";
+        for (InetAddress address : record.addresses) {
+          mResolvedAddresses.put(address.getHostAddress(), domain);
+        }
+        Counters byDomain = getOrCreate(delta, BY_DOMAIN, domain);
+        byPackage.addDnsLookup(domain, bucket);
+        byDomain.addDnsLookup(packageName, bucket);
+      } else {
+        String address = record.addresses.isEmpty() ? "" : record.addresses.get(0).getHostAddress();
+        String domain = mResolvedAddresses.get(address);
+        String peer = domain != null ? domain : address;
+        Counters byDomain = getOrCreate(delta, BY_DOMAIN, peer);
+        byPackage.addConnect(peer, record.port, bucket);
+        byDomain.addConnect(packageName, record.port, bucket);
+      }
+    }
+    appendDelta(batch, delta);
+    addToTotals(delta);
+    mLastSegment = batch.segment;
+    mLastOffset = batch.offset;
+  }
+
+  /** Adds the counters of a delta to the totals. */
+  private void addToTotals(List<Map<String, Counters>> delta) {
+    for (int i = 0; i < mCounters.size(); i++) {
+      for (Counters c : delta.get(i).values()) {
+        getOrCreate(mCounters, i, c.key).add(c);
+      }
+    }
+  }
+
+  private static Counters getOrCreate(
+      List<Map<String, Counters>> dimensions, int dimension, String key) {
+    Map<String, Counters> counters = dimensions.get(dimension);
+    Counters result = counters.get(key);
+    if (result == null) {
+      result = new Counters(key);
+      counters.put(key, result);
+    }
+    return result;
+  }
+
+  private void load() throws IOException {
+    if (mLoaded) {
+      return;
+    }
+    mLoaded = true;
+    for (int segment : listDeltaSegments()) {
+      for (Delta delta : readDeltas(getDeltasFile(segment))) {
+        addToTotals(delta.counters);
+        mLastSegment = segment;
+        mLastOffset = delta.offset;
+      }
+    }
+  }
+
+  /**
+   * Appends the delta of a batch to the journal of its segment. It's not synced: if it's lost, the
+   * batch is aggregated again from the store when the counters are loaded.
+   */
+  private void appendDelta(NetworkLogStore.Batch batch, List<Map<String, Counters>> delta)
+      throws IOException {
+    mDir.mkdirs();
+    File file = getDeltasFile(batch.segment);
+    boolean exists = file.exists();
+    try (DataOutputStream out =
+        new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(file, /* append= */ true)))) {
+      if (!exists) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+      }
+      out.writeLong(batch.offset);
+      for (Map<String, Counters> counters : delta) {
+        out.writeInt(counters.size());
+        for (Counters c : counters.values()) {
+          c.write(out);
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads the deltas of a journal file, truncating whatever follows the last complete one (like a
+   * delta torn by process death), or the whole file if it is invalid.
+   */
+  private static List<Delta> readDeltas(File file) throws IOException {
+    List<Delta> deltas = new ArrayList<>();
+    long lastComplete = 0;
+    try (CountingInputStream counter =
+            new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+        DataInputStream in = new DataInputStream(counter)) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException("Invalid header");
+      }
+      lastComplete = counter.getCount();
+      while (true) {
+        long offset;
+        try {
+          offset = in.readLong();
+        } catch (EOFException e) {
+          break;
+        }
+        List<Map<String, Counters>> counters = Arrays.asList(new HashMap<>(), new HashMap<>());
+        for (Map<String, Counters> dimension : counters) {
+          int count = in.readInt();
+          for (int i = 0; i < count; i++) {
+            Counters c = Counters.read(in);
+            dimension.put(c.key, c);
+          }
+        }
+        deltas.add(new Delta(offset, counters));
+        lastComplete = counter.getCount();
+      }
+    } catch (IOException e) {
+      // The batches of the dropped deltas are aggregated again from the store
+      Log.w(TAG, "Corrupted delta on " + file + " at offset " + lastComplete, e);
+    }
+    if (lastComplete == 0) {
+      if (!file.delete()) {
+        throw new IOException("Cannot delete " + file);
+      }
+    } else if (lastComplete < file.length()) {
+      Log.w(TAG, "Truncating " + file + " from " + file.length() + " to " + lastComplete);
+      try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+        raf.setLength(lastComplete);
+      }
+    }
+    return deltas;
+  }
+
+  /** Gets the segments that have a journal file, in ascending order. */
+  private List<Integer> listDeltaSegments() {
+    List<Integer> segments = new ArrayList<>();
+    String[] names = mDir.list();
+    if (names == null) {
+      return segments;
+    }
+    for (String name : names) {
+      if (name.startsWith(DELTAS_PREFIX)) {
+        try {
+          segments.add(Integer.parseInt(name.substring(DELTAS_PREFIX.length())));
+        } catch (NumberFormatException e) {
+          Log.w(TAG, "Ignoring unexpected file " + name);
+        }
+      }
+    }
+    Collections.sort(segments);
+    return segments;
+  }
+
+  private File getDeltasFile(int segment) {
+    return new File(mDir, String.format("%s%06d", DELTAS_PREFIX, segment));
+  }
+
+  /** Counters of the events of one batch. */
+  private static final class Delta {
+    private final long offset;
+    private final List<Map<String, Counters>> counters;
+
+    private Delta(long offset, List<Map<String, Counters>> counters) {
+      this.offset = offset;
+      this.counters = counters;
+    }
+  }
+
+  /** Counters of one package or domain. */
+  public static final class Counters {
+    /** Package name or domain; empty if unknown. */
+    @NonNull public final String key;
+
+    private long mDnsLookups;
+    private long mConnects;
+
+    // Connections per port, sorted by port
+    private int[] mPorts = new int[0];
+    private long[] mPortConnects = new long[0];
+
+    // Events per domain of a package, or per package of a domain
+    private Map<String, Integer> mPeers = new HashMap<>();
+    private boolean mPeerCountCapped;
+
+    // Events per hour, mHistogram[bucket % BUCKETS] being the count of bucket, for the BUCKETS
+    // buckets up to mLastBucket
+    private int[] mHistogram = new int[BUCKETS];
+    private long mLastBucket = Long.MIN_VALUE;
+
+    Counters(@NonNull String key) {
+      this.key = key;
+    }
+
+    public long getDnsLookups() {
+      return mDnsLookups;
+    }
+
+    public long getConnects() {
+      return mConnects;
+    }
+
+    public long getEvents() {
+      return mDnsLookups + mConnects;
+    }
+
+    /** Number of distinct domains of a package, or packages of a domain. */
+    public int getDistinctPeers() {
+      return mPeers.size();
+    }
+
+    /** Whether there were more peers than counted. */
+    public boolean isPeerCountCapped() {
+      return mPeerCountCapped;
+    }
+
+    /** Ports connected to, in ascending order. */
+    @NonNull
+    public int[] getPorts() {
+      return mPorts.clone();
+    }
+
+    public long getConnects(int port) {
+      int i = Arrays.binarySearch(mPorts, port);
+      return i >= 0 ? mPortConnects[i] : 0;
+    }
+
+    /**
+     * Returns the number of events in each of the {@link #BUCKETS} hours up to and including
+     * {@code endBucket} (see {@link NetworkLogStats#getBucket(long)}), oldest first.
+     */
+    @NonNull
+    public int[] getHistogram(long endBucket) {
+      int[] histogram = new int[BUCKETS];
+      for (int i = 0; i < BUCKETS; i++) {
+        long bucket = endBucket - BUCKETS + 1 + i;
+        if (bucket <= mLastBucket && bucket > mLastBucket - BUCKETS) {
+          histogram[i] = mHistogram[(int) Math.floorMod(bucket, (long) BUCKETS)];
+        }
+      }
+      return histogram;
+    }
+
+    /** Number of events in the last {@code hours} hours up to {@code endBucket}. */
+    public long getRecentEvents(long endBucket, int hours) {
+      int[] histogram = getHistogram(endBucket);
+      long total = 0;
+      for (int i = Math.max(0, BUCKETS - hours); i < BUCKETS; i++) {
+        total += histogram[i];
+      }
+      return total;
+    }
+
+    /** Summarizes the counters, listing the {@code maxPorts} ports most connected to. */
+    @NonNull
+    public String describe(int maxPorts) {
+      StringBuilder sb =
+          new StringBuilder()
+              .append("events=")
+              .append(getEvents())
+              .append(" dns=")
+              .append(mDnsLookups)
+              .append(" connects=")
+              .append(mConnects)
+              .append(" peers=")
+              .append(mPeers.size())
+              .append(mPeerCountCapped ? "+" : "");
+      Integer[] byCount = new Integer[mPorts.length];
+      for (int i = 0; i < byCount.length; i++) {
+        byCount[i] = i;
+      }
+      Arrays.sort(byCount, (a, b) -> Long.compare(mPortConnects[b], mPortConnects[a]));
+      for (int i = 0; i < Math.min(maxPorts, byCount.length); i++) {
+        sb.append(i == 0 ? " ports=" : ",")
+            .append(mPorts[byCount[i]])
+            .append('x')
+            .append(mPortConnects[byCount[i]]);
+      }
+      return sb.toString();
+    }
+
+    long get(int sortBy) {
+      switch (sortBy) {
+        case SORT_BY_DNS_LOOKUPS:
+          return mDnsLookups;
+        case SORT_BY_CONNECTS:
+          return mConnects;
+        case SORT_BY_DISTINCT_PEERS:
+          return mPeers.size();
+        default:
+          return getEvents();
+      }
+    }
+
+    void addDnsLookup(String peer, long bucket) {
+      mDnsLookups++;
+      addPeer(peer, 1);
+      addToHistogram(bucket, 1);
+    }
+
+    void addConnect(String peer, int port, long bucket) {
+      mConnects++;
+      addPortConnects(port, 1);
+      addPeer(peer, 1);
+      addToHistogram(bucket, 1);
+    }
+
+    /** Adds the counters of {@code other}, which has the same key. */
+    void add(Counters other) {
+      mDnsLookups += other.mDnsLookups;
+      mConnects += other.mConnects;
+      for (int i = 0; i < other.mPorts.length; i++) {
+        addPortConnects(other.mPorts[i], other.mPortConnects[i]);
+      }
+      for (Map.Entry<String, Integer> peer : other.mPeers.entrySet()) {
+        addPeer(peer.getKey(), peer.getValue());
+      }
+      mPeerCountCapped |= other.mPeerCountCapped;
+      for (int i = 0; i < BUCKETS; i++) {
+        if (other.mHistogram[i] != 0) {
+          addToHistogram(other.bucketAt(i), other.mHistogram[i]);
+        }
+      }
+    }
+
+    /**
+     * Subtracts the counters of {@code other}, which were added before. Buckets that already left
+     * the histogram are ignored, and a capped peer count stays capped.
+     */
+    void subtract(Counters other) {
+      mDnsLookups -= other.mDnsLookups;
+      mConnects -= other.mConnects;
+      for (int i = 0; i < other.mPorts.length; i++) {
+        addPortConnects(other.mPorts[i], -other.mPortConnects[i]);
+      }
+      for (Map.Entry<String, Integer> peer : other.mPeers.entrySet()) {
+        Integer events = mPeers.get(peer.getKey());
+        if (events != null) {
+          if (events > peer.getValue()) {
+            mPeers.put(peer.getKey(), events - peer.getValue());
+          } else {
+            mPeers.remove(peer.getKey());
+          }
+        }
+      }
+      for (int i = 0; i < BUCKETS; i++) {
+        if (other.mHistogram[i] == 0) {
+          continue;
+        }
+        long bucket = other.bucketAt(i);
+        if (bucket <= mLastBucket && bucket > mLastBucket - BUCKETS) {
+          int index = (int) Math.floorMod(bucket, (long) BUCKETS);
+          mHistogram[index] = Math.max(0, mHistogram[index] - other.mHistogram[i]);
+        }
+      }
+    }
+
+    private void addPortConnects(int port, long connects) {
+      int i = Arrays.binarySearch(mPorts, port);
+      if (i < 0) {
+        i = -i - 1;
+        mPorts = insert(mPorts, i, port);
+        long[] portConnects = new long[mPortConnects.length + 1];
+        System.arraycopy(mPortConnects, 0, portConnects, 0, i);
+        System.arraycopy(mPortConnects, i, portConnects, i + 1, mPortConnects.length - i);
+        mPortConnects = portConnects;
+      }
+      mPortConnects[i] += connects;
+      if (mPortConnects[i] <= 0) {
+        mPorts = remove(mPorts, i);
+        long[] portConnects = new long[mPortConnects.length - 1];
+        System.arraycopy(mPortConnects, 0, portConnects, 0, i);
+        System.arraycopy(mPortConnects, i + 1, portConnects, i, portConnects.length - i);
+        mPortConnects = portConnects;
+      }
+    }
+
+    private void addPeer(String peer, int events) {
+      Integer previous = mPeers.get(peer);
+      if (previous != null) {
+        mPeers.put(peer, previous + events);
+      } else if (mPeers.size() < MAX_PEERS) {
+        mPeers.put(peer, events);
+      } else {
+        mPeerCountCapped = true;
+      }
+    }
+
+    /** Gets the bucket counted at {@code index} of {@link #mHistogram}. */
+    private long bucketAt(int index) {
+      return mLastBucket - Math.floorMod(mLastBucket - index, (long) BUCKETS);
+    }
+
+    private void addToHistogram(long bucket, int events) {
+      if (bucket > mLastBucket) {
+        // Clear the buckets skipped since the last event
+        long clearFrom = Math.max(mLastBucket + 1, bucket - BUCKETS + 1);
+        for (long b = clearFrom; b <= bucket; b++) {
+          mHistogram[(int) Math.floorMod(b, (long) BUCKETS)] = 0;
+        }
+        mLastBucket = bucket;
+      } else if (bucket <= mLastBucket - BUCKETS) {
+        // Too old to be in the histogram
+        return;
+      }
+      mHistogram[(int) Math.floorMod(bucket, (long) BUCKETS)] += events;
+    }
+
+    private static int[] remove(int[] array, int index) {
+      int[] result = new int[array.length - 1];
+      System.arraycopy(array, 0, result, 0, index);
+      System.arraycopy(array, index + 1, result, index, result.length - index);
+      return result;
+    }
+
+    private static int[] insert(int[] array, int index, int value) {
+      int[] result = new int[array.length + 1];
+      System.arraycopy(array, 0, result, 0, index);
+      result[index] = value;
+      System.arraycopy(array, index, result, index + 1, array.length - index);
+      return result;
+    }
+
+    Counters copy() {
+      Counters copy = new Counters(key);
+      copy.mDnsLookups = mDnsLookups;
+      copy.mConnects = mConnects;
+      copy.mPorts = mPorts.clone();
+      copy.mPortConnects = mPortConnects.clone();
+      copy.mPeers = new HashMap<>(mPeers);
+      copy.mPeerCountCapped = mPeerCountCapped;
+      copy.mHistogram = mHistogram.clone();
+      copy.mLastBucket = mLastBucket;
+      return copy;
+    }
+
+    void write(DataOutputStream out) throws IOException {
+      out.writeUTF(key);
+      out.writeLong(mDnsLookups);
+      out.writeLong(mConnects);
+      out.writeInt(mPorts.length);
+      for (int i = 0; i < mPorts.length; i++) {
+        out.writeInt(mPorts[i]);
+        out.writeLong(mPortConnects[i]);
+      }
+      out.writeInt(mPeers.size());
+      for (Map.Entry<String, Integer> peer : mPeers.entrySet()) {
+        out.writeUTF(peer.getKey());
+        out.writeInt(peer.getValue());
+      }
+      out.writeBoolean(mPeerCountCapped);
+      out.writeLong(mLastBucket);
+      // Only the non-empty buckets
+      int nonEmpty = 0;
+      for (int count : mHistogram) {
+        if (count != 0) {
+          nonEmpty++;
+        }
+      }
+      out.writeShort(nonEmpty);
+      for (int i = 0; i < BUCKETS; i++) {
+        if (mHistogram[i] != 0) {
+          out.writeShort(i);
+          out.writeInt(mHistogram[i]);
+        }
+      }
+    }
+
+    static Counters read(DataInputStream in) throws IOException {
+      Counters c = new Counters(in.readUTF());
+      c.mDnsLookups = in.readLong();
+      c.mConnects = in.readLong();
+      int ports = in.readInt();
+      c.mPorts = new int[ports];
+      c.mPortConnects = new long[ports];
+      for (int i = 0; i < ports; i++) {
+        c.mPorts[i] = in.readInt();
+        c.mPortConnects[i] = in.readLong();
+      }
+      int peers = in.readInt();
+      for (int i = 0; i < peers; i++) {
+        c.mPeers.put(in.readUTF(), in.readInt());
+      }
+      c.mPeerCountCapped = in.readBoolean();
+      c.mLastBucket = in.readLong();
+      int nonEmpty = in.readShort();
+      for (int i = 0; i < nonEmpty; i++) {
+        int index = in.readShort();
+        if (index < 0 || index >= BUCKETS) {
+          throw new IOException("Invalid histogram bucket " + index);
+        }
+        c.mHistogram[index] = in.readInt();
+      }
+      return c;
+    }
+  }
+}
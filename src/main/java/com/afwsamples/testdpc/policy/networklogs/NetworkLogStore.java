@@ -0,0 +1,994 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy.networklogs;
+
+import android.content.Context;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import com.google.common.io.CountingInputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only, segmented binary store of network log batches.
+ *
+ * <p>Batches are appended to the last segment file until it reaches a maximum size, at which point
+ * a new segment is started. Each segment is a sequence of records:
+ *
+ * <ul>
+ *   <li>string: a package or host name, identified by its position in the segment, so records
+ *       refer to each string by a 4-byte id instead of repeating it (dictionary encoding);
+ *   <li>batch header: batch token, time it was saved, and number of events that follow;
+ *   <li>DNS event: id, timestamp, package id, host name id, number of resolved addresses, and the
+ *       raw bytes of the addresses;
+ *   <li>connect event: id, timestamp, package id, port, and the raw bytes of the address.
+ * </ul>
+ *
+ * <p>A separate index file maps each batch token to the segment and offset of its batch header,
+ * along with its event count and the time range of its events, so a batch can be found and read
+ * without scanning the segments. Batches are only added to the index once they're fully written,
+ * and a torn tail left by a crash is truncated before appending again.
+ *
+ * <p>The store is kept within a disk budget: once the segments grow past it, the oldest segments
+ * and their batches are deleted, see {@link #setDiskBudget}.
+ */
+public final class NetworkLogStore {
+
+  private static final String TAG = "NetworkLogStore";
+
+  @VisibleForTesting static final String DIR = "network_logs";
+  private static final String INDEX_FILE = "index";
+  private static final String SEGMENT_PREFIX = "segment_";
+
+  public static final long DEFAULT_MAX_SEGMENT_BYTES = 4 * 1024 * 1024;
+  public static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+
+  private static final String PREFS_NAME = "network_log_store";
+  private static final String MAX_BYTES_KEY = "max_bytes";
+
+  private static final int SEGMENT_MAGIC = 0x4e4c5347; // NLSG
+  private static final int INDEX_MAGIC = 0x4e4c4958; // NLIX
+  private static final int SEGMENT_VERSION = 1;
+  /** Index version; version 1 didn't have time ranges, so its index is rebuilt. */
+  private static final int INDEX_VERSION = 2;
+  private static final int HEADER_SIZE = 8;
+  private static final int INDEX_ENTRY_SIZE = 48;
+
+  private static final int TAG_EOF = -1;
+  private static final int TAG_STRING = 1;
+  private static final int TAG_BATCH = 2;
+  private static final int TAG_DNS = 3;
+  private static final int TAG_CONNECT = 4;
+
+  private static final int NO_STRING = -1;
+  private static final int MAX_ADDRESSES = 255;
+
+  private static NetworkLogStore sInstance;
+
+  private final File mDir;
+  private final long mMaxSegmentBytes;
+  private long mMaxBytes;
+
+  // Loaded lazily, see loadIndex()
+  @Nullable private List<Batch> mBatches;
+
+  // Segment being appended to, and its dictionary; loaded lazily, see prepareSegment()
+  private int mSegment;
+  @Nullable private Map<String, Integer> mWriteDictionary;
+
+  // Strings of each segment, as read so far
+  private final Map<Integer, ReadDictionary> mReadDictionaries = new HashMap<>();
+
+  @VisibleForTesting
+  NetworkLogStore(@NonNull File dir, long maxSegmentBytes) {
+    this(dir, maxSegmentBytes, DEFAULT_MAX_BYTES);
+  }
+
+  @VisibleForTesting
+  NetworkLogStore(@NonNull File dir, long maxSegmentBytes, long maxBytes) {
+    mDir = dir;
+    mMaxSegmentBytes = maxSegmentBytes;
+    mMaxBytes = maxBytes;
+  }
+
+  /** Gets the store of the network logs saved by this app. */
+  public static synchronized NetworkLogStore getInstance(@NonNull Context context) {
+    if (sInstance == null) {
+      File parent = context.getExternalFilesDir(null);
+      if (parent == null) {
+        parent = context.getFilesDir();
+      }
+      long maxBytes =
+          context
+              .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+              .getLong(MAX_BYTES_KEY, DEFAULT_MAX_BYTES);
+      sInstance = new NetworkLogStore(new File(parent, DIR), DEFAULT_MAX_SEGMENT_BYTES, maxBytes);
+    }
+    return sInstance;
+  }
+
+  /**
+   * Sets the disk budget of the store returned by {@link #getInstance}, deleting the oldest
+   * batches if it's already over it.
+   */
+  public static void setDiskBudget(@NonNull Context context, long maxBytes) throws IOException {
+    if (maxBytes <= 0) {
+      throw new IllegalArgumentException("Invalid disk budget: " + maxBytes);
+    }
+    context
+        .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+        .edit()
+        .putLong(MAX_BYTES_KEY, maxBytes)
+        .apply();
+    getInstance(context).setMaxBytes(maxBytes);
+  }
+
+  @VisibleForTesting
+  synchronized void setMaxBytes(long maxBytes) throws IOException {
+    if (maxBytes <= 0) {
+      throw new IllegalArgumentException("Invalid disk budget: " + maxBytes);
+    }
+    mMaxBytes = maxBytes;
+    loadIndex();
+    applyRetention();
+  }
+
+  /** Gets the disk budget, in bytes. */
+  public synchronized long getMaxBytes() {
+    return mMaxBytes;
+  }
+
+  /** Gets the size of the segments, in bytes. */
+  public synchronized long getTotalBytes() {
+    long total = 0;
+    for (int segment : listSegments()) {
+      total += getSegmentFile(segment).length();
+    }
+    return total;
+  }
+
+  /** Appends a batch of network events, returning where it was saved. */
+  @NonNull
+  public synchronized Batch append(long batchToken, @NonNull List<NetworkLogRecord> records)
+      throws IOException {
+    loadIndex();
+    prepareSegment();
+    File file = getSegmentFile(mSegment);
+    long offset = file.length();
+    long savedTime = System.currentTimeMillis();
+    try (FileOutputStream fileStream = new FileOutputStream(file, /* append= */ true)) {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileStream));
+      out.writeByte(TAG_BATCH);
+      out.writeLong(batchToken);
+      out.writeLong(savedTime);
+      out.writeInt(records.size());
+      for (NetworkLogRecord record : records) {
+        writeRecord(out, record);
+      }
+      out.flush();
+      fileStream.getFD().sync();
+    } catch (IOException e) {
+      // The dictionary may contain strings that were not written
+      mWriteDictionary = null;
+      throw e;
+    }
+
+    long minTimestamp = records.isEmpty() ? savedTime : Long.MAX_VALUE;
+    long maxTimestamp = records.isEmpty() ? savedTime : Long.MIN_VALUE;
+    for (NetworkLogRecord record : records) {
+      minTimestamp = Math.min(minTimestamp, record.timestamp);
+      maxTimestamp = Math.max(maxTimestamp, record.timestamp);
+    }
+    Batch batch =
+        new Batch(
+            batchToken,
+            mSegment,
+            offset,
+            records.size(),
+            savedTime,
+            minTimestamp,
+            maxTimestamp);
+    appendToIndex(batch);
+    mBatches.add(batch);
+    Log.d(TAG, "Saved " + batch);
+    applyRetention();
+    return batch;
+  }
+
+  /** Gets all saved batches, from oldest to newest. */
+  @NonNull
+  public synchronized List<Batch> getBatches() throws IOException {
+    loadIndex();
+    return Collections.unmodifiableList(new ArrayList<>(mBatches));
+  }
+
+  /**
+   * Gets the saved batches with events logged between {@code fromMillis} and {@code toMillis}
+   * (inclusive), from oldest to newest. The batches may also have events outside of that range.
+   */
+  @NonNull
+  public synchronized List<Batch> getBatches(long fromMillis, long toMillis) throws IOException {
+    loadIndex();
+    List<Batch> batches = new ArrayList<>();
+    for (Batch batch : mBatches) {
+      if (batch.maxTimestamp >= fromMillis && batch.minTimestamp <= toMillis) {
+        batches.add(batch);
+      }
+    }
+    return batches;
+  }
+
+  /** Gets the last saved batch, or {@code null} if none was saved. */
+  @Nullable
+  public synchronized Batch getLatestBatch() throws IOException {
+    loadIndex();
+    return mBatches.isEmpty() ? null : mBatches.get(mBatches.size() - 1);
+  }
+
+  /** Gets the last saved batch with the given token, or {@code null} if there is none. */
+  @Nullable
+  public synchronized Batch findBatch(long batchToken) throws IOException {
+    loadIndex();
+    for (int i = mBatches.size() - 1; i >= 0; i--) {
+      if (mBatches.get(i).token == batchToken) {
+        return mBatches.get(i);
+      }
+    }
+    return null;
+  }
+
+  /** Reads all events of a batch. */
+  @NonNull
+  public List<NetworkLogRecord> readBatch(@NonNull Batch batch) throws IOException {
+    return readBatch(batch, 0, batch.eventCount);
+  }
+
+  /** Reads up to {@code count} events of a batch, starting at event {@code from}. */
+  @NonNull
+  public synchronized List<NetworkLogRecord> readBatch(@NonNull Batch batch, int from, int count)
+      throws IOException {
+    int end = Math.min(batch.eventCount, from + count);
+    try (SegmentReader reader = openBatchReader(batch)) {
+      return readEvents(reader, batch, /* first= */ 0, from, end);
+    }
+  }
+
+  /**
+   * Reads up to {@code count} events of a batch, starting at event {@code from}, seeking to the
+   * closest offset of {@code offsets} (as returned by {@link #indexBatch} with the same {@code
+   * interval}) instead of reading the batch from its header.
+   */
+  @NonNull
+  public synchronized List<NetworkLogRecord> readBatch(
+      @NonNull Batch batch, int from, int count, @NonNull long[] offsets, int interval)
+      throws IOException {
+    int end = Math.min(batch.eventCount, from + count);
+    if (from >= end) {
+      return new ArrayList<>();
+    }
+    int checkpoint = from / interval;
+    try (SegmentReader reader = openReader(batch.segment, offsets[checkpoint])) {
+      return readEvents(reader, batch, /* first= */ checkpoint * interval, from, end);
+    }
+  }
+
+  /**
+   * Reads all events of a batch in one pass, passing them to {@code visitor} if given (events are
+   * only decoded then), and returns the offsets where every {@code interval}-th event starts, to
+   * be used by {@link #readBatch(Batch, int, int, long[], int)}.
+   */
+  @NonNull
+  public synchronized long[] indexBatch(
+      @NonNull Batch batch, int interval, @Nullable EventVisitor visitor) throws IOException {
+    long[] offsets = new long[(batch.eventCount + interval - 1) / interval];
+    try (SegmentReader reader = openBatchReader(batch)) {
+      // Strings are written right before the first event using them, so an event "starts" after
+      // the record before it that isn't a string.
+      long start = reader.position();
+      for (int i = 0; i < batch.eventCount; ) {
+        int tag = reader.next(/* decode= */ visitor != null);
+        if (tag == TAG_EOF) {
+          throw new EOFException("Truncated " + batch + " at event " + i);
+        }
+        if (tag == TAG_DNS || tag == TAG_CONNECT) {
+          if (i % interval == 0) {
+            offsets[i / interval] = start;
+          }
+          if (visitor != null) {
+            visitor.visit(i, reader.record);
+          }
+          i++;
+        }
+        if (tag != TAG_STRING) {
+          start = reader.position();
+        }
+      }
+    }
+    return offsets;
+  }
+
+  /** Receives the events of a batch, see {@link #indexBatch}. */
+  public interface EventVisitor {
+    void visit(int index, @NonNull NetworkLogRecord record);
+  }
+
+  /** Opens a reader on the header of a batch, checking it's there. */
+  private SegmentReader openBatchReader(Batch batch) throws IOException {
+    SegmentReader reader = openReader(batch.segment, batch.offset);
+    try {
+      if (reader.next() != TAG_BATCH || reader.batchToken != batch.token) {
+        throw new IOException("No header of " + batch + " at offset " + batch.offset);
+      }
+    } catch (IOException e) {
+      reader.close();
+      throw e;
+    }
+    return reader;
+  }
+
+  /**
+   * Reads the events {@code from} (inclusive) to {@code end} (exclusive) of a batch, with {@code
+   * reader} positioned right before event {@code first}.
+   */
+  private static List<NetworkLogRecord> readEvents(
+      SegmentReader reader, Batch batch, int first, int from, int end) throws IOException {
+    List<NetworkLogRecord> records = new ArrayList<>(Math.max(0, end - from));
+    for (int i = first; i < end; ) {
+      int tag = reader.next(/* decode= */ i >= from);
+      if (tag == TAG_EOF) {
+        throw new EOFException("Truncated " + batch + " at event " + i);
+      }
+      if (tag == TAG_DNS || tag == TAG_CONNECT) {
+        if (i >= from) {
+          records.add(reader.record);
+        }
+        i++;
+      }
+    }
+    return records;
+  }
+
+  private void writeRecord(DataOutputStream out, NetworkLogRecord record) throws IOException {
+    int packageId = intern(out, record.packageName);
+    if (record.type == NetworkLogRecord.TYPE_DNS) {
+      int hostnameId = intern(out, record.hostname);
+      out.writeByte(TAG_DNS);
+      out.writeLong(record.id);
+      out.writeLong(record.timestamp);
+      out.writeInt(packageId);
+      out.writeInt(hostnameId);
+      out.writeInt(record.totalResolvedAddressCount);
+      int addresses = Math.min(record.addresses.size(), MAX_ADDRESSES);
+      out.writeByte(addresses);
+      for (int i = 0; i < addresses; i++) {
+        writeAddress(out, record.addresses.get(i));
+      }
+    } else {
+      out.writeByte(TAG_CONNECT);
+      out.writeLong(record.id);
+      out.writeLong(record.timestamp);
+      out.writeInt(packageId);
+      out.writeShort(record.port);
+      writeAddress(out, record.addresses.isEmpty() ? null : record.addresses.get(0));
+    }
+  }
+
+  private static void writeAddress(DataOutputStream out, @Nullable InetAddress address)
+      throws IOException {
+    if (address == null) {
+      out.writeByte(0);
+      return;
+    }
+    byte[] bytes = address.getAddress();
+    out.writeByte(bytes.length);
+    out.write(bytes);
+  }
+
+  /** Gets the id of a string, writing it to the segment if it's not there yet. */
+  private int intern(DataOutputStream out, @Nullable String string) throws IOException {
+    if (string == null) {
+      return NO_STRING;
+    }
+    Integer id = mWriteDictionary.get(string);
+    if (id == null) {
+      id = mWriteDictionary.size();
+      out.writeByte(TAG_STRING);
+      out.writeUTF(string);
+      mWriteDictionary.put(string, id);
+    }
+    return id;
+  }
+
+  /** Makes sure {@link #mSegment} can be appended to, and its dictionary is loaded. */
+  private void prepareSegment() throws IOException {
+    if (mWriteDictionary == null) {
+      int last = getLastSegment();
+      if (last == 0) {
+        startSegment(1);
+      } else {
+        mSegment = last;
+        mWriteDictionary = recoverSegment(last);
+        if (mWriteDictionary == null) {
+          startSegment(last + 1);
+        }
+      }
+    }
+    if (getSegmentFile(mSegment).length() >= mMaxSegmentBytes) {
+      startSegment(mSegment + 1);
+    }
+  }
+
+  private void startSegment(int segment) throws IOException {
+    mDir.mkdirs();
+    try (DataOutputStream out =
+        new DataOutputStream(new FileOutputStream(getSegmentFile(segment)))) {
+      out.writeInt(SEGMENT_MAGIC);
+      out.writeInt(SEGMENT_VERSION);
+    }
+    Log.i(TAG, "Started segment " + segment);
+    mSegment = segment;
+    mWriteDictionary = new HashMap<>();
+  }
+
+  /**
+   * Reads the dictionary of a segment, truncating whatever follows its last complete record.
+   *
+   * @return dictionary, or {@code null} if the segment header is invalid.
+   */
+  @Nullable
+  private Map<String, Integer> recoverSegment(int segment) throws IOException {
+    File file = getSegmentFile(segment);
+    List<String> strings = new ArrayList<>();
+    long lastComplete;
+    try (SegmentReader reader = new SegmentReader(file, 0, strings, 0)) {
+      if (!reader.readHeader()) {
+        Log.w(TAG, "Invalid header on " + file);
+        return null;
+      }
+      lastComplete = reader.position();
+      try {
+        while (reader.next(/* decode= */ false) != TAG_EOF) {
+          lastComplete = reader.position();
+        }
+      } catch (IOException e) {
+        Log.w(TAG, "Corrupted record on " + file + " at offset " + lastComplete, e);
+        // Drop the strings of the corrupted record, if any
+        strings = reader.stringsBefore(lastComplete);
+      }
+    }
+    if (lastComplete < file.length()) {
+      Log.w(TAG, "Truncating " + file + " from " + file.length() + " to " + lastComplete);
+      try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+        raf.setLength(lastComplete);
+      }
+      mReadDictionaries.remove(segment);
+    }
+    Map<String, Integer> dictionary = new HashMap<>(strings.size());
+    for (int i = 0; i < strings.size(); i++) {
+      dictionary.put(strings.get(i), i);
+    }
+    return dictionary;
+  }
+
+  /** Opens a reader at {@code offset} of a segment, with the strings written before it. */
+  private SegmentReader openReader(int segment, long offset) throws IOException {
+    ReadDictionary dictionary = mReadDictionaries.get(segment);
+    if (dictionary == null) {
+      dictionary = new ReadDictionary();
+      mReadDictionaries.put(segment, dictionary);
+    }
+    File file = getSegmentFile(segment);
+    if (dictionary.scannedOffset < offset) {
+      // Read the strings between what was already scanned and the offset
+      try (SegmentReader scanner =
+          new SegmentReader(file, dictionary.scannedOffset, dictionary.strings, dictionary)) {
+        if (dictionary.scannedOffset == 0 && !scanner.readHeader()) {
+          throw new IOException("Invalid header on " + file);
+        }
+        while (scanner.position() < offset) {
+          if (scanner.next(/* decode= */ false) == TAG_EOF) {
+            throw new EOFException("Offset " + offset + " is past the end of " + file);
+          }
+        }
+      }
+    }
+    return new SegmentReader(file, offset, dictionary.strings, dictionary);
+  }
+
+  private void loadIndex() throws IOException {
+    if (mBatches != null) {
+      return;
+    }
+    File file = getIndexFile();
+    List<Batch> batches = new ArrayList<>();
+    if (!file.exists()) {
+      if (getLastSegment() != 0) {
+        mBatches = rebuildIndex();
+        return;
+      }
+      mBatches = batches;
+      return;
+    }
+    long entries = (file.length() - HEADER_SIZE) / INDEX_ENTRY_SIZE;
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+        Log.w(TAG, "Invalid or old index header, rebuilding it");
+        mBatches = rebuildIndex();
+        return;
+      }
+      for (long i = 0; i < entries; i++) {
+        batches.add(
+            new Batch(
+                /* token= */ in.readLong(),
+                /* segment= */ in.readInt(),
+                /* offset= */ in.readLong(),
+                /* eventCount= */ in.readInt(),
+                /* savedTime= */ in.readLong(),
+                /* minTimestamp= */ in.readLong(),
+                /* maxTimestamp= */ in.readLong()));
+      }
+    }
+    long expectedLength = HEADER_SIZE + entries * INDEX_ENTRY_SIZE;
+    if (file.length() != expectedLength) {
+      Log.w(TAG, "Truncating partial index entry");
+      try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+        raf.setLength(expectedLength);
+      }
+    }
+    mBatches = batches;
+  }
+
+  /** Rebuilds the index from the batch headers and events of all segments. */
+  private List<Batch> rebuildIndex() throws IOException {
+    List<Batch> batches = new ArrayList<>();
+    for (int segment : listSegments()) {
+      File file = getSegmentFile(segment);
+      try (SegmentReader reader = new SegmentReader(file, 0, new ArrayList<>(), 0)) {
+        if (!reader.readHeader()) {
+          continue;
+        }
+        boolean inBatch = false;
+        long batchOffset = 0;
+        int events = 0;
+        long minTimestamp = 0;
+        long maxTimestamp = 0;
+        long offset = reader.position();
+        int tag;
+        while ((tag = reader.next(/* decode= */ false)) != TAG_EOF) {
+          if (tag == TAG_BATCH) {
+            inBatch = true;
+            batchOffset = offset;
+            events = 0;
+            minTimestamp = Long.MAX_VALUE;
+            maxTimestamp = Long.MIN_VALUE;
+          } else if (tag != TAG_STRING && inBatch) {
+            events++;
+            minTimestamp = Math.min(minTimestamp, reader.eventTimestamp);
+            maxTimestamp = Math.max(maxTimestamp, reader.eventTimestamp);
+          }
+          if (inBatch && events == reader.batchEventCount) {
+            boolean empty = events == 0;
+            batches.add(
+                new Batch(
+                    reader.batchToken,
+                    segment,
+                    batchOffset,
+                    events,
+                    reader.batchSavedTime,
+                    empty ? reader.batchSavedTime : minTimestamp,
+                    empty ? reader.batchSavedTime : maxTimestamp));
+            inBatch = false;
+          }
+          offset = reader.position();
+        }
+      } catch (IOException e) {
+        // Keep the complete batches read before the error
+        Log.w(TAG, "Error rebuilding index from " + file, e);
+      }
+    }
+    Log.i(TAG, "Rebuilt index with " + batches.size() + " batches");
+    writeIndex(batches);
+    return batches;
+  }
+
+  /** Replaces the index with one listing {@code batches}. */
+  private void writeIndex(List<Batch> batches) throws IOException {
+    mDir.mkdirs();
+    File file = getIndexFile();
+    File newFile = new File(mDir, INDEX_FILE + ".new");
+    try (FileOutputStream fileStream = new FileOutputStream(newFile)) {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileStream));
+      out.writeInt(INDEX_MAGIC);
+      out.writeInt(INDEX_VERSION);
+      for (Batch batch : batches) {
+        writeIndexEntry(out, batch);
+      }
+      out.flush();
+      fileStream.getFD().sync();
+    }
+    if (!newFile.renameTo(file)) {
+      throw new IOException("Cannot replace " + file);
+    }
+  }
+
+  /**
+   * Deletes the oldest segments, and their batches, until the store fits its disk budget. The
+   * segment being appended to is always kept.
+   */
+  private void applyRetention() throws IOException {
+    List<Integer> segments = listSegments();
+    long total = 0;
+    for (int segment : segments) {
+      total += getSegmentFile(segment).length();
+    }
+    int firstKept = segments.isEmpty() ? 0 : segments.get(0);
+    for (int i = 0; i < segments.size() - 1 && total > mMaxBytes; i++) {
+      total -= getSegmentFile(segments.get(i)).length();
+      firstKept = segments.get(i + 1);
+    }
+    if (segments.isEmpty() || firstKept == segments.get(0)) {
+      return;
+    }
+    // Drop the batches from the index first, so that it never points to deleted segments
+    int evictedBatches = 0;
+    while (evictedBatches < mBatches.size() && mBatches.get(evictedBatches).segment < firstKept) {
+      evictedBatches++;
+    }
+    List<Batch> kept = new ArrayList<>(mBatches.subList(evictedBatches, mBatches.size()));
+    writeIndex(kept);
+    mBatches = kept;
+    for (int segment : segments) {
+      if (segment >= firstKept) {
+        break;
+      }
+      if (!getSegmentFile(segment).delete()) {
+        Log.w(TAG, "Cannot delete segment " + segment);
+      }
+      mReadDictionaries.remove(segment);
+    }
+    Log.i(
+        TAG,
+        "Evicted "
+            + evictedBatches
+            + " batches in segments before "
+            + firstKept
+            + " to fit "
+            + mMaxBytes
+            + " bytes");
+  }
+
+  private void appendToIndex(Batch batch) throws IOException {
+    File file = getIndexFile();
+    boolean exists = file.exists();
+    try (DataOutputStream out =
+        new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(file, /* append= */ true)))) {
+      if (!exists) {
+        out.writeInt(INDEX_MAGIC);
+        out.writeInt(INDEX_VERSION);
+      }
+      writeIndexEntry(out, batch);
+    }
+  }
+
+  private static void writeIndexEntry(DataOutputStream out, Batch batch) throws IOException {
+    out.writeLong(batch.token);
+    out.writeInt(batch.segment);
+    out.writeLong(batch.offset);
+    out.writeInt(batch.eventCount);
+    out.writeLong(batch.savedTime);
+    out.writeLong(batch.minTimestamp);
+    out.writeLong(batch.maxTimestamp);
+  }
+
+  /** Gets the number of the last segment, or 0 if there is none. */
+  private int getLastSegment() {
+    List<Integer> segments = listSegments();
+    return segments.isEmpty() ? 0 : segments.get(segments.size() - 1);
+  }
+
+  /** Gets the numbers of the segment files, in ascending order. */
+  private List<Integer> listSegments() {
+    List<Integer> segments = new ArrayList<>();
+    String[] names = mDir.list();
+    if (names == null) {
+      return segments;
+    }
+    for (String name : names) {
+      if (name.startsWith(SEGMENT_PREFIX)) {
+        try {
+          segments.add(Integer.parseInt(name.substring(SEGMENT_PREFIX.length())));
+        } catch (NumberFormatException e) {
+          Log.w(TAG, "Ignoring unexpected file " + name);
+        }
+      }
+    }
+    Collections.sort(segments);
+    return segments;
+  }
+
+  @VisibleForTesting
+  File getSegmentFile(int segment) {
+    return new File(mDir, String.format("%s%06d", SEGMENT_PREFIX, segment));
+  }
+
+  private File getIndexFile() {
+    return new File(mDir, INDEX_FILE);
+  }
+
+  /** Location and size of a saved batch of network events. */
+  public static final class Batch {
+    public final long token;
+    public final int segment;
+    public final long offset;
+    public final int eventCount;
+    public final long savedTime;
+
+    /** Time range of the events, or {@link #savedTime} if the batch has none. */
+    public final long minTimestamp;
+
+    public final long maxTimestamp;
+
+    private Batch(
+        long token,
+        int segment,
+        long offset,
+        int eventCount,
+        long savedTime,
+        long minTimestamp,
+        long maxTimestamp) {
+      this.token = token;
+      this.segment = segment;
+      this.offset = offset;
+      this.eventCount = eventCount;
+      this.savedTime = savedTime;
+      this.minTimestamp = minTimestamp;
+      this.maxTimestamp = maxTimestamp;
+    }
+
+    @Override
+    public String toString() {
+      return "Batch[token="
+          + token
+          + ", segment="
+          + segment
+          + ", offset="
+          + offset
+          + ", events="
+          + eventCount
+          + ", time="
+          + minTimestamp
+          + ".."
+          + maxTimestamp
+          + "]";
+    }
+  }
+
+  /** Strings of a segment, read up to {@link #scannedOffset}. */
+  private static final class ReadDictionary {
+    private final List<String> strings = new ArrayList<>();
+    private long scannedOffset;
+  }
+
+  /** Reads the records of a segment sequentially. */
+  private static final class SegmentReader implements Closeable {
+    private final CountingInputStream mCounter;
+    private final DataInputStream mIn;
+    private final long mStart;
+    private final List<String> mStrings;
+    // Strings before this offset are already in mStrings
+    private final long mStringsEnd;
+    private final List<Long> mStringOffsets = new ArrayList<>();
+    @Nullable private final ReadDictionary mDictionary;
+    // End of the last record that was completely read
+    private long mCompleteEnd;
+
+    // Fields of the last record read by next()
+    private long batchToken;
+    private long batchSavedTime;
+    private int batchEventCount;
+    private long eventTimestamp;
+    @Nullable private NetworkLogRecord record;
+
+    private SegmentReader(File file, long offset, List<String> strings, long stringsEnd)
+        throws IOException {
+      this(file, offset, strings, stringsEnd, null);
+    }
+
+    private SegmentReader(File file, long offset, List<String> strings, ReadDictionary dictionary)
+        throws IOException {
+      this(file, offset, strings, dictionary.scannedOffset, dictionary);
+    }
+
+    private SegmentReader(
+        File file,
+        long offset,
+        List<String> strings,
+        long stringsEnd,
+        @Nullable ReadDictionary dictionary)
+        throws IOException {
+      FileInputStream fileStream = new FileInputStream(file);
+      try {
+        fileStream.getChannel().position(offset);
+      } catch (IOException e) {
+        fileStream.close();
+        throw e;
+      }
+      mCounter = new CountingInputStream(new BufferedInputStream(fileStream));
+      mIn = new DataInputStream(mCounter);
+      mStart = offset;
+      mStrings = strings;
+      mStringsEnd = stringsEnd;
+      mDictionary = dictionary;
+      mCompleteEnd = offset;
+    }
+
+    private long position() {
+      return mStart + mCounter.getCount();
+    }
+
+    private boolean readHeader() throws IOException {
+      try {
+        return mIn.readInt() == SEGMENT_MAGIC && mIn.readInt() <= SEGMENT_VERSION;
+      } catch (EOFException e) {
+        return false;
+      }
+    }
+
+    private int next() throws IOException {
+      return next(/* decode= */ true);
+    }
+
+    /**
+     * Reads the next record, returning its tag, or {@link #TAG_EOF} if there are no more records.
+     *
+     * @param decode whether events should be decoded into {@link #record}, or just skipped.
+     */
+    private int next(boolean decode) throws IOException {
+      long start = position();
+      int tag = mIn.read();
+      if (tag == -1) {
+        return TAG_EOF;
+      }
+      switch (tag) {
+        case TAG_STRING:
+          String string = mIn.readUTF();
+          if (start >= mStringsEnd) {
+            mStrings.add(string);
+            mStringOffsets.add(start);
+          }
+          break;
+        case TAG_BATCH:
+          batchToken = mIn.readLong();
+          batchSavedTime = mIn.readLong();
+          batchEventCount = mIn.readInt();
+          break;
+        case TAG_DNS:
+          readDns(decode);
+          break;
+        case TAG_CONNECT:
+          readConnect(decode);
+          break;
+        default:
+          throw new IOException("Invalid record " + tag + " at offset " + start);
+      }
+      mCompleteEnd = position();
+      return tag;
+    }
+
+    private void readDns(boolean decode) throws IOException {
+      long id = mIn.readLong();
+      long timestamp = mIn.readLong();
+      eventTimestamp = timestamp;
+      int packageId = mIn.readInt();
+      int hostnameId = mIn.readInt();
+      int totalResolvedAddressCount = mIn.readInt();
+      int count = mIn.readUnsignedByte();
+      List<InetAddress> addresses = decode ? new ArrayList<>(count) : null;
+      for (int i = 0; i < count; i++) {
+        InetAddress address = readAddress(decode);
+        if (decode && address != null) {
+          addresses.add(address);
+        }
+      }
+      record =
+          decode
+              ? NetworkLogRecord.dns(
+                  id,
+                  timestamp,
+                  getString(packageId),
+                  getString(hostnameId),
+                  addresses,
+                  totalResolvedAddressCount)
+              : null;
+    }
+
+    private void readConnect(boolean decode) throws IOException {
+      long id = mIn.readLong();
+      long timestamp = mIn.readLong();
+      eventTimestamp = timestamp;
+      int packageId = mIn.readInt();
+      int port = mIn.readUnsignedShort();
+      InetAddress address = readAddress(decode);
+      record =
+          decode
+              ? NetworkLogRecord.connect(id, timestamp, getString(packageId), address, port)
+              : null;
+    }
+
+    @Nullable
+    private InetAddress readAddress(boolean decode) throws IOException {
+      int length = mIn.readUnsignedByte();
+      if (length == 0) {
+        return null;
+      }
+      if (!decode) {
+        mIn.readFully(new byte[length]);
+        return null;
+      }
+      byte[] bytes = new byte[length];
+      mIn.readFully(bytes);
+      return InetAddress.getByAddress(bytes);
+    }
+
+    @Nullable
+    private String getString(int id) throws IOException {
+      if (id == NO_STRING) {
+        return null;
+      }
+      if (id < 0 || id >= mStrings.size()) {
+        throw new IOException("Invalid string id " + id);
+      }
+      return mStrings.get(id);
+    }
+
+    /** Gets the strings that were written before {@code offset}. */
+    private List<String> stringsBefore(long offset) {
+      int count = mStrings.size();
+      for (int i = mStringOffsets.size() - 1; i >= 0 && mStringOffsets.get(i) >= offset; i--) {
+        count--;
+      }
+      return new ArrayList<>(mStrings.subList(0, count));
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (mDictionary != null) {
+        mDictionary.scannedOffset = Math.max(mDictionary.scannedOffset, mCompleteEnd);
+      }
+      mIn.close();
+    }
+  }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy.securitylogs;
+
+import android.annotation.TargetApi;
+import android.app.admin.SecurityLog;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build.VERSION_CODES;
+import android.util.Log;
+import android.util.SparseArray;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Raises alerts when security events of a tag come in bursts, such as failed keyguard
+ * authentication attempts or ADB shell commands.
+ *
+ * <p>Each {@link Rule} counts its events in a {@link SlidingWindowCounter}, so feeding an event
+ * costs the same however many events came before it, and the detector can run as events are
+ * retrieved. A rule alerts when its count reaches its threshold, then stays quiet for a window so
+ * that one burst raises one alert.
+ *
+ * <p>Thresholds and windows are kept in shared preferences, see {@link #setRule}.
+ */
+@TargetApi(VERSION_CODES.N)
+public final class SecurityEventAnomalyDetector {
+
+  private static final String TAG = "SecurityEventAnomaly";
+
+  private static final String PREFS_NAME = "security_event_anomaly_rules";
+  private static final String THRESHOLD_SUFFIX = "_threshold";
+  private static final String WINDOW_SUFFIX = "_window_seconds";
+
+  /** Buckets of each sliding window. */
+  @VisibleForTesting static final int BUCKETS = 60;
+
+  /** The rules used when none were changed, see {@link #getRules}. */
+  public static final List<Rule> DEFAULT_RULES =
+      Collections.unmodifiableList(
+          Arrays.asList(
+              // Field 0 is 1 for successful attempts and 0 for failed ones
+              new Rule(
+                  "keyguard_auth_failures",
+                  SecurityLog.TAG_KEYGUARD_DISMISS_AUTH_ATTEMPT,
+                  /* dataIndex= */ 0,
+                  /* dataValue= */ "0",
+                  /* threshold= */ 5,
+                  TimeUnit.MINUTES.toSeconds(5)),
+              new Rule(
+                  "adb_shell_commands",
+                  SecurityLog.TAG_ADB_SHELL_CMD,
+                  SecurityLogQuery.NO_DATA_INDEX,
+                  /* dataValue= */ null,
+                  /* threshold= */ 20,
+                  TimeUnit.MINUTES.toSeconds(1)),
+              new Rule(
+                  "cert_validation_failures",
+                  SecurityLog.TAG_CERT_VALIDATION_FAILURE,
+                  SecurityLogQuery.NO_DATA_INDEX,
+                  /* dataValue= */ null,
+                  /* threshold= */ 10,
+                  TimeUnit.MINUTES.toSeconds(10)),
+              new Rule(
+                  "log_buffer_critical",
+                  SecurityLog.TAG_LOG_BUFFER_SIZE_CRITICAL,
+                  SecurityLogQuery.NO_DATA_INDEX,
+                  /* dataValue= */ null,
+                  /* threshold= */ 1,
+                  TimeUnit.HOURS.toSeconds(1))));
+
+  private static SecurityEventAnomalyDetector sInstance;
+
+  /** States of the enabled rules, by tag. */
+  private final SparseArray<List<RuleState>> mStatesByTag = new SparseArray<>();
+
+  @VisibleForTesting
+  SecurityEventAnomalyDetector(@NonNull List<Rule> rules) {
+    for (Rule rule : rules) {
+      if (!rule.isEnabled()) {
+        continue;
+      }
+      List<RuleState> states = mStatesByTag.get(rule.tag);
+      if (states == null) {
+        states = new ArrayList<>(1);
+        mStatesByTag.put(rule.tag, states);
+      }
+      states.add(new RuleState(rule));
+    }
+  }
+
+  /** Gets the detector using the rules of {@link #getRules}. */
+  public static synchronized SecurityEventAnomalyDetector getInstance(@NonNull Context context) {
+    if (sInstance == null) {
+      sInstance = new SecurityEventAnomalyDetector(getRules(context));
+    }
+    return sInstance;
+  }
+
+  /** Feeds an event, returning the alerts it raised. */
+  @NonNull
+  public synchronized List<Alert> onEvent(@NonNull SecurityLogRecord record) {
+    List<Alert> alerts = Collections.emptyList();
+    List<RuleState> states = mStatesByTag.get(record.tag);
+    if (states == null) {
+      return alerts;
+    }
+    long timeMillis = TimeUnit.NANOSECONDS.toMillis(record.timeNanos);
+    for (RuleState state : states) {
+      Alert alert = state.onEvent(record, timeMillis);
+      if (alert != null) {
+        if (alerts.isEmpty()) {
+          alerts = new ArrayList<>(1);
+        }
+        alerts.add(alert);
+      }
+    }
+    return alerts;
+  }
+
+  /** Feeds events, in the order they were logged, returning the alerts they raised. */
+  @NonNull
+  public synchronized List<Alert> onEvents(@NonNull List<SecurityLogRecord> records) {
+    List<Alert> alerts = new ArrayList<>();
+    for (SecurityLogRecord record : records) {
+      alerts.addAll(onEvent(record));
+    }
+    if (!alerts.isEmpty()) {
+      Log.i(TAG, "Raised " + alerts.size() + " alerts for " + records.size() + " events");
+    }
+    return alerts;
+  }
+
+  /** Gets the rules, with the thresholds and windows set by {@link #setRule}. */
+  @NonNull
+  public static List<Rule> getRules(@NonNull Context context) {
+    SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    List<Rule> rules = new ArrayList<>(DEFAULT_RULES.size());
+    for (Rule rule : DEFAULT_RULES) {
+      rules.add(
+          rule.withLimits(
+              prefs.getInt(rule.name + THRESHOLD_SUFFIX, rule.threshold),
+              prefs.getLong(rule.name + WINDOW_SUFFIX, rule.windowSeconds)));
+    }
+    return rules;
+  }
+
+  /**
+   * Changes the threshold and window of the rule named {@code name}. A threshold of {@code 0}
+   * disables the rule. The counters of all rules restart.
+   *
+   * @throws IllegalArgumentException if there is no such rule or the limits are invalid
+   */
+  public static synchronized void setRule(
+      @NonNull Context context, @NonNull String name, int threshold, long windowSeconds) {
+    if (threshold < 0 || windowSeconds <= 0) {
+      throw new IllegalArgumentException(
+          "Invalid threshold or window: " + threshold + ", " + windowSeconds);
+    }
+    boolean found = false;
+    for (Rule rule : DEFAULT_RULES) {
+      found |= rule.name.equals(name);
+    }
+    if (!found) {
+      throw new IllegalArgumentException("Unknown rule: " + name);
+    }
+    context
+        .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+        .edit()
+        .putInt(name + THRESHOLD_SUFFIX, threshold)
+        .putLong(name + WINDOW_SUFFIX, windowSeconds)
+        .apply();
+    sInstance = null;
+  }
+
+  /** Events of a tag to count, and how many of them in a window raise an alert. */
+  public static final class Rule {
+    public final String name;
+    public final int tag;
+
+    /** Data field the events must have, see {@link SecurityLogQuery#fieldEquals}. */
+    public final int dataIndex;
+
+    @Nullable public final String dataValue;
+
+    /** Events in the window that raise an alert, or {@code 0} if the rule is disabled. */
+    public final int threshold;
+
+    public final long windowSeconds;
+
+    public Rule(
+        @NonNull String name,
+        int tag,
+        int dataIndex,
+        @Nullable String dataValue,
+        int threshold,
+        long windowSeconds) {
+      this.name = name;
+      this.tag = tag;
+      this.dataIndex = dataIndex;
+      this.dataValue = dataValue;
+      this.threshold = threshold;
+      this.windowSeconds = windowSeconds;
+    }
+
+    public boolean isEnabled() {
+      return threshold > 0;
+    }
+
+    boolean matches(@NonNull SecurityLogRecord record) {
+      return record.tag == tag
+          && (dataIndex == SecurityLogQuery.NO_DATA_INDEX
+              || SecurityLogQuery.fieldEquals(record.data, dataIndex, dataValue));
+    }
+
+    Rule withLimits(int threshold, long windowSeconds) {
+      return new Rule(name, tag, dataIndex, dataValue, threshold, windowSeconds);
+    }
+
+    @Override
+    public String toString() {
+      return name
+          + ": "
+          + (isEnabled() ? threshold + " " : "disabled, ")
+          + SecurityEventFormatter.getTagName(tag)
+          + (dataIndex == SecurityLogQuery.NO_DATA_INDEX
+              ? ""
+              : " with data[" + dataIndex + "]=" + dataValue)
+          + " events in "
+          + windowSeconds
+          + "s";
+    }
+  }
+
+  /** Raised when a rule reaches its threshold. */
+  public static final class Alert {
+    public final Rule rule;
+
+    /** Events in the window when the alert was raised. */
+    public final int count;
+
+    /** Time of the event that raised the alert. */
+    public final long timeMillis;
+
+    Alert(Rule rule, int count, long timeMillis) {
+      this.rule = rule;
+      this.count = count;
+      this.timeMillis = timeMillis;
+    }
+
+    @Override
+    public String toString() {
+      return "Alert[" + rule.name + ", count=" + count + ", time=" + timeMillis + "]";
+    }
+  }
+
+  private static final class RuleState {
+    private final Rule mRule;
+    private final long mWindowMillis;
+    private final SlidingWindowCounter mCounter;
+    private long mLastAlertMillis = Long.MIN_VALUE;
+
+    RuleState(Rule rule) {
+      mRule = rule;
+      mWindowMillis = TimeUnit.SECONDS.toMillis(rule.windowSeconds);
+      mCounter = new SlidingWindowCounter(mWindowMillis, BUCKETS);
+    }
+
+    @Nullable
+    Alert onEvent(SecurityLogRecord record, long timeMillis) {
+      if (!mRule.matches(record)) {
+        return null;
+      }
+      int count = mCounter.add(timeMillis);
+      boolean quiet =
+          mLastAlertMillis != Long.MIN_VALUE && timeMillis - mLastAlertMillis < mWindowMillis;
+      if (count < mRule.threshold || quiet) {
+        return null;
+      }
+      mLastAlertMillis = timeMillis;
+      return new Alert(mRule, count, timeMillis);
+    }
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy.securitylogs;
+
+import android.annotation.TargetApi;
+import android.app.admin.SecurityLog;
+import android.os.Build.VERSION_CODES;
+import android.util.SparseArray;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import java.text.DateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/** Turns security events into the text shown to the user. */
+@TargetApi(VERSION_CODES.N)
+public final class SecurityEventFormatter {
+
+  private static final SparseArray<String> TAG_NAMES = new SparseArray<>();
+
+  static {
+    TAG_NAMES.put(SecurityLog.TAG_ADB_SHELL_INTERACTIVE, "ADB_SHELL_INTERACTIVE");
+    TAG_NAMES.put(SecurityLog.TAG_ADB_SHELL_CMD, "ADB_SHELL_CMD");
+    TAG_NAMES.put(SecurityLog.TAG_SYNC_RECV_FILE, "SYNC_RECV_FILE");
+    TAG_NAMES.put(SecurityLog.TAG_SYNC_SEND_FILE, "SYNC_SEND_FILE");
+    TAG_NAMES.put(SecurityLog.TAG_APP_PROCESS_START, "APP_PROCESS_START");
+    TAG_NAMES.put(SecurityLog.TAG_KEYGUARD_DISMISSED, "KEYGUARD_DISMISSED");
+    TAG_NAMES.put(SecurityLog.TAG_KEYGUARD_DISMISS_AUTH_ATTEMPT, "KEYGUARD_DISMISS_AUTH_ATTEMPT");
+    TAG_NAMES.put(SecurityLog.TAG_KEYGUARD_SECURED, "KEYGUARD_SECURED");
+    TAG_NAMES.put(SecurityLog.TAG_OS_STARTUP, "OS_STARTUP");
+    TAG_NAMES.put(SecurityLog.TAG_OS_SHUTDOWN, "OS_SHUTDOWN");
+    TAG_NAMES.put(SecurityLog.TAG_LOGGING_STARTED, "LOGGING_STARTED");
+    TAG_NAMES.put(SecurityLog.TAG_LOGGING_STOPPED, "LOGGING_STOPPED");
+    TAG_NAMES.put(SecurityLog.TAG_MEDIA_MOUNT, "MEDIA_MOUNT");
+    TAG_NAMES.put(SecurityLog.TAG_MEDIA_UNMOUNT, "MEDIA_UNMOUNT");
+    TAG_NAMES.put(SecurityLog.TAG_LOG_BUFFER_SIZE_CRITICAL, "LOG_BUFFER_SIZE_CRITICAL");
+    TAG_NAMES.put(SecurityLog.TAG_PASSWORD_EXPIRATION_SET, "PASSWORD_EXPIRATION_SET");
+    TAG_NAMES.put(SecurityLog.TAG_PASSWORD_COMPLEXITY_SET, "PASSWORD_COMPLEXITY_SET");
+    TAG_NAMES.put(SecurityLog.TAG_PASSWORD_HISTORY_LENGTH_SET, "PASSWORD_HISTORY_LENGTH_SET");
+    TAG_NAMES.put(SecurityLog.TAG_MAX_SCREEN_LOCK_TIMEOUT_SET, "MAX_SCREEN_LOCK_TIMEOUT_SET");
+    TAG_NAMES.put(SecurityLog.TAG_MAX_PASSWORD_ATTEMPTS_SET, "MAX_PASSWORD_ATTEMPTS_SET");
+    TAG_NAMES.put(SecurityLog.TAG_KEYGUARD_DISABLED_FEATURES_SET, "KEYGUARD_DISABLED_FEATURES_SET");
+    TAG_NAMES.put(SecurityLog.TAG_REMOTE_LOCK, "REMOTE_LOCK");
+    TAG_NAMES.put(SecurityLog.TAG_WIPE_FAILURE, "WIPE_FAILURE");
+    TAG_NAMES.put(SecurityLog.TAG_KEY_GENERATED, "KEY_GENERATED");
+    TAG_NAMES.put(SecurityLog.TAG_KEY_IMPORT, "KEY_IMPORT");
+    TAG_NAMES.put(SecurityLog.TAG_KEY_DESTRUCTION, "KEY_DESTRUCTION");
+    TAG_NAMES.put(SecurityLog.TAG_USER_RESTRICTION_ADDED, "USER_RESTRICTION_ADDED");
+    TAG_NAMES.put(SecurityLog.TAG_USER_RESTRICTION_REMOVED, "USER_RESTRICTION_REMOVED");
+    TAG_NAMES.put(SecurityLog.TAG_CERT_AUTHORITY_INSTALLED, "CERT_AUTHORITY_INSTALLED");
+    TAG_NAMES.put(SecurityLog.TAG_CERT_AUTHORITY_REMOVED, "CERT_AUTHORITY_REMOVED");
+    TAG_NAMES.put(SecurityLog.TAG_CRYPTO_SELF_TEST_COMPLETED, "CRYPTO_SELF_TEST_COMPLETED");
+    TAG_NAMES.put(SecurityLog.TAG_KEY_INTEGRITY_VIOLATION, "KEY_INTEGRITY_VIOLATION");
+    TAG_NAMES.put(SecurityLog.TAG_CERT_VALIDATION_FAILURE, "CERT_VALIDATION_FAILURE");
+  }
+
+  private SecurityEventFormatter() {}
+
+  /** Returns the name of the {@code SecurityLog.TAG_*} constant with value {@code tag}. */
+  @NonNull
+  public static String getTagName(int tag) {
+    String name = TAG_NAMES.get(tag);
+    return name != null ? name : "UNKNOWN(" + tag + ")";
+  }
+
+  /**
+   * Parses a tag given as a number or as the name of its {@code SecurityLog.TAG_*} constant, with
+   * or without the {@code TAG_} prefix and ignoring case.
+   *
+   * @throws IllegalArgumentException if {@code value} isn't a number or a known tag name
+   */
+  public static int parseTag(@NonNull String value) {
+    String name = value.trim().toUpperCase(Locale.ROOT);
+    if (name.startsWith("TAG_")) {
+      name = name.substring("TAG_".length());
+    }
+    for (int i = 0; i < TAG_NAMES.size(); i++) {
+      if (TAG_NAMES.valueAt(i).equals(name)) {
+        return TAG_NAMES.keyAt(i);
+      }
+    }
+    try {
+      return Integer.parseInt(name);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Unknown security log tag: " + value);
+    }
+  }
+
+  /** Returns the known tags, in no particular order. */
+  @NonNull
+  public static int[] getKnownTags() {
+    int[] tags = new int[TAG_NAMES.size()];
+    for (int i = 0; i < tags.length; i++) {
+      tags[i] = TAG_NAMES.keyAt(i);
+    }
+    return tags;
+  }
+
+  /**
+   * Formats {@code record} as {@code "<id>: <tag> (<time>): <data>"}, where the id is only present
+   * if the event has one. {@code dateFormat} isn't thread-safe, so callers must not share it across
+   * threads.
+   */
+  @NonNull
+  public static String format(@NonNull SecurityLogRecord record, @NonNull DateFormat dateFormat) {
+    StringBuilder sb = new StringBuilder();
+    if (record.id != SecurityLogRecord.NO_ID) {
+      sb.append(record.id).append(": ");
+    }
+    sb.append(getTagName(record.tag))
+        .append(" (")
+        .append(dateFormat.format(new Date(TimeUnit.NANOSECONDS.toMillis(record.timeNanos))))
+        .append("): ");
+    appendData(sb, record.data);
+    return sb.toString();
+  }
+
+  /** Appends the payload of an event, with each value followed by a space. */
+  public static void appendData(@NonNull StringBuilder sb, @Nullable Object data) {
+    if (data instanceof Integer
+        || data instanceof Long
+        || data instanceof Float
+        || data instanceof String) {
+      sb.append(data.toString()).append(" ");
+    } else if (data instanceof Object[]) {
+      for (Object item : (Object[]) data) {
+        appendData(sb, item);
+      }
+    }
+  }
+}
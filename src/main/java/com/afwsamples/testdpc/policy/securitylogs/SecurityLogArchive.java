@@ -0,0 +1,534 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy.securitylogs;
+
+import android.content.Context;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Persistent archive of the security events retrieved by this app.
+ *
+ * <p>Events are kept in gzip-compressed segment files, each holding events sorted by time. The
+ * time ranges of the segments don't overlap, and a manifest file lists the segments from oldest
+ * to newest along with their time range, tags, event count and size, so reading a time range only
+ * opens the segments that overlap it, and {@link SecurityLogQueryEngine} can also skip segments
+ * without the tags it looks for.
+ *
+ * <p>Ingested events that are already archived (same id, tag and time) are dropped, so the same
+ * batch, or pre-reboot logs that overlap what was archived before the reboot, can be ingested
+ * more than once. Segments that new events overlap are rewritten with the merged events, and the
+ * oldest segments are deleted once the archive grows past its size budget.
+ */
+public final class SecurityLogArchive {
+
+  private static final String TAG = "SecurityLogArchive";
+
+  @VisibleForTesting static final String DIR = "security_logs";
+  private static final String MANIFEST_FILE = "manifest";
+  private static final String SEGMENT_PREFIX = "segment_";
+  private static final String SEGMENT_SUFFIX = ".gz";
+
+  public static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+  public static final int DEFAULT_SEGMENT_EVENTS = 4096;
+
+  private static final int SEGMENT_MAGIC = 0x534c5347; // SLSG
+  private static final int MANIFEST_MAGIC = 0x534c4d46; // SLMF
+  private static final int SEGMENT_VERSION = 1;
+  private static final int MANIFEST_VERSION = 1;
+
+  private static final int VALUE_NULL = 0;
+  private static final int VALUE_INT = 1;
+  private static final int VALUE_LONG = 2;
+  private static final int VALUE_FLOAT = 3;
+  private static final int VALUE_STRING = 4;
+  private static final int VALUE_ARRAY = 5;
+
+  /** Boot count meaning pre-reboot logs were never merged. */
+  public static final int NO_BOOT_COUNT = -1;
+
+  private static final Comparator<SecurityLogRecord> BY_TIME =
+      (a, b) -> {
+        int result = Long.compare(a.timeNanos, b.timeNanos);
+        return result != 0 ? result : Long.compare(a.id, b.id);
+      };
+
+  private static SecurityLogArchive sInstance;
+
+  private final File mDir;
+  private final long mMaxBytes;
+  private final int mSegmentEvents;
+
+  // Loaded lazily, see loadManifest()
+  @Nullable private List<Segment> mSegments;
+  private int mNextSegment;
+  private int mPreRebootMergedBootCount = NO_BOOT_COUNT;
+
+  @VisibleForTesting
+  SecurityLogArchive(@NonNull File dir, long maxBytes, int segmentEvents) {
+    mDir = dir;
+    mMaxBytes = maxBytes;
+    mSegmentEvents = segmentEvents;
+  }
+
+  /** Gets the archive of the security events retrieved by this app. */
+  public static synchronized SecurityLogArchive getInstance(@NonNull Context context) {
+    if (sInstance == null) {
+      sInstance =
+          new SecurityLogArchive(
+              new File(context.getFilesDir(), DIR), DEFAULT_MAX_BYTES, DEFAULT_SEGMENT_EVENTS);
+    }
+    return sInstance;
+  }
+
+  /**
+   * Adds events to the archive, skipping those that are already in it.
+   *
+   * @return number of events added
+   */
+  public synchronized int ingest(@NonNull List<SecurityLogRecord> records) throws IOException {
+    loadManifest();
+    if (records.isEmpty()) {
+      return 0;
+    }
+    List<SecurityLogRecord> incoming = new ArrayList<>(records);
+    Collections.sort(incoming, BY_TIME);
+    long minTime = incoming.get(0).timeNanos;
+    long maxTime = incoming.get(incoming.size() - 1).timeNanos;
+
+    // Segments to rewrite: those overlapping the new events, plus the last one if it isn't full
+    // and the new events come after it, so that small batches don't each get their own segment.
+    int first = mSegments.size();
+    int last = -1;
+    for (int i = 0; i < mSegments.size(); i++) {
+      Segment segment = mSegments.get(i);
+      boolean overlaps = segment.minTimeNanos <= maxTime && segment.maxTimeNanos >= minTime;
+      boolean appendable =
+          i == mSegments.size() - 1
+              && segment.eventCount < mSegmentEvents
+              && segment.maxTimeNanos < minTime;
+      if (overlaps || appendable) {
+        first = Math.min(first, i);
+        last = i;
+      }
+    }
+    if (last < 0) {
+      // No segment to merge with: insert before the first segment that comes after the events.
+      first = 0;
+      while (first < mSegments.size() && mSegments.get(first).maxTimeNanos < minTime) {
+        first++;
+      }
+      last = first - 1;
+    }
+
+    List<SecurityLogRecord> merged = new ArrayList<>();
+    for (int i = first; i <= last; i++) {
+      merged.addAll(readSegment(mSegments.get(i)));
+    }
+    Set<EventKey> known = new HashSet<>();
+    for (SecurityLogRecord record : merged) {
+      known.add(new EventKey(record));
+    }
+    int added = 0;
+    for (SecurityLogRecord record : incoming) {
+      if (known.add(new EventKey(record))) {
+        merged.add(record);
+        added++;
+      }
+    }
+    if (added == 0) {
+      return 0;
+    }
+    Collections.sort(merged, BY_TIME);
+
+    List<Segment> replaced = new ArrayList<>(mSegments.subList(first, last + 1));
+    List<Segment> written = new ArrayList<>();
+    for (int from = 0; from < merged.size(); from += mSegmentEvents) {
+      int to = Math.min(merged.size(), from + mSegmentEvents);
+      written.add(writeSegment(mNextSegment++, merged.subList(from, to)));
+    }
+    List<Segment> segments = new ArrayList<>(mSegments.subList(0, first));
+    segments.addAll(written);
+    segments.addAll(mSegments.subList(last + 1, mSegments.size()));
+    replaced.addAll(applyRetention(segments));
+    mSegments = segments;
+    writeManifest();
+    for (Segment segment : replaced) {
+      deleteSegmentFile(segment);
+    }
+    Log.d(TAG, "Archived " + added + " of " + records.size() + " events");
+    return added;
+  }
+
+  /** Whether pre-reboot logs still have to be merged for the boot with the given count. */
+  public synchronized boolean needsPreRebootMerge(int bootCount) throws IOException {
+    loadManifest();
+    return bootCount != mPreRebootMergedBootCount;
+  }
+
+  /** Records that pre-reboot logs were merged for the boot with the given count. */
+  public synchronized void setPreRebootMerged(int bootCount) throws IOException {
+    loadManifest();
+    mPreRebootMergedBootCount = bootCount;
+    writeManifest();
+  }
+
+  /** Gets the segments, from oldest to newest. */
+  @NonNull
+  public synchronized List<Segment> getSegments() throws IOException {
+    loadManifest();
+    return Collections.unmodifiableList(new ArrayList<>(mSegments));
+  }
+
+  /** Reads all archived events, from oldest to newest. */
+  @NonNull
+  public List<SecurityLogRecord> readAll() throws IOException {
+    return read(Long.MIN_VALUE, Long.MAX_VALUE);
+  }
+
+  /** Reads the events logged between {@code fromNanos} and {@code toNanos} (inclusive). */
+  @NonNull
+  public synchronized List<SecurityLogRecord> read(long fromNanos, long toNanos)
+      throws IOException {
+    loadManifest();
+    List<SecurityLogRecord> records = new ArrayList<>();
+    for (Segment segment : mSegments) {
+      if (segment.maxTimeNanos < fromNanos || segment.minTimeNanos > toNanos) {
+        continue;
+      }
+      for (SecurityLogRecord record : readSegment(segment)) {
+        if (record.timeNanos >= fromNanos && record.timeNanos <= toNanos) {
+          records.add(record);
+        }
+      }
+    }
+    return records;
+  }
+
+  /** Reads all events of a segment, from oldest to newest. */
+  @NonNull
+  public synchronized List<SecurityLogRecord> readSegment(@NonNull Segment segment)
+      throws IOException {
+    try (DataInputStream in =
+        new DataInputStream(
+            new BufferedInputStream(
+                new GZIPInputStream(new FileInputStream(getSegmentFile(segment.number)))))) {
+      if (in.readInt() != SEGMENT_MAGIC || in.readInt() != SEGMENT_VERSION) {
+        throw new IOException("Not a security log segment: " + segment);
+      }
+      int count = in.readInt();
+      List<SecurityLogRecord> records = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        long id = in.readLong();
+        int tag = in.readInt();
+        long timeNanos = in.readLong();
+        records.add(SecurityLogRecord.create(id, tag, timeNanos, readValue(in)));
+      }
+      return records;
+    }
+  }
+
+  /** Deletes the oldest segments until the archive fits its budget, returning them. */
+  private List<Segment> applyRetention(List<Segment> segments) {
+    long bytes = 0;
+    for (Segment segment : segments) {
+      bytes += segment.bytes;
+    }
+    List<Segment> evicted = new ArrayList<>();
+    while (bytes > mMaxBytes && segments.size() > 1) {
+      Segment oldest = segments.remove(0);
+      bytes -= oldest.bytes;
+      evicted.add(oldest);
+    }
+    if (!evicted.isEmpty()) {
+      Log.i(TAG, "Evicted " + evicted.size() + " segments over the " + mMaxBytes + " byte budget");
+    }
+    return evicted;
+  }
+
+  private Segment writeSegment(int number, List<SecurityLogRecord> records) throws IOException {
+    if (!mDir.isDirectory() && !mDir.mkdirs()) {
+      throw new IOException("Cannot create " + mDir);
+    }
+    File file = getSegmentFile(number);
+    try (FileOutputStream fileStream = new FileOutputStream(file)) {
+      GZIPOutputStream gzip = new GZIPOutputStream(new BufferedOutputStream(fileStream));
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(gzip));
+      out.writeInt(SEGMENT_MAGIC);
+      out.writeInt(SEGMENT_VERSION);
+      out.writeInt(records.size());
+      for (SecurityLogRecord record : records) {
+        out.writeLong(record.id);
+        out.writeInt(record.tag);
+        out.writeLong(record.timeNanos);
+        writeValue(out, record.data);
+      }
+      out.flush();
+      gzip.finish();
+      gzip.flush();
+      fileStream.getFD().sync();
+    }
+    Set<Integer> tagSet = new HashSet<>();
+    for (SecurityLogRecord record : records) {
+      tagSet.add(record.tag);
+    }
+    int[] tags = new int[tagSet.size()];
+    int i = 0;
+    for (int tag : tagSet) {
+      tags[i++] = tag;
+    }
+    Arrays.sort(tags);
+    return new Segment(
+        number,
+        records.get(0).timeNanos,
+        records.get(records.size() - 1).timeNanos,
+        records.size(),
+        file.length(),
+        tags);
+  }
+
+  private static void writeValue(DataOutputStream out, @Nullable Object value) throws IOException {
+    if (value instanceof Integer) {
+      out.writeByte(VALUE_INT);
+      out.writeInt((Integer) value);
+    } else if (value instanceof Long) {
+      out.writeByte(VALUE_LONG);
+      out.writeLong((Long) value);
+    } else if (value instanceof Float) {
+      out.writeByte(VALUE_FLOAT);
+      out.writeFloat((Float) value);
+    } else if (value instanceof String) {
+      out.writeByte(VALUE_STRING);
+      out.writeUTF((String) value);
+    } else if (value instanceof Object[]) {
+      Object[] array = (Object[]) value;
+      out.writeByte(VALUE_ARRAY);
+      out.writeInt(array.length);
+      for (Object item : array) {
+        writeValue(out, item);
+      }
+    } else {
+      out.writeByte(VALUE_NULL);
+    }
+  }
+
+  @Nullable
+  private static Object readValue(DataInputStream in) throws IOException {
+    int type = in.readByte();
+    switch (type) {
+      case VALUE_NULL:
+        return null;
+      case VALUE_INT:
+        return in.readInt();
+      case VALUE_LONG:
+        return in.readLong();
+      case VALUE_FLOAT:
+        return in.readFloat();
+      case VALUE_STRING:
+        return in.readUTF();
+      case VALUE_ARRAY:
+        Object[] array = new Object[in.readInt()];
+        for (int i = 0; i < array.length; i++) {
+          array[i] = readValue(in);
+        }
+        return array;
+      default:
+        throw new IOException("Unknown value type " + type);
+    }
+  }
+
+  private void loadManifest() throws IOException {
+    if (mSegments != null) {
+      return;
+    }
+    List<Segment> segments = new ArrayList<>();
+    File file = new File(mDir, MANIFEST_FILE);
+    if (file.exists()) {
+      try (DataInputStream in =
+          new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+        if (in.readInt() != MANIFEST_MAGIC || in.readInt() != MANIFEST_VERSION) {
+          throw new IOException("Not a security log manifest: " + file);
+        }
+        mNextSegment = in.readInt();
+        mPreRebootMergedBootCount = in.readInt();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+          int number = in.readInt();
+          long minTimeNanos = in.readLong();
+          long maxTimeNanos = in.readLong();
+          int eventCount = in.readInt();
+          long bytes = in.readLong();
+          int[] tags = new int[in.readInt()];
+          for (int j = 0; j < tags.length; j++) {
+            tags[j] = in.readInt();
+          }
+          segments.add(new Segment(number, minTimeNanos, maxTimeNanos, eventCount, bytes, tags));
+        }
+      }
+    }
+    mSegments = segments;
+    deleteOrphanedSegments();
+  }
+
+  /** Deletes segment files left behind by an ingestion that didn't complete. */
+  private void deleteOrphanedSegments() {
+    File[] files = mDir.listFiles();
+    if (files == null) {
+      return;
+    }
+    Set<String> listed = new HashSet<>();
+    for (Segment segment : mSegments) {
+      listed.add(getSegmentFile(segment.number).getName());
+    }
+    for (File file : files) {
+      if (file.getName().startsWith(SEGMENT_PREFIX) && !listed.contains(file.getName())) {
+        Log.w(TAG, "Deleting orphaned segment " + file);
+        file.delete();
+      }
+    }
+  }
+
+  private void writeManifest() throws IOException {
+    if (!mDir.isDirectory() && !mDir.mkdirs()) {
+      throw new IOException("Cannot create " + mDir);
+    }
+    File file = new File(mDir, MANIFEST_FILE);
+    File newFile = new File(mDir, MANIFEST_FILE + ".new");
+    try (FileOutputStream fileStream = new FileOutputStream(newFile)) {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileStream));
+      out.writeInt(MANIFEST_MAGIC);
+      out.writeInt(MANIFEST_VERSION);
+      out.writeInt(mNextSegment);
+      out.writeInt(mPreRebootMergedBootCount);
+      out.writeInt(mSegments.size());
+      for (Segment segment : mSegments) {
+        out.writeInt(segment.number);
+        out.writeLong(segment.minTimeNanos);
+        out.writeLong(segment.maxTimeNanos);
+        out.writeInt(segment.eventCount);
+        out.writeLong(segment.bytes);
+        out.writeInt(segment.tags.length);
+        for (int tag : segment.tags) {
+          out.writeInt(tag);
+        }
+      }
+      out.flush();
+      fileStream.getFD().sync();
+    }
+    if (!newFile.renameTo(file)) {
+      throw new IOException("Cannot rename " + newFile + " to " + file);
+    }
+  }
+
+  private void deleteSegmentFile(Segment segment) {
+    File file = getSegmentFile(segment.number);
+    if (!file.delete()) {
+      Log.w(TAG, "Cannot delete " + file);
+    }
+  }
+
+  @VisibleForTesting
+  File getSegmentFile(int number) {
+    return new File(mDir, String.format("%s%06d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+  }
+
+  /** A segment file of the archive. */
+  public static final class Segment {
+    public final int number;
+    public final long minTimeNanos;
+    public final long maxTimeNanos;
+    public final int eventCount;
+    public final long bytes;
+
+    /** Tags of the events in the segment, in ascending order. */
+    public final int[] tags;
+
+    Segment(
+        int number,
+        long minTimeNanos,
+        long maxTimeNanos,
+        int eventCount,
+        long bytes,
+        int[] tags) {
+      this.number = number;
+      this.minTimeNanos = minTimeNanos;
+      this.maxTimeNanos = maxTimeNanos;
+      this.eventCount = eventCount;
+      this.bytes = bytes;
+      this.tags = tags;
+    }
+
+    /** Whether the segment may hold events with the given tag. */
+    public boolean mayContainTag(int tag) {
+      return Arrays.binarySearch(tags, tag) >= 0;
+    }
+
+    @Override
+    public String toString() {
+      return "Segment[number="
+          + number
+          + ", time="
+          + minTimeNanos
+          + ".."
+          + maxTimeNanos
+          + ", events="
+          + eventCount
+          + ", bytes="
+          + bytes
+          + "]";
+    }
+  }
+
+  /** What makes two events the same, see {@link SecurityLogRecord#isSameEvent}. */
+  private static final class EventKey {
+    private final SecurityLogRecord mRecord;
+
+    EventKey(SecurityLogRecord record) {
+      mRecord = record;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof EventKey && mRecord.isSameEvent(((EventKey) o).mRecord);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(mRecord.id, mRecord.tag, mRecord.timeNanos);
+    }
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy.securitylogs;
+
+import android.annotation.TargetApi;
+import android.os.Build.VERSION_CODES;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/** Selects security events by tag, time window and free text. */
+@TargetApi(VERSION_CODES.N)
+public final class SecurityLogFilter {
+
+  /** Tag value meaning "any tag". */
+  public static final int ANY_TAG = -1;
+
+  private final int mTag;
+  private final long mSinceNanos;
+  @Nullable private final String mText;
+
+  /**
+   * @param tag tag the events must have, or {@link #ANY_TAG}
+   * @param sinceNanos events logged before this time (in nanoseconds since the epoch, like {@link
+   *     SecurityLogRecord#timeNanos}) are excluded; {@code 0} to not filter by time
+   * @param text text the tag name or data must contain (ignoring case), or {@code null}
+   */
+  public SecurityLogFilter(int tag, long sinceNanos, @Nullable String text) {
+    mTag = tag;
+    mSinceNanos = sinceNanos;
+    mText =
+        text == null || text.trim().isEmpty() ? null : text.trim().toLowerCase(Locale.ROOT);
+  }
+
+  /** Whether this filter lets every event through. */
+  public boolean isEmpty() {
+    return mTag == ANY_TAG && mSinceNanos <= 0 && mText == null;
+  }
+
+  public boolean matches(@NonNull SecurityLogRecord record) {
+    return matches(record.tag, record.timeNanos, record.data);
+  }
+
+  /** Same as {@link #matches(SecurityLogRecord)}, for the parts of an event. */
+  public boolean matches(int tag, long timeNanos, @Nullable Object data) {
+    if (mTag != ANY_TAG && tag != mTag) {
+      return false;
+    }
+    if (timeNanos < mSinceNanos) {
+      return false;
+    }
+    if (mText == null) {
+      return true;
+    }
+    if (SecurityEventFormatter.getTagName(tag).toLowerCase(Locale.ROOT).contains(mText)) {
+      return true;
+    }
+    StringBuilder sb = new StringBuilder();
+    SecurityEventFormatter.appendData(sb, data);
+    return sb.toString().toLowerCase(Locale.ROOT).contains(mText);
+  }
+
+  /** Returns the positions in {@code records} of the records that match. */
+  @NonNull
+  @WorkerThread
+  public int[] apply(@NonNull List<SecurityLogRecord> records) {
+    int[] positions = new int[records.size()];
+    int count = 0;
+    for (int i = 0; i < records.size(); i++) {
+      if (isEmpty() || matches(records.get(i))) {
+        positions[count++] = i;
+      }
+    }
+    return Arrays.copyOf(positions, count);
+  }
+}
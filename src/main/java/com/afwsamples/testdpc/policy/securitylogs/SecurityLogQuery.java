@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy.securitylogs;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A query over the archived security events, run by {@link SecurityLogQueryEngine}.
+ *
+ * <p>Events match when their tag is one of {@link #getTags()} (or any tag if there are none), they
+ * were logged between {@link #getFromNanos()} and {@link #getToNanos()} (inclusive), and, if a
+ * data field is set, the field at {@link #getDataIndex()} of {@code SecurityEvent.getData()} has
+ * the string value {@link #getDataValue()}. Results are ordered by time and cut at {@link
+ * #getLimit()}.
+ */
+public final class SecurityLogQuery {
+
+  /** Data index meaning "don't filter on the event data". */
+  public static final int NO_DATA_INDEX = -1;
+
+  /** Limit meaning "return every matching event". */
+  public static final int NO_LIMIT = Integer.MAX_VALUE;
+
+  private final int[] mTags;
+  private final long mFromNanos;
+  private final long mToNanos;
+  private final int mDataIndex;
+  @Nullable private final String mDataValue;
+  private final boolean mDescending;
+  private final int mLimit;
+
+  private SecurityLogQuery(Builder builder) {
+    mTags = new int[builder.mTags.size()];
+    int i = 0;
+    for (int tag : builder.mTags) {
+      mTags[i++] = tag;
+    }
+    mFromNanos = builder.mFromNanos;
+    mToNanos = builder.mToNanos;
+    mDataIndex = builder.mDataIndex;
+    mDataValue = builder.mDataValue;
+    mDescending = builder.mDescending;
+    mLimit = builder.mLimit;
+  }
+
+  @NonNull
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /** Tags the events must have, in ascending order; empty if any tag matches. */
+  @NonNull
+  public int[] getTags() {
+    return mTags.clone();
+  }
+
+  public long getFromNanos() {
+    return mFromNanos;
+  }
+
+  public long getToNanos() {
+    return mToNanos;
+  }
+
+  public int getDataIndex() {
+    return mDataIndex;
+  }
+
+  @Nullable
+  public String getDataValue() {
+    return mDataValue;
+  }
+
+  /** Whether the newest events come first. */
+  public boolean isDescending() {
+    return mDescending;
+  }
+
+  public int getLimit() {
+    return mLimit;
+  }
+
+  /** Whether events with {@code tag} can match. */
+  public boolean matchesTag(int tag) {
+    return mTags.length == 0 || Arrays.binarySearch(mTags, tag) >= 0;
+  }
+
+  /** Whether events logged at {@code timeNanos} can match. */
+  public boolean matchesTime(long timeNanos) {
+    return timeNanos >= mFromNanos && timeNanos <= mToNanos;
+  }
+
+  /** Whether the data of an event matches, see {@link #fieldEquals}. */
+  public boolean matchesData(@Nullable Object data) {
+    return mDataIndex == NO_DATA_INDEX || fieldEquals(data, mDataIndex, mDataValue);
+  }
+
+  /**
+   * Whether the field at {@code index} of the data of an event has the string value {@code
+   * value}. For events with a single value, that value is field {@code 0}.
+   */
+  static boolean fieldEquals(@Nullable Object data, int index, @Nullable String value) {
+    Object field;
+    if (data instanceof Object[]) {
+      Object[] fields = (Object[]) data;
+      if (index >= fields.length) {
+        return false;
+      }
+      field = fields[index];
+    } else {
+      if (index != 0) {
+        return false;
+      }
+      field = data;
+    }
+    return field != null && field.toString().equals(value);
+  }
+
+  public boolean matches(@NonNull SecurityLogRecord record) {
+    return matchesTag(record.tag) && matchesTime(record.timeNanos) && matchesData(record.data);
+  }
+
+  /** Whether events of {@code segment} can match, judging from its time range and tags. */
+  public boolean mayMatch(@NonNull SecurityLogArchive.Segment segment) {
+    if (segment.maxTimeNanos < mFromNanos || segment.minTimeNanos > mToNanos) {
+      return false;
+    }
+    if (mTags.length == 0) {
+      return true;
+    }
+    for (int tag : mTags) {
+      if (segment.mayContainTag(tag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("SecurityLogQuery[tags=");
+    for (int i = 0; i < mTags.length; i++) {
+      sb.append(i == 0 ? "" : ",").append(SecurityEventFormatter.getTagName(mTags[i]));
+    }
+    sb.append(", time=").append(mFromNanos).append("..").append(mToNanos);
+    if (mDataIndex != NO_DATA_INDEX) {
+      sb.append(", data[").append(mDataIndex).append("]=").append(mDataValue);
+    }
+    sb.append(", ").append(mDescending ? "desc" : "asc");
+    if (mLimit != NO_LIMIT) {
+      sb.append(", limit=").append(mLimit);
+    }
+    return sb.append("]").toString();
+  }
+
+  /** Builder for {@link SecurityLogQuery}. */
+  public static final class Builder {
+    private final Set<Integer> mTags = new TreeSet<>();
+    private long mFromNanos = Long.MIN_VALUE;
+    private long mToNanos = Long.MAX_VALUE;
+    private int mDataIndex = NO_DATA_INDEX;
+    @Nullable private String mDataValue;
+    private boolean mDescending;
+    private int mLimit = NO_LIMIT;
+
+    private Builder() {}
+
+    /** Adds a tag the events may have. Without any, events of every tag match. */
+    public Builder addTag(int tag) {
+      mTags.add(tag);
+      return this;
+    }
+
+    /** Only matches events logged between the given times (inclusive). */
+    public Builder setTimeRange(long fromNanos, long toNanos) {
+      mFromNanos = fromNanos;
+      mToNanos = toNanos;
+      return this;
+    }
+
+    /**
+     * Only matches events whose data field at {@code index} has the string value {@code value},
+     * such as the package name (field {@code 0}) of {@code TAG_APP_PROCESS_START} events.
+     */
+    public Builder setDataEquals(int index, @NonNull String value) {
+      if (index < 0) {
+        throw new IllegalArgumentException("Invalid data index: " + index);
+      }
+      mDataIndex = index;
+      mDataValue = value;
+      return this;
+    }
+
+    public Builder setDescending(boolean descending) {
+      mDescending = descending;
+      return this;
+    }
+
+    public Builder setLimit(int limit) {
+      if (limit <= 0) {
+        throw new IllegalArgumentException("Invalid limit: " + limit);
+      }
+      mLimit = limit;
+      return this;
+    }
+
+    public SecurityLogQuery build() {
+      if (mFromNanos > mToNanos) {
+        throw new IllegalArgumentException(
+            "Empty time range: " + mFromNanos + ".." + mToNanos);
+      }
+      return new SecurityLogQuery(this);
+    }
+  }
+}
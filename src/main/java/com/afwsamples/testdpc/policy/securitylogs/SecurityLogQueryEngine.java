@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy.securitylogs;
+
+import android.content.Context;
+import android.util.Log;
+import android.util.SparseArray;
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Runs {@link SecurityLogQuery queries} over a {@link SecurityLogArchive}.
+ *
+ * <p>Segments are skipped using the time range and tags listed in the archive manifest. Within a
+ * segment, events are sorted by time, so the time range is found by binary search, and a
+ * per-segment tag index gives the positions of the events with the queried tags, so only the
+ * events that can match are checked against the data predicate. Segments are visited in the
+ * query order, which stops as soon as the limit is reached.
+ *
+ * <p>Segment files are never modified, only replaced by segments with new numbers, so the decoded
+ * and indexed segments of recent queries are cached by number.
+ */
+public final class SecurityLogQueryEngine {
+
+  private static final String TAG = "SecurityLogQueryEngine";
+
+  /** Total events of the segments kept decoded between queries. */
+  @VisibleForTesting
+  static final int MAX_CACHED_EVENTS = 4 * SecurityLogArchive.DEFAULT_SEGMENT_EVENTS;
+
+  private static SecurityLogQueryEngine sInstance;
+
+  private final SecurityLogArchive mArchive;
+  private final LinkedHashMap<Integer, SegmentIndex> mCache =
+      new LinkedHashMap<>(16, 0.75f, /* accessOrder= */ true);
+  private int mCachedEvents;
+
+  @VisibleForTesting
+  SecurityLogQueryEngine(@NonNull SecurityLogArchive archive) {
+    mArchive = archive;
+  }
+
+  /** Gets the engine querying {@link SecurityLogArchive#getInstance}. */
+  public static synchronized SecurityLogQueryEngine getInstance(@NonNull Context context) {
+    if (sInstance == null) {
+      sInstance = new SecurityLogQueryEngine(SecurityLogArchive.getInstance(context));
+    }
+    return sInstance;
+  }
+
+  /** Runs {@code query}. */
+  @NonNull
+  @WorkerThread
+  public Result execute(@NonNull SecurityLogQuery query) throws IOException {
+    // Hold the archive so that no segment is replaced while the query reads it
+    synchronized (mArchive) {
+      synchronized (this) {
+        return executeLocked(query);
+      }
+    }
+  }
+
+  private Result executeLocked(SecurityLogQuery query) throws IOException {
+    List<SecurityLogArchive.Segment> segments = mArchive.getSegments();
+    dropRemovedSegments(segments);
+    Result result = new Result();
+    int count = segments.size();
+    for (int i = 0; i < count && result.records.size() < query.getLimit(); i++) {
+      SecurityLogArchive.Segment segment =
+          segments.get(query.isDescending() ? count - 1 - i : i);
+      if (!query.mayMatch(segment)) {
+        result.segmentsSkipped++;
+        continue;
+      }
+      result.segmentsRead++;
+      getIndex(segment).query(query, result);
+    }
+    Log.d(TAG, query + ": " + result);
+    return result;
+  }
+
+  private SegmentIndex getIndex(SecurityLogArchive.Segment segment) throws IOException {
+    SegmentIndex index = mCache.get(segment.number);
+    if (index != null) {
+      return index;
+    }
+    index = new SegmentIndex(mArchive.readSegment(segment));
+    mCache.put(segment.number, index);
+    mCachedEvents += index.mRecords.size();
+    Iterator<SegmentIndex> eldest = mCache.values().iterator();
+    while (mCachedEvents > MAX_CACHED_EVENTS && mCache.size() > 1) {
+      mCachedEvents -= eldest.next().mRecords.size();
+      eldest.remove();
+    }
+    return index;
+  }
+
+  private void dropRemovedSegments(List<SecurityLogArchive.Segment> segments) {
+    Set<Integer> numbers = new HashSet<>();
+    for (SecurityLogArchive.Segment segment : segments) {
+      numbers.add(segment.number);
+    }
+    Iterator<Map.Entry<Integer, SegmentIndex>> entries = mCache.entrySet().iterator();
+    while (entries.hasNext()) {
+      Map.Entry<Integer, SegmentIndex> entry = entries.next();
+      if (!numbers.contains(entry.getKey())) {
+        mCachedEvents -= entry.getValue().mRecords.size();
+        entries.remove();
+      }
+    }
+  }
+
+  /** Events matching a query, plus how much of the archive was read to find them. */
+  public static final class Result {
+    /** Matching events, in the query order. */
+    public final List<SecurityLogRecord> records = new ArrayList<>();
+
+    public int segmentsRead;
+    public int segmentsSkipped;
+
+    /** Events checked against the query, after the indexes narrowed them down. */
+    public int eventsExamined;
+
+    @Override
+    public String toString() {
+      return records.size()
+          + " events, "
+          + segmentsRead
+          + " segments read, "
+          + segmentsSkipped
+          + " skipped, "
+          + eventsExamined
+          + " events examined";
+    }
+  }
+
+  /** The events of a segment with their time and tag indexes. */
+  private static final class SegmentIndex {
+    private final List<SecurityLogRecord> mRecords;
+    private final long[] mTimes;
+    /** Positions of the events of each tag, in ascending order. */
+    private final SparseArray<int[]> mPositionsByTag = new SparseArray<>();
+
+    SegmentIndex(List<SecurityLogRecord> records) {
+      mRecords = records;
+      mTimes = new long[records.size()];
+      SparseArray<int[]> counts = new SparseArray<>();
+      for (int i = 0; i < records.size(); i++) {
+        SecurityLogRecord record = records.get(i);
+        mTimes[i] = record.timeNanos;
+        int[] count = counts.get(record.tag);
+        if (count == null) {
+          count = new int[1];
+          counts.put(record.tag, count);
+        }
+        count[0]++;
+      }
+      for (int i = 0; i < counts.size(); i++) {
+        mPositionsByTag.put(counts.keyAt(i), new int[counts.valueAt(i)[0]]);
+        counts.valueAt(i)[0] = 0;
+      }
+      for (int i = 0; i < records.size(); i++) {
+        int tag = records.get(i).tag;
+        mPositionsByTag.get(tag)[counts.get(tag)[0]++] = i;
+      }
+    }
+
+    void query(SecurityLogQuery query, Result result) {
+      // Events [from, to) are in the time range
+      int from = lowerBound(mTimes, 0, mTimes.length, query.getFromNanos());
+      int to =
+          query.getToNanos() == Long.MAX_VALUE
+              ? mTimes.length
+              : lowerBound(mTimes, from, mTimes.length, query.getToNanos() + 1);
+      int[] tags = query.getTags();
+      if (tags.length == 0) {
+        for (int i = 0; i < to - from; i++) {
+          if (!addIfMatches(query, result, query.isDescending() ? to - 1 - i : from + i)) {
+            return;
+          }
+        }
+        return;
+      }
+      int[] positions = new int[0];
+      int count = 0;
+      for (int tag : tags) {
+        int[] tagPositions = mPositionsByTag.get(tag);
+        if (tagPositions == null) {
+          continue;
+        }
+        int start = lowerBound(tagPositions, from);
+        int end = lowerBound(tagPositions, to);
+        positions = Arrays.copyOf(positions, count + end - start);
+        System.arraycopy(tagPositions, start, positions, count, end - start);
+        count += end - start;
+      }
+      if (tags.length > 1) {
+        Arrays.sort(positions, 0, count);
+      }
+      for (int i = 0; i < count; i++) {
+        if (!addIfMatches(query, result, positions[query.isDescending() ? count - 1 - i : i])) {
+          return;
+        }
+      }
+    }
+
+    /** Adds the event at {@code position} if it matches, returning whether to go on. */
+    private boolean addIfMatches(SecurityLogQuery query, Result result, int position) {
+      result.eventsExamined++;
+      SecurityLogRecord record = mRecords.get(position);
+      if (query.matchesData(record.data)) {
+        result.records.add(record);
+      }
+      return result.records.size() < query.getLimit();
+    }
+
+    /** Returns the first position in {@code [from, to)} whose time is at least {@code time}. */
+    private static int lowerBound(long[] times, int from, int to, long time) {
+      int low = from;
+      int high = to;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (times[mid] < time) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      return low;
+    }
+
+    /** Returns the first index of {@code positions} holding at least {@code position}. */
+    private static int lowerBound(int[] positions, int position) {
+      int index = Arrays.binarySearch(positions, position);
+      return index >= 0 ? index : -index - 1;
+    }
+  }
+}
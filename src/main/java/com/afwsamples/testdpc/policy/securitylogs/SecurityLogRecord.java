@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy.securitylogs;
+
+import android.annotation.TargetApi;
+import android.app.admin.SecurityLog.SecurityEvent;
+import android.os.Build.VERSION_CODES;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import com.afwsamples.testdpc.common.Util;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link SecurityEvent} as kept by {@link SecurityLogArchive}.
+ *
+ * <p>{@link #data} is what {@link SecurityEvent#getData()} returned: an {@link Integer}, {@link
+ * Long}, {@link Float} or {@link String}, or an {@code Object[]} of those.
+ */
+public final class SecurityLogRecord {
+
+  /** Id used when the event doesn't have one (before Android P). */
+  public static final long NO_ID = -1;
+
+  public final long id;
+  public final int tag;
+  public final long timeNanos;
+  @Nullable public final Object data;
+
+  private SecurityLogRecord(long id, int tag, long timeNanos, @Nullable Object data) {
+    this.id = id;
+    this.tag = tag;
+    this.timeNanos = timeNanos;
+    this.data = data;
+  }
+
+  @NonNull
+  public static SecurityLogRecord create(long id, int tag, long timeNanos, @Nullable Object data) {
+    return new SecurityLogRecord(id, tag, timeNanos, data);
+  }
+
+  /** Converts a {@link SecurityEvent} to a record. */
+  @NonNull
+  @TargetApi(VERSION_CODES.N)
+  public static SecurityLogRecord from(@NonNull SecurityEvent event) {
+    long id = Util.SDK_INT >= VERSION_CODES.P ? getEventId(event) : NO_ID;
+    return new SecurityLogRecord(id, event.getTag(), event.getTimeNanos(), event.getData());
+  }
+
+  /** Converts a list of {@link SecurityEvent SecurityEvents}, which may be {@code null}. */
+  @NonNull
+  @TargetApi(VERSION_CODES.N)
+  public static List<SecurityLogRecord> from(@Nullable List<SecurityEvent> events) {
+    if (events == null) {
+      return new ArrayList<>();
+    }
+    List<SecurityLogRecord> records = new ArrayList<>(events.size());
+    for (SecurityEvent event : events) {
+      records.add(from(event));
+    }
+    return records;
+  }
+
+  /** Whether both records describe the same logged event. */
+  public boolean isSameEvent(@NonNull SecurityLogRecord other) {
+    return id == other.id && tag == other.tag && timeNanos == other.timeNanos;
+  }
+
+  @TargetApi(VERSION_CODES.P)
+  private static long getEventId(SecurityEvent event) {
+    return event.getId();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    SecurityEventFormatter.appendData(sb, data);
+    return String.format(
+        "SecurityLogRecord(%d, %s, %d, %s)",
+        id, SecurityEventFormatter.getTagName(tag), timeNanos, sb.toString().trim());
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy.securitylogs;
+
+/**
+ * Counts events in a sliding time window, using a ring of fixed-size time buckets.
+ *
+ * <p>Adding an event costs at most one pass over the buckets, however many events are in the
+ * window, and nothing is kept per event. The window ends at the newest event added and covers
+ * the buckets of the previous {@code windowMillis}, so the count may include events up to one
+ * bucket older than the window.
+ */
+final class SlidingWindowCounter {
+
+  private final long mBucketMillis;
+  private final int[] mCounts;
+
+  /** Bucket of the newest event, counted from the epoch. */
+  private long mHeadBucket;
+
+  private int mCount;
+  private boolean mEmpty = true;
+
+  SlidingWindowCounter(long windowMillis, int buckets) {
+    if (windowMillis <= 0 || buckets <= 0) {
+      throw new IllegalArgumentException("Invalid window: " + windowMillis + "/" + buckets);
+    }
+    mBucketMillis = Math.max(1, (windowMillis + buckets - 1) / buckets);
+    mCounts = new int[buckets];
+  }
+
+  /**
+   * Adds an event logged at {@code timeMillis}, returning the events in the window afterwards.
+   * Events older than the window are ignored.
+   */
+  int add(long timeMillis) {
+    long bucket = Math.max(0, timeMillis) / mBucketMillis;
+    if (mEmpty) {
+      mHeadBucket = bucket;
+      mEmpty = false;
+    } else if (bucket > mHeadBucket) {
+      long steps = Math.min(bucket - mHeadBucket, mCounts.length);
+      for (long i = 1; i <= steps; i++) {
+        int index = getIndex(mHeadBucket + i);
+        mCount -= mCounts[index];
+        mCounts[index] = 0;
+      }
+      mHeadBucket = bucket;
+    } else if (bucket <= mHeadBucket - mCounts.length) {
+      return mCount;
+    }
+    mCounts[getIndex(bucket)]++;
+    mCount++;
+    return mCount;
+  }
+
+  /** Events in the window ending at the newest event. */
+  int getCount() {
+    return mCount;
+  }
+
+  private int getIndex(long bucket) {
+    return (int) (bucket % mCounts.length);
+  }
+}
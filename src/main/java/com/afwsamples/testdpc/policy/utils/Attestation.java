@@ -16,41 +16,41 @@
 
 package com.afwsamples.testdpc.policy.utils;
 
-import android.os.Build.VERSION_CODES;
 import androidx.annotation.RequiresApi;
 import com.google.common.base.CharMatcher;
 import com.google.common.io.BaseEncoding;
 import java.security.cert.CertificateParsingException;
 import java.security.cert.X509Certificate;
-import org.bouncycastle.asn1.ASN1Sequence;
 
 /**
  * Parses an attestation certificate and provides an easy-to-use interface for examining the
  * contents.
+ *
+ * <p>The attestation extension is read with a {@link DerReader}: parsing only checks its structure
+ * and decodes the version and security levels, other fields are decoded from the extension bytes
+ * the first time they are read and kept for later reads.
  */
 public class Attestation {
   static final String KEY_DESCRIPTION_OID = "1.3.6.1.4.1.11129.2.1.17";
-  static final int ATTESTATION_VERSION_INDEX = 0;
-  static final int ATTESTATION_SECURITY_LEVEL_INDEX = 1;
-  static final int KEYMASTER_VERSION_INDEX = 2;
-  static final int KEYMASTER_SECURITY_LEVEL_INDEX = 3;
-  static final int ATTESTATION_CHALLENGE_INDEX = 4;
-  static final int UNIQUE_ID_INDEX = 5;
-  static final int SW_ENFORCED_INDEX = 6;
-  static final int TEE_ENFORCED_INDEX = 7;
 
   public static final int KM_SECURITY_LEVEL_SOFTWARE = 0;
   public static final int KM_SECURITY_LEVEL_TRUSTED_ENVIRONMENT = 1;
+  public static final int KM_SECURITY_LEVEL_STRONG_BOX = 2;
 
+  private final byte[] extensionValue;
   private final int attestationVersion;
   private final int attestationSecurityLevel;
   private final int keymasterVersion;
   private final int keymasterSecurityLevel;
-  private final byte[] attestationChallenge;
-  private final byte[] uniqueId;
+  private final int attestationChallengeOffset;
+  private final int uniqueIdOffset;
   private final AuthorizationList softwareEnforced;
   private final AuthorizationList teeEnforced;
 
+  // Decoded on first use, see getAttestationChallenge() and getUniqueId()
+  private volatile byte[] cachedChallenge;
+  private volatile byte[] cachedUniqueId;
+
   /**
    * Constructs an {@code Attestation} object from the provided {@link X509Certificate}, extracting
    * the attestation data from the attestation extension.
@@ -58,24 +58,33 @@ public class Attestation {
    * @throws CertificateParsingException if the certificate does not contain a properly-formatted
    *     attestation extension.
    */
-  @RequiresApi(api = VERSION_CODES.N)
+  @RequiresApi(api = AuthorizationList.VERSION_CODE_N)
   public Attestation(X509Certificate x509Cert) throws CertificateParsingException {
-    ASN1Sequence seq = getAttestationSequence(x509Cert);
-
-    attestationVersion = Asn1Utils.getIntegerFromAsn1(seq.getObjectAt(ATTESTATION_VERSION_INDEX));
-    attestationSecurityLevel =
-        Asn1Utils.getIntegerFromAsn1(seq.getObjectAt(ATTESTATION_SECURITY_LEVEL_INDEX));
-    keymasterVersion = Asn1Utils.getIntegerFromAsn1(seq.getObjectAt(KEYMASTER_VERSION_INDEX));
-    keymasterSecurityLevel =
-        Asn1Utils.getIntegerFromAsn1(seq.getObjectAt(KEYMASTER_SECURITY_LEVEL_INDEX));
-
-    attestationChallenge =
-        Asn1Utils.getByteArrayFromAsn1(seq.getObjectAt(Attestation.ATTESTATION_CHALLENGE_INDEX));
-
-    uniqueId = Asn1Utils.getByteArrayFromAsn1(seq.getObjectAt(Attestation.UNIQUE_ID_INDEX));
+    this(getExtensionValue(x509Cert));
+  }
 
-    softwareEnforced = new AuthorizationList(seq.getObjectAt(SW_ENFORCED_INDEX));
-    teeEnforced = new AuthorizationList(seq.getObjectAt(TEE_ENFORCED_INDEX));
+  /**
+   * Constructs an {@code Attestation} object from the value of the attestation extension, as
+   * returned by {@link X509Certificate#getExtensionValue}.
+   */
+  @RequiresApi(api = AuthorizationList.VERSION_CODE_N)
+  public Attestation(byte[] extensionValue) throws CertificateParsingException {
+    this.extensionValue = extensionValue;
+    DerReader seq = getAttestationSequence(extensionValue);
+
+    // The fields of the KeyDescription SEQUENCE, in order
+    attestationVersion = seq.nextRequired().getInt();
+    attestationSecurityLevel = seq.nextRequired().getInt();
+    keymasterVersion = seq.nextRequired().getInt();
+    keymasterSecurityLevel = seq.nextRequired().getInt();
+
+    seq.nextRequired().expect(DerReader.TAG_OCTET_STRING, "attestation challenge");
+    attestationChallengeOffset = seq.getOffset();
+    seq.nextRequired().expect(DerReader.TAG_OCTET_STRING, "unique ID");
+    uniqueIdOffset = seq.getOffset();
+
+    softwareEnforced = new AuthorizationList(seq.nextRequired());
+    teeEnforced = new AuthorizationList(seq.nextRequired());
   }
 
   public static String securityLevelToString(int attestationSecurityLevel) {
@@ -84,6 +93,8 @@ public class Attestation {
         return "Software";
       case KM_SECURITY_LEVEL_TRUSTED_ENVIRONMENT:
         return "TEE";
+      case KM_SECURITY_LEVEL_STRONG_BOX:
+        return "StrongBox";
       default:
         return "Unkown";
     }
@@ -106,11 +117,26 @@ public class Attestation {
   }
 
   public byte[] getAttestationChallenge() {
-    return attestationChallenge;
+    byte[] challenge = cachedChallenge;
+    if (challenge == null) {
+      challenge = getOctetsAt(attestationChallengeOffset);
+      cachedChallenge = challenge;
+    }
+    return challenge.clone();
   }
 
   public byte[] getUniqueId() {
-    return uniqueId;
+    byte[] id = cachedUniqueId;
+    if (id == null) {
+      id = getOctetsAt(uniqueIdOffset);
+      cachedUniqueId = id;
+    }
+    return id.clone();
+  }
+
+  /** Returns the value of the attestation extension this was parsed from. */
+  public byte[] getExtensionValue() {
+    return extensionValue.clone();
   }
 
   public AuthorizationList getSoftwareEnforced() {
@@ -129,6 +155,8 @@ public class Attestation {
     s.append("\nKM version: " + keymasterVersion);
     s.append("\nKM security: " + securityLevelToString(keymasterSecurityLevel));
 
+    byte[] attestationChallenge = getAttestationChallenge();
+    byte[] uniqueId = getUniqueId();
     s.append("\nChallenge");
     String stringChallenge = new String(attestationChallenge);
     if (CharMatcher.ascii().matchesAllOf(stringChallenge)) {
@@ -148,13 +176,31 @@ public class Attestation {
     return s.toString();
   }
 
-  private ASN1Sequence getAttestationSequence(X509Certificate x509Cert)
+  private byte[] getOctetsAt(int offset) {
+    try {
+      return new DerReader(extensionValue).at(offset).getOctets();
+    } catch (CertificateParsingException e) {
+      throw new IllegalStateException("Checked when the extension was parsed", e);
+    }
+  }
+
+  private static byte[] getExtensionValue(X509Certificate x509Cert)
       throws CertificateParsingException {
     byte[] attestationExtensionBytes = x509Cert.getExtensionValue(KEY_DESCRIPTION_OID);
     if (attestationExtensionBytes == null || attestationExtensionBytes.length == 0) {
       throw new CertificateParsingException(
           "Did not find extension with OID " + KEY_DESCRIPTION_OID);
     }
-    return Asn1Utils.getAsn1SequenceFromBytes(attestationExtensionBytes);
+    return attestationExtensionBytes;
+  }
+
+  /** Reads the elements of the KeyDescription SEQUENCE wrapped in the extension OCTET STRING. */
+  private static DerReader getAttestationSequence(byte[] extensionValue)
+      throws CertificateParsingException {
+    DerReader octetString = new DerReader(extensionValue).nextRequired();
+    octetString.expect(DerReader.TAG_OCTET_STRING, "octet stream");
+    DerReader sequence = octetString.getContents().nextRequired();
+    sequence.expect(DerReader.TAG_SEQUENCE, "sequence");
+    return sequence.getContents();
   }
 }
@@ -14,75 +14,50 @@
 
 package com.afwsamples.testdpc.policy.utils;
 
-import android.content.Context;
-import android.content.pm.PackageInfo;
-import android.content.pm.PackageManager;
-import android.content.pm.PackageManager.NameNotFoundException;
-import android.content.pm.Signature;
-import android.os.Build.VERSION_CODES;
 import androidx.annotation.RequiresApi;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateParsingException;
 import java.util.ArrayList;
 import java.util.List;
-import org.bouncycastle.asn1.ASN1Encodable;
-import org.bouncycastle.asn1.ASN1Sequence;
-import org.bouncycastle.asn1.ASN1Set;
 
 @SuppressWarnings("EqualsHashCode")
 public class AttestationApplicationId implements java.lang.Comparable<AttestationApplicationId> {
-  private static final int PACKAGE_INFOS_INDEX = 0;
-  private static final int SIGNATURE_DIGESTS_INDEX = 1;
-
   private final List<AttestationPackageInfo> packageInfos;
   private final List<byte[]> signatureDigests;
 
-  @RequiresApi(api = VERSION_CODES.N)
-  public AttestationApplicationId(Context context)
-      throws NoSuchAlgorithmException, NameNotFoundException {
-    PackageManager pm = context.getPackageManager();
-    int uid = context.getApplicationInfo().uid;
-    String[] packageNames = pm.getPackagesForUid(uid);
-    if (packageNames == null || packageNames.length == 0) {
-      throw new NameNotFoundException("No names found for uid");
-    }
-    packageInfos = new ArrayList<AttestationPackageInfo>();
-    for (String packageName : packageNames) {
-      // get the package info for the given package name including
-      // the signatures
-      PackageInfo packageInfo = pm.getPackageInfo(packageName, 0);
-      packageInfos.add(new AttestationPackageInfo(packageName, packageInfo.versionCode));
-    }
+  /** Parses the AttestationApplicationId SEQUENCE that {@code sequence} is moved to. */
+  @RequiresApi(api = AuthorizationList.VERSION_CODE_N)
+  public AttestationApplicationId(DerReader sequence) throws CertificateParsingException {
+    sequence.expect(DerReader.TAG_SEQUENCE, "sequence for AttestationApplicationId");
+
+    DerReader fields = sequence.getContents();
+    packageInfos = parseAttestationPackageInfos(fields.nextRequired());
     // The infos must be sorted, the implementation of Comparable relies on it.
     packageInfos.sort(null);
-
-    // compute the sha256 digests of the signature blobs
-    signatureDigests = new ArrayList<byte[]>();
-    PackageInfo packageInfo = pm.getPackageInfo(packageNames[0], PackageManager.GET_SIGNATURES);
-    for (Signature signature : packageInfo.signatures) {
-      MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
-      signatureDigests.add(sha256.digest(signature.toByteArray()));
-    }
+    signatureDigests = parseSignatures(fields.nextRequired());
     // The digests must be sorted. the implementation of Comparable relies on it
     signatureDigests.sort(new ByteArrayComparator());
   }
 
-  @RequiresApi(api = VERSION_CODES.N)
-  public AttestationApplicationId(ASN1Encodable asn1Encodable) throws CertificateParsingException {
-    if (!(asn1Encodable instanceof ASN1Sequence)) {
-      throw new CertificateParsingException(
-          "Expected sequence for AttestationApplicationId, found "
-              + asn1Encodable.getClass().getName());
+  /**
+   * Checks that the AttestationApplicationId SEQUENCE that {@code sequence} is moved to can be
+   * parsed, without decoding it.
+   */
+  static void check(DerReader sequence) throws CertificateParsingException {
+    sequence.expect(DerReader.TAG_SEQUENCE, "sequence for AttestationApplicationId");
+
+    DerReader fields = sequence.getContents();
+    DerReader packageInfos = fields.nextRequired();
+    packageInfos.expect(DerReader.TAG_SET, "set for AttestationApplicationsInfos");
+    DerReader elements = packageInfos.getContents();
+    while (elements.next()) {
+      AttestationPackageInfo.check(elements);
+    }
+    DerReader signatures = fields.nextRequired();
+    signatures.expect(DerReader.TAG_SET, "set for Signature digests");
+    elements = signatures.getContents();
+    while (elements.next()) {
+      elements.expect(DerReader.TAG_OCTET_STRING, "octet string");
     }
-
-    ASN1Sequence sequence = (ASN1Sequence) asn1Encodable;
-    packageInfos = parseAttestationPackageInfos(sequence.getObjectAt(PACKAGE_INFOS_INDEX));
-    // The infos must be sorted, the implementation of Comparable relies on it.
-    packageInfos.sort(null);
-    signatureDigests = parseSignatures(sequence.getObjectAt(SIGNATURE_DIGESTS_INDEX));
-    // The digests must be sorted. the implementation of Comparable relies on it
-    signatureDigests.sort(new ByteArrayComparator());
   }
 
   public List<AttestationPackageInfo> getAttestationPackageInfos() {
@@ -138,34 +113,25 @@ public class AttestationApplicationId implements java.lang.Comparable<Attestatio
         && (0 == compareTo((AttestationApplicationId) o));
   }
 
-  private List<AttestationPackageInfo> parseAttestationPackageInfos(ASN1Encodable asn1Encodable)
+  private List<AttestationPackageInfo> parseAttestationPackageInfos(DerReader set)
       throws CertificateParsingException {
-    if (!(asn1Encodable instanceof ASN1Set)) {
-      throw new CertificateParsingException(
-          "Expected set for AttestationApplicationsInfos, found "
-              + asn1Encodable.getClass().getName());
-    }
+    set.expect(DerReader.TAG_SET, "set for AttestationApplicationsInfos");
 
-    ASN1Set set = (ASN1Set) asn1Encodable;
     List<AttestationPackageInfo> result = new ArrayList<AttestationPackageInfo>();
-    for (ASN1Encodable e : set) {
-      result.add(new AttestationPackageInfo(e));
+    DerReader elements = set.getContents();
+    while (elements.next()) {
+      result.add(new AttestationPackageInfo(elements));
     }
     return result;
   }
 
-  private List<byte[]> parseSignatures(ASN1Encodable asn1Encodable)
-      throws CertificateParsingException {
-    if (!(asn1Encodable instanceof ASN1Set)) {
-      throw new CertificateParsingException(
-          "Expected set for Signature digests, found " + asn1Encodable.getClass().getName());
-    }
+  private List<byte[]> parseSignatures(DerReader set) throws CertificateParsingException {
+    set.expect(DerReader.TAG_SET, "set for Signature digests");
 
-    ASN1Set set = (ASN1Set) asn1Encodable;
     List<byte[]> result = new ArrayList<byte[]>();
-
-    for (ASN1Encodable e : set) {
-      result.add(Asn1Utils.getByteArrayFromAsn1(e));
+    DerReader elements = set.getContents();
+    while (elements.next()) {
+      result.add(elements.getOctets());
     }
     return result;
   }
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy.utils;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+import androidx.annotation.VisibleForTesting;
+import com.google.common.io.BaseEncoding;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache of the {@link Attestation}s parsed from certificates, keyed by the
+ * SHA-256 digest of the certificate, so showing the same key chain again doesn't parse its
+ * attestation extension again.
+ *
+ * <p>It's shared by the whole process: the key management screens and the shell commands. {@link
+ * Attestation} and its {@link AuthorizationList}s are immutable, so they can be shared between
+ * threads.
+ */
+public final class AttestationCache {
+
+  @VisibleForTesting static final int MAX_SIZE = 32;
+
+  private static final String DIGEST_ALGORITHM = "SHA-256";
+
+  private static final AttestationCache sInstance = new AttestationCache(MAX_SIZE);
+
+  private final int mMaxSize;
+  private final Map<String, Attestation> mAttestations;
+
+  private long mHits;
+  private long mMisses;
+
+  @VisibleForTesting
+  AttestationCache(int maxSize) {
+    mMaxSize = maxSize;
+    mAttestations =
+        new LinkedHashMap<String, Attestation>(maxSize, 0.75f, /* accessOrder= */ true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, Attestation> eldest) {
+            return size() > mMaxSize;
+          }
+        };
+  }
+
+  @NonNull
+  public static AttestationCache getInstance() {
+    return sInstance;
+  }
+
+  /**
+   * Gets the attestation of {@code certificate}, parsing it if it isn't cached.
+   *
+   * @throws CertificateParsingException if the certificate has no valid attestation extension
+   */
+  @NonNull
+  @RequiresApi(api = AuthorizationList.VERSION_CODE_N)
+  public Attestation get(@NonNull X509Certificate certificate)
+      throws CertificateParsingException {
+    String key = getKey(certificate);
+    synchronized (this) {
+      Attestation attestation = mAttestations.get(key);
+      if (attestation != null) {
+        mHits++;
+        return attestation;
+      }
+      mMisses++;
+    }
+    // Parsed without the lock; if two threads parse the same certificate, the last one is kept
+    Attestation attestation = new Attestation(certificate);
+    synchronized (this) {
+      mAttestations.put(key, attestation);
+    }
+    return attestation;
+  }
+
+  /** Gets the SHA-256 digest of {@code certificate}, in lowercase hex, as used to cache it. */
+  @NonNull
+  public static String getKey(@NonNull X509Certificate certificate)
+      throws CertificateParsingException {
+    try {
+      byte[] digest = MessageDigest.getInstance(DIGEST_ALGORITHM).digest(certificate.getEncoded());
+      return BaseEncoding.base16().lowerCase().encode(digest);
+    } catch (CertificateEncodingException e) {
+      throw new CertificateParsingException("Cannot encode certificate", e);
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(DIGEST_ALGORITHM + " is always available", e);
+    }
+  }
+
+  public synchronized int size() {
+    return mAttestations.size();
+  }
+
+  /** Gets how many lookups found a cached attestation, and how many had to parse it. */
+  public synchronized long[] getStats() {
+    return new long[] {mHits, mMisses};
+  }
+
+  public synchronized void clear() {
+    mAttestations.clear();
+  }
+}
@@ -14,16 +14,10 @@
 
 package com.afwsamples.testdpc.policy.utils;
 
-import java.io.UnsupportedEncodingException;
 import java.security.cert.CertificateParsingException;
-import org.bouncycastle.asn1.ASN1Encodable;
-import org.bouncycastle.asn1.ASN1Sequence;
 
 @SuppressWarnings("EqualsHashCode")
 public class AttestationPackageInfo implements java.lang.Comparable<AttestationPackageInfo> {
-  private static final int PACKAGE_NAME_INDEX = 0;
-  private static final int VERSION_INDEX = 1;
-
   private final String packageName;
   private final long version;
 
@@ -32,23 +26,25 @@ public class AttestationPackageInfo implements java.lang.Comparable<AttestationP
     this.version = version;
   }
 
-  public AttestationPackageInfo(ASN1Encodable asn1Encodable) throws CertificateParsingException {
-    if (!(asn1Encodable instanceof ASN1Sequence)) {
-      throw new CertificateParsingException(
-          "Expected sequence for AttestationPackageInfo, found "
-              + asn1Encodable.getClass().getName());
-    }
+  /** Parses the AttestationPackageInfo SEQUENCE that {@code sequence} is moved to. */
+  public AttestationPackageInfo(DerReader sequence) throws CertificateParsingException {
+    sequence.expect(DerReader.TAG_SEQUENCE, "sequence for AttestationPackageInfo");
+
+    DerReader fields = sequence.getContents();
+    packageName = fields.nextRequired().getUtf8String();
+    version = fields.nextRequired().getLong();
+  }
+
+  /**
+   * Checks that the AttestationPackageInfo SEQUENCE that {@code sequence} is moved to can be
+   * parsed, without decoding it.
+   */
+  static void check(DerReader sequence) throws CertificateParsingException {
+    sequence.expect(DerReader.TAG_SEQUENCE, "sequence for AttestationPackageInfo");
 
-    ASN1Sequence sequence = (ASN1Sequence) asn1Encodable;
-    try {
-      packageName =
-          Asn1Utils.getStringFromAsn1OctetStreamAssumingUTF8(
-              sequence.getObjectAt(PACKAGE_NAME_INDEX));
-    } catch (UnsupportedEncodingException e) {
-      throw new CertificateParsingException(
-          "Converting octet stream to String triggered an UnsupportedEncodingException", e);
-    }
-    version = Asn1Utils.getLongFromAsn1(sequence.getObjectAt(VERSION_INDEX));
+    DerReader fields = sequence.getContents();
+    fields.nextRequired().expect(DerReader.TAG_OCTET_STRING, "octet string");
+    fields.nextRequired().getLong();
   }
 
   public String getPackageName() {
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy.utils;
+
+import androidx.annotation.NonNull;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Properties a key attestation must have to be accepted by {@link AttestationVerifier}.
+ *
+ * <p>Only the hardware enforced {@link AuthorizationList} is trusted: the root of trust and the OS
+ * patch level are read from {@link Attestation#getTeeEnforced()}.
+ */
+public final class AttestationPolicy {
+
+  private final int mMinSecurityLevel;
+  private final boolean mRequireVerifiedBoot;
+  private final int mMinOsPatchLevel;
+
+  private AttestationPolicy(Builder builder) {
+    mMinSecurityLevel = builder.mMinSecurityLevel;
+    mRequireVerifiedBoot = builder.mRequireVerifiedBoot;
+    mMinOsPatchLevel = builder.mMinOsPatchLevel;
+  }
+
+  @NonNull
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public int getMinSecurityLevel() {
+    return mMinSecurityLevel;
+  }
+
+  public boolean isVerifiedBootRequired() {
+    return mRequireVerifiedBoot;
+  }
+
+  /** Minimum OS patch level, as {@code YYYYMM}; {@code 0} if any patch level is accepted. */
+  public int getMinOsPatchLevel() {
+    return mMinOsPatchLevel;
+  }
+
+  /** Returns why {@code attestation} doesn't meet this policy; empty if it does. */
+  @NonNull
+  public List<String> evaluate(@NonNull Attestation attestation) {
+    List<String> violations = new ArrayList<>();
+    int securityLevel = attestation.getAttestationSecurityLevel();
+    if (securityLevel < mMinSecurityLevel) {
+      violations.add(
+          "Security level is "
+              + Attestation.securityLevelToString(securityLevel)
+              + ", expected at least "
+              + Attestation.securityLevelToString(mMinSecurityLevel));
+    }
+
+    AuthorizationList teeEnforced = attestation.getTeeEnforced();
+    if (mRequireVerifiedBoot) {
+      RootOfTrust rootOfTrust = teeEnforced.getRootOfTrust();
+      if (rootOfTrust == null) {
+        violations.add("No hardware enforced root of trust");
+      } else {
+        int verifiedBootState = rootOfTrust.getVerifiedBootState();
+        if (verifiedBootState != RootOfTrust.KM_VERIFIED_BOOT_VERIFIED) {
+          violations.add(
+              "Verified boot state is "
+                  + RootOfTrust.verifiedBootStateToString(verifiedBootState));
+        }
+        if (!rootOfTrust.isDeviceLocked()) {
+          violations.add("Bootloader is unlocked");
+        }
+      }
+    }
+
+    if (mMinOsPatchLevel > 0) {
+      Integer osPatchLevel = teeEnforced.getOsPatchLevel();
+      if (osPatchLevel == null) {
+        violations.add("No hardware enforced OS patch level");
+      } else if (osPatchLevel < mMinOsPatchLevel) {
+        violations.add(
+            "OS patch level is " + osPatchLevel + ", expected at least " + mMinOsPatchLevel);
+      }
+    }
+    return violations;
+  }
+
+  @Override
+  public String toString() {
+    return "AttestationPolicy[minSecurityLevel="
+        + Attestation.securityLevelToString(mMinSecurityLevel)
+        + ", requireVerifiedBoot="
+        + mRequireVerifiedBoot
+        + ", minOsPatchLevel="
+        + mMinOsPatchLevel
+        + "]";
+  }
+
+  /** Builder for {@link AttestationPolicy}. */
+  public static final class Builder {
+    private int mMinSecurityLevel = Attestation.KM_SECURITY_LEVEL_TRUSTED_ENVIRONMENT;
+    private boolean mRequireVerifiedBoot = true;
+    private int mMinOsPatchLevel;
+
+    private Builder() {}
+
+    /**
+     * Sets the minimum attestation security level, such as {@link
+     * Attestation#KM_SECURITY_LEVEL_SOFTWARE} to accept emulators. Defaults to {@link
+     * Attestation#KM_SECURITY_LEVEL_TRUSTED_ENVIRONMENT}.
+     */
+    public Builder setMinSecurityLevel(int securityLevel) {
+      mMinSecurityLevel = securityLevel;
+      return this;
+    }
+
+    /** Whether the device must have booted a verified image with a locked bootloader. */
+    public Builder setRequireVerifiedBoot(boolean requireVerifiedBoot) {
+      mRequireVerifiedBoot = requireVerifiedBoot;
+      return this;
+    }
+
+    /** Sets the minimum OS patch level, as {@code YYYYMM}, such as {@code 202201}. */
+    public Builder setMinOsPatchLevel(int osPatchLevel) {
+      if (osPatchLevel < 0) {
+        throw new IllegalArgumentException("Invalid OS patch level: " + osPatchLevel);
+      }
+      mMinOsPatchLevel = osPatchLevel;
+      return this;
+    }
+
+    public AttestationPolicy build() {
+      return new AttestationPolicy(this);
+    }
+  }
+}
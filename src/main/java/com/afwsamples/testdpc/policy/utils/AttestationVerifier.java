@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy.utils;
+
+import android.os.Build.VERSION_CODES;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import androidx.annotation.VisibleForTesting;
+import com.google.common.io.BaseEncoding;
+import java.security.GeneralSecurityException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Verifies key attestation chains, as returned by {@code AttestedKeyPair.getAttestationRecord()}.
+ *
+ * <p>A chain is accepted when each certificate is signed by the next one (the root by itself) and
+ * is valid at the given time, the intermediate certificates are CA certificates, the root's public
+ * key is one of the trusted roots (Google's attestation roots by default), and the attestation of
+ * the leaf certificate meets the {@link AttestationPolicy}.
+ *
+ * <p>Signatures are verified in parallel, one task per certificate. As their outcome only depends
+ * on the certificate and its issuer, it's cached for the whole process, keyed by the digests of
+ * both: a new key only needs its leaf verified, since the rest of the chain is the same for all
+ * keys of a device. Validity periods and the policy are checked on every call.
+ */
+public final class AttestationVerifier {
+
+  @VisibleForTesting static final int MAX_CACHED_SIGNATURES = 64;
+
+  private static final int THREADS = 4;
+  private static final long THREAD_KEEP_ALIVE_SECONDS = 30;
+
+  /**
+   * Public keys of Google's hardware attestation roots, base64 encoded: the RSA root and the ECDSA
+   * "Key Attestation CA1" root.
+   */
+  private static final String[] GOOGLE_ROOT_PUBLIC_KEYS = {
+    "MIICIjANBgkqhkiG9w0BAQEFAAOCAg8AMIICCgKCAgEAr7bHgiuxpwHsK7Qui8xU"
+        + "FmOr75gvMsd/dTEDDJdSSxtf6An7xyqpRR90PL2abxM1dEqlXnf2tqw1Ne4Xwl5j"
+        + "lRfdnJLmN0pTy/4lj4/7tv0Sk3iiKkypnEUtR6WfMgH0QZfKHM1+di+y9TFRtv6y"
+        + "//0rb+T+W8a9nsNL/ggjnar86461qO0rOs2cXjp3kOG1FEJ5MVmFmBGtnrKpa73X"
+        + "pXyTqRxB/M0n1n/W9nGqC4FSYa04T6N5RIZGBN2z2MT5IKGbFlbC8UrW0DxW7AYI"
+        + "mQQcHtGl/m00QLVWutHQoVJYnFPlXTcHYvASLu+RhhsbDmxMgJJ0mcDpvsC4PjvB"
+        + "+TxywElgS70vE0XmLD+OJtvsBslHZvPBKCOdT0MS+tgSOIfga+z1Z1g7+DVagf7q"
+        + "uvmag8jfPioyKvxnK/EgsTUVi2ghzq8wm27ud/mIM7AY2qEORR8Go3TVB4HzWQgp"
+        + "Zrt3i5MIlCaY504LzSRiigHCzAPlHws+W0rB5N+er5/2pJKnfBSDiCiFAVtCLOZ7"
+        + "gLiMm0jhO2B6tUXHI/+MRPjy02i59lINMRRev56GKtcd9qO/0kUJWdZTdA2XoS82"
+        + "ixPvZtXQpUpuL12ab+9EaDK8Z4RHJYYfCT3Q5vNAXaiWQ+8PTWm2QgBR/bkwSWc+"
+        + "NpUFgNPN9PvQi8WEg5UmAGMCAwEAAQ==",
+    "MHYwEAYHKoZIzj0CAQYFK4EEACIDYgAEI9ojcU7fPlsFCjxy6IRqzgeOoK0b+YsV"
+        + "9FPQywiyw8EQRTkJ9u3qwfnI4DGoSLlBqClTXJfgfCcZvs60FikNMHnu4fkRzObf"
+        + "gDkU2KNXezT9/RQ+XvNslxPHrHCowhGr",
+  };
+
+  // Outcome of each signature check, keyed by the digests of the certificate and its issuer: an
+  // error, or NO_ERROR
+  private static final Map<String, String> sSignatureErrors =
+      new LinkedHashMap<String, String>(MAX_CACHED_SIGNATURES, 0.75f, /* accessOrder= */ true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+          return size() > MAX_CACHED_SIGNATURES;
+        }
+      };
+  private static final String NO_ERROR = "";
+
+  // Shared by the verifiers that aren't given an executor; its threads exit when idle
+  private static final ExecutorService sExecutor = newSharedExecutor();
+
+  private static long sCacheHits;
+  private static long sCacheMisses;
+
+  private final Set<String> mTrustedRootKeys;
+  private final AttestationPolicy mPolicy;
+  private final ExecutorService mExecutor;
+
+  /** Trusts Google's attestation roots, and verifies signatures on a shared executor. */
+  public AttestationVerifier(@NonNull AttestationPolicy policy) {
+    this(new HashSet<>(Arrays.asList(GOOGLE_ROOT_PUBLIC_KEYS)), policy, sExecutor);
+  }
+
+  /**
+   * Verifies signatures on a shared executor.
+   *
+   * @param trustedRoots certificates whose public keys may sign the root of a chain
+   */
+  public AttestationVerifier(
+      @NonNull Collection<X509Certificate> trustedRoots, @NonNull AttestationPolicy policy) {
+    this(trustedRoots, policy, sExecutor);
+  }
+
+  /**
+   * @param trustedRoots certificates whose public keys may sign the root of a chain
+   * @param executor runs the signature checks
+   */
+  public AttestationVerifier(
+      @NonNull Collection<X509Certificate> trustedRoots,
+      @NonNull AttestationPolicy policy,
+      @NonNull ExecutorService executor) {
+    this(encodePublicKeys(trustedRoots), policy, executor);
+  }
+
+  private AttestationVerifier(
+      Set<String> trustedRootKeys, AttestationPolicy policy, ExecutorService executor) {
+    mTrustedRootKeys = trustedRootKeys;
+    mPolicy = policy;
+    mExecutor = executor;
+  }
+
+  /** Verifies {@code chain}, leaf first, at the current time. */
+  @NonNull
+  @RequiresApi(api = VERSION_CODES.N)
+  public Result verify(@NonNull List<? extends Certificate> chain) throws InterruptedException {
+    return verify(chain, System.currentTimeMillis());
+  }
+
+  /** Verifies {@code chain}, leaf first, at {@code timeMillis}. */
+  @NonNull
+  @RequiresApi(api = VERSION_CODES.N)
+  public Result verify(@NonNull List<? extends Certificate> chain, long timeMillis)
+      throws InterruptedException {
+    if (chain.isEmpty()) {
+      return new Result(
+          Collections.singletonList("Empty chain"), false, Collections.emptyList(), null);
+    }
+    List<X509Certificate> certificates = new ArrayList<>(chain.size());
+    for (Certificate certificate : chain) {
+      if (!(certificate instanceof X509Certificate)) {
+        return new Result(
+            Collections.singletonList("Not an X.509 certificate: " + certificate.getType()),
+            false,
+            Collections.emptyList(),
+            null);
+      }
+      certificates.add((X509Certificate) certificate);
+    }
+
+    List<String> chainErrors = verifySignatures(certificates);
+    // The leaf isn't a CA, and the root is trusted for its key rather than its extensions
+    for (int i = 1; i < certificates.size() - 1; i++) {
+      if (certificates.get(i).getBasicConstraints() < 0) {
+        chainErrors.add("Certificate " + i + " isn't a CA certificate");
+      }
+    }
+    Date time = new Date(timeMillis);
+    for (int i = 0; i < certificates.size(); i++) {
+      try {
+        certificates.get(i).checkValidity(time);
+      } catch (CertificateException e) {
+        chainErrors.add("Certificate " + i + " isn't valid at " + time + ": " + e.getMessage());
+      }
+    }
+
+    X509Certificate root = certificates.get(certificates.size() - 1);
+    boolean rootTrusted = mTrustedRootKeys.contains(encodePublicKey(root));
+
+    Attestation attestation = null;
+    List<String> policyViolations;
+    try {
+      attestation = AttestationCache.getInstance().get(certificates.get(0));
+      policyViolations = mPolicy.evaluate(attestation);
+    } catch (CertificateParsingException e) {
+      policyViolations = Collections.singletonList("Invalid attestation: " + e.getMessage());
+    }
+    return new Result(chainErrors, rootTrusted, policyViolations, attestation);
+  }
+
+  @NonNull
+  public AttestationPolicy getPolicy() {
+    return mPolicy;
+  }
+
+  /** Gets how many signatures were cached, and how many had to be verified. */
+  @NonNull
+  public static long[] getStats() {
+    synchronized (sSignatureErrors) {
+      return new long[] {sCacheHits, sCacheMisses};
+    }
+  }
+
+  @VisibleForTesting
+  static void clearCache() {
+    synchronized (sSignatureErrors) {
+      sSignatureErrors.clear();
+      sCacheHits = 0;
+      sCacheMisses = 0;
+    }
+  }
+
+  private List<String> verifySignatures(List<X509Certificate> certificates)
+      throws InterruptedException {
+    int size = certificates.size();
+    String[] errors = new String[size];
+    String[] keys = new String[size];
+    List<Future<String>> futures = new ArrayList<>(Collections.nCopies(size, null));
+    try {
+      for (int i = 0; i < size; i++) {
+        X509Certificate certificate = certificates.get(i);
+        // The root is self-signed
+        X509Certificate issuer = certificates.get(Math.min(i + 1, size - 1));
+        try {
+          keys[i] = getKey(certificate, issuer);
+        } catch (CertificateParsingException e) {
+          errors[i] = e.getMessage();
+          continue;
+        }
+        synchronized (sSignatureErrors) {
+          errors[i] = sSignatureErrors.get(keys[i]);
+          if (errors[i] != null) {
+            sCacheHits++;
+          } else {
+            sCacheMisses++;
+          }
+        }
+        if (errors[i] == null) {
+          futures.set(i, mExecutor.submit(verifySignature(certificate, issuer)));
+        }
+      }
+      List<String> chainErrors = new ArrayList<>();
+      for (int i = 0; i < size; i++) {
+        Future<String> future = futures.get(i);
+        if (future != null) {
+          try {
+            errors[i] = future.get();
+          } catch (ExecutionException e) {
+            errors[i] = "failed verification: " + e.getCause();
+          }
+          synchronized (sSignatureErrors) {
+            sSignatureErrors.put(keys[i], errors[i]);
+          }
+        }
+        if (!NO_ERROR.equals(errors[i])) {
+          chainErrors.add("Certificate " + i + " " + errors[i]);
+        }
+      }
+      return chainErrors;
+    } finally {
+      for (Future<String> future : futures) {
+        if (future != null) {
+          future.cancel(/* mayInterruptIfRunning= */ true);
+        }
+      }
+    }
+  }
+
+  /** Checks the signature of {@code certificate}, returning an error or {@link #NO_ERROR}. */
+  private static Callable<String> verifySignature(
+      X509Certificate certificate, X509Certificate issuer) {
+    return () -> {
+      if (!certificate.getIssuerX500Principal().equals(issuer.getSubjectX500Principal())) {
+        return "wasn't issued by " + issuer.getSubjectX500Principal();
+      }
+      try {
+        certificate.verify(issuer.getPublicKey());
+        return NO_ERROR;
+      } catch (GeneralSecurityException e) {
+        return "has an invalid signature: " + e;
+      }
+    };
+  }
+
+  /** Joins the digests of a certificate and its issuer, which identifies a signature check. */
+  private static String getKey(X509Certificate certificate, X509Certificate issuer)
+      throws CertificateParsingException {
+    return AttestationCache.getKey(certificate) + ":" + AttestationCache.getKey(issuer);
+  }
+
+  private static Set<String> encodePublicKeys(Collection<X509Certificate> certificates) {
+    Set<String> keys = new HashSet<>(certificates.size());
+    for (X509Certificate certificate : certificates) {
+      keys.add(encodePublicKey(certificate));
+    }
+    return keys;
+  }
+
+  private static String encodePublicKey(X509Certificate certificate) {
+    return BaseEncoding.base64().encode(certificate.getPublicKey().getEncoded());
+  }
+
+  private static ExecutorService newSharedExecutor() {
+    ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(
+            THREADS,
+            THREADS,
+            THREAD_KEEP_ALIVE_SECONDS,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>());
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /** The outcome of {@link #verify}. */
+  public static final class Result {
+    private final List<String> mChainErrors;
+    private final boolean mRootTrusted;
+    private final List<String> mPolicyViolations;
+    @Nullable private final Attestation mAttestation;
+
+    private Result(
+        List<String> chainErrors,
+        boolean rootTrusted,
+        List<String> policyViolations,
+        @Nullable Attestation attestation) {
+      mChainErrors = Collections.unmodifiableList(chainErrors);
+      mRootTrusted = rootTrusted;
+      mPolicyViolations = Collections.unmodifiableList(policyViolations);
+      mAttestation = attestation;
+    }
+
+    /** Whether the chain is valid, its root trusted, and its attestation meets the policy. */
+    public boolean isValid() {
+      return mChainErrors.isEmpty() && mRootTrusted && mPolicyViolations.isEmpty();
+    }
+
+    /** Signatures, issuers or validity periods that failed verification. */
+    @NonNull
+    public List<String> getChainErrors() {
+      return mChainErrors;
+    }
+
+    public boolean isRootTrusted() {
+      return mRootTrusted;
+    }
+
+    @NonNull
+    public List<String> getPolicyViolations() {
+      return mPolicyViolations;
+    }
+
+    /** Gets the attestation of the leaf certificate, or {@code null} if it couldn't be parsed. */
+    @Nullable
+    public Attestation getAttestation() {
+      return mAttestation;
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder(isValid() ? "Valid" : "Invalid");
+      mChainErrors.forEach((e) -> sb.append("\n  Chain: ").append(e));
+      if (!mRootTrusted) {
+        sb.append("\n  Root: not trusted");
+      }
+      mPolicyViolations.forEach((v) -> sb.append("\n  Policy: ").append(v));
+      return sb.toString();
+    }
+  }
+}
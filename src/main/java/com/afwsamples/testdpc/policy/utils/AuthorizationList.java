@@ -19,28 +19,31 @@ package com.afwsamples.testdpc.policy.utils;
 import static com.google.common.base.Functions.forMap;
 import static com.google.common.collect.Collections2.transform;
 
-import android.os.Build.VERSION_CODES;
-import android.security.keystore.KeyProperties;
-import android.util.Log;
 import androidx.annotation.RequiresApi;
+import androidx.annotation.VisibleForTesting;
 import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
-import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.security.cert.CertificateParsingException;
 import java.text.DateFormat;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import org.bouncycastle.asn1.ASN1Encodable;
-import org.bouncycastle.asn1.ASN1Primitive;
-import org.bouncycastle.asn1.ASN1Sequence;
-import org.bouncycastle.asn1.ASN1SequenceParser;
-import org.bouncycastle.asn1.ASN1TaggedObject;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+/**
+ * An AuthorizationList of an attestation record.
+ *
+ * <p>Parsing checks the tag and value of each entry and records where the value is, without
+ * decoding it; each getter then decodes its entry from the attestation extension bytes the first
+ * time it is called, and keeps the value for later calls. Values are immutable or copied when they
+ * are returned, so a list can be shared between threads.
+ */
 public class AuthorizationList {
   // Algorithm values.
   public static final int KM_ALGORITHM_RSA = 1;
@@ -83,6 +86,15 @@ public class AuthorizationList {
   public static final int HW_AUTH_PASSWORD = 1 << 0;
   public static final int HW_AUTH_FINGERPRINT = 1 << 1;
 
+  // android.os.Build.VERSION_CODES.N and android.security.keystore.KeyProperties values, copied so
+  // that the parsers don't depend on Android
+  static final int VERSION_CODE_N = 24;
+  private static final String ENCRYPTION_PADDING_NONE = "NoPadding";
+  private static final String ENCRYPTION_PADDING_RSA_OAEP = "OAEPPadding";
+  private static final String ENCRYPTION_PADDING_RSA_PKCS1 = "PKCS1Padding";
+  private static final String SIGNATURE_PADDING_RSA_PKCS1 = "PKCS1";
+  private static final String SIGNATURE_PADDING_RSA_PSS = "PSS";
+
   // Keymaster tag classes
   private static final int KM_ENUM = 1 << 28;
   private static final int KM_ENUM_REP = 2 << 28;
@@ -164,172 +176,119 @@ public class AuthorizationList {
           .put(KM_PURPOSE_VERIFY, "VERIFY")
           .build();
 
-  private Set<Integer> purposes;
-  private Integer algorithm;
-  private Integer keySize;
-  private Set<Integer> digests;
-  private Set<Integer> paddingModes;
-  private Integer ecCurve;
-  private Long rsaPublicExponent;
-  private Date activeDateTime;
-  private Date originationExpireDateTime;
-  private Date usageExpireDateTime;
-  private boolean noAuthRequired;
-  private Integer userAuthType;
-  private Integer authTimeout;
-  private boolean allowWhileOnBody;
-  private boolean allApplications;
-  private byte[] applicationId;
-  private Date creationDateTime;
-  private Integer origin;
-  private boolean rollbackResistant;
-  private RootOfTrust rootOfTrust;
-  private Integer osVersion;
-  private Integer osPatchLevel;
-  private Integer vendorPatchLevel;
-  private Integer bootPatchLevel;
-  private AttestationApplicationId attestationApplicationId;
-  private String brand;
-  private String device;
-  private String serialNumber;
-  private String imei;
-  private String meid;
-  private String product;
-  private String manufacturer;
-  private String model;
-  private boolean userPresenceRequired;
-  private boolean confirmationRequired;
-  private boolean individualAttestation;
-
-  @RequiresApi(api = VERSION_CODES.N)
-  public AuthorizationList(ASN1Encodable sequence) throws CertificateParsingException {
-    if (!(sequence instanceof ASN1Sequence)) {
-      throw new CertificateParsingException(
-          "Expected sequence for authorization list, found " + sequence.getClass().getName());
-    }
-
-    ASN1SequenceParser parser = ((ASN1Sequence) sequence).parser();
-    ASN1TaggedObject entry = parseAsn1TaggedObject(parser);
-    for (; entry != null; entry = parseAsn1TaggedObject(parser)) {
-      int tag = entry.getTagNo();
-      ASN1Primitive value = entry.getObject();
-      Log.i("Attestation", "Parsing tag: [" + tag + "], value: [" + value + "]");
-      switch (tag) {
-        default:
-          throw new CertificateParsingException("Unknown tag " + tag + " found");
-
-        case KM_TAG_PURPOSE & KEYMASTER_TAG_TYPE_MASK:
-          purposes = Asn1Utils.getIntegersFromAsn1Set(value);
-          break;
-        case KM_TAG_ALGORITHM & KEYMASTER_TAG_TYPE_MASK:
-          algorithm = Asn1Utils.getIntegerFromAsn1(value);
-          break;
-        case KM_TAG_KEY_SIZE & KEYMASTER_TAG_TYPE_MASK:
-          keySize = Asn1Utils.getIntegerFromAsn1(value);
-          Log.i("Attestation", "Found KEY SIZE, value: " + keySize);
-          break;
-        case KM_TAG_DIGEST & KEYMASTER_TAG_TYPE_MASK:
-          digests = Asn1Utils.getIntegersFromAsn1Set(value);
-          break;
-        case KM_TAG_PADDING & KEYMASTER_TAG_TYPE_MASK:
-          paddingModes = Asn1Utils.getIntegersFromAsn1Set(value);
-          break;
-        case KM_TAG_RSA_PUBLIC_EXPONENT & KEYMASTER_TAG_TYPE_MASK:
-          rsaPublicExponent = Asn1Utils.getLongFromAsn1(value);
-          break;
-        case KM_TAG_NO_AUTH_REQUIRED & KEYMASTER_TAG_TYPE_MASK:
-          noAuthRequired = true;
-          break;
-        case KM_TAG_CREATION_DATETIME & KEYMASTER_TAG_TYPE_MASK:
-          creationDateTime = Asn1Utils.getDateFromAsn1(value);
-          break;
-        case KM_TAG_ORIGIN & KEYMASTER_TAG_TYPE_MASK:
-          origin = Asn1Utils.getIntegerFromAsn1(value);
-          break;
-        case KM_TAG_OS_VERSION & KEYMASTER_TAG_TYPE_MASK:
-          osVersion = Asn1Utils.getIntegerFromAsn1(value);
-          break;
-        case KM_TAG_OS_PATCHLEVEL & KEYMASTER_TAG_TYPE_MASK:
-          osPatchLevel = Asn1Utils.getIntegerFromAsn1(value);
-          break;
-        case KM_TAG_VENDOR_PATCHLEVEL & KEYMASTER_TAG_TYPE_MASK:
-          vendorPatchLevel = Asn1Utils.getIntegerFromAsn1(value);
-          break;
-        case KM_TAG_BOOT_PATCHLEVEL & KEYMASTER_TAG_TYPE_MASK:
-          bootPatchLevel = Asn1Utils.getIntegerFromAsn1(value);
-          break;
-        case KM_TAG_ACTIVE_DATETIME & KEYMASTER_TAG_TYPE_MASK:
-          activeDateTime = Asn1Utils.getDateFromAsn1(value);
-          break;
-        case KM_TAG_ORIGINATION_EXPIRE_DATETIME & KEYMASTER_TAG_TYPE_MASK:
-          originationExpireDateTime = Asn1Utils.getDateFromAsn1(value);
-          break;
-        case KM_TAG_USAGE_EXPIRE_DATETIME & KEYMASTER_TAG_TYPE_MASK:
-          usageExpireDateTime = Asn1Utils.getDateFromAsn1(value);
-          break;
-        case KM_TAG_APPLICATION_ID & KEYMASTER_TAG_TYPE_MASK:
-          applicationId = Asn1Utils.getByteArrayFromAsn1(value);
-          break;
-        case KM_TAG_ROLLBACK_RESISTANT & KEYMASTER_TAG_TYPE_MASK:
-          rollbackResistant = true;
-          break;
-        case KM_TAG_AUTH_TIMEOUT & KEYMASTER_TAG_TYPE_MASK:
-          authTimeout = Asn1Utils.getIntegerFromAsn1(value);
-          break;
-        case KM_TAG_ALLOW_WHILE_ON_BODY & KEYMASTER_TAG_TYPE_MASK:
-          allowWhileOnBody = true;
-          break;
-        case KM_TAG_EC_CURVE & KEYMASTER_TAG_TYPE_MASK:
-          ecCurve = Asn1Utils.getIntegerFromAsn1(value);
-          break;
-        case KM_TAG_USER_AUTH_TYPE & KEYMASTER_TAG_TYPE_MASK:
-          userAuthType = Asn1Utils.getIntegerFromAsn1(value);
-          break;
-        case KM_TAG_ROOT_OF_TRUST & KEYMASTER_TAG_TYPE_MASK:
-          rootOfTrust = new RootOfTrust(value);
-          break;
-        case KM_TAG_ATTESTATION_APPLICATION_ID & KEYMASTER_TAG_TYPE_MASK:
-          attestationApplicationId =
-              new AttestationApplicationId(
-                  Asn1Utils.getAsn1EncodableFromBytes(Asn1Utils.getByteArrayFromAsn1(value)));
-          break;
-        case KM_TAG_ATTESTATION_ID_BRAND & KEYMASTER_TAG_TYPE_MASK:
-          brand = getStringFromAsn1Value(value);
-          break;
-        case KM_TAG_ATTESTATION_ID_DEVICE & KEYMASTER_TAG_TYPE_MASK:
-          device = getStringFromAsn1Value(value);
-          break;
-        case KM_TAG_ATTESTATION_ID_PRODUCT & KEYMASTER_TAG_TYPE_MASK:
-          product = getStringFromAsn1Value(value);
-          break;
-        case KM_TAG_ATTESTATION_ID_SERIAL & KEYMASTER_TAG_TYPE_MASK:
-          serialNumber = getStringFromAsn1Value(value);
-          break;
-        case KM_TAG_ATTESTATION_ID_IMEI & KEYMASTER_TAG_TYPE_MASK:
-          imei = getStringFromAsn1Value(value);
-          break;
-        case KM_TAG_ATTESTATION_ID_MEID & KEYMASTER_TAG_TYPE_MASK:
-          meid = getStringFromAsn1Value(value);
-          break;
-        case KM_TAG_ATTESTATION_ID_MANUFACTURER & KEYMASTER_TAG_TYPE_MASK:
-          manufacturer = getStringFromAsn1Value(value);
-          break;
-        case KM_TAG_ATTESTATION_ID_MODEL & KEYMASTER_TAG_TYPE_MASK:
-          model = getStringFromAsn1Value(value);
-          break;
-        case KM_TAG_ALL_APPLICATIONS & KEYMASTER_TAG_TYPE_MASK:
-          allApplications = true;
-          break;
-        case KM_TAG_TRUSTED_USER_PRESENCE_REQUIRED & KEYMASTER_TAG_TYPE_MASK:
-          userPresenceRequired = true;
-          break;
-        case KM_TAG_TRUSTED_CONFIRMATION_REQUIRED & KEYMASTER_TAG_TYPE_MASK:
-          confirmationRequired = true;
-          break;
-        case KM_TAG_DEVICE_UNIQUE_ATTESTATION & KEYMASTER_TAG_TYPE_MASK:
-          individualAttestation = true;
-          break;
+  /** The entries of the list, to read values from. */
+  private final DerReader entries;
+
+  // Keymaster tag (without type) and offset of the value of each entry, in order
+  private final int[] entryTags;
+  private final int[] entryOffsets;
+
+  // Value of each entry once it was decoded, null until then
+  private final AtomicReferenceArray<Object> decodedValues;
+
+  /**
+   * Parses the AuthorizationList SEQUENCE that {@code sequence} is moved to.
+   *
+   * @throws CertificateParsingException if it has an unknown tag or a value of the wrong type
+   */
+  @RequiresApi(api = VERSION_CODE_N)
+  public AuthorizationList(DerReader sequence) throws CertificateParsingException {
+    sequence.expect(DerReader.TAG_SEQUENCE, "sequence for authorization list");
+    entries = sequence.getContents();
+
+    int count = 0;
+    int[] tags = new int[16];
+    int[] offsets = new int[16];
+    DerReader reader = sequence.getContents();
+    while (reader.next()) {
+      if (reader.getTagClass() != DerReader.CLASS_CONTEXT_SPECIFIC || !reader.isConstructed()) {
+        throw new CertificateParsingException(
+            "Expected tagged object, found tag "
+                + reader.getTagClass()
+                + "/"
+                + reader.getTagNumber());
+      }
+      int tag = reader.getTagNumber();
+      DerReader value = reader.getContents().nextRequired();
+      checkValue(tag, value);
+      if (count == tags.length) {
+        tags = Arrays.copyOf(tags, count * 2);
+        offsets = Arrays.copyOf(offsets, count * 2);
       }
+      tags[count] = tag;
+      offsets[count] = value.getOffset();
+      count++;
+    }
+    entryTags = Arrays.copyOf(tags, count);
+    entryOffsets = Arrays.copyOf(offsets, count);
+    decodedValues = new AtomicReferenceArray<>(count);
+  }
+
+  /**
+   * Checks that {@code value} can be decoded as the type of {@code tag}, so that the getters don't
+   * fail later. Nothing is allocated, except for the readers of nested structures.
+   */
+  private static void checkValue(int tag, DerReader value) throws CertificateParsingException {
+    switch (tag) {
+      default:
+        throw new CertificateParsingException("Unknown tag " + tag + " found");
+
+      case KM_TAG_PURPOSE & KEYMASTER_TAG_TYPE_MASK:
+      case KM_TAG_DIGEST & KEYMASTER_TAG_TYPE_MASK:
+      case KM_TAG_PADDING & KEYMASTER_TAG_TYPE_MASK:
+        value.expect(DerReader.TAG_SET, "set");
+        DerReader set = value.getContents();
+        while (set.next()) {
+          set.expect(DerReader.TAG_INTEGER, "integer");
+          set.getInt();
+        }
+        break;
+      case KM_TAG_ALGORITHM & KEYMASTER_TAG_TYPE_MASK:
+      case KM_TAG_KEY_SIZE & KEYMASTER_TAG_TYPE_MASK:
+      case KM_TAG_EC_CURVE & KEYMASTER_TAG_TYPE_MASK:
+      case KM_TAG_USER_AUTH_TYPE & KEYMASTER_TAG_TYPE_MASK:
+      case KM_TAG_AUTH_TIMEOUT & KEYMASTER_TAG_TYPE_MASK:
+      case KM_TAG_ORIGIN & KEYMASTER_TAG_TYPE_MASK:
+      case KM_TAG_OS_VERSION & KEYMASTER_TAG_TYPE_MASK:
+      case KM_TAG_OS_PATCHLEVEL & KEYMASTER_TAG_TYPE_MASK:
+      case KM_TAG_VENDOR_PATCHLEVEL & KEYMASTER_TAG_TYPE_MASK:
+      case KM_TAG_BOOT_PATCHLEVEL & KEYMASTER_TAG_TYPE_MASK:
+        value.getInt();
+        break;
+      case KM_TAG_RSA_PUBLIC_EXPONENT & KEYMASTER_TAG_TYPE_MASK:
+      case KM_TAG_ACTIVE_DATETIME & KEYMASTER_TAG_TYPE_MASK:
+      case KM_TAG_ORIGINATION_EXPIRE_DATETIME & KEYMASTER_TAG_TYPE_MASK:
+      case KM_TAG_USAGE_EXPIRE_DATETIME & KEYMASTER_TAG_TYPE_MASK:
+      case KM_TAG_CREATION_DATETIME & KEYMASTER_TAG_TYPE_MASK:
+        value.getLong();
+        break;
+      case KM_TAG_ATTESTATION_APPLICATION_ID & KEYMASTER_TAG_TYPE_MASK:
+        value.expect(DerReader.TAG_OCTET_STRING, "octet string");
+        AttestationApplicationId.check(value.getContents().nextRequired());
+        break;
+      case KM_TAG_APPLICATION_ID & KEYMASTER_TAG_TYPE_MASK:
+      case KM_TAG_ATTESTATION_ID_BRAND & KEYMASTER_TAG_TYPE_MASK:
+      case KM_TAG_ATTESTATION_ID_DEVICE & KEYMASTER_TAG_TYPE_MASK:
+      case KM_TAG_ATTESTATION_ID_PRODUCT & KEYMASTER_TAG_TYPE_MASK:
+      case KM_TAG_ATTESTATION_ID_SERIAL & KEYMASTER_TAG_TYPE_MASK:
+      case KM_TAG_ATTESTATION_ID_IMEI & KEYMASTER_TAG_TYPE_MASK:
+      case KM_TAG_ATTESTATION_ID_MEID & KEYMASTER_TAG_TYPE_MASK:
+      case KM_TAG_ATTESTATION_ID_MANUFACTURER & KEYMASTER_TAG_TYPE_MASK:
+      case KM_TAG_ATTESTATION_ID_MODEL & KEYMASTER_TAG_TYPE_MASK:
+        value.expect(DerReader.TAG_OCTET_STRING, "octet string");
+        break;
+      case KM_TAG_ROOT_OF_TRUST & KEYMASTER_TAG_TYPE_MASK:
+        RootOfTrust.check(value);
+        break;
+      case KM_TAG_NO_AUTH_REQUIRED & KEYMASTER_TAG_TYPE_MASK:
+      case KM_TAG_ALLOW_WHILE_ON_BODY & KEYMASTER_TAG_TYPE_MASK:
+      case KM_TAG_TRUSTED_USER_PRESENCE_REQUIRED & KEYMASTER_TAG_TYPE_MASK:
+      case KM_TAG_TRUSTED_CONFIRMATION_REQUIRED & KEYMASTER_TAG_TYPE_MASK:
+      case KM_TAG_ALL_APPLICATIONS & KEYMASTER_TAG_TYPE_MASK:
+      case KM_TAG_ROLLBACK_RESISTANT & KEYMASTER_TAG_TYPE_MASK:
+      case KM_TAG_DEVICE_UNIQUE_ATTESTATION & KEYMASTER_TAG_TYPE_MASK:
+        // Only their presence matters
+        break;
     }
   }
 
@@ -396,46 +355,100 @@ public class AuthorizationList {
     return DateFormat.getDateTimeInstance().format(date);
   }
 
-  private static ASN1TaggedObject parseAsn1TaggedObject(ASN1SequenceParser parser)
-      throws CertificateParsingException {
-    ASN1Encodable asn1Encodable = parseAsn1Encodable(parser);
-    if (asn1Encodable == null || asn1Encodable instanceof ASN1TaggedObject) {
-      return (ASN1TaggedObject) asn1Encodable;
+  /** Decodes the value of an entry. */
+  private interface ValueDecoder<T> {
+    T decode(DerReader value) throws CertificateParsingException;
+  }
+
+  /**
+   * Returns the index of the last entry with {@code kmTag}, or -1 if there is none. Like
+   * BouncyCastle, the last entry wins if a tag is repeated.
+   */
+  private int indexOf(int kmTag) {
+    int tag = kmTag & KEYMASTER_TAG_TYPE_MASK;
+    for (int i = entryTags.length - 1; i >= 0; i--) {
+      if (entryTags[i] == tag) {
+        return i;
+      }
     }
-    throw new CertificateParsingException(
-        "Expected tagged object, found " + asn1Encodable.getClass().getName());
+    return -1;
   }
 
-  private static ASN1Encodable parseAsn1Encodable(ASN1SequenceParser parser)
-      throws CertificateParsingException {
+  /**
+   * Decodes the value of the entry with {@code kmTag} unless it was already decoded, or returns
+   * {@code null} if there is none.
+   */
+  @SuppressWarnings("unchecked")
+  private <T> T decode(int kmTag, ValueDecoder<T> decoder) throws CertificateParsingException {
+    int index = indexOf(kmTag);
+    if (index < 0) {
+      return null;
+    }
+    Object value = decodedValues.get(index);
+    if (value == null) {
+      value = decoder.decode(entries.at(entryOffsets[index]));
+      // Threads racing on the first call decode equal values, any of them can be kept
+      decodedValues.set(index, value);
+    }
+    return (T) value;
+  }
+
+  /** Same as {@link #decode}, for values that were checked when the list was parsed. */
+  private <T> T get(int kmTag, ValueDecoder<T> decoder) {
     try {
-      return parser.readObject();
-    } catch (IOException e) {
-      throw new CertificateParsingException("Failed to parse ASN1 sequence", e);
+      return decode(kmTag, decoder);
+    } catch (CertificateParsingException e) {
+      throw new IllegalStateException("Checked when the list was parsed", e);
+    }
+  }
+
+  private boolean has(int kmTag) {
+    return indexOf(kmTag) >= 0;
+  }
+
+  /** Returns whether the value of the entry with {@code tag} was decoded by a getter. */
+  @VisibleForTesting
+  boolean isDecoded(int tag) {
+    int index = indexOf(tag);
+    return index >= 0 && decodedValues.get(index) != null;
+  }
+
+  private static Set<Integer> decodeIntegers(DerReader value) throws CertificateParsingException {
+    Set<Integer> integers = new HashSet<>();
+    DerReader set = value.getContents();
+    while (set.next()) {
+      integers.add(set.getInt());
     }
+    return Collections.unmodifiableSet(integers);
+  }
+
+  // Dates are kept as milliseconds, since Date is mutable
+  private static Date toDate(Long millis) {
+    return millis == null ? null : new Date(millis);
   }
 
   public Set<Integer> getPurposes() {
-    return purposes;
+    return get(KM_TAG_PURPOSE, AuthorizationList::decodeIntegers);
   }
 
   public Integer getAlgorithm() {
-    return algorithm;
+    return get(KM_TAG_ALGORITHM, DerReader::getInt);
   }
 
   public Integer getKeySize() {
-    return keySize;
+    return get(KM_TAG_KEY_SIZE, DerReader::getInt);
   }
 
   public Set<Integer> getDigests() {
-    return digests;
+    return get(KM_TAG_DIGEST, AuthorizationList::decodeIntegers);
   }
 
   public Set<Integer> getPaddingModes() {
-    return paddingModes;
+    return get(KM_TAG_PADDING, AuthorizationList::decodeIntegers);
   }
 
   public Set<String> getPaddingModesAsStrings() throws CertificateParsingException {
+    Set<Integer> paddingModes = getPaddingModes();
     if (paddingModes == null) {
       return ImmutableSet.of();
     }
@@ -444,19 +457,19 @@ public class AuthorizationList {
     for (int paddingMode : paddingModes) {
       switch (paddingMode) {
         case KM_PAD_NONE:
-          builder.add(KeyProperties.ENCRYPTION_PADDING_NONE);
+          builder.add(ENCRYPTION_PADDING_NONE);
           break;
         case KM_PAD_RSA_OAEP:
-          builder.add(KeyProperties.ENCRYPTION_PADDING_RSA_OAEP);
+          builder.add(ENCRYPTION_PADDING_RSA_OAEP);
           break;
         case KM_PAD_RSA_PKCS1_1_5_ENCRYPT:
-          builder.add(KeyProperties.ENCRYPTION_PADDING_RSA_PKCS1);
+          builder.add(ENCRYPTION_PADDING_RSA_PKCS1);
           break;
         case KM_PAD_RSA_PKCS1_1_5_SIGN:
-          builder.add(KeyProperties.SIGNATURE_PADDING_RSA_PKCS1);
+          builder.add(SIGNATURE_PADDING_RSA_PKCS1);
           break;
         case KM_PAD_RSA_PSS:
-          builder.add(KeyProperties.SIGNATURE_PADDING_RSA_PSS);
+          builder.add(SIGNATURE_PADDING_RSA_PSS);
           break;
         default:
           throw new CertificateParsingException("Invalid padding mode " + paddingMode);
@@ -466,10 +479,11 @@ public class AuthorizationList {
   }
 
   public Integer getEcCurve() {
-    return ecCurve;
+    return get(KM_TAG_EC_CURVE, DerReader::getInt);
   }
 
   public String ecCurveAsString() {
+    Integer ecCurve = getEcCurve();
     if (ecCurve == null) return "NULL";
 
     switch (ecCurve) {
@@ -487,247 +501,258 @@ public class AuthorizationList {
   }
 
   public Long getRsaPublicExponent() {
-    return rsaPublicExponent;
+    return get(KM_TAG_RSA_PUBLIC_EXPONENT, DerReader::getLong);
   }
 
   public Date getActiveDateTime() {
-    return activeDateTime;
+    return toDate(get(KM_TAG_ACTIVE_DATETIME, DerReader::getLong));
   }
 
   public Date getOriginationExpireDateTime() {
-    return originationExpireDateTime;
+    return toDate(get(KM_TAG_ORIGINATION_EXPIRE_DATETIME, DerReader::getLong));
   }
 
   public Date getUsageExpireDateTime() {
-    return usageExpireDateTime;
+    return toDate(get(KM_TAG_USAGE_EXPIRE_DATETIME, DerReader::getLong));
   }
 
   public boolean isNoAuthRequired() {
-    return noAuthRequired;
+    return has(KM_TAG_NO_AUTH_REQUIRED);
   }
 
   public Integer getUserAuthType() {
-    return userAuthType;
+    return get(KM_TAG_USER_AUTH_TYPE, DerReader::getInt);
   }
 
   public Integer getAuthTimeout() {
-    return authTimeout;
+    return get(KM_TAG_AUTH_TIMEOUT, DerReader::getInt);
   }
 
   public boolean isAllowWhileOnBody() {
-    return allowWhileOnBody;
+    return has(KM_TAG_ALLOW_WHILE_ON_BODY);
   }
 
   public boolean isAllApplications() {
-    return allApplications;
+    return has(KM_TAG_ALL_APPLICATIONS);
   }
 
   public byte[] getApplicationId() {
-    return applicationId;
+    byte[] applicationId = get(KM_TAG_APPLICATION_ID, DerReader::getOctets);
+    return applicationId == null ? null : applicationId.clone();
   }
 
   public Date getCreationDateTime() {
-    return creationDateTime;
+    return toDate(get(KM_TAG_CREATION_DATETIME, DerReader::getLong));
   }
 
   public Integer getOrigin() {
-    return origin;
+    return get(KM_TAG_ORIGIN, DerReader::getInt);
   }
 
   public boolean isRollbackResistant() {
-    return rollbackResistant;
+    return has(KM_TAG_ROLLBACK_RESISTANT);
   }
 
   public RootOfTrust getRootOfTrust() {
-    return rootOfTrust;
+    return get(KM_TAG_ROOT_OF_TRUST, RootOfTrust::new);
   }
 
   public Integer getOsVersion() {
-    return osVersion;
+    return get(KM_TAG_OS_VERSION, DerReader::getInt);
   }
 
   public Integer getOsPatchLevel() {
-    return osPatchLevel;
+    return get(KM_TAG_OS_PATCHLEVEL, DerReader::getInt);
   }
 
   public Integer getVendorPatchLevel() {
-    return vendorPatchLevel;
+    return get(KM_TAG_VENDOR_PATCHLEVEL, DerReader::getInt);
   }
 
   public Integer getBootPatchLevel() {
-    return bootPatchLevel;
+    return get(KM_TAG_BOOT_PATCHLEVEL, DerReader::getInt);
   }
 
   public AttestationApplicationId getAttestationApplicationId() {
-    return attestationApplicationId;
+    return get(
+        KM_TAG_ATTESTATION_APPLICATION_ID,
+        value -> new AttestationApplicationId(value.getContents().nextRequired()));
   }
 
   public String getBrand() {
-    return brand;
+    return get(KM_TAG_ATTESTATION_ID_BRAND, DerReader::getUtf8String);
   }
 
   public String getDevice() {
-    return device;
+    return get(KM_TAG_ATTESTATION_ID_DEVICE, DerReader::getUtf8String);
   }
 
   public String getSerialNumber() {
-    return serialNumber;
+    return get(KM_TAG_ATTESTATION_ID_SERIAL, DerReader::getUtf8String);
   }
-  ;
 
   public String getImei() {
-    return imei;
+    return get(KM_TAG_ATTESTATION_ID_IMEI, DerReader::getUtf8String);
   }
-  ;
 
   public String getMeid() {
-    return meid;
+    return get(KM_TAG_ATTESTATION_ID_MEID, DerReader::getUtf8String);
   }
-  ;
 
   public String getProduct() {
-    return product;
+    return get(KM_TAG_ATTESTATION_ID_PRODUCT, DerReader::getUtf8String);
   }
-  ;
 
   public String getManufacturer() {
-    return manufacturer;
+    return get(KM_TAG_ATTESTATION_ID_MANUFACTURER, DerReader::getUtf8String);
   }
-  ;
 
   public String getModel() {
-    return model;
+    return get(KM_TAG_ATTESTATION_ID_MODEL, DerReader::getUtf8String);
   }
-  ;
 
   public boolean isUserPresenceRequired() {
-    return userPresenceRequired;
+    return has(KM_TAG_TRUSTED_USER_PRESENCE_REQUIRED);
   }
 
   public boolean isConfirmationRequired() {
-    return confirmationRequired;
+    return has(KM_TAG_TRUSTED_CONFIRMATION_REQUIRED);
   }
 
   public boolean isIndividualAttestation() {
-    return individualAttestation;
-  }
-
-  private String getStringFromAsn1Value(ASN1Primitive value) throws CertificateParsingException {
-    try {
-      return Asn1Utils.getStringFromAsn1OctetStreamAssumingUTF8(value);
-    } catch (UnsupportedEncodingException e) {
-      throw new CertificateParsingException("Error parsing ASN.1 value", e);
-    }
+    return has(KM_TAG_DEVICE_UNIQUE_ATTESTATION);
   }
 
   @Override
   public String toString() {
     StringBuilder s = new StringBuilder();
 
+    Integer algorithm = getAlgorithm();
     if (algorithm != null) {
       s.append("\nAlgorithm: ").append(algorithmToString(algorithm));
     }
 
+    Integer keySize = getKeySize();
     if (keySize != null) {
       s.append("\nKeySize: ").append(keySize);
     }
 
+    Set<Integer> purposes = getPurposes();
     if (purposes != null && !purposes.isEmpty()) {
       s.append("\nPurposes: ").append(purposesToString(purposes));
     }
 
+    Set<Integer> digests = getDigests();
     if (digests != null && !digests.isEmpty()) {
       s.append("\nDigests: ").append(digestsToString(digests));
     }
 
+    Set<Integer> paddingModes = getPaddingModes();
     if (paddingModes != null && !paddingModes.isEmpty()) {
       s.append("\nPadding modes: ").append(paddingModesToString(paddingModes));
     }
 
-    if (ecCurve != null) {
+    if (getEcCurve() != null) {
       s.append("\nEC Curve: ").append(ecCurveAsString());
     }
 
     String label = "\nRSA exponent: ";
+    Long rsaPublicExponent = getRsaPublicExponent();
     if (rsaPublicExponent != null) {
       s.append(label).append(rsaPublicExponent);
     }
 
+    Date activeDateTime = getActiveDateTime();
     if (activeDateTime != null) {
       s.append("\nActive: ").append(formatDate(activeDateTime));
     }
 
+    Date originationExpireDateTime = getOriginationExpireDateTime();
     if (originationExpireDateTime != null) {
       s.append("\nOrigination expire: ").append(formatDate(originationExpireDateTime));
     }
 
+    Date usageExpireDateTime = getUsageExpireDateTime();
     if (usageExpireDateTime != null) {
       s.append("\nUsage expire: ").append(formatDate(usageExpireDateTime));
     }
 
-    if (!noAuthRequired && userAuthType != null) {
+    Integer userAuthType = getUserAuthType();
+    if (!isNoAuthRequired() && userAuthType != null) {
       s.append("\nAuth types: ").append(userAuthTypeToString(userAuthType));
+      Integer authTimeout = getAuthTimeout();
       if (authTimeout != null) {
         s.append("\nAuth timeout: ").append(authTimeout);
       }
     }
 
+    byte[] applicationId = getApplicationId();
     if (applicationId != null) {
       s.append("\nApplication ID: ").append(new String(applicationId));
     }
 
+    Date creationDateTime = getCreationDateTime();
     if (creationDateTime != null) {
       s.append("\nCreated: ").append(formatDate(creationDateTime));
     }
 
+    Integer origin = getOrigin();
     if (origin != null) {
       s.append("\nOrigin: ").append(originToString(origin));
     }
 
-    if (rollbackResistant) {
+    if (isRollbackResistant()) {
       s.append("\nRollback resistant: true");
     }
 
+    RootOfTrust rootOfTrust = getRootOfTrust();
     if (rootOfTrust != null) {
       s.append("\nRoot of Trust:\n");
       s.append(rootOfTrust);
     }
 
+    Integer osVersion = getOsVersion();
     if (osVersion != null) {
       s.append("\nOS Version: ").append(osVersion);
     }
 
+    Integer osPatchLevel = getOsPatchLevel();
     if (osPatchLevel != null) {
       s.append("\nOS Patchlevel: ").append(osPatchLevel);
     }
 
+    Integer vendorPatchLevel = getVendorPatchLevel();
     if (vendorPatchLevel != null) {
       s.append("\nVendor Patchlevel: ").append(vendorPatchLevel);
     }
 
+    Integer bootPatchLevel = getBootPatchLevel();
     if (bootPatchLevel != null) {
       s.append("\nBoot Patchlevel: ").append(bootPatchLevel);
     }
 
+    AttestationApplicationId attestationApplicationId = getAttestationApplicationId();
     if (attestationApplicationId != null) {
       s.append("\nAttestation Application Id:").append(attestationApplicationId);
     }
 
-    if (userPresenceRequired) {
+    if (isUserPresenceRequired()) {
       s.append("\nUser presence required");
     }
 
-    if (confirmationRequired) {
+    if (isConfirmationRequired()) {
       s.append("\nConfirmation required");
     }
 
-    if (individualAttestation) {
+    if (isIndividualAttestation()) {
       s.append("\nIndividual attestation");
     }
 
+    String brand = getBrand();
     if (brand != null) {
       s.append("\nBrand: ").append(brand);
     }
+    String device = getDevice();
     if (device != null) {
       s.append("\nDevice type: ").append(device);
     }
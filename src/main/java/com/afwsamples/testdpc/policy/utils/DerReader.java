@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy.utils;
+
+import androidx.annotation.NonNull;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.CertificateParsingException;
+import java.util.Arrays;
+
+/**
+ * Reads DER-encoded ASN.1 elements in place from a byte array.
+ *
+ * <p>Unlike BouncyCastle's {@code ASN1InputStream}, nothing is decoded until it's asked for: {@link
+ * #next} only reads the tag and length of the next element, and its value is only decoded by the
+ * getters. Integers are decoded without {@link java.math.BigInteger}, and nested elements are read
+ * with {@link #getContents}, which shares the array.
+ */
+public final class DerReader {
+
+  public static final int CLASS_UNIVERSAL = 0;
+  public static final int CLASS_CONTEXT_SPECIFIC = 2;
+
+  // Universal tag numbers
+  public static final int TAG_BOOLEAN = 1;
+  public static final int TAG_INTEGER = 2;
+  public static final int TAG_OCTET_STRING = 4;
+  public static final int TAG_NULL = 5;
+  public static final int TAG_ENUMERATED = 10;
+  public static final int TAG_SEQUENCE = 16;
+  public static final int TAG_SET = 17;
+
+  private final byte[] mBytes;
+  private final int mEnd;
+  private int mPosition;
+
+  // The current element, read by next()
+  private int mOffset = -1;
+  private int mTagClass;
+  private int mTagNumber;
+  private boolean mConstructed;
+  private int mValueOffset;
+  private int mValueLength;
+
+  public DerReader(@NonNull byte[] bytes) {
+    this(bytes, 0, bytes.length);
+  }
+
+  /** Reads the elements in {@code bytes} from {@code start} until {@code end}. */
+  public DerReader(@NonNull byte[] bytes, int start, int end) {
+    if (start < 0 || start > end || end > bytes.length) {
+      throw new IndexOutOfBoundsException("Invalid range " + start + ".." + end);
+    }
+    mBytes = bytes;
+    mPosition = start;
+    mEnd = end;
+  }
+
+  /**
+   * Moves to the next element, reading its tag and length only.
+   *
+   * @return {@code false} if there are no more elements
+   * @throws CertificateParsingException if the element isn't valid DER or overruns the range
+   */
+  public boolean next() throws CertificateParsingException {
+    if (mPosition >= mEnd) {
+      mOffset = -1;
+      return false;
+    }
+    int position = mPosition;
+    int identifier = mBytes[position++] & 0xff;
+    int tagClass = identifier >>> 6;
+    boolean constructed = (identifier & 0x20) != 0;
+    int tagNumber = identifier & 0x1f;
+    if (tagNumber == 0x1f) {
+      // High tag number form, base 128 with the high bit set on all but the last byte
+      tagNumber = 0;
+      int b;
+      do {
+        if (position >= mEnd || tagNumber > (Integer.MAX_VALUE >>> 7)) {
+          throw new CertificateParsingException("Invalid tag at " + mPosition);
+        }
+        b = mBytes[position++] & 0xff;
+        tagNumber = (tagNumber << 7) | (b & 0x7f);
+      } while ((b & 0x80) != 0);
+    }
+    if (position >= mEnd) {
+      throw new CertificateParsingException("Missing length at " + mPosition);
+    }
+    int length = mBytes[position++] & 0xff;
+    if (length == 0x80) {
+      throw new CertificateParsingException("Indefinite length at " + mPosition);
+    }
+    if (length > 0x80) {
+      int count = length & 0x7f;
+      if (count > 4 || position + count > mEnd) {
+        throw new CertificateParsingException("Invalid length at " + mPosition);
+      }
+      length = 0;
+      for (int i = 0; i < count; i++) {
+        length = (length << 8) | (mBytes[position++] & 0xff);
+      }
+    }
+    if (length < 0 || length > mEnd - position) {
+      throw new CertificateParsingException("Element at " + mPosition + " overruns its parent");
+    }
+    mOffset = mPosition;
+    mTagClass = tagClass;
+    mTagNumber = tagNumber;
+    mConstructed = constructed;
+    mValueOffset = position;
+    mValueLength = length;
+    mPosition = position + length;
+    return true;
+  }
+
+  /** Same as {@link #next}, but fails if there are no more elements. */
+  @NonNull
+  public DerReader nextRequired() throws CertificateParsingException {
+    if (!next()) {
+      throw new CertificateParsingException("Unexpected end of data at " + mPosition);
+    }
+    return this;
+  }
+
+  /** Offset of the current element in the array, to go back to it with {@link #at}. */
+  public int getOffset() {
+    checkElement();
+    return mOffset;
+  }
+
+  public int getTagClass() {
+    checkElement();
+    return mTagClass;
+  }
+
+  public int getTagNumber() {
+    checkElement();
+    return mTagNumber;
+  }
+
+  public boolean isConstructed() {
+    checkElement();
+    return mConstructed;
+  }
+
+  public int getValueLength() {
+    checkElement();
+    return mValueLength;
+  }
+
+  /** Returns whether the current element is the given universal type. */
+  public boolean isUniversal(int tagNumber) {
+    checkElement();
+    return mTagClass == CLASS_UNIVERSAL && mTagNumber == tagNumber;
+  }
+
+  /** Fails unless the current element is the given universal type. */
+  public void expect(int tagNumber, @NonNull String what) throws CertificateParsingException {
+    if (!isUniversal(tagNumber)) {
+      throw new CertificateParsingException(
+          "Expected " + what + ", found tag " + mTagClass + "/" + mTagNumber + " at " + mOffset);
+    }
+  }
+
+  /** Reads the elements in the value of the current element, such as a SEQUENCE or SET. */
+  @NonNull
+  public DerReader getContents() {
+    checkElement();
+    return new DerReader(mBytes, mValueOffset, mValueOffset + mValueLength);
+  }
+
+  /**
+   * Decodes the current INTEGER or ENUMERATED, which must be between 0 and {@link
+   * Integer#MAX_VALUE}.
+   */
+  public int getInt() throws CertificateParsingException {
+    if (!isUniversal(TAG_INTEGER) && !isUniversal(TAG_ENUMERATED)) {
+      expect(TAG_INTEGER, "integer");
+    }
+    long value = decodeNonNegative(4);
+    if (value > Integer.MAX_VALUE) {
+      throw new CertificateParsingException("INTEGER out of bounds");
+    }
+    return (int) value;
+  }
+
+  /** Decodes the current INTEGER, which must be between 0 and {@link Long#MAX_VALUE}. */
+  public long getLong() throws CertificateParsingException {
+    expect(TAG_INTEGER, "integer");
+    return decodeNonNegative(8);
+  }
+
+  public boolean getBoolean() throws CertificateParsingException {
+    expect(TAG_BOOLEAN, "boolean");
+    if (mValueLength != 1) {
+      throw new CertificateParsingException("Invalid BOOLEAN at " + mOffset);
+    }
+    return mBytes[mValueOffset] != 0;
+  }
+
+  /** Copies the bytes of the current OCTET STRING. */
+  @NonNull
+  public byte[] getOctets() throws CertificateParsingException {
+    expect(TAG_OCTET_STRING, "octet string");
+    return Arrays.copyOfRange(mBytes, mValueOffset, mValueOffset + mValueLength);
+  }
+
+  /** Decodes the current OCTET STRING as UTF-8. */
+  @NonNull
+  public String getUtf8String() throws CertificateParsingException {
+    expect(TAG_OCTET_STRING, "octet string");
+    return new String(mBytes, mValueOffset, mValueLength, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Returns a new reader moved to the element at {@code offset}, as returned by {@link
+   * #getOffset}, that reads until the end of this reader's range.
+   */
+  @NonNull
+  public DerReader at(int offset) throws CertificateParsingException {
+    return new DerReader(mBytes, offset, mEnd).nextRequired();
+  }
+
+  private long decodeNonNegative(int maxBytes) throws CertificateParsingException {
+    if (mValueLength == 0) {
+      throw new CertificateParsingException("Empty INTEGER at " + mOffset);
+    }
+    int position = mValueOffset;
+    int end = mValueOffset + mValueLength;
+    if ((mBytes[position] & 0x80) != 0) {
+      throw new CertificateParsingException("INTEGER out of bounds");
+    }
+    // A leading zero only keeps the sign bit clear
+    while (position < end - 1 && mBytes[position] == 0) {
+      position++;
+    }
+    if (end - position > maxBytes) {
+      throw new CertificateParsingException("INTEGER out of bounds");
+    }
+    long value = 0;
+    for (; position < end; position++) {
+      value = (value << 8) | (mBytes[position] & 0xff);
+    }
+    if (value < 0) {
+      throw new CertificateParsingException("INTEGER out of bounds");
+    }
+    return value;
+  }
+
+  private void checkElement() {
+    if (mOffset < 0) {
+      throw new IllegalStateException("No current element, call next() first");
+    }
+  }
+}
@@ -18,14 +18,8 @@ package com.afwsamples.testdpc.policy.utils;
 
 import com.google.common.io.BaseEncoding;
 import java.security.cert.CertificateParsingException;
-import org.bouncycastle.asn1.ASN1Encodable;
-import org.bouncycastle.asn1.ASN1Sequence;
 
 public class RootOfTrust {
-  private static final int VERIFIED_BOOT_KEY_INDEX = 0;
-  private static final int DEVICE_LOCKED_INDEX = 1;
-  private static final int VERIFIED_BOOT_STATE_INDEX = 2;
-
   public static final int KM_VERIFIED_BOOT_VERIFIED = 0;
   public static final int KM_VERIFIED_BOOT_SELF_SIGNED = 1;
   public static final int KM_VERIFIED_BOOT_UNVERIFIED = 2;
@@ -35,17 +29,27 @@ public class RootOfTrust {
   private final boolean deviceLocked;
   private final int verifiedBootState;
 
-  public RootOfTrust(ASN1Encodable asn1Encodable) throws CertificateParsingException {
-    if (!(asn1Encodable instanceof ASN1Sequence)) {
-      throw new CertificateParsingException(
-          "Expected sequence for root of trust, found " + asn1Encodable.getClass().getName());
-    }
+  /** Parses the RootOfTrust SEQUENCE that {@code sequence} is moved to. */
+  public RootOfTrust(DerReader sequence) throws CertificateParsingException {
+    sequence.expect(DerReader.TAG_SEQUENCE, "sequence for root of trust");
+
+    DerReader fields = sequence.getContents();
+    verifiedBootKey = fields.nextRequired().getOctets();
+    deviceLocked = fields.nextRequired().getBoolean();
+    verifiedBootState = fields.nextRequired().getInt();
+  }
+
+  /**
+   * Checks that the RootOfTrust SEQUENCE that {@code sequence} is moved to can be parsed, without
+   * decoding it.
+   */
+  static void check(DerReader sequence) throws CertificateParsingException {
+    sequence.expect(DerReader.TAG_SEQUENCE, "sequence for root of trust");
 
-    ASN1Sequence sequence = (ASN1Sequence) asn1Encodable;
-    verifiedBootKey = Asn1Utils.getByteArrayFromAsn1(sequence.getObjectAt(VERIFIED_BOOT_KEY_INDEX));
-    deviceLocked = Asn1Utils.getBooleanFromAsn1(sequence.getObjectAt(DEVICE_LOCKED_INDEX));
-    verifiedBootState =
-        Asn1Utils.getIntegerFromAsn1(sequence.getObjectAt(VERIFIED_BOOT_STATE_INDEX));
+    DerReader fields = sequence.getContents();
+    fields.nextRequired().expect(DerReader.TAG_OCTET_STRING, "octet string");
+    fields.nextRequired().getBoolean();
+    fields.nextRequired().getInt();
   }
 
   public static String verifiedBootStateToString(int verifiedBootState) {
@@ -0,0 +1,488 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.trace;
+
+import android.content.ComponentName;
+import android.os.UserHandle;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import com.google.common.io.CountingInputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compact, append-only binary format used to record {@link
+ * com.afwsamples.testdpc.DevicePolicyManagerGateway} calls.
+ *
+ * <p>A trace is a sequence of sessions. Each session starts with a header ({@link #MAGIC} and
+ * {@link #VERSION}) and is followed by records:
+ *
+ * <ul>
+ *   <li>{@link #RECORD_METHOD}: assigns a small id to a method signature, the first time the
+ *       method is called in the session.
+ *   <li>{@link #RECORD_CALL}: method id, start time and latency (as var-longs), outcome, arguments
+ *       and result.
+ * </ul>
+ *
+ * <p>Values are tagged. Only the types needed to replay gateway calls are fully encoded; any other
+ * value is stored as {@link #TYPE_UNSUPPORTED} with its class name, which makes the call
+ * non-replayable. Strings are stored as their UTF-8 length (as a var-long) and bytes.
+ *
+ * <p>A record torn by process death is truncated when the file is opened for writing again, so
+ * later sessions stay readable.
+ */
+public final class GatewayTrace {
+
+  private static final String TAG = "GatewayTrace";
+
+  static final int MAGIC = 0x54445054; // "TDPT"
+  static final int VERSION = 1;
+
+  static final byte RECORD_SESSION = 0;
+  static final byte RECORD_METHOD = 1;
+  static final byte RECORD_CALL = 2;
+
+  /** The method returned normally. */
+  public static final byte OUTCOME_RETURNED = 0;
+  /** The method called its {@code onSuccess} callback. */
+  public static final byte OUTCOME_SUCCESS = 1;
+  /** The method called its {@code onError} callback. */
+  public static final byte OUTCOME_ERROR = 2;
+  /** The method threw an exception. */
+  public static final byte OUTCOME_THREW = 3;
+
+  private static final byte TYPE_NULL = 0;
+  private static final byte TYPE_FALSE = 1;
+  private static final byte TYPE_TRUE = 2;
+  private static final byte TYPE_INT = 3;
+  private static final byte TYPE_LONG = 4;
+  private static final byte TYPE_STRING = 5;
+  private static final byte TYPE_STRING_ARRAY = 6;
+  private static final byte TYPE_STRING_LIST = 7;
+  private static final byte TYPE_STRING_SET = 8;
+  private static final byte TYPE_USER_HANDLE = 9;
+  private static final byte TYPE_COMPONENT_NAME = 10;
+  private static final byte TYPE_CALLBACK = 11;
+  private static final byte TYPE_UNSUPPORTED = 12;
+
+  // Longer strings aren't recorded, so reading one means the record is corrupted
+  private static final int MAX_STRING_BYTES = 1 << 24;
+
+  /** Marker for callback ({@link java.util.function.Consumer}) arguments. */
+  public static final Object CALLBACK = new Object() {
+    @Override
+    public String toString() {
+      return "<callback>";
+    }
+  };
+
+  private GatewayTrace() {}
+
+  /** Placeholder for a value whose type can't be encoded in a trace. */
+  public static final class UnsupportedValue {
+    public final String className;
+
+    UnsupportedValue(String className) {
+      this.className = className;
+    }
+
+    @Override
+    public String toString() {
+      return "<" + className + ">";
+    }
+  }
+
+  /** A recorded gateway call. */
+  public static final class Call {
+    /** Method signature, like {@code setUserRestriction(String,boolean)}. */
+    public final String method;
+    /** Start time, in nanoseconds relative to the beginning of the session. */
+    public final long startNanos;
+    public final long latencyNanos;
+    public final byte outcome;
+    public final Object[] args;
+    @Nullable public final Object result;
+
+    Call(
+        String method,
+        long startNanos,
+        long latencyNanos,
+        byte outcome,
+        Object[] args,
+        @Nullable Object result) {
+      this.method = method;
+      this.startNanos = startNanos;
+      this.latencyNanos = latencyNanos;
+      this.outcome = outcome;
+      this.args = args;
+      this.result = result;
+    }
+
+    /** Checks whether all arguments could be recorded, so the call can be replayed. */
+    public boolean isReplayable() {
+      for (Object arg : args) {
+        if (arg instanceof UnsupportedValue) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public String toString() {
+      return method + Arrays.toString(args) + " -> " + result + " (" + latencyNanos + "ns)";
+    }
+  }
+
+  /**
+   * Appends calls to a trace file. Not thread-safe; callers must synchronize.
+   *
+   * <p>Each record is encoded in memory first, so a value that fails to be encoded doesn't leave a
+   * partial record in the file.
+   */
+  public static final class Writer implements Closeable {
+    private final DataOutputStream mOut;
+    private final ByteArrayOutputStream mRecord = new ByteArrayOutputStream();
+    private final DataOutputStream mRecordOut = new DataOutputStream(mRecord);
+    private final Map<String, Integer> mMethodIds = new HashMap<>();
+    private final long mSessionStartNanos;
+
+    public Writer(@NonNull File file) throws IOException {
+      if (file.exists()) {
+        recover(file);
+      }
+      mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+      mSessionStartNanos = System.nanoTime();
+      mOut.writeByte(RECORD_SESSION);
+      mOut.writeInt(MAGIC);
+      mOut.writeByte(VERSION);
+      mOut.writeLong(System.currentTimeMillis());
+    }
+
+    /** Gets the {@link System#nanoTime()} when the session started. */
+    public long getSessionStartNanos() {
+      return mSessionStartNanos;
+    }
+
+    public void writeCall(
+        @NonNull String method,
+        long startNanos,
+        long latencyNanos,
+        byte outcome,
+        @NonNull Object[] args,
+        @Nullable Object result)
+        throws IOException {
+      mRecord.reset();
+      Integer id = mMethodIds.get(method);
+      boolean newMethod = id == null;
+      if (newMethod) {
+        id = mMethodIds.size();
+        mRecordOut.writeByte(RECORD_METHOD);
+        writeVarLong(mRecordOut, id);
+        writeString(mRecordOut, method);
+      }
+      mRecordOut.writeByte(RECORD_CALL);
+      writeVarLong(mRecordOut, id);
+      writeVarLong(mRecordOut, startNanos - mSessionStartNanos);
+      writeVarLong(mRecordOut, latencyNanos);
+      mRecordOut.writeByte(outcome);
+      writeVarLong(mRecordOut, args.length);
+      for (Object arg : args) {
+        writeValue(mRecordOut, arg);
+      }
+      writeValue(mRecordOut, result);
+      mRecord.writeTo(mOut);
+      if (newMethod) {
+        mMethodIds.put(method, id);
+      }
+    }
+
+    public void flush() throws IOException {
+      mOut.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      mOut.close();
+    }
+  }
+
+  /** Reads all calls (from all sessions) of a trace file. */
+  @NonNull
+  public static List<Call> read(@NonNull File file) throws IOException {
+    List<Call> calls = new ArrayList<>();
+    try (RecordReader reader = new RecordReader(file)) {
+      while (reader.next(calls)) {}
+    } catch (EOFException e) {
+      // Truncated last record (for example, if the process died while writing); ignore it.
+    }
+    return calls;
+  }
+
+  /** Truncates whatever follows the last complete record of {@code file}. */
+  static void recover(@NonNull File file) throws IOException {
+    long lastComplete;
+    try (RecordReader reader = new RecordReader(file)) {
+      try {
+        while (reader.next(/* calls= */ null)) {}
+      } catch (IOException e) {
+        Log.w(TAG, "Corrupted record on " + file + " at offset " + reader.mLastComplete, e);
+      }
+      lastComplete = reader.mLastComplete;
+    }
+    if (lastComplete < file.length()) {
+      Log.w(TAG, "Truncating " + file + " from " + file.length() + " to " + lastComplete);
+      try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+        raf.setLength(lastComplete);
+      }
+    }
+  }
+
+  /** Reads the records of a trace file one at a time, tracking where the last one ended. */
+  private static final class RecordReader implements Closeable {
+    private final File mFile;
+    private final CountingInputStream mCounter;
+    private final DataInputStream mIn;
+    private final List<String> mMethods = new ArrayList<>();
+    /** Offset right after the last record that was completely read. */
+    private long mLastComplete;
+
+    RecordReader(File file) throws IOException {
+      mFile = file;
+      mCounter = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+      mIn = new DataInputStream(mCounter);
+    }
+
+    /**
+     * Reads the next record, adding it to {@code calls} (if not {@code null}) when it's a call.
+     *
+     * @return {@code false} at the end of the file.
+     */
+    boolean next(@Nullable List<Call> calls) throws IOException {
+      int record = mIn.read();
+      if (record == -1) {
+        return false;
+      }
+      switch (record) {
+        case RECORD_SESSION:
+          if (mIn.readInt() != MAGIC) {
+            throw new IOException("Invalid trace file: " + mFile);
+          }
+          int version = mIn.readByte();
+          if (version > VERSION) {
+            throw new IOException("Unsupported trace version " + version);
+          }
+          mIn.readLong(); // session wall-clock time
+          mMethods.clear();
+          break;
+        case RECORD_METHOD:
+          int id = (int) readVarLong(mIn);
+          if (id != mMethods.size()) {
+            throw new IOException("Out of order method id " + id);
+          }
+          mMethods.add(readString(mIn));
+          break;
+        case RECORD_CALL:
+          int methodId = (int) readVarLong(mIn);
+          if (methodId < 0 || methodId >= mMethods.size()) {
+            throw new IOException("Unknown method id " + methodId);
+          }
+          String method = mMethods.get(methodId);
+          long startNanos = readVarLong(mIn);
+          long latencyNanos = readVarLong(mIn);
+          byte outcome = mIn.readByte();
+          Object[] args = new Object[(int) readVarLong(mIn)];
+          for (int i = 0; i < args.length; i++) {
+            args[i] = readValue(mIn);
+          }
+          Object result = readValue(mIn);
+          if (calls != null) {
+            calls.add(new Call(method, startNanos, latencyNanos, outcome, args, result));
+          }
+          break;
+        default:
+          throw new IOException("Invalid record type " + record);
+      }
+      mLastComplete = mCounter.getCount();
+      return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+      mIn.close();
+    }
+  }
+
+  private static void writeValue(DataOutputStream out, @Nullable Object value)
+      throws IOException {
+    if (value == null) {
+      out.writeByte(TYPE_NULL);
+    } else if (value == CALLBACK) {
+      out.writeByte(TYPE_CALLBACK);
+    } else if (value instanceof Boolean) {
+      out.writeByte((Boolean) value ? TYPE_TRUE : TYPE_FALSE);
+    } else if (value instanceof Integer) {
+      out.writeByte(TYPE_INT);
+      out.writeInt((Integer) value);
+    } else if (value instanceof Long) {
+      out.writeByte(TYPE_LONG);
+      out.writeLong((Long) value);
+    } else if (value instanceof CharSequence) {
+      out.writeByte(TYPE_STRING);
+      writeString(out, value.toString());
+    } else if (value instanceof String[]) {
+      out.writeByte(TYPE_STRING_ARRAY);
+      writeStrings(out, Arrays.asList((String[]) value));
+    } else if (value instanceof List && allStrings((List<?>) value)) {
+      out.writeByte(TYPE_STRING_LIST);
+      writeStrings(out, (List<?>) value);
+    } else if (value instanceof Set && allStrings((Set<?>) value)) {
+      out.writeByte(TYPE_STRING_SET);
+      writeStrings(out, (Set<?>) value);
+    } else if (value instanceof UserHandle) {
+      out.writeByte(TYPE_USER_HANDLE);
+      out.writeInt(((UserHandle) value).hashCode()); // UserHandle.hashCode() is the user id
+    } else if (value instanceof ComponentName) {
+      out.writeByte(TYPE_COMPONENT_NAME);
+      writeString(out, ((ComponentName) value).flattenToString());
+    } else {
+      out.writeByte(TYPE_UNSUPPORTED);
+      writeString(out, value.getClass().getName());
+    }
+  }
+
+  private static Object readValue(DataInputStream in) throws IOException {
+    byte type = in.readByte();
+    switch (type) {
+      case TYPE_NULL:
+        return null;
+      case TYPE_CALLBACK:
+        return CALLBACK;
+      case TYPE_FALSE:
+        return false;
+      case TYPE_TRUE:
+        return true;
+      case TYPE_INT:
+        return in.readInt();
+      case TYPE_LONG:
+        return in.readLong();
+      case TYPE_STRING:
+        return readString(in);
+      case TYPE_STRING_ARRAY:
+        return readStrings(in).toArray(new String[0]);
+      case TYPE_STRING_LIST:
+        return readStrings(in);
+      case TYPE_STRING_SET:
+        return new LinkedHashSet<>(readStrings(in));
+      case TYPE_USER_HANDLE:
+        return UserHandle.of(in.readInt());
+      case TYPE_COMPONENT_NAME:
+        return ComponentName.unflattenFromString(readString(in));
+      case TYPE_UNSUPPORTED:
+        return new UnsupportedValue(readString(in));
+      default:
+        throw new IOException("Invalid value type " + type);
+    }
+  }
+
+  private static boolean allStrings(Collection<?> collection) {
+    for (Object element : collection) {
+      if (!(element instanceof String)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void writeStrings(DataOutputStream out, Collection<?> strings)
+      throws IOException {
+    writeVarLong(out, strings.size());
+    for (Object string : strings) {
+      writeString(out, (String) string);
+    }
+  }
+
+  private static List<String> readStrings(DataInputStream in) throws IOException {
+    int size = (int) readVarLong(in);
+    List<String> strings = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      strings.add(readString(in));
+    }
+    return strings;
+  }
+
+  /** Writes a string of any length, unlike {@link DataOutputStream#writeUTF}. */
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    if (bytes.length > MAX_STRING_BYTES) {
+      throw new IOException("String too long: " + bytes.length + " bytes");
+    }
+    writeVarLong(out, bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    long length = readVarLong(in);
+    if (length > MAX_STRING_BYTES) {
+      throw new IOException("Invalid string length " + length);
+    }
+    byte[] bytes = new byte[(int) length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /** Writes a non-negative long using 7 bits per byte. */
+  private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      out.writeByte((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.writeByte((int) value);
+  }
+
+  private static long readVarLong(DataInputStream in) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      byte b = in.readByte();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed var-long");
+  }
+}
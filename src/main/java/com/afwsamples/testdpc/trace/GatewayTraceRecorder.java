@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.trace;
+
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import com.afwsamples.testdpc.DevicePolicyManagerGateway;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.function.Consumer;
+
+/**
+ * Records every call made to a {@link DevicePolicyManagerGateway} (method, arguments, outcome,
+ * result and latency) into a {@link GatewayTrace}.
+ *
+ * <p>Recording is process-wide: once {@link #start(File)} is called, gateways passed to {@link
+ * #wrapIfRecording(DevicePolicyManagerGateway)} are wrapped by a recording proxy until {@link
+ * #stop()} is called.
+ */
+public final class GatewayTraceRecorder implements InvocationHandler {
+
+  private static final String TAG = "GatewayTraceRecorder";
+
+  private static final Object sLock = new Object();
+
+  @Nullable private static GatewayTrace.Writer sWriter;
+  @Nullable private static File sFile;
+
+  private final DevicePolicyManagerGateway mDelegate;
+  private final GatewayTrace.Writer mWriter;
+
+  private GatewayTraceRecorder(
+      @NonNull DevicePolicyManagerGateway delegate, @NonNull GatewayTrace.Writer writer) {
+    mDelegate = delegate;
+    mWriter = writer;
+  }
+
+  /** Starts recording gateway calls to {@code file} (appending to it if it already exists). */
+  public static void start(@NonNull File file) throws IOException {
+    synchronized (sLock) {
+      if (sWriter != null) {
+        throw new IllegalStateException("Already recording to " + sFile);
+      }
+      file.getParentFile().mkdirs();
+      sWriter = new GatewayTrace.Writer(file);
+      sFile = file;
+      Log.i(TAG, "Recording gateway calls to " + file);
+    }
+  }
+
+  /**
+   * Stops recording.
+   *
+   * @return file the calls were recorded to, or {@code null} if it was not recording.
+   */
+  @Nullable
+  public static File stop() throws IOException {
+    synchronized (sLock) {
+      if (sWriter == null) {
+        return null;
+      }
+      File file = sFile;
+      try {
+        sWriter.close();
+      } finally {
+        sWriter = null;
+        sFile = null;
+      }
+      Log.i(TAG, "Stopped recording gateway calls to " + file);
+      return file;
+    }
+  }
+
+  /** Gets the file calls are being recorded to, or {@code null} if not recording. */
+  @Nullable
+  public static File getRecordingFile() {
+    synchronized (sLock) {
+      return sFile;
+    }
+  }
+
+  /**
+   * Returns a gateway that records all calls made to {@code gateway} if a recording was started,
+   * or {@code gateway} itself otherwise.
+   */
+  @NonNull
+  public static DevicePolicyManagerGateway wrapIfRecording(
+      @NonNull DevicePolicyManagerGateway gateway) {
+    GatewayTrace.Writer writer;
+    synchronized (sLock) {
+      writer = sWriter;
+    }
+    if (writer == null) {
+      return gateway;
+    }
+    return (DevicePolicyManagerGateway)
+        Proxy.newProxyInstance(
+            DevicePolicyManagerGateway.class.getClassLoader(),
+            new Class<?>[] {DevicePolicyManagerGateway.class},
+            new GatewayTraceRecorder(gateway, writer));
+  }
+
+  /** Gets the signature used to identify {@code method} in traces. */
+  static String signatureOf(Method method) {
+    StringBuilder signature = new StringBuilder(method.getName()).append('(');
+    Class<?>[] types = method.getParameterTypes();
+    for (int i = 0; i < types.length; i++) {
+      if (i > 0) {
+        signature.append(',');
+      }
+      signature.append(types[i].getSimpleName());
+    }
+    return signature.append(')').toString();
+  }
+
+  @Override
+  public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    if (method.getDeclaringClass() == Object.class) {
+      return method.invoke(mDelegate, args);
+    }
+    Object[] actualArgs = args == null ? new Object[0] : args.clone();
+    Object[] recordedArgs = new Object[actualArgs.length];
+
+    // Callbacks are always the last 2 parameters: onSuccess and onError.
+    CallbackState callbackState = new CallbackState();
+    int callbacks = 0;
+    for (int i = 0; i < actualArgs.length; i++) {
+      if (actualArgs[i] instanceof Consumer) {
+        callbacks++;
+        recordedArgs[i] = GatewayTrace.CALLBACK;
+      } else {
+        recordedArgs[i] = actualArgs[i];
+      }
+    }
+    if (callbacks >= 2) {
+      int onSuccessIndex = actualArgs.length - 2;
+      int onErrorIndex = actualArgs.length - 1;
+      actualArgs[onSuccessIndex] =
+          callbackState.wrap(actualArgs[onSuccessIndex], GatewayTrace.OUTCOME_SUCCESS);
+      actualArgs[onErrorIndex] =
+          callbackState.wrap(actualArgs[onErrorIndex], GatewayTrace.OUTCOME_ERROR);
+    }
+
+    long start = System.nanoTime();
+    Object returnValue = null;
+    Object recordedResult;
+    byte outcome = GatewayTrace.OUTCOME_RETURNED;
+    Throwable thrown = null;
+    try {
+      returnValue = method.invoke(mDelegate, actualArgs);
+      recordedResult = returnValue;
+    } catch (InvocationTargetException e) {
+      thrown = e.getCause();
+      outcome = GatewayTrace.OUTCOME_THREW;
+      recordedResult = String.valueOf(thrown);
+    }
+    long end = System.nanoTime();
+    if (thrown == null && callbackState.outcome != GatewayTrace.OUTCOME_RETURNED) {
+      outcome = callbackState.outcome;
+      recordedResult = callbackState.result;
+      // Don't account for the time spent by the callback itself
+      end = callbackState.nanos;
+    }
+    long latency = end - start;
+
+    synchronized (sLock) {
+      // Don't write after stop() closed the writer.
+      if (sWriter == mWriter) {
+        try {
+          mWriter.writeCall(
+              signatureOf(method), start, latency, outcome, recordedArgs, recordedResult);
+        } catch (IOException e) {
+          Log.e(TAG, "Error recording call to " + method.getName(), e);
+        }
+      }
+    }
+
+    if (thrown != null) {
+      throw thrown;
+    }
+    return returnValue;
+  }
+
+  /** Captures which callback was called, with which value, and when. */
+  private static final class CallbackState {
+    private byte outcome = GatewayTrace.OUTCOME_RETURNED;
+    @Nullable private Object result;
+    private long nanos;
+
+    @SuppressWarnings("unchecked")
+    private Consumer<Object> wrap(Object callback, byte callbackOutcome) {
+      Consumer<Object> consumer = (Consumer<Object>) callback;
+      return (value) -> {
+        if (outcome == GatewayTrace.OUTCOME_RETURNED) {
+          nanos = System.nanoTime();
+          outcome = callbackOutcome;
+          result = value instanceof Exception ? String.valueOf(value) : value;
+        }
+        consumer.accept(value);
+      };
+    }
+  }
+}
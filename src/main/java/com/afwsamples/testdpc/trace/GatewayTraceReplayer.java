@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.trace;
+
+import android.util.Log;
+import androidx.annotation.NonNull;
+import com.afwsamples.testdpc.DevicePolicyManagerGateway;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+/**
+ * Replays the calls of a {@link GatewayTrace} against a {@link DevicePolicyManagerGateway} (like
+ * the real one, or an {@link com.afwsamples.testdpc.InMemoryDevicePolicyManagerGateway}), and
+ * compares the recorded latency of each method with the replayed one.
+ *
+ * <p>Calls whose arguments could not be recorded are skipped, as are calls that would destroy the
+ * device state or the session used to replay (like {@code wipeData()} or {@code reboot()}), or
+ * create users or remove keys on it.
+ */
+public final class GatewayTraceReplayer {
+
+  private static final String TAG = "GatewayTraceReplayer";
+
+  private static final Set<String> DESTRUCTIVE_METHODS =
+      Collections.unmodifiableSet(
+          new HashSet<>(
+              Arrays.asList(
+                  "wipeData",
+                  "reboot",
+                  "lockNow",
+                  "removeActiveAdmin",
+                  "clearDeviceOwnerApp",
+                  "clearProfileOwner",
+                  "transferOwnership",
+                  "removeUser",
+                  "switchUser",
+                  "stopUser",
+                  "logoutUser",
+                  "createAndManageUser",
+                  "removeKeyPair")));
+
+  private final Map<String, Method> mMethods = new HashMap<>();
+
+  public GatewayTraceReplayer() {
+    for (Method method : DevicePolicyManagerGateway.class.getMethods()) {
+      mMethods.put(GatewayTraceRecorder.signatureOf(method), method);
+    }
+  }
+
+  /** Replays {@code calls} in order, returning per-method latency statistics. */
+  @NonNull
+  public Map<String, MethodStats> replay(
+      @NonNull List<GatewayTrace.Call> calls, @NonNull DevicePolicyManagerGateway target) {
+    Map<String, MethodStats> stats = new TreeMap<>();
+    for (GatewayTrace.Call call : calls) {
+      MethodStats methodStats = stats.get(call.method);
+      if (methodStats == null) {
+        methodStats = new MethodStats();
+        stats.put(call.method, methodStats);
+      }
+      Method method = mMethods.get(call.method);
+      if (method == null
+          || !call.isReplayable()
+          || DESTRUCTIVE_METHODS.contains(method.getName())) {
+        methodStats.skipped++;
+        continue;
+      }
+      long latency = invoke(method, call.args, target);
+      methodStats.recorded.add(call.latencyNanos);
+      methodStats.replayed.add(latency);
+    }
+    return stats;
+  }
+
+  private static long invoke(Method method, Object[] recordedArgs, Object target) {
+    Object[] args = new Object[recordedArgs.length];
+    long[] callbackNanos = new long[1];
+    Consumer<Object> callback =
+        (v) -> {
+          if (callbackNanos[0] == 0) {
+            callbackNanos[0] = System.nanoTime();
+          }
+        };
+    for (int i = 0; i < args.length; i++) {
+      args[i] = recordedArgs[i] == GatewayTrace.CALLBACK ? callback : recordedArgs[i];
+    }
+    long start = System.nanoTime();
+    try {
+      method.invoke(target, args);
+    } catch (InvocationTargetException | IllegalAccessException | IllegalArgumentException e) {
+      Log.w(TAG, "Error replaying " + method.getName() + Arrays.toString(recordedArgs), e);
+    }
+    long end = callbackNanos[0] != 0 ? callbackNanos[0] : System.nanoTime();
+    return end - start;
+  }
+
+  /** Latency statistics of a method, in nanoseconds. */
+  public static final class MethodStats {
+    public final LatencyStats recorded = new LatencyStats();
+    public final LatencyStats replayed = new LatencyStats();
+    public int skipped;
+
+    @Override
+    public String toString() {
+      return "recorded " + recorded + ", replayed " + replayed + ", skipped=" + skipped;
+    }
+  }
+
+  /** Count, average, minimum and maximum of a set of latencies. */
+  public static final class LatencyStats {
+    public int count;
+    public long totalNanos;
+    public long minNanos = Long.MAX_VALUE;
+    public long maxNanos;
+
+    void add(long nanos) {
+      count++;
+      totalNanos += nanos;
+      minNanos = Math.min(minNanos, nanos);
+      maxNanos = Math.max(maxNanos, nanos);
+    }
+
+    public long averageNanos() {
+      return count == 0 ? 0 : totalNanos / count;
+    }
+
+    @Override
+    public String toString() {
+      if (count == 0) {
+        return "n=0";
+      }
+      return String.format(
+          "n=%d avg=%dus min=%dus max=%dus",
+          count, averageNanos() / 1_000, minNanos / 1_000, maxNanos / 1_000);
+    }
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.afwsamples.testdpc;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.ComponentName;
+import android.os.Build.VERSION_CODES;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = VERSION_CODES.R)
+public class PolicyStateSnapshotTest {
+
+  private final InMemoryDevicePolicyManagerGateway mGateway =
+      new InMemoryDevicePolicyManagerGateway(new ComponentName("com.example.dpc", "Admin"));
+  private final ExecutorService mExecutor = Executors.newFixedThreadPool(4);
+
+  @After
+  public void shutDownExecutor() {
+    mExecutor.shutdownNow();
+  }
+
+  @Test
+  public void diff_sameState_isEmpty() throws Exception {
+    PolicyStateSnapshot before = PolicyStateSnapshot.capture(mGateway, mExecutor);
+    PolicyStateSnapshot after = PolicyStateSnapshot.capture(mGateway, mExecutor);
+
+    assertThat(PolicyStateSnapshot.diff(before, after)).isEmpty();
+  }
+
+  @Test
+  public void diff_changedProperties_areReported() throws Exception {
+    PolicyStateSnapshot before = PolicyStateSnapshot.capture(mGateway, mExecutor);
+    mGateway.setUserRestriction("no_fun", true);
+    mGateway.setOrganizationName("ACME", (v) -> {}, (e) -> {});
+    PolicyStateSnapshot after = PolicyStateSnapshot.capture(mGateway, mExecutor);
+
+    List<PolicyStateSnapshot.Difference> differences = PolicyStateSnapshot.diff(before, after);
+
+    assertThat(differences).hasSize(2);
+    assertThat(differences.get(0).name).isEqualTo("organizationName");
+    assertThat(differences.get(0).newValue).isEqualTo("ACME");
+    assertThat(differences.get(1).name).isEqualTo("userRestrictions");
+    assertThat(differences.get(1).newValue).isEqualTo("[no_fun]");
+  }
+
+  @Test
+  public void json_roundTrip_preservesProperties() throws Exception {
+    mGateway.setUserRestriction("no_fun", true);
+    PolicyStateSnapshot snapshot = PolicyStateSnapshot.capture(mGateway, mExecutor);
+
+    PolicyStateSnapshot parsed = PolicyStateSnapshot.fromJson(snapshot.toJson());
+
+    assertThat(parsed.getTimestamp()).isEqualTo(snapshot.getTimestamp());
+    assertThat(parsed.getProperties()).isEqualTo(snapshot.getProperties());
+  }
+}
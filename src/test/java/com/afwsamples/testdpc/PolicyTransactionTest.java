@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.ComponentName;
+import android.os.Build.VERSION_CODES;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = VERSION_CODES.R)
+public class PolicyTransactionTest {
+
+  private final InMemoryDevicePolicyManagerGateway mGateway =
+      new InMemoryDevicePolicyManagerGateway(new ComponentName("com.example.dpc", "Admin"));
+  private final PolicyTransaction mTransaction = new PolicyTransaction(/* resolver= */ null);
+  private final DevicePolicyManagerGateway mTransactionGateway = mTransaction.wrap(mGateway);
+  private final List<Exception> mErrors = new ArrayList<>();
+
+  @Test
+  public void rollback_restoresPreviousValues() throws Exception {
+    mGateway.setCameraDisabled(true, (v) -> {}, mErrors::add);
+    mTransactionGateway.setUserRestriction("no_fun", true);
+    mTransactionGateway.setCameraDisabled(false, (v) -> {}, mErrors::add);
+    mTransactionGateway.setOrganizationName("ACME", (v) -> {}, mErrors::add);
+    mTransactionGateway.setOrganizationName("Umbrella", (v) -> {}, mErrors::add);
+
+    assertThat(mTransaction.rollback()).isEmpty();
+
+    assertThat(mErrors).isEmpty();
+    assertThat(mGateway.getUserRestrictions()).isEmpty();
+    assertThat(mGateway.getCameraDisabled()).isTrue();
+    assertThat(mGateway.getOrganizationName()).isNull();
+  }
+
+  @Test
+  public void mutationsThatDontChangeAnything_areNotRecorded() {
+    mGateway.setUserRestriction("no_fun", true);
+
+    mTransactionGateway.setUserRestriction("no_fun", true);
+    mTransactionGateway.setCameraDisabled(false, (v) -> {}, mErrors::add);
+
+    assertThat(mTransaction.getChangeCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void commit_keepsChanges() {
+    mTransactionGateway.setUserRestriction("no_fun", true);
+
+    mTransaction.commit();
+
+    assertThat(mGateway.getUserRestrictions()).containsExactly("no_fun");
+    assertThat(mTransaction.getChangeCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void irreversibleMutations_areReported() {
+    mTransactionGateway.setStatusBarDisabled(true, (v) -> {}, mErrors::add);
+
+    assertThat(mTransaction.getChangeCount()).isEqualTo(0);
+    assertThat(mTransaction.getIrreversibleChanges()).containsExactly("setStatusBarDisabled(true)");
+  }
+}
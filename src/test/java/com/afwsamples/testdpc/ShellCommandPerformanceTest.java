@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.afwsamples.testdpc;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Build.VERSION_CODES;
+import androidx.test.core.app.ApplicationProvider;
+import com.google.common.truth.Expect;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * Checks the latency and the bytes allocated per command of {@link ShellCommand} (including the
+ * {@code Flags} dispatch) running against an {@link InMemoryDevicePolicyManagerGateway}.
+ *
+ * <p>For each command it runs warmup iterations followed by measured iterations, and fails for
+ * each command over {@link #MAX_MICROS_PER_COMMAND} or {@link #MAX_BYTES_PER_COMMAND}, with its
+ * measurements. The budgets are loose enough for slow test machines; they catch a command
+ * becoming an order of magnitude slower, like when it stops reusing a cached value. The iteration
+ * counts and the artificial binder latency can be tuned with the {@code testdpc.benchmark.*}
+ * system properties (through {@code --jvm_flags}); the latency budget only applies without
+ * artificial latency.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = VERSION_CODES.R)
+public class ShellCommandPerformanceTest {
+
+  private static final int WARMUP_ITERATIONS =
+      Integer.getInteger("testdpc.benchmark.warmupIterations", 500);
+  private static final int MEASUREMENT_ITERATIONS =
+      Integer.getInteger("testdpc.benchmark.measurementIterations", 2_000);
+  private static final long LATENCY_MICROS = Long.getLong("testdpc.benchmark.latencyMicros", 0);
+
+  private static final double MAX_MICROS_PER_COMMAND = 1_000;
+  private static final long MAX_BYTES_PER_COMMAND = 256 * 1024;
+
+  private static final String[][] COMMANDS = {
+    {"dump"},
+    {"is-user-affiliated"},
+    {"list-user-restrictions"},
+    {"set-user-restriction", "no_fun", "true"},
+    {"set-affiliation-ids", "id1", "id2"},
+    {"set-suspended-packages", "true", "com.example.app"},
+    {"is-suspended-packages", "com.example.app", "com.example.other"},
+    {"set-lock-task-packages", "com.example.app", "com.example.other"},
+    {"is-lock-task-permitted", "com.example.app"},
+    {"get-lock-task-features"},
+    {"set-delegated-scopes", "com.example.app", "delegation-cert-install"},
+    {"get-delegated-scopes", "com.example.app"},
+    {"has-key-pair", "alias"},
+    {"get-key-pair-grants", "alias"},
+    {"set-organization-name", "ACME"},
+    {"get-organization-name"},
+    {"unknown-command"},
+  };
+
+  @Rule public final Expect mExpect = Expect.create();
+
+  private final Context mContext = ApplicationProvider.getApplicationContext();
+
+  private InMemoryDevicePolicyManagerGateway mGateway;
+
+  @Before
+  public void setFixtures() {
+    mGateway =
+        new InMemoryDevicePolicyManagerGateway(
+                new ComponentName(mContext, DeviceAdminReceiver.class))
+            .setDeviceOwner(true)
+            .addInstalledPackages("com.example.app", "com.example.other")
+            .setLatency(LATENCY_MICROS, TimeUnit.MICROSECONDS);
+  }
+
+  @Test
+  public void commands_withinBudget() {
+    ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    for (String[] args : COMMANDS) {
+      // Sanity check first, so we don't measure something that silently fails.
+      assertThat(runCommand(args)).isNotEmpty();
+
+      for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+        runCommand(args);
+      }
+
+      long allocatedBefore = allocatedBytes(threadMXBean);
+      long start = System.nanoTime();
+      for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+        runCommand(args);
+      }
+      long elapsedNanos = System.nanoTime() - start;
+      long allocatedAfter = allocatedBytes(threadMXBean);
+
+      String command = String.join(" ", args);
+      if (LATENCY_MICROS == 0) {
+        double microsPerOp = elapsedNanos / 1_000.0 / MEASUREMENT_ITERATIONS;
+        mExpect
+            .withMessage("us/op of %s", command)
+            .that(microsPerOp)
+            .isAtMost(MAX_MICROS_PER_COMMAND);
+      }
+      if (allocatedBefore >= 0) {
+        long bytesPerOp = (allocatedAfter - allocatedBefore) / MEASUREMENT_ITERATIONS;
+        mExpect
+            .withMessage("bytes/op of %s", command)
+            .that(bytesPerOp)
+            .isAtMost(MAX_BYTES_PER_COMMAND);
+      }
+    }
+  }
+
+  private String runCommand(String[] args) {
+    StringWriter output = new StringWriter();
+    try (PrintWriter writer = new PrintWriter(output)) {
+      new ShellCommand(mContext, writer, args, mGateway).run();
+    }
+    return output.toString();
+  }
+
+  /** Returns the bytes allocated by the current thread, or {@code -1} if not supported. */
+  private static long allocatedBytes(ThreadMXBean threadMXBean) {
+    if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) threadMXBean)
+          .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.common;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class SingleFlightTest {
+
+  private static final int CALLERS = 8;
+
+  private final SingleFlight<String, Integer> mSingleFlight = new SingleFlight<>();
+
+  @Test
+  public void run_concurrentCallsWithSameKey_shareOneCall() throws Exception {
+    AtomicInteger executions = new AtomicInteger();
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(CALLERS);
+    try {
+      List<Future<Integer>> results = new ArrayList<>();
+      results.add(executor.submit(() -> mSingleFlight.run("key", () -> {
+        executions.incrementAndGet();
+        started.countDown();
+        awaitUninterruptibly(release);
+        return 42;
+      })));
+      started.await();
+      for (int i = 1; i < CALLERS; i++) {
+        results.add(executor.submit(() -> mSingleFlight.run("key", executions::incrementAndGet)));
+      }
+      // Wait until all other callers joined the in-flight call
+      while (mSingleFlight.getCalls() < CALLERS) {
+        Thread.sleep(1);
+      }
+      release.countDown();
+
+      for (Future<Integer> result : results) {
+        assertThat(result.get(10, TimeUnit.SECONDS)).isEqualTo(42);
+      }
+      assertThat(executions.get()).isEqualTo(1);
+      assertThat(mSingleFlight.getCoalescedCalls()).isEqualTo(CALLERS - 1);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void run_sequentialCalls_areNotCached() {
+    AtomicInteger executions = new AtomicInteger();
+
+    mSingleFlight.run("key", executions::incrementAndGet);
+    int result = mSingleFlight.run("key", executions::incrementAndGet);
+
+    assertThat(result).isEqualTo(2);
+    assertThat(mSingleFlight.getCoalescedCalls()).isEqualTo(0);
+  }
+
+  @Test
+  public void run_callThrows_rethrowsAndForgetsKey() {
+    assertThrows(
+        IllegalStateException.class,
+        () -> mSingleFlight.run("key", () -> {
+          throw new IllegalStateException();
+        }));
+
+    assertThat(mSingleFlight.run("key", () -> 1)).isEqualTo(1);
+  }
+
+  @Test
+  public void run_afterWriteAndForgetInFlight_doesNotShareStaleRead() throws Exception {
+    AtomicInteger value = new AtomicInteger(1);
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<Integer> staleRead = executor.submit(() -> mSingleFlight.run("key", () -> {
+        int read = value.get();
+        started.countDown();
+        awaitUninterruptibly(release);
+        return read;
+      }));
+      started.await();
+
+      // Write while the read is in flight, like DevicePolicyManagerGatewayImpl's setters do
+      value.set(2);
+      mSingleFlight.forgetInFlight();
+      int readAfterWrite = mSingleFlight.run("key", value::get);
+      release.countDown();
+
+      assertThat(readAfterWrite).isEqualTo(2);
+      assertThat(staleRead.get(10, TimeUnit.SECONDS)).isEqualTo(1);
+      assertThat(mSingleFlight.getCoalescedCalls()).isEqualTo(0);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static void awaitUninterruptibly(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.feedback;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.content.Context;
+import android.os.Build.VERSION_CODES;
+import android.os.Handler;
+import android.os.Looper;
+import androidx.enterprise.feedback.KeyedAppState;
+import androidx.enterprise.feedback.ReceivedKeyedAppState;
+import androidx.test.core.app.ApplicationProvider;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = VERSION_CODES.Q)
+public class AppStatesNotifierTest {
+
+  private static final String PACKAGE = "test.package";
+
+  private final Context mContext = ApplicationProvider.getApplicationContext();
+  private final NotificationManager mNotificationManager =
+      mContext.getSystemService(NotificationManager.class);
+
+  // Flushes are run by the tests, after moving the clock
+  private long mNow = 10_000;
+  private final AppStatesNotifier mNotifier =
+      new AppStatesNotifier(mContext, new Handler(Looper.getMainLooper()), () -> mNow);
+
+  @Test
+  public void onStates_newKey_postsImmediately() {
+    mNotifier.onStates(Arrays.asList(state("key1", "first")), /* requestSync= */ false);
+
+    assertThat(shadowOf(mNotificationManager).getAllNotifications()).hasSize(1);
+    assertThat(mNotifier.getPendingCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void onStates_sameKeyInWindow_coalescedUntilWindowEnds() {
+    mNotifier.onStates(Arrays.asList(state("key1", "first")), /* requestSync= */ false);
+    mNotifier.onStates(
+        Arrays.asList(state("key1", "second"), state("key1", "third")), /* requestSync= */ false);
+
+    assertThat(getContentText()).contains("first");
+    assertThat(mNotifier.getPendingCount()).isEqualTo(1);
+
+    mNow += AppStatesNotifier.COALESCE_WINDOW_MS - 1;
+    mNotifier.flush();
+    assertThat(getContentText()).contains("first");
+
+    mNow += 1;
+    mNotifier.flush();
+    assertThat(getContentText()).contains("third");
+    assertThat(getContentText()).contains("1 earlier updates not shown");
+    assertThat(mNotifier.getPendingCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void onStates_coalesced_keepsSyncRequest() {
+    mNotifier.onStates(Arrays.asList(state("key1", "first")), /* requestSync= */ false);
+    mNotifier.onStates(Arrays.asList(state("key1", "second")), /* requestSync= */ true);
+    mNotifier.onStates(Arrays.asList(state("key1", "third")), /* requestSync= */ false);
+
+    mNow += AppStatesNotifier.COALESCE_WINDOW_MS;
+    mNotifier.flush();
+
+    assertThat(getContentText()).contains("third");
+    assertThat(getContentText()).contains("SYNC REQUESTED");
+  }
+
+  @Test
+  public void onStates_manyKeys_rateLimited() {
+    List<ReceivedKeyedAppState> states = new ArrayList<>();
+    for (int i = 0; i < AppStatesNotifier.MAX_UPDATES_PER_SECOND * 2; i++) {
+      states.add(state("key" + i, "data"));
+    }
+
+    mNotifier.onStates(states, /* requestSync= */ false);
+
+    assertThat(shadowOf(mNotificationManager).getAllNotifications())
+        .hasSize(AppStatesNotifier.MAX_UPDATES_PER_SECOND);
+    assertThat(mNotifier.getPendingCount()).isEqualTo(AppStatesNotifier.MAX_UPDATES_PER_SECOND);
+
+    mNow += 1000;
+    mNotifier.flush();
+
+    assertThat(shadowOf(mNotificationManager).getAllNotifications())
+        .hasSize(AppStatesNotifier.MAX_UPDATES_PER_SECOND * 2);
+    assertThat(mNotifier.getPendingCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void onStates_afterWindow_postsImmediately() {
+    mNotifier.onStates(Arrays.asList(state("key1", "first")), /* requestSync= */ false);
+    mNow += AppStatesNotifier.COALESCE_WINDOW_MS;
+
+    mNotifier.onStates(Arrays.asList(state("key1", "second")), /* requestSync= */ false);
+
+    assertThat(getContentText()).contains("second");
+    assertThat(getContentText()).doesNotContain("earlier updates");
+    assertThat(mNotifier.getPendingCount()).isEqualTo(0);
+  }
+
+  private String getContentText() {
+    List<Notification> notifications = shadowOf(mNotificationManager).getAllNotifications();
+    assertThat(notifications).hasSize(1);
+    return shadowOf(notifications.get(0)).getContentText().toString();
+  }
+
+  private static ReceivedKeyedAppState state(String key, String data) {
+    return ReceivedKeyedAppState.builder()
+        .setPackageName(PACKAGE)
+        .setTimestamp(123L)
+        .setSeverity(KeyedAppState.SEVERITY_INFO)
+        .setKey(key)
+        .setMessage("message")
+        .setData(data)
+        .build();
+  }
+}
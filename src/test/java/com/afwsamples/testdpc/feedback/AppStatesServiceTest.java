@@ -30,11 +30,14 @@ import androidx.enterprise.feedback.ReceivedKeyedAppState;
 import androidx.preference.PreferenceManager;
 import androidx.test.core.app.ApplicationProvider;
 import com.afwsamples.testdpc.R;
+import com.google.common.util.concurrent.MoreExecutors;
 import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
 import org.junit.Test;
 import org.junit.runner.RunWith;
-import org.robolectric.Robolectric;
 import org.robolectric.RobolectricTestRunner;
+import org.robolectric.android.controller.ServiceController;
 import org.robolectric.annotation.Config;
 import org.robolectric.shadows.ShadowLog;
 
@@ -82,7 +85,30 @@ public class AppStatesServiceTest {
       PreferenceManager.getDefaultSharedPreferences(mContext);
   private final NotificationManager mNotificationManager =
       mContext.getSystemService(NotificationManager.class);
-  private final AppStatesService mService = Robolectric.buildService(AppStatesService.class).get();
+  // Writes to the store on the calling thread, so that they can be checked right away
+  private final AppStatesService mService =
+      ServiceController.of(
+              new AppStatesService(MoreExecutors.newDirectExecutorService()), /* intent= */ null)
+          .create()
+          .get();
+
+  @After
+  public void tearDown() {
+    AppStatesStore.resetInstance();
+    AppStatesNotifier.resetInstance();
+  }
+
+  @Test
+  public void onReceive_addsStatesToStore() {
+    setNotificationPreference(false);
+
+    mService.onReceive(Arrays.asList(STATE1, STATE2), /* requestSync= */ false);
+
+    List<AppStatesStore.AppState> latest =
+        AppStatesStore.getInstance(mContext)
+            .getLatest(/* packageName= */ null, 0, AppStatesStore.ANY_SEVERITY);
+    assertThat(latest).hasSize(2);
+  }
 
   @Test
   public void onReceive_shouldNotNotify_noNotification() {
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.feedback;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.Build.VERSION_CODES;
+import androidx.enterprise.feedback.KeyedAppState;
+import androidx.enterprise.feedback.ReceivedKeyedAppState;
+import androidx.test.core.app.ApplicationProvider;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = VERSION_CODES.Q)
+public class AppStatesStoreTest {
+
+  private static final String PACKAGE1 = "test.package1";
+  private static final String PACKAGE2 = "test.package2";
+
+  // In memory, so that each test starts empty
+  private final AppStatesStore mStore =
+      new AppStatesStore(ApplicationProvider.getApplicationContext(), /* name= */ null);
+
+  @After
+  public void tearDown() {
+    mStore.close();
+  }
+
+  @Test
+  public void getLatest_returnsLatestStatePerKey() {
+    mStore.addAll(
+        Arrays.asList(
+            state(PACKAGE1, "key1", KeyedAppState.SEVERITY_INFO, "first", 100),
+            state(PACKAGE1, "key2", KeyedAppState.SEVERITY_INFO, "other", 150),
+            state(PACKAGE1, "key1", KeyedAppState.SEVERITY_ERROR, "second", 200)));
+
+    List<AppStatesStore.AppState> latest =
+        mStore.getLatest(/* packageName= */ null, 0, AppStatesStore.ANY_SEVERITY);
+
+    assertThat(latest).hasSize(2);
+    assertThat(latest.get(0).key).isEqualTo("key1");
+    assertThat(latest.get(0).data).isEqualTo("second");
+    assertThat(latest.get(0).severity).isEqualTo(KeyedAppState.SEVERITY_ERROR);
+    assertThat(latest.get(1).key).isEqualTo("key2");
+  }
+
+  @Test
+  public void getLatest_filtersByPackageSinceAndSeverity() {
+    mStore.addAll(
+        Arrays.asList(
+            state(PACKAGE1, "key1", KeyedAppState.SEVERITY_INFO, "a", 100),
+            state(PACKAGE1, "key2", KeyedAppState.SEVERITY_ERROR, "b", 200),
+            state(PACKAGE2, "key1", KeyedAppState.SEVERITY_ERROR, "c", 300)));
+
+    assertThat(mStore.getLatest(PACKAGE1, 0, AppStatesStore.ANY_SEVERITY)).hasSize(2);
+    assertThat(mStore.getLatest(null, 150, AppStatesStore.ANY_SEVERITY)).hasSize(2);
+    assertThat(mStore.getLatest(null, 0, KeyedAppState.SEVERITY_ERROR)).hasSize(2);
+    List<AppStatesStore.AppState> states =
+        mStore.getLatest(PACKAGE1, 150, KeyedAppState.SEVERITY_ERROR);
+    assertThat(states).hasSize(1);
+    assertThat(states.get(0).data).isEqualTo("b");
+  }
+
+  @Test
+  public void getHistory_keepsLastStatesPerKey() {
+    List<ReceivedKeyedAppState> states = new ArrayList<>();
+    int count = AppStatesStore.MAX_HISTORY_PER_KEY + 10;
+    for (int i = 0; i < count; i++) {
+      states.add(state(PACKAGE1, "key1", KeyedAppState.SEVERITY_INFO, "data" + i, i));
+    }
+    states.add(state(PACKAGE1, "key2", KeyedAppState.SEVERITY_INFO, "other", 0));
+    mStore.addAll(states);
+
+    List<AppStatesStore.AppState> history =
+        mStore.getHistory(PACKAGE1, 0, AppStatesStore.ANY_SEVERITY);
+
+    assertThat(history).hasSize(AppStatesStore.MAX_HISTORY_PER_KEY + 1);
+    assertThat(history.get(0).data).isEqualTo("data" + (count - 1));
+    assertThat(history.get(AppStatesStore.MAX_HISTORY_PER_KEY - 1).data).isEqualTo("data10");
+  }
+
+  @Test
+  public void parseSeverity() {
+    assertThat(AppStatesStore.parseSeverity("ERROR")).isEqualTo(KeyedAppState.SEVERITY_ERROR);
+    assertThat(AppStatesStore.parseSeverity("info")).isEqualTo(KeyedAppState.SEVERITY_INFO);
+  }
+
+  private static ReceivedKeyedAppState state(
+      String packageName, String key, int severity, String data, long timestamp) {
+    return ReceivedKeyedAppState.builder()
+        .setPackageName(packageName)
+        .setTimestamp(timestamp)
+        .setSeverity(severity)
+        .setKey(key)
+        .setMessage("message")
+        .setData(data)
+        .build();
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy.bugreport;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.Build.VERSION_CODES;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = VERSION_CODES.R)
+public class BugreportIndexTest {
+
+  private static final String MAIN_ENTRY = "bugreport-device-2022-01-01.txt";
+
+  private static final String HEADER =
+      "========================================================\n"
+          + "== dumpstate: 2022-01-01 00:00:00\n"
+          + "========================================================\n";
+  private static final String UPTIME = "------ UPTIME (uptime) ------\nup 1 day\n";
+  private static final String DUMPSYS_START = "------ DUMPSYS (/system/bin/dumpsys) ------\n";
+  private static final String ACTIVITY =
+      "DUMP OF SERVICE CRITICAL activity:\nACTIVITY MANAGER STATE\n--------- 0.1s was the"
+          + " duration of dumpsys activity\n";
+  private static final String WIFI = "DUMP OF SERVICE wifi:\nWifi is enabled \u2713\n";
+  private static final String DURATION = "------ 2.5s was the duration of 'DUMPSYS' ------\n";
+  private static final String LOGCAT =
+      "------ SYSTEM LOG (logcat -v threadtime -v printable -v uid -d *:v) ------\n"
+          + "01-01 00:00:00.000  1000  1000 I Test: hello\n";
+  private static final String TEXT =
+      HEADER + UPTIME + DUMPSYS_START + ACTIVITY + WIFI + DURATION + LOGCAT;
+
+  @Rule public final TemporaryFolder mFolder = new TemporaryFolder();
+
+  @Test
+  public void build_findsSectionsAndServices() throws Exception {
+    BugreportIndex index = BugreportIndex.build(createBugreport(/* stored= */ false));
+
+    assertThat(index.getMainEntry()).isEqualTo(MAIN_ENTRY);
+    assertThat(index.getEntries()).hasSize(3);
+    List<String> names = new ArrayList<>();
+    for (BugreportIndex.Section section : index.getSections()) {
+      names.add(section.name);
+    }
+    assertThat(names)
+        .containsExactly(
+            "UPTIME (uptime)",
+            "DUMPSYS (/system/bin/dumpsys)",
+            "dumpsys activity",
+            "dumpsys wifi",
+            "SYSTEM LOG (logcat -v threadtime -v printable -v uid -d *:v)")
+        .inOrder();
+  }
+
+  @Test
+  public void copySection_deflated() throws Exception {
+    assertSections(createBugreport(/* stored= */ false));
+  }
+
+  @Test
+  public void copySection_stored() throws Exception {
+    assertSections(createBugreport(/* stored= */ true));
+  }
+
+  @Test
+  public void findSection_matchesShortNamesAndPrefixes() throws Exception {
+    BugreportIndex index = BugreportIndex.build(createBugreport(/* stored= */ false));
+
+    assertThat(index.findSection("system log").name).startsWith("SYSTEM LOG");
+    assertThat(index.findSection("dumpsys").name).isEqualTo("DUMPSYS (/system/bin/dumpsys)");
+    assertThat(index.findSection("dumpsys wi").name).isEqualTo("dumpsys wifi");
+    assertThat(index.findSection("EVENT LOG")).isNull();
+  }
+
+  @Test
+  public void getOrBuild_savesAndReloadsIndex() throws Exception {
+    File bugreport = createBugreport(/* stored= */ false);
+
+    BugreportIndex built = BugreportIndex.getOrBuild(bugreport);
+    BugreportIndex loaded = BugreportIndex.load(BugreportIndex.getIndexFile(bugreport));
+
+    assertThat(loaded.getMainEntry()).isEqualTo(built.getMainEntry());
+    assertThat(loaded.getEntries()).hasSize(built.getEntries().size());
+    assertThat(loaded.getSections().toString()).isEqualTo(built.getSections().toString());
+  }
+
+  private void assertSections(File bugreport) throws Exception {
+    BugreportIndex index = BugreportIndex.getOrBuild(bugreport);
+
+    assertThat(readSection(index, bugreport, "UPTIME")).isEqualTo(UPTIME);
+    assertThat(readSection(index, bugreport, "DUMPSYS"))
+        .isEqualTo(DUMPSYS_START + ACTIVITY + WIFI + DURATION);
+    assertThat(readSection(index, bugreport, "dumpsys activity")).isEqualTo(ACTIVITY);
+    assertThat(readSection(index, bugreport, "dumpsys wifi")).isEqualTo(WIFI + DURATION);
+    assertThat(readSection(index, bugreport, "SYSTEM LOG")).isEqualTo(LOGCAT);
+  }
+
+  private static String readSection(BugreportIndex index, File bugreport, String name)
+      throws Exception {
+    StringWriter out = new StringWriter();
+    index.copySection(bugreport, index.findSection(name), out);
+    return out.toString();
+  }
+
+  private File createBugreport(boolean stored) throws Exception {
+    File file = new File(mFolder.getRoot(), "bugreport.zip");
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file))) {
+      addEntry(out, "main_entry.txt", MAIN_ENTRY.getBytes(StandardCharsets.UTF_8), false);
+      addEntry(out, "version.txt", "2.0".getBytes(StandardCharsets.UTF_8), false);
+      addEntry(out, MAIN_ENTRY, TEXT.getBytes(StandardCharsets.UTF_8), stored);
+    }
+    return file;
+  }
+
+  private static void addEntry(ZipOutputStream out, String name, byte[] data, boolean stored)
+      throws Exception {
+    ZipEntry entry = new ZipEntry(name);
+    if (stored) {
+      CRC32 crc = new CRC32();
+      crc.update(data);
+      entry.setMethod(ZipEntry.STORED);
+      entry.setSize(data.length);
+      entry.setCompressedSize(data.length);
+      entry.setCrc(crc.getValue());
+    }
+    out.putNextEntry(entry);
+    out.write(data);
+    out.closeEntry();
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy.bugreport;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import android.os.Build.VERSION_CODES;
+import android.os.ParcelFileDescriptor;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = VERSION_CODES.R)
+public class BugreportIngesterTest {
+
+  @Rule public final TemporaryFolder mFolder = new TemporaryFolder();
+
+  @Test
+  public void copy_knownSize_copiesAndHashesInChunks() throws Exception {
+    byte[] data = createData(BugreportIngester.CHUNK_SIZE * 2 + 12345);
+    List<Long> progress = new ArrayList<>();
+
+    byte[] hash = copy(data, data.length, (copied, total) -> progress.add(copied));
+
+    assertThat(readCopy()).isEqualTo(data);
+    assertThat(hash).isEqualTo(sha256(data));
+    assertThat(progress).hasSize(3);
+    assertThat(progress.get(2)).isEqualTo(data.length);
+  }
+
+  @Test
+  public void copy_unknownSize_copiesUntilEnd() throws Exception {
+    byte[] data = createData(100_000);
+
+    byte[] hash = copy(data, /* size= */ -1, /* listener= */ null);
+
+    assertThat(readCopy()).isEqualTo(data);
+    assertThat(hash).isEqualTo(sha256(data));
+  }
+
+  @Test
+  public void copy_empty() throws Exception {
+    byte[] hash = copy(new byte[0], 0, /* listener= */ null);
+
+    assertThat(readCopy()).isEmpty();
+    assertThat(hash).isEqualTo(sha256(new byte[0]));
+  }
+
+  @Test
+  public void ingest_matchingHash_renamesCopyAndClosesDescriptor() throws Exception {
+    byte[] data = createData(100_000);
+    ParcelFileDescriptor pfd = openSource(data);
+    File destination = new File(mFolder.getRoot(), "bugreport.zip");
+
+    BugreportIngester.Result result =
+        BugreportIngester.ingest(
+            pfd, destination, BugreportIngester.toHex(sha256(data)).toUpperCase(Locale.US), null);
+
+    assertThat(result.file).isEqualTo(destination);
+    assertThat(result.size).isEqualTo(data.length);
+    assertThat(result.hash).isEqualTo(BugreportIngester.toHex(sha256(data)));
+    assertThat(Files.readAllBytes(destination.toPath())).isEqualTo(data);
+    assertThat(getPartial(destination).exists()).isFalse();
+    assertThat(pfd.getFileDescriptor().valid()).isFalse();
+  }
+
+  @Test
+  public void ingest_hashMismatch_throwsDeletesCopyAndClosesDescriptor() throws Exception {
+    byte[] data = createData(100_000);
+    ParcelFileDescriptor pfd = openSource(data);
+    File destination = new File(mFolder.getRoot(), "bugreport.zip");
+    String wrongHash = BugreportIngester.toHex(sha256(new byte[0]));
+
+    BugreportIngester.HashMismatchException e =
+        assertThrows(
+            BugreportIngester.HashMismatchException.class,
+            () -> BugreportIngester.ingest(pfd, destination, wrongHash, null));
+
+    assertThat(e.expectedHash).isEqualTo(wrongHash);
+    assertThat(e.actualHash).isEqualTo(BugreportIngester.toHex(sha256(data)));
+    assertThat(destination.exists()).isFalse();
+    assertThat(getPartial(destination).exists()).isFalse();
+    assertThat(pfd.getFileDescriptor().valid()).isFalse();
+  }
+
+  @Test
+  public void ingest_withoutHash_skipsCheck() throws Exception {
+    byte[] data = createData(1000);
+    File destination = new File(mFolder.getRoot(), "bugreport.zip");
+
+    BugreportIngester.ingest(openSource(data), destination, /* expectedHash= */ null, null);
+
+    assertThat(Files.readAllBytes(destination.toPath())).isEqualTo(data);
+  }
+
+  @Test
+  public void toHex_isLowercase() {
+    assertThat(BugreportIngester.toHex(new byte[] {0x0a, (byte) 0xff})).isEqualTo("0aff");
+  }
+
+  private byte[] copy(
+      byte[] data, long size, BugreportIngester.ProgressListener listener) throws Exception {
+    File source = new File(mFolder.getRoot(), "source");
+    try (FileOutputStream out = new FileOutputStream(source)) {
+      out.write(data);
+    }
+    MessageDigest digest = MessageDigest.getInstance("SHA-256");
+    try (RandomAccessFile in = new RandomAccessFile(source, "r");
+        RandomAccessFile out = new RandomAccessFile(getCopy(), "rw")) {
+      long copied =
+          BugreportIngester.copy(in.getChannel(), size, out.getChannel(), digest, listener);
+      assertThat(copied).isEqualTo(data.length);
+    }
+    return digest.digest();
+  }
+
+  private ParcelFileDescriptor openSource(byte[] data) throws Exception {
+    File source = new File(mFolder.getRoot(), "source");
+    Files.write(source.toPath(), data);
+    return ParcelFileDescriptor.open(source, ParcelFileDescriptor.MODE_READ_ONLY);
+  }
+
+  private static File getPartial(File destination) {
+    return new File(destination.getPath() + ".partial");
+  }
+
+  private byte[] readCopy() throws Exception {
+    return Files.readAllBytes(getCopy().toPath());
+  }
+
+  private File getCopy() {
+    return new File(mFolder.getRoot(), "copy");
+  }
+
+  private static byte[] createData(int size) {
+    byte[] data = new byte[size];
+    new Random(42).nextBytes(data);
+    return data;
+  }
+
+  private static byte[] sha256(byte[] data) throws Exception {
+    return MessageDigest.getInstance("SHA-256").digest(data);
+  }
+}
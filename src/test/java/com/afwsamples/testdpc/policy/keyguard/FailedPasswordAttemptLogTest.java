@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy.keyguard;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.Build.VERSION_CODES;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = VERSION_CODES.R)
+public class FailedPasswordAttemptLogTest {
+
+  private static final int CAPACITY = 4;
+
+  @Rule public final TemporaryFolder mFolder = new TemporaryFolder();
+
+  @Test
+  public void getLatest_returnsNewestFirst() throws Exception {
+    FailedPasswordAttemptLog log = newLog();
+    log.append(100);
+    log.append(200);
+    log.append(300);
+
+    assertThat(log.getLatest(10)).isEqualTo(new long[] {300, 200, 100});
+    assertThat(log.getLatest(2)).isEqualTo(new long[] {300, 200});
+  }
+
+  @Test
+  public void append_whenFull_overwritesOldest() throws Exception {
+    FailedPasswordAttemptLog log = newLog();
+    for (long time = 1; time <= 10; time++) {
+      log.append(time);
+    }
+
+    assertThat(log.getCount()).isEqualTo(10);
+    assertThat(log.getLatest(10)).isEqualTo(new long[] {10, 9, 8, 7});
+    assertThat(getFile().length()).isEqualTo(24 + 8 * CAPACITY);
+  }
+
+  @Test
+  public void reopen_keepsAttempts() throws Exception {
+    FailedPasswordAttemptLog log = newLog();
+    for (long time = 1; time <= 6; time++) {
+      log.append(time);
+    }
+
+    FailedPasswordAttemptLog reopened = newLog();
+    reopened.append(7);
+
+    assertThat(reopened.getLatest(10)).isEqualTo(new long[] {7, 6, 5, 4});
+  }
+
+  @Test
+  public void clear_forgetsAttempts() throws Exception {
+    FailedPasswordAttemptLog log = newLog();
+    log.append(100);
+
+    log.clear();
+    log.append(200);
+
+    assertThat(newLog().getLatest(10)).isEqualTo(new long[] {200});
+  }
+
+  @Test
+  public void open_withInvalidHeader_startsOver() throws Exception {
+    try (RandomAccessFile file = new RandomAccessFile(getFile(), "rw")) {
+      file.writeLong(42);
+    }
+
+    FailedPasswordAttemptLog log = newLog();
+    assertThat(log.getLatest(10)).isEmpty();
+    log.append(100);
+
+    assertThat(newLog().getLatest(10)).isEqualTo(new long[] {100});
+  }
+
+  @Test
+  public void migrate_movesLegacyAttemptsAndDeletesLegacyFile() throws Exception {
+    File legacyFile = mFolder.newFile("failed_pw_attempts_timestamps.log");
+    Files.write(legacyFile.toPath(), Arrays.asList("3", "1", "6", "2", "5", "4"));
+
+    FailedPasswordAttemptLog log = newLog();
+    log.migrate(legacyFile);
+
+    assertThat(legacyFile.exists()).isFalse();
+    assertThat(log.getCount()).isEqualTo(6);
+    assertThat(newLog().getLatest(10)).isEqualTo(new long[] {6, 5, 4, 3});
+    assertThat(getFile().length()).isEqualTo(24 + 8 * CAPACITY);
+  }
+
+  private FailedPasswordAttemptLog newLog() {
+    return new FailedPasswordAttemptLog(getFile(), CAPACITY);
+  }
+
+  private File getFile() {
+    return new File(mFolder.getRoot(), FailedPasswordAttemptLog.FILE);
+  }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy.keymanagement;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build.VERSION_CODES;
+import androidx.test.core.app.ApplicationProvider;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = VERSION_CODES.P)
+public class KeyPoolTest {
+
+  private static final long GENERATION_MILLIS = 1500;
+
+  private final SharedPreferences mPrefs =
+      ApplicationProvider.getApplicationContext()
+          .getSharedPreferences("KeyPoolTest", Context.MODE_PRIVATE);
+  private final List<KeyGenerationParameters> mGenerated = new ArrayList<>();
+  private final List<String> mRemoved = new ArrayList<>();
+  private boolean mGenerationFails;
+  private boolean mProcessDies;
+  private int mScheduledRefills;
+  private long mNowMillis;
+
+  private final KeyPool.KeyGenerator mGenerator =
+      new KeyPool.KeyGenerator() {
+        @Override
+        public boolean generate(KeyGenerationParameters params) {
+          mNowMillis += GENERATION_MILLIS;
+          if (mProcessDies) {
+            throw new IllegalStateException("Process died");
+          }
+          if (mGenerationFails) {
+            return false;
+          }
+          mGenerated.add(params);
+          return true;
+        }
+
+        @Override
+        public void remove(String alias) {
+          mRemoved.add(alias);
+        }
+      };
+
+  private final KeyPool mPool = newPool();
+
+  @Test
+  public void refill_generatesUpToDepth() {
+    mPool.configure(2, "key-", /* ec= */ true, /* strongBox= */ true, /* userSelectable= */ false);
+
+    assertThat(mPool.refill(() -> false)).isEqualTo(2);
+
+    assertThat(mPool.isFull()).isTrue();
+    assertThat(mPool.getReadyCount()).isEqualTo(2);
+    assertThat(mGenerated).hasSize(2);
+    assertThat(mGenerated.get(0).alias).isEqualTo("key-1");
+    assertThat(mGenerated.get(0).generateEcKey).isTrue();
+    assertThat(mGenerated.get(0).useStrongBox).isTrue();
+    assertThat(mGenerated.get(0).isUserSelectable).isFalse();
+    assertThat(mGenerated.get(1).alias).isEqualTo("key-2");
+    assertThat(mScheduledRefills).isEqualTo(1);
+  }
+
+  @Test
+  public void refill_whenStopped_generatesNothing() {
+    mPool.configure(2, "key-", false, false, false);
+
+    assertThat(mPool.refill(() -> true)).isEqualTo(0);
+
+    assertThat(mGenerated).isEmpty();
+  }
+
+  @Test
+  public void take_returnsOldestKeyAndSchedulesRefill() {
+    mPool.configure(2, "key-", false, false, false);
+    mPool.refill(() -> false);
+
+    assertThat(mPool.take()).isEqualTo("key-1");
+    assertThat(mPool.take()).isEqualTo("key-2");
+    assertThat(mPool.take()).isNull();
+    assertThat(mScheduledRefills).isEqualTo(4);
+
+    mPool.refill(() -> false);
+    assertThat(mPool.take()).isEqualTo("key-3");
+  }
+
+  @Test
+  public void newPool_keepsReadyKeys() {
+    mPool.configure(2, "key-", false, false, false);
+    mPool.refill(() -> false);
+    mPool.take();
+
+    KeyPool pool = newPool();
+
+    assertThat(pool.getDepth()).isEqualTo(2);
+    assertThat(pool.take()).isEqualTo("key-2");
+    pool.refill(() -> false);
+    assertThat(mGenerated.get(2).alias).isEqualTo("key-3");
+  }
+
+  @Test
+  public void configure_smallerDepth_removesNewestKeys() {
+    mPool.configure(3, "key-", false, false, false);
+    mPool.refill(() -> false);
+
+    mPool.configure(1, "key-", false, false, false);
+
+    assertThat(mRemoved).containsExactly("key-3", "key-2").inOrder();
+    assertThat(mPool.take()).isEqualTo("key-1");
+  }
+
+  @Test
+  public void configure_otherKeys_removesReadyKeys() {
+    mPool.configure(2, "key-", false, false, false);
+    mPool.refill(() -> false);
+
+    mPool.configure(2, "other-", /* ec= */ true, false, false);
+
+    assertThat(mRemoved).containsExactly("key-2", "key-1");
+    assertThat(mPool.getReadyCount()).isEqualTo(0);
+    mPool.refill(() -> false);
+    assertThat(mPool.take()).isEqualTo("other-3");
+  }
+
+  @Test
+  public void refill_generationFails_stopsAndCountsFailure() {
+    mPool.configure(2, "key-", false, false, false);
+    mGenerationFails = true;
+
+    assertThat(mPool.refill(() -> false)).isEqualTo(0);
+
+    assertThat(mPool.getReadyCount()).isEqualTo(0);
+    assertThat(mPool.getRefillStats()[1]).isEqualTo(1);
+  }
+
+  @Test
+  public void refill_generationFails_removesKey() {
+    mPool.configure(2, "key-", false, false, false);
+    mGenerationFails = true;
+
+    mPool.refill(() -> false);
+
+    assertThat(mRemoved).containsExactly("key-1");
+    mGenerationFails = false;
+    assertThat(mPool.refill(() -> false)).isEqualTo(2);
+    assertThat(mPool.take()).isEqualTo("key-2");
+  }
+
+  @Test
+  public void newPool_processDiedWhileGenerating_removesKeyOnly() {
+    mPool.configure(2, "key-", false, false, false);
+    mPool.refill(() -> false);
+    mPool.take();
+    mProcessDies = true;
+    assertThrows(IllegalStateException.class, () -> mPool.refill(() -> false));
+    assertThat(mRemoved).isEmpty();
+
+    KeyPool pool = newPool();
+
+    // Not the key handed out, nor the ready one
+    assertThat(mRemoved).containsExactly("key-3");
+    assertThat(pool.getReadyCount()).isEqualTo(1);
+    mProcessDies = false;
+    assertThat(pool.refill(() -> false)).isEqualTo(1);
+    assertThat(pool.take()).isEqualTo("key-2");
+    assertThat(pool.take()).isEqualTo("key-4");
+  }
+
+  @Test
+  public void getRefillStats_reportsLatency() {
+    mPool.configure(2, "key-", false, false, false);
+
+    mPool.refill(() -> false);
+
+    assertThat(mPool.getRefillStats())
+        .isEqualTo(
+            new long[] {2, 0, GENERATION_MILLIS, GENERATION_MILLIS, GENERATION_MILLIS});
+  }
+
+  private KeyPool newPool() {
+    return new KeyPool(mPrefs, mGenerator, () -> mScheduledRefills++, () -> mNowMillis);
+  }
+}
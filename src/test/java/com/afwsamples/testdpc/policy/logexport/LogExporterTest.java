@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy.logexport;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.Build.VERSION_CODES;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = VERSION_CODES.R)
+public class LogExporterTest {
+
+  @Test
+  public void export_writesEveryChunkCompressed() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    long count = LogExporter.export(new FakeSource(3, 500), out, /* listener= */ null);
+
+    assertThat(count).isEqualTo(1500L);
+    List<String> lines = readLines(out.toByteArray());
+    assertThat(lines).hasSize(1500);
+    assertThat(lines.get(0)).isEqualTo("event 0");
+    assertThat(lines.get(1499)).isEqualTo("event 1499");
+  }
+
+  @Test
+  public void export_reportsProgress() throws Exception {
+    List<long[]> progress = new ArrayList<>();
+
+    LogExporter.export(
+        new FakeSource(5, LogExporter.PROGRESS_INTERVAL),
+        new ByteArrayOutputStream(),
+        (written, total) -> progress.add(new long[] {written, total}));
+
+    assertThat(progress).hasSize(6);
+    assertThat(progress.get(0)[0]).isEqualTo((long) LogExporter.PROGRESS_INTERVAL);
+    assertThat(progress.get(0)[1]).isEqualTo(5L * LogExporter.PROGRESS_INTERVAL);
+    long[] last = progress.get(progress.size() - 1);
+    assertThat(last[0]).isEqualTo(5L * LogExporter.PROGRESS_INTERVAL);
+    assertThat(last[1]).isEqualTo(last[0]);
+  }
+
+  @Test
+  public void export_emptySource_writesValidGzip() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    assertThat(LogExporter.export(new FakeSource(0, 0), out, /* listener= */ null)).isEqualTo(0L);
+
+    assertThat(readLines(out.toByteArray())).isEmpty();
+  }
+
+  private static List<String> readLines(byte[] gzipped) throws Exception {
+    List<String> lines = new ArrayList<>();
+    try (BufferedReader reader =
+        new BufferedReader(
+            new InputStreamReader(
+                new GZIPInputStream(new ByteArrayInputStream(gzipped)), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        lines.add(line);
+      }
+    }
+    return lines;
+  }
+
+  /** Writes {@code chunks} chunks of {@code chunkSize} numbered events. */
+  private static final class FakeSource implements LogExporter.Source {
+    private final int mChunks;
+    private final int mChunkSize;
+    private int mNext;
+
+    FakeSource(int chunks, int chunkSize) {
+      mChunks = chunks;
+      mChunkSize = chunkSize;
+    }
+
+    @Override
+    public long getEventCountEstimate() {
+      return (long) mChunks * mChunkSize;
+    }
+
+    @Override
+    public int writeNextChunk(Writer writer) throws IOException {
+      if (mNext == mChunks) {
+        return -1;
+      }
+      for (int i = 0; i < mChunkSize; i++) {
+        writer.write("event " + (mNext * mChunkSize + i) + "\n");
+      }
+      mNext++;
+      return mChunkSize;
+    }
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy.networklogs;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.Build.VERSION_CODES;
+import java.io.File;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = VERSION_CODES.R)
+public class NetworkLogPagerTest {
+
+  private static final int EVENT_COUNT = NetworkLogPager.PAGE_SIZE * 2 + 10;
+
+  @Rule public final TemporaryFolder mFolder = new TemporaryFolder();
+
+  private NetworkLogStore mStore;
+  private NetworkLogStore.Batch mBatch;
+
+  @Before
+  public void setUp() throws Exception {
+    mStore =
+        new NetworkLogStore(
+            new File(mFolder.getRoot(), NetworkLogStore.DIR),
+            NetworkLogStore.DEFAULT_MAX_SEGMENT_BYTES);
+    List<NetworkLogRecord> records = new ArrayList<>(EVENT_COUNT);
+    for (int i = 0; i < EVENT_COUNT; i++) {
+      if (i % 2 == 0) {
+        records.add(
+            NetworkLogRecord.dns(
+                i,
+                i,
+                "com.example.app" + (i % 5),
+                "host" + i + ".example.com",
+                Collections.singletonList(InetAddress.getByName("192.0.2.1")),
+                1));
+      } else {
+        records.add(
+            NetworkLogRecord.connect(
+                i, i, "com.example.app" + (i % 5), InetAddress.getByName("198.51.100.1"), 443));
+      }
+    }
+    mBatch = mStore.append(1, records);
+  }
+
+  @Test
+  public void unfiltered_pagesThroughWholeBatch() throws Exception {
+    NetworkLogPager pager = NetworkLogPager.create(mStore, mBatch, /* filter= */ "");
+
+    assertThat(pager.isFiltered()).isFalse();
+    assertThat(pager.getCount()).isEqualTo(EVENT_COUNT);
+    assertThat(pager.getPageCount()).isEqualTo(3);
+    assertThat(pager.getLoadedPage(2)).isNull();
+    assertThat(pager.loadPage(2)).hasSize(10);
+    assertThat(pager.loadPage(1).get(0).id).isEqualTo(NetworkLogPager.PAGE_SIZE);
+    assertThat(pager.getLoadedPage(2)).isNotNull();
+  }
+
+  @Test
+  public void filterByPackage_returnsOnlyMatches() throws Exception {
+    NetworkLogPager pager = NetworkLogPager.create(mStore, mBatch, "APP3");
+
+    List<Long> ids = new ArrayList<>();
+    for (int page = 0; page < pager.getPageCount(); page++) {
+      for (NetworkLogRecord record : pager.loadPage(page)) {
+        assertThat(record.packageName).isEqualTo("com.example.app3");
+        ids.add(record.id);
+      }
+    }
+    assertThat(ids).hasSize(pager.getCount());
+    assertThat(ids).isInOrder();
+    assertThat(ids.get(0)).isEqualTo(3L);
+  }
+
+  @Test
+  public void filterByHost_matchesHostnamesAndAddresses() throws Exception {
+    assertThat(NetworkLogPager.create(mStore, mBatch, "host42.").getCount()).isEqualTo(1);
+    assertThat(NetworkLogPager.create(mStore, mBatch, "198.51.100.1").getCount())
+        .isEqualTo(EVENT_COUNT / 2);
+  }
+}
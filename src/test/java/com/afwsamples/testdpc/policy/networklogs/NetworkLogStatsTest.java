@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy.networklogs;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.Build.VERSION_CODES;
+import java.io.File;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = VERSION_CODES.R)
+public class NetworkLogStatsTest {
+
+  private static final long START = 1_000 * NetworkLogStats.BUCKET_MILLIS;
+
+  @Rule public final TemporaryFolder mFolder = new TemporaryFolder();
+
+  private NetworkLogStore mStore;
+  private File mStatsDir;
+
+  @Before
+  public void setUp() {
+    mStore =
+        new NetworkLogStore(
+            new File(mFolder.getRoot(), NetworkLogStore.DIR),
+            NetworkLogStore.DEFAULT_MAX_SEGMENT_BYTES);
+    mStatsDir = new File(mFolder.getRoot(), NetworkLogStats.DIR);
+  }
+
+  @Test
+  public void add_countsByPackageAndDomain() throws Exception {
+    NetworkLogStats stats = new NetworkLogStats(mStore, mStatsDir);
+    List<NetworkLogRecord> records =
+        Arrays.asList(
+            NetworkLogRecord.dns(
+                1,
+                START,
+                "com.example.a",
+                "example.com",
+                Collections.singletonList(InetAddress.getByName("192.0.2.1")),
+                1),
+            NetworkLogRecord.connect(
+                2, START, "com.example.a", InetAddress.getByName("192.0.2.1"), 443),
+            NetworkLogRecord.connect(
+                3, START, "com.example.b", InetAddress.getByName("192.0.2.1"), 80));
+
+    stats.add(mStore.append(1, records), records);
+
+    NetworkLogStats.Counters a = stats.get(NetworkLogStats.BY_PACKAGE, "com.example.a");
+    assertThat(a.getDnsLookups()).isEqualTo(1L);
+    assertThat(a.getConnects(443)).isEqualTo(1L);
+    assertThat(a.getDistinctPeers()).isEqualTo(1);
+    NetworkLogStats.Counters domain = stats.get(NetworkLogStats.BY_DOMAIN, "example.com");
+    assertThat(domain.getConnects()).isEqualTo(2L);
+    assertThat(domain.getPorts()).asList().containsExactly(80, 443).inOrder();
+    assertThat(domain.getDistinctPeers()).isEqualTo(2);
+  }
+
+  @Test
+  public void getTop_sortsAndLimits() throws Exception {
+    NetworkLogStats stats = new NetworkLogStats(mStore, mStatsDir);
+    addConnects(stats, "com.example.a", 1);
+    addConnects(stats, "com.example.b", 3);
+    addConnects(stats, "com.example.c", 2);
+
+    List<NetworkLogStats.Counters> top =
+        stats.getTop(NetworkLogStats.BY_PACKAGE, NetworkLogStats.SORT_BY_CONNECTS, 2);
+
+    assertThat(top).hasSize(2);
+    assertThat(top.get(0).key).isEqualTo("com.example.b");
+    assertThat(top.get(1).key).isEqualTo("com.example.c");
+  }
+
+  @Test
+  public void reload_onlyReadsNewBatches() throws Exception {
+    addConnects(new NetworkLogStats(mStore, mStatsDir), "com.example.a", 2);
+    // Saved while the stats weren't listening
+    mStore.append(
+        2,
+        Collections.singletonList(
+            NetworkLogRecord.connect(
+                3, START, "com.example.a", InetAddress.getByName("192.0.2.2"), 443)));
+
+    NetworkLogStats reloaded = new NetworkLogStats(mStore, mStatsDir);
+
+    assertThat(reloaded.get(NetworkLogStats.BY_PACKAGE, "com.example.a").getConnects())
+        .isEqualTo(3L);
+  }
+
+  @Test
+  public void eviction_subtractsEvictedBatches() throws Exception {
+    NetworkLogStore store =
+        new NetworkLogStore(
+            new File(mFolder.getRoot(), "small_" + NetworkLogStore.DIR),
+            /* maxSegmentBytes= */ 256,
+            /* maxBytes= */ 1024);
+    NetworkLogStats stats = new NetworkLogStats(store, mStatsDir);
+    for (int batch = 0; batch < 20; batch++) {
+      List<NetworkLogRecord> records =
+          Arrays.asList(
+              NetworkLogRecord.connect(
+                  batch, START, "com.example.a", InetAddress.getByName("192.0.2.1"), 443),
+              NetworkLogRecord.connect(
+                  batch, START, "com.example.a", InetAddress.getByName("192.0.2.1"), 80));
+      stats.add(store.append(batch, records), records);
+    }
+    long stored = 0;
+    for (NetworkLogStore.Batch batch : store.getBatches()) {
+      stored += batch.eventCount;
+    }
+
+    NetworkLogStats.Counters counters = stats.get(NetworkLogStats.BY_PACKAGE, "com.example.a");
+    NetworkLogStats.Counters reloaded =
+        new NetworkLogStats(store, mStatsDir).get(NetworkLogStats.BY_PACKAGE, "com.example.a");
+
+    assertThat(stored).isLessThan(40L);
+    assertThat(counters.getConnects()).isEqualTo(stored);
+    assertThat(counters.getConnects(443)).isEqualTo(stored / 2);
+    long end = NetworkLogStats.getBucket(START);
+    assertThat(counters.getRecentEvents(end, 1)).isEqualTo(stored);
+    assertThat(reloaded.getConnects()).isEqualTo(stored);
+  }
+
+  @Test
+  public void histogram_countsEventsPerHour() throws Exception {
+    NetworkLogStats stats = new NetworkLogStats(mStore, mStatsDir);
+    List<NetworkLogRecord> records =
+        Arrays.asList(
+            NetworkLogRecord.connect(1, START, "com.example.a", null, 443),
+            NetworkLogRecord.connect(
+                2, START + NetworkLogStats.BUCKET_MILLIS, "com.example.a", null, 443),
+            NetworkLogRecord.connect(
+                3, START + NetworkLogStats.BUCKET_MILLIS, "com.example.a", null, 443));
+    stats.add(mStore.append(1, records), records);
+
+    long end = NetworkLogStats.getBucket(START) + 2;
+    int[] histogram = stats.get(NetworkLogStats.BY_PACKAGE, "com.example.a").getHistogram(end);
+
+    int last = NetworkLogStats.BUCKETS - 1;
+    assertThat(new int[] {histogram[last - 2], histogram[last - 1], histogram[last]})
+        .isEqualTo(new int[] {1, 2, 0});
+  }
+
+  private void addConnects(NetworkLogStats stats, String packageName, int count)
+      throws Exception {
+    NetworkLogRecord[] records = new NetworkLogRecord[count];
+    for (int i = 0; i < count; i++) {
+      records[i] =
+          NetworkLogRecord.connect(i, START, packageName, InetAddress.getByName("192.0.2.2"), 443);
+    }
+    List<NetworkLogRecord> list = Arrays.asList(records);
+    stats.add(mStore.append(1, list), list);
+  }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy.networklogs;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import android.os.Build.VERSION_CODES;
+import com.afwsamples.testdpc.policy.logexport.LogExporter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = VERSION_CODES.R)
+public class NetworkLogStoreTest {
+
+  private static final long SMALL_SEGMENT_BYTES = 256;
+
+  @Rule public final TemporaryFolder mFolder = new TemporaryFolder();
+
+  @Test
+  public void readBatch_returnsAppendedRecords() throws Exception {
+    NetworkLogStore store = newStore(NetworkLogStore.DEFAULT_MAX_SEGMENT_BYTES);
+    List<NetworkLogRecord> first = createRecords(5);
+    List<NetworkLogRecord> second = createRecords(3);
+
+    store.append(1, first);
+    store.append(2, second);
+
+    assertThat(toStrings(store.readBatch(store.findBatch(1)))).isEqualTo(toStrings(first));
+    assertThat(toStrings(store.readBatch(store.findBatch(2)))).isEqualTo(toStrings(second));
+    assertThat(store.getLatestBatch().token).isEqualTo(2);
+  }
+
+  @Test
+  public void readBatch_page() throws Exception {
+    NetworkLogStore store = newStore(NetworkLogStore.DEFAULT_MAX_SEGMENT_BYTES);
+    List<NetworkLogRecord> records = createRecords(10);
+    NetworkLogStore.Batch batch = store.append(42, records);
+
+    assertThat(toStrings(store.readBatch(batch, 4, 3)))
+        .isEqualTo(toStrings(records.subList(4, 7)));
+  }
+
+  @Test
+  public void readBatch_fromIndexedOffsets() throws Exception {
+    List<NetworkLogRecord> records = createRecords(25);
+    NetworkLogStore.Batch batch =
+        newStore(NetworkLogStore.DEFAULT_MAX_SEGMENT_BYTES).append(7, records);
+
+    NetworkLogStore reopened = newStore(NetworkLogStore.DEFAULT_MAX_SEGMENT_BYTES);
+    long[] offsets = reopened.indexBatch(batch, 4, /* visitor= */ null);
+    // A store that hasn't read the batch yet, so it has to find the strings before the offset
+    NetworkLogStore fresh = newStore(NetworkLogStore.DEFAULT_MAX_SEGMENT_BYTES);
+
+    assertThat(offsets).hasLength(7);
+    assertThat(toStrings(fresh.readBatch(batch, 21, 10, offsets, 4)))
+        .isEqualTo(toStrings(records.subList(21, 25)));
+    assertThat(toStrings(reopened.readBatch(batch, 13, 5, offsets, 4)))
+        .isEqualTo(toStrings(records.subList(13, 18)));
+  }
+
+  @Test
+  public void append_rotatesSegments() throws Exception {
+    NetworkLogStore store = newStore(SMALL_SEGMENT_BYTES);
+
+    store.append(1, createRecords(10));
+    store.append(2, createRecords(10));
+
+    assertThat(store.findBatch(2).segment).isGreaterThan(store.findBatch(1).segment);
+  }
+
+  @Test
+  public void append_afterTornTail_truncatesIt() throws Exception {
+    NetworkLogStore store = newStore(NetworkLogStore.DEFAULT_MAX_SEGMENT_BYTES);
+    List<NetworkLogRecord> records = createRecords(4);
+    NetworkLogStore.Batch batch = store.append(1, records);
+    try (FileOutputStream out =
+        new FileOutputStream(store.getSegmentFile(batch.segment), /* append= */ true)) {
+      out.write(new byte[] {2, 0, 0});
+    }
+
+    NetworkLogStore reopened = newStore(NetworkLogStore.DEFAULT_MAX_SEGMENT_BYTES);
+    reopened.append(2, records);
+
+    assertThat(toStrings(reopened.readBatch(reopened.findBatch(2)))).isEqualTo(toStrings(records));
+  }
+
+  @Test
+  public void getBatches_withoutIndex_rebuildsIt() throws Exception {
+    NetworkLogStore store = newStore(SMALL_SEGMENT_BYTES);
+    store.append(1, createRecords(10));
+    store.append(2, createRecords(10));
+    assertThat(new File(getDir(), "index").delete()).isTrue();
+
+    NetworkLogStore reopened = newStore(SMALL_SEGMENT_BYTES);
+
+    assertThat(reopened.getBatches()).hasSize(2);
+    assertThat(toStrings(reopened.readBatch(reopened.findBatch(2))))
+        .isEqualTo(toStrings(createRecords(10)));
+  }
+
+  @Test
+  public void getBatches_byTimeRange() throws Exception {
+    NetworkLogStore store = newStore(SMALL_SEGMENT_BYTES);
+    store.append(1, createRecords(10));
+    store.append(2, createRecords(20));
+
+    assertThat(store.findBatch(2).minTimestamp).isEqualTo(1000);
+    assertThat(store.findBatch(2).maxTimestamp).isEqualTo(1019);
+    assertThat(store.getBatches(1015, 2000)).hasSize(1);
+    assertThat(store.getBatches(1015, 2000).get(0).token).isEqualTo(2);
+    assertThat(store.getBatches(0, 1000)).hasSize(2);
+    assertThat(store.getBatches(2000, 3000)).isEmpty();
+  }
+
+  @Test
+  public void getBatches_withoutIndex_rebuildsTimeRanges() throws Exception {
+    NetworkLogStore store = newStore(SMALL_SEGMENT_BYTES);
+    store.append(1, createRecords(10));
+    store.append(2, createRecords(0));
+    assertThat(new File(getDir(), "index").delete()).isTrue();
+
+    NetworkLogStore reopened = newStore(SMALL_SEGMENT_BYTES);
+
+    assertThat(reopened.findBatch(1).minTimestamp).isEqualTo(1000);
+    assertThat(reopened.findBatch(1).maxTimestamp).isEqualTo(1009);
+    assertThat(reopened.findBatch(2).minTimestamp).isEqualTo(reopened.findBatch(2).savedTime);
+  }
+
+  @Test
+  public void append_overBudget_evictsOldestBatches() throws Exception {
+    NetworkLogStore store =
+        new NetworkLogStore(getDir(), SMALL_SEGMENT_BYTES, /* maxBytes= */ 4 * SMALL_SEGMENT_BYTES);
+
+    for (int token = 1; token <= 20; token++) {
+      store.append(token, createRecords(10));
+    }
+
+    assertThat(store.findBatch(1)).isNull();
+    assertThat(store.getLatestBatch().token).isEqualTo(20);
+    assertThat(store.getBatches().size()).isLessThan(20);
+    assertThat(store.getTotalBytes()).isAtMost(5 * SMALL_SEGMENT_BYTES);
+    for (NetworkLogStore.Batch batch : store.getBatches()) {
+      assertThat(toStrings(store.readBatch(batch))).isEqualTo(toStrings(createRecords(10)));
+    }
+  }
+
+  @Test
+  public void setMaxBytes_evictsAllButCurrentSegment() throws Exception {
+    NetworkLogStore store = newStore(SMALL_SEGMENT_BYTES);
+    for (int token = 1; token <= 5; token++) {
+      store.append(token, createRecords(10));
+    }
+
+    store.setMaxBytes(1);
+
+    NetworkLogStore reopened = newStore(SMALL_SEGMENT_BYTES);
+    assertThat(reopened.getBatches()).hasSize(1);
+    assertThat(reopened.getLatestBatch().token).isEqualTo(5);
+  }
+
+  @Test
+  public void export_batchEvictedDuringExport_fails() throws Exception {
+    NetworkLogStore store = newStore(SMALL_SEGMENT_BYTES);
+    for (int token = 1; token <= 3; token++) {
+      store.append(token, createRecords(10));
+    }
+    LogExporter.Source source = LogExporter.networkLogs(store, 0, Long.MAX_VALUE);
+    StringWriter out = new StringWriter();
+    assertThat(source.writeNextChunk(out)).isEqualTo(10);
+
+    store.setMaxBytes(1);
+
+    assertThat(store.findBatch(2)).isNull();
+    assertThrows(IOException.class, () -> source.writeNextChunk(out));
+  }
+
+  private NetworkLogStore newStore(long maxSegmentBytes) {
+    return new NetworkLogStore(getDir(), maxSegmentBytes);
+  }
+
+  private File getDir() {
+    return new File(mFolder.getRoot(), NetworkLogStore.DIR);
+  }
+
+  private static List<NetworkLogRecord> createRecords(int count) throws Exception {
+    List<NetworkLogRecord> records = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      String packageName = "com.example.app" + (i % 3);
+      if (i % 2 == 0) {
+        records.add(
+            NetworkLogRecord.dns(
+                i,
+                1000 + i,
+                packageName,
+                "host" + i + ".example.com",
+                Arrays.asList(
+                    InetAddress.getByName("192.0.2." + i), InetAddress.getByName("2001:db8::1")),
+                2));
+      } else {
+        records.add(
+            NetworkLogRecord.connect(
+                i, 1000 + i, packageName, InetAddress.getByName("198.51.100." + i), 443));
+      }
+    }
+    return records;
+  }
+
+  private static List<String> toStrings(List<NetworkLogRecord> records) {
+    List<String> strings = new ArrayList<>(records.size());
+    for (NetworkLogRecord record : records) {
+      strings.add(record.toString());
+    }
+    return strings;
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy.securitylogs;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.app.admin.SecurityLog;
+import android.os.Build.VERSION_CODES;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = VERSION_CODES.R)
+public class SecurityEventAnomalyDetectorTest {
+
+  private static final long START_MILLIS = 1_600_000_000_000L;
+
+  private static final SecurityEventAnomalyDetector.Rule ADB_RULE =
+      new SecurityEventAnomalyDetector.Rule(
+          "adb",
+          SecurityLog.TAG_ADB_SHELL_CMD,
+          SecurityLogQuery.NO_DATA_INDEX,
+          /* dataValue= */ null,
+          /* threshold= */ 5,
+          /* windowSeconds= */ 60);
+
+  private static final SecurityEventAnomalyDetector.Rule AUTH_FAILURE_RULE =
+      new SecurityEventAnomalyDetector.Rule(
+          "auth",
+          SecurityLog.TAG_KEYGUARD_DISMISS_AUTH_ATTEMPT,
+          /* dataIndex= */ 0,
+          /* dataValue= */ "0",
+          /* threshold= */ 3,
+          /* windowSeconds= */ 60);
+
+  @Test
+  public void onEvents_burst_raisesOneAlert() {
+    SecurityEventAnomalyDetector detector = newDetector(ADB_RULE);
+
+    List<SecurityEventAnomalyDetector.Alert> alerts =
+        detector.onEvents(
+            createEvents(SecurityLog.TAG_ADB_SHELL_CMD, "ls", 10, /* stepSeconds= */ 1));
+
+    assertThat(alerts).hasSize(1);
+    assertThat(alerts.get(0).rule).isSameInstanceAs(ADB_RULE);
+    assertThat(alerts.get(0).count).isEqualTo(5);
+    assertThat(alerts.get(0).timeMillis).isEqualTo(START_MILLIS + 4000);
+  }
+
+  @Test
+  public void onEvents_spreadOverWindows_raisesNoAlert() {
+    SecurityEventAnomalyDetector detector = newDetector(ADB_RULE);
+
+    assertThat(
+            detector.onEvents(
+                createEvents(SecurityLog.TAG_ADB_SHELL_CMD, "ls", 20, /* stepSeconds= */ 20)))
+        .isEmpty();
+  }
+
+  @Test
+  public void onEvents_burstAfterQuietWindow_raisesAnotherAlert() {
+    SecurityEventAnomalyDetector detector = newDetector(ADB_RULE);
+    detector.onEvents(createEvents(SecurityLog.TAG_ADB_SHELL_CMD, "ls", 5, /* stepSeconds= */ 1));
+
+    List<SecurityLogRecord> later = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      later.add(createEvent(SecurityLog.TAG_ADB_SHELL_CMD, "ls", START_MILLIS + 300_000 + i));
+    }
+
+    assertThat(detector.onEvents(later)).hasSize(1);
+  }
+
+  @Test
+  public void onEvents_onlyCountsMatchingData() {
+    SecurityEventAnomalyDetector detector = newDetector(AUTH_FAILURE_RULE);
+    List<SecurityLogRecord> events = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      // Successful attempts, then two failures
+      events.add(createAuthAttempt(/* success= */ true, START_MILLIS + i));
+    }
+    events.add(createAuthAttempt(/* success= */ false, START_MILLIS + 10));
+    events.add(createAuthAttempt(/* success= */ false, START_MILLIS + 11));
+    assertThat(detector.onEvents(events)).isEmpty();
+
+    assertThat(detector.onEvent(createAuthAttempt(/* success= */ false, START_MILLIS + 12)))
+        .hasSize(1);
+  }
+
+  @Test
+  public void onEvents_disabledRule_raisesNoAlert() {
+    SecurityEventAnomalyDetector detector =
+        newDetector(ADB_RULE.withLimits(/* threshold= */ 0, /* windowSeconds= */ 60));
+
+    assertThat(
+            detector.onEvents(
+                createEvents(SecurityLog.TAG_ADB_SHELL_CMD, "ls", 10, /* stepSeconds= */ 1)))
+        .isEmpty();
+  }
+
+  private static SecurityEventAnomalyDetector newDetector(
+      SecurityEventAnomalyDetector.Rule... rules) {
+    return new SecurityEventAnomalyDetector(Arrays.asList(rules));
+  }
+
+  private static List<SecurityLogRecord> createEvents(
+      int tag, Object data, int count, int stepSeconds) {
+    List<SecurityLogRecord> events = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      long timeMillis = START_MILLIS + TimeUnit.SECONDS.toMillis((long) i * stepSeconds);
+      events.add(createEvent(tag, data, timeMillis));
+    }
+    return events;
+  }
+
+  private static SecurityLogRecord createAuthAttempt(boolean success, long timeMillis) {
+    return createEvent(
+        SecurityLog.TAG_KEYGUARD_DISMISS_AUTH_ATTEMPT,
+        new Object[] {success ? 1 : 0, /* method strength= */ 1},
+        timeMillis);
+  }
+
+  private static SecurityLogRecord createEvent(int tag, Object data, long timeMillis) {
+    return SecurityLogRecord.create(
+        SecurityLogRecord.NO_ID, tag, TimeUnit.MILLISECONDS.toNanos(timeMillis), data);
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy.securitylogs;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.app.admin.SecurityLog;
+import android.os.Build.VERSION_CODES;
+import com.afwsamples.testdpc.policy.logexport.LogExporter;
+import java.io.File;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = VERSION_CODES.R)
+public class SecurityLogArchiveTest {
+
+  private static final int SEGMENT_EVENTS = 10;
+
+  @Rule public final TemporaryFolder mFolder = new TemporaryFolder();
+
+  @Test
+  public void ingest_dropsDuplicates() throws Exception {
+    SecurityLogArchive archive = newArchive(SecurityLogArchive.DEFAULT_MAX_BYTES);
+
+    assertThat(archive.ingest(createRecords(0, 25))).isEqualTo(25);
+    assertThat(archive.ingest(createRecords(20, 10))).isEqualTo(5);
+
+    assertThat(getIds(newArchive(SecurityLogArchive.DEFAULT_MAX_BYTES).readAll()))
+        .isEqualTo(getIds(createRecords(0, 30)));
+  }
+
+  @Test
+  public void ingest_olderEvents_keepsTimeOrder() throws Exception {
+    SecurityLogArchive archive = newArchive(SecurityLogArchive.DEFAULT_MAX_BYTES);
+    archive.ingest(createRecords(10, 20));
+
+    archive.ingest(createRecords(0, 15));
+
+    List<SecurityLogRecord> records = archive.readAll();
+    assertThat(getIds(records)).isEqualTo(getIds(createRecords(0, 30)));
+    List<SecurityLogArchive.Segment> segments = archive.getSegments();
+    for (int i = 1; i < segments.size(); i++) {
+      assertThat(segments.get(i).minTimeNanos).isGreaterThan(segments.get(i - 1).maxTimeNanos);
+    }
+  }
+
+  @Test
+  public void read_timeRange() throws Exception {
+    SecurityLogArchive archive = newArchive(SecurityLogArchive.DEFAULT_MAX_BYTES);
+    archive.ingest(createRecords(0, 50));
+
+    assertThat(getIds(archive.read(getTime(12), getTime(17))))
+        .isEqualTo(getIds(createRecords(12, 6)));
+  }
+
+  @Test
+  public void ingest_overBudget_evictsOldestSegments() throws Exception {
+    SecurityLogArchive archive = newArchive(/* maxBytes= */ 1);
+    archive.ingest(createRecords(0, 35));
+
+    List<SecurityLogRecord> records = archive.readAll();
+    assertThat(records).hasSize(5);
+    assertThat(records.get(0).id).isEqualTo(30L);
+  }
+
+  @Test
+  public void preRebootMerge_isPersisted() throws Exception {
+    SecurityLogArchive archive = newArchive(SecurityLogArchive.DEFAULT_MAX_BYTES);
+    assertThat(archive.needsPreRebootMerge(7)).isTrue();
+
+    archive.setPreRebootMerged(7);
+
+    SecurityLogArchive reopened = newArchive(SecurityLogArchive.DEFAULT_MAX_BYTES);
+    assertThat(reopened.needsPreRebootMerge(7)).isFalse();
+    assertThat(reopened.needsPreRebootMerge(8)).isTrue();
+  }
+
+  @Test
+  public void export_segmentReplacedDuringExport_exportsMergedEvents() throws Exception {
+    SecurityLogArchive archive = newArchive(SecurityLogArchive.DEFAULT_MAX_BYTES);
+    archive.ingest(createRecords(0, 15));
+    LogExporter.Source source = LogExporter.securityLogs(archive, 0, Long.MAX_VALUE);
+    StringWriter out = new StringWriter();
+    assertThat(source.writeNextChunk(out)).isEqualTo(SEGMENT_EVENTS);
+
+    // Rewrites the last segment, which wasn't full
+    archive.ingest(createRecords(15, 5));
+    int written = SEGMENT_EVENTS;
+    int count;
+    while ((count = source.writeNextChunk(out)) >= 0) {
+      written += count;
+    }
+
+    assertThat(written).isEqualTo(20);
+    String[] lines = out.toString().split("\n");
+    assertThat(lines).hasLength(20);
+    for (int i = 0; i < lines.length; i++) {
+      assertThat(lines[i]).contains("com.example.app" + i + " ");
+    }
+  }
+
+  private SecurityLogArchive newArchive(long maxBytes) {
+    return new SecurityLogArchive(
+        new File(mFolder.getRoot(), SecurityLogArchive.DIR), maxBytes, SEGMENT_EVENTS);
+  }
+
+  private static long getTime(int i) {
+    return 1_000_000L * (i + 1);
+  }
+
+  private static List<SecurityLogRecord> createRecords(int from, int count) {
+    List<SecurityLogRecord> records = new ArrayList<>(count);
+    for (int i = from; i < from + count; i++) {
+      records.add(
+          SecurityLogRecord.create(
+              i,
+              SecurityLog.TAG_APP_PROCESS_START,
+              getTime(i),
+              new Object[] {"com.example.app" + i, 1000L + i, 10000 + i, 10000 + i, "hash"}));
+    }
+    return records;
+  }
+
+  private static List<Long> getIds(List<SecurityLogRecord> records) {
+    List<Long> ids = new ArrayList<>(records.size());
+    for (SecurityLogRecord record : records) {
+      ids.add(record.id);
+    }
+    return ids;
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy.securitylogs;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.app.admin.SecurityLog;
+import android.os.Build.VERSION_CODES;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = VERSION_CODES.R)
+public class SecurityLogFilterTest {
+
+  private static final Object[] APP_START_DATA = {"com.example.app", 1000L, 10123, 42, "abc"};
+
+  @Test
+  public void getTagName() {
+    assertThat(SecurityEventFormatter.getTagName(SecurityLog.TAG_OS_STARTUP))
+        .isEqualTo("OS_STARTUP");
+    assertThat(SecurityEventFormatter.getTagName(-42)).isEqualTo("UNKNOWN(-42)");
+  }
+
+  @Test
+  public void emptyFilter_matchesEverything() {
+    SecurityLogFilter filter = new SecurityLogFilter(SecurityLogFilter.ANY_TAG, 0, " ");
+
+    assertThat(filter.isEmpty()).isTrue();
+    assertThat(filter.matches(SecurityLog.TAG_OS_STARTUP, 1, null)).isTrue();
+  }
+
+  @Test
+  public void tagAndTime() {
+    SecurityLogFilter filter =
+        new SecurityLogFilter(SecurityLog.TAG_APP_PROCESS_START, 100, /* text= */ null);
+
+    assertThat(filter.matches(SecurityLog.TAG_APP_PROCESS_START, 100, APP_START_DATA)).isTrue();
+    assertThat(filter.matches(SecurityLog.TAG_APP_PROCESS_START, 99, APP_START_DATA)).isFalse();
+    assertThat(filter.matches(SecurityLog.TAG_OS_STARTUP, 100, APP_START_DATA)).isFalse();
+  }
+
+  @Test
+  public void text_matchesTagNameOrData() {
+    assertThat(new SecurityLogFilter(SecurityLogFilter.ANY_TAG, 0, "process_start")
+            .matches(SecurityLog.TAG_APP_PROCESS_START, 1, APP_START_DATA))
+        .isTrue();
+    assertThat(new SecurityLogFilter(SecurityLogFilter.ANY_TAG, 0, "EXAMPLE")
+            .matches(SecurityLog.TAG_APP_PROCESS_START, 1, APP_START_DATA))
+        .isTrue();
+    assertThat(new SecurityLogFilter(SecurityLogFilter.ANY_TAG, 0, "10123")
+            .matches(SecurityLog.TAG_APP_PROCESS_START, 1, APP_START_DATA))
+        .isTrue();
+    assertThat(new SecurityLogFilter(SecurityLogFilter.ANY_TAG, 0, "other")
+            .matches(SecurityLog.TAG_APP_PROCESS_START, 1, APP_START_DATA))
+        .isFalse();
+  }
+}
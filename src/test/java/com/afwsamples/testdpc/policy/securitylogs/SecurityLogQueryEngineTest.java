@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy.securitylogs;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.app.admin.SecurityLog;
+import android.os.Build.VERSION_CODES;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = VERSION_CODES.R)
+public class SecurityLogQueryEngineTest {
+
+  private static final int SEGMENT_EVENTS = 10;
+
+  @Rule public final TemporaryFolder mFolder = new TemporaryFolder();
+
+  private SecurityLogArchive mArchive;
+  private SecurityLogQueryEngine mEngine;
+
+  @Before
+  public void setUp() throws Exception {
+    mArchive =
+        new SecurityLogArchive(
+            new File(mFolder.getRoot(), SecurityLogArchive.DIR),
+            SecurityLogArchive.DEFAULT_MAX_BYTES,
+            SEGMENT_EVENTS);
+    mEngine = new SecurityLogQueryEngine(mArchive);
+  }
+
+  @Test
+  public void execute_tag_skipsSegmentsWithoutTag() throws Exception {
+    mArchive.ingest(createRecords(0, 30, SecurityLog.TAG_APP_PROCESS_START));
+    mArchive.ingest(createRecords(30, 10, SecurityLog.TAG_KEYGUARD_SECURED));
+
+    SecurityLogQueryEngine.Result result =
+        mEngine.execute(
+            SecurityLogQuery.builder().addTag(SecurityLog.TAG_KEYGUARD_SECURED).build());
+
+    assertThat(getIds(result.records)).isEqualTo(range(30, 40));
+    assertThat(result.segmentsRead).isEqualTo(1);
+    assertThat(result.segmentsSkipped).isEqualTo(3);
+  }
+
+  @Test
+  public void execute_timeRangeDescendingWithLimit_stopsAtLimit() throws Exception {
+    mArchive.ingest(createRecords(0, 30, SecurityLog.TAG_APP_PROCESS_START));
+
+    SecurityLogQueryEngine.Result result =
+        mEngine.execute(
+            SecurityLogQuery.builder()
+                .setTimeRange(getTime(12), getTime(27))
+                .setDescending(true)
+                .setLimit(5)
+                .build());
+
+    assertThat(getIds(result.records)).containsExactly(27L, 26L, 25L, 24L, 23L).inOrder();
+    assertThat(result.segmentsRead).isEqualTo(1);
+    assertThat(result.eventsExamined).isEqualTo(5);
+  }
+
+  @Test
+  public void execute_dataEquals() throws Exception {
+    mArchive.ingest(createRecords(0, 30, SecurityLog.TAG_APP_PROCESS_START));
+
+    SecurityLogQueryEngine.Result result =
+        mEngine.execute(
+            SecurityLogQuery.builder()
+                .addTag(SecurityLog.TAG_APP_PROCESS_START)
+                .setDataEquals(0, "com.example.app1")
+                .build());
+
+    assertThat(getIds(result.records))
+        .containsExactly(1L, 4L, 7L, 10L, 13L, 16L, 19L, 22L, 25L, 28L)
+        .inOrder();
+  }
+
+  @Test
+  public void execute_severalTags_keepsTimeOrder() throws Exception {
+    List<SecurityLogRecord> records = new ArrayList<>();
+    records.addAll(createRecords(0, 5, SecurityLog.TAG_APP_PROCESS_START));
+    records.addAll(createRecords(5, 5, SecurityLog.TAG_KEYGUARD_SECURED));
+    records.addAll(createRecords(10, 5, SecurityLog.TAG_APP_PROCESS_START));
+    records.addAll(createRecords(15, 5, SecurityLog.TAG_OS_STARTUP));
+    mArchive.ingest(records);
+
+    SecurityLogQueryEngine.Result result =
+        mEngine.execute(
+            SecurityLogQuery.builder()
+                .addTag(SecurityLog.TAG_OS_STARTUP)
+                .addTag(SecurityLog.TAG_KEYGUARD_SECURED)
+                .setTimeRange(getTime(7), getTime(17))
+                .build());
+
+    assertThat(getIds(result.records)).containsExactly(7L, 8L, 9L, 15L, 16L, 17L).inOrder();
+    assertThat(result.eventsExamined).isEqualTo(6);
+  }
+
+  @Test
+  public void execute_afterIngest_seesNewEvents() throws Exception {
+    mArchive.ingest(createRecords(0, 5, SecurityLog.TAG_APP_PROCESS_START));
+    SecurityLogQuery query = SecurityLogQuery.builder().build();
+    assertThat(mEngine.execute(query).records).hasSize(5);
+
+    mArchive.ingest(createRecords(5, 3, SecurityLog.TAG_APP_PROCESS_START));
+
+    assertThat(getIds(mEngine.execute(query).records)).isEqualTo(range(0, 8));
+  }
+
+  private static long getTime(int i) {
+    return 1_000_000L * (i + 1);
+  }
+
+  private static List<SecurityLogRecord> createRecords(int from, int count, int tag) {
+    List<SecurityLogRecord> records = new ArrayList<>(count);
+    for (int i = from; i < from + count; i++) {
+      records.add(
+          SecurityLogRecord.create(
+              i,
+              tag,
+              getTime(i),
+              new Object[] {"com.example.app" + (i % 3), 1000L + i, 10000 + i, 10000 + i, "hash"}));
+    }
+    return records;
+  }
+
+  private static List<Long> range(long from, long to) {
+    List<Long> ids = new ArrayList<>();
+    for (long id = from; id < to; id++) {
+      ids.add(id);
+    }
+    return ids;
+  }
+
+  private static List<Long> getIds(List<SecurityLogRecord> records) {
+    List<Long> ids = new ArrayList<>(records.size());
+    for (SecurityLogRecord record : records) {
+      ids.add(record.id);
+    }
+    return ids;
+  }
+}
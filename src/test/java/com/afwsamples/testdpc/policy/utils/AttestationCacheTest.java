@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy.utils;
+
+import static com.afwsamples.testdpc.policy.utils.TestCertificates.authorizationList;
+import static com.afwsamples.testdpc.policy.utils.TestCertificates.keyDescription;
+import static com.afwsamples.testdpc.policy.utils.TestCertificates.rootOfTrust;
+import static com.afwsamples.testdpc.policy.utils.TestCertificates.tagged;
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import android.os.Build.VERSION_CODES;
+import java.io.ByteArrayInputStream;
+import java.security.KeyPair;
+import java.security.cert.CertificateFactory;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.DERSet;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = VERSION_CODES.R)
+public class AttestationCacheTest {
+
+  private final AttestationCache mCache = new AttestationCache(/* maxSize= */ 2);
+  private KeyPair mKeyPair;
+
+  @Before
+  public void setUp() throws Exception {
+    mKeyPair = TestCertificates.generateKeyPair();
+  }
+
+  @Test
+  public void get_sameCertificate_parsedOnce() throws Exception {
+    X509Certificate certificate = attestationCertificate();
+
+    Attestation first = mCache.get(certificate);
+    Attestation second = mCache.get(certificate);
+
+    assertThat(second).isSameInstanceAs(first);
+    assertThat(mCache.getStats()).isEqualTo(new long[] {1, 1});
+  }
+
+  @Test
+  public void get_hit_keepsDecodedValues() throws Exception {
+    X509Certificate certificate =
+        TestCertificates.certificate(
+            mKeyPair,
+            "leaf",
+            mKeyPair,
+            "leaf",
+            keyDescription(
+                Attestation.KM_SECURITY_LEVEL_TRUSTED_ENVIRONMENT,
+                authorizationList(tagged(701, new ASN1Integer(1640995200000L))),
+                authorizationList(
+                    tagged(1, new DERSet(new ASN1Integer(2))),
+                    tagged(3, new ASN1Integer(256)),
+                    tagged(503, DERNull.INSTANCE),
+                    tagged(704, rootOfTrust(/* deviceLocked= */ true, 0)),
+                    tagged(705, new ASN1Integer(110000)))));
+    Attestation attestation = mCache.get(certificate);
+    AuthorizationList teeEnforced = attestation.getTeeEnforced();
+    assertThat(teeEnforced.isDecoded(704)).isFalse();
+    String first = readAll(attestation);
+
+    Attestation hit = mCache.get(certificate);
+
+    assertThat(hit).isSameInstanceAs(attestation);
+    assertThat(hit.getTeeEnforced().isDecoded(704)).isTrue();
+    assertThat(hit.getTeeEnforced().isDecoded(705)).isTrue();
+    assertThat(hit.getTeeEnforced().getRootOfTrust())
+        .isSameInstanceAs(teeEnforced.getRootOfTrust());
+    assertThat(readAll(hit)).isEqualTo(first);
+  }
+
+  @Test
+  public void get_equalCertificate_hits() throws Exception {
+    X509Certificate certificate = attestationCertificate();
+    Attestation first = mCache.get(certificate);
+
+    // Another instance with the same encoding, as returned by another call to the keystore
+    X509Certificate copy =
+        (X509Certificate)
+            CertificateFactory.getInstance("X.509")
+                .generateCertificate(new ByteArrayInputStream(certificate.getEncoded()));
+
+    assertThat(mCache.get(copy)).isSameInstanceAs(first);
+  }
+
+  @Test
+  public void get_overMaxSize_evictsLeastRecentlyUsed() throws Exception {
+    X509Certificate certificate1 = attestationCertificate();
+    X509Certificate certificate2 = attestationCertificate();
+    X509Certificate certificate3 = attestationCertificate();
+    Attestation attestation1 = mCache.get(certificate1);
+    mCache.get(certificate2);
+    mCache.get(certificate1);
+
+    mCache.get(certificate3);
+
+    assertThat(mCache.size()).isEqualTo(2);
+    assertThat(mCache.get(certificate1)).isSameInstanceAs(attestation1);
+    // certificate2 was evicted, so it's parsed again
+    assertThat(mCache.getStats()).isEqualTo(new long[] {2, 3});
+    mCache.get(certificate2);
+    assertThat(mCache.getStats()).isEqualTo(new long[] {2, 4});
+  }
+
+  @Test
+  public void get_noAttestationExtension_throwsAndIsNotCached() throws Exception {
+    X509Certificate certificate =
+        TestCertificates.certificate(
+            mKeyPair, "leaf", mKeyPair, "leaf", /* keyDescription= */ null);
+
+    assertThrows(CertificateParsingException.class, () -> mCache.get(certificate));
+    assertThat(mCache.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void getKey_isSha256OfEncoding() throws Exception {
+    X509Certificate certificate = attestationCertificate();
+
+    assertThat(AttestationCache.getKey(certificate)).hasLength(64);
+    assertThat(AttestationCache.getKey(certificate))
+        .isNotEqualTo(AttestationCache.getKey(attestationCertificate()));
+  }
+
+  /** Calls every getter that decodes a field lazily. */
+  private static String readAll(Attestation attestation) {
+    return attestation.toString()
+        + attestation.getSoftwareEnforced().getCreationDateTime()
+        + attestation.getTeeEnforced().getPurposes()
+        + attestation.getTeeEnforced().getRootOfTrust();
+  }
+
+  private X509Certificate attestationCertificate() throws Exception {
+    return TestCertificates.certificate(
+        mKeyPair,
+        "leaf",
+        mKeyPair,
+        "leaf",
+        keyDescription(
+            Attestation.KM_SECURITY_LEVEL_TRUSTED_ENVIRONMENT,
+            authorizationList(),
+            authorizationList()));
+  }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy.utils;
+
+import static com.afwsamples.testdpc.policy.utils.TestCertificates.authorizationList;
+import static com.afwsamples.testdpc.policy.utils.TestCertificates.keyDescription;
+import static com.afwsamples.testdpc.policy.utils.TestCertificates.rootOfTrust;
+import static com.afwsamples.testdpc.policy.utils.TestCertificates.tagged;
+
+import android.os.Build.VERSION_CODES;
+import com.google.common.io.BaseEncoding;
+import com.google.common.truth.Expect;
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.DERSet;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * Checks that the lazy parser decodes the same values as the {@link
+ * com.afwsamples.testdpc.policy.utils.eager eager one} it replaced.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = VERSION_CODES.R)
+public class AttestationEquivalenceTest {
+
+  /**
+   * Leaf of the Android Key sample of the FIDO Alliance conformance tools: a software-backed key
+   * of the {@code com.android.keystore.androidkeystoredemo} app, with an attestation application
+   * ID.
+   */
+  private static final String FIDO_CONFORMANCE_SAMPLE =
+      "MIIDADCCAqegAwIBAgIBATAKBggqhkjOPQQDAjCBzjFFMEMGA1UEAww8RkFLRSBBbmRyb2lkIEtleXN0b3Jl"
+          + "IFNvZnR3YXJlIEF0dGVzdGF0aW9uIEludGVybWVkaWF0ZSBGQUtFMTEwLwYJKoZIhvcNAQkBFiJjb25mb3Jt"
+          + "YW5jZS10b29sc0BmaWRvYWxsaWFuY2Uub3JnMRYwFAYDVQQKDA1GSURPIEFsbGlhbmNlMQwwCgYDVQQLDAND"
+          + "V0cxCzAJBgNVBAYTAlVTMQswCQYDVQQIDAJNWTESMBAGA1UEBwwJV2FrZWZpZWxkMCAXDTcwMDIwMTAwMDAw"
+          + "MFoYDzIwOTkwMTMxMjM1OTU5WjApMScwJQYDVQQDDB5GQUtFIEFuZHJvaWQgS2V5c3RvcmUgS2V5IEZBS0Uw"
+          + "WTATBgcqhkjOPQIBBggqhkjOPQMBBwNCAAQsOMT5hyL6rg0c9ilM8skJWRYWTG4vpnP2MpS9aOeYzxkCOREm"
+          + "ADn0fEDOqrk0EqMoY2RE/NOgN8jqAlHtgFiRo4IBFjCCARIwCwYDVR0PBAQDAgeAMIHhBgorBgEEAdZ5AgER"
+          + "BIHSMIHPAgECCgEAAgEBCgEABCAhLBhI9/zUhPMmw/wgGYR4IbEhgriX50b2mPD1DoesJgQAMGm/hT0IAgYB"
+          + "XtPjz6C/hUVZBFcwVTEvMC0EKGNvbS5hbmRyb2lkLmtleXN0b3JlLmFuZHJvaWRrZXlzdG9yZWRlbW8CAQEx"
+          + "IgQgdM/LUHSI9SkQhZHHpQWRnzJ3MvvB2ANSauqYAAbS2JgwMqEFMQMCAQKiAwIBA6MEAgIBAKUFMQMCAQSq"
+          + "AwIBAb+DeAMCAQK/hT4DAgEAv4U/AgUAMB8GA1UdIwQYMBaAFFKaGzLgVqrNUQ/vX4A3BovykSMdMAoGCCqG"
+          + "SM49BAMCA0cAMEQCIAgOX0m5+z0iFe+5iG049P5hmYwJ70PsC1gYvsQyL7SOAiA2cqK2McZgFvnoiGURFVEX"
+          + "R69LKX1gogUaO9IJZhR8Tg==";
+
+  @Rule public final Expect mExpect = Expect.create();
+
+  @Test
+  public void fidoConformanceSample_sameValues() throws Exception {
+    X509Certificate certificate =
+        (X509Certificate)
+            CertificateFactory.getInstance("X.509")
+                .generateCertificate(
+                    new ByteArrayInputStream(
+                        BaseEncoding.base64().decode(FIDO_CONFORMANCE_SAMPLE)));
+
+    assertSameValues(certificate);
+  }
+
+  @Test
+  public void everyTag_sameValues() throws Exception {
+    KeyPair keyPair = TestCertificates.generateKeyPair();
+    X509Certificate certificate =
+        TestCertificates.certificate(
+            keyPair,
+            "leaf",
+            keyPair,
+            "leaf",
+            keyDescription(
+                Attestation.KM_SECURITY_LEVEL_TRUSTED_ENVIRONMENT,
+                authorizationList(
+                    tagged(600, DERNull.INSTANCE),
+                    tagged(601, new DEROctetString(utf8("application"))),
+                    tagged(701, new ASN1Integer(1640995200000L)),
+                    tagged(709, new DEROctetString(attestationApplicationId().getEncoded()))),
+                authorizationList(
+                    tagged(1, new DERSet(new ASN1Encodable[] {integer(2), integer(3)})),
+                    tagged(2, integer(AuthorizationList.KM_ALGORITHM_RSA)),
+                    tagged(3, integer(2048)),
+                    tagged(
+                        5, new DERSet(new ASN1Encodable[] {integer(0), integer(4), integer(6)})),
+                    tagged(6, new DERSet(new ASN1Encodable[] {integer(2), integer(5)})),
+                    tagged(200, new ASN1Integer(65537)),
+                    tagged(400, new ASN1Integer(1640995200000L)),
+                    tagged(401, new ASN1Integer(1672531200000L)),
+                    tagged(402, new ASN1Integer(1704067200000L)),
+                    tagged(504, integer(AuthorizationList.HW_AUTH_FINGERPRINT)),
+                    tagged(505, integer(300)),
+                    tagged(506, DERNull.INSTANCE),
+                    tagged(507, DERNull.INSTANCE),
+                    tagged(508, DERNull.INSTANCE),
+                    tagged(702, integer(AuthorizationList.KM_ORIGIN_GENERATED)),
+                    tagged(703, DERNull.INSTANCE),
+                    tagged(704, rootOfTrust(/* deviceLocked= */ false, 2)),
+                    tagged(705, integer(120000)),
+                    tagged(706, integer(202210)),
+                    tagged(710, new DEROctetString(utf8("google"))),
+                    tagged(711, new DEROctetString(utf8("oriole"))),
+                    tagged(712, new DEROctetString(utf8("oriole"))),
+                    tagged(713, new DEROctetString(utf8("SERIAL"))),
+                    tagged(714, new DEROctetString(utf8("490154203237518"))),
+                    tagged(715, new DEROctetString(utf8("A0000000000001"))),
+                    tagged(716, new DEROctetString(utf8("Google"))),
+                    tagged(717, new DEROctetString(utf8("Pixel 6"))),
+                    tagged(718, integer(20221005)),
+                    tagged(719, integer(20221005)),
+                    tagged(720, DERNull.INSTANCE))));
+
+    assertSameValues(certificate);
+  }
+
+  private void assertSameValues(X509Certificate certificate) throws Exception {
+    Attestation lazy = new Attestation(certificate);
+    com.afwsamples.testdpc.policy.utils.eager.Attestation eager =
+        new com.afwsamples.testdpc.policy.utils.eager.Attestation(certificate);
+
+    mExpect.that(lazy.getAttestationVersion()).isEqualTo(eager.getAttestationVersion());
+    mExpect
+        .that(lazy.getAttestationSecurityLevel())
+        .isEqualTo(eager.getAttestationSecurityLevel());
+    mExpect.that(lazy.getKeymasterVersion()).isEqualTo(eager.getKeymasterVersion());
+    mExpect.that(lazy.getKeymasterSecurityLevel()).isEqualTo(eager.getKeymasterSecurityLevel());
+    mExpect.that(lazy.getAttestationChallenge()).isEqualTo(eager.getAttestationChallenge());
+    mExpect.that(lazy.getUniqueId()).isEqualTo(eager.getUniqueId());
+    assertSameGetters("softwareEnforced", lazy.getSoftwareEnforced(), eager.getSoftwareEnforced());
+    assertSameGetters("teeEnforced", lazy.getTeeEnforced(), eager.getTeeEnforced());
+    mExpect.that(lazy.toString()).isEqualTo(eager.toString());
+  }
+
+  /** Compares what each public getter of the two authorization lists returns, or throws. */
+  private void assertSameGetters(String name, AuthorizationList lazy, Object eager)
+      throws Exception {
+    for (Method method : AuthorizationList.class.getMethods()) {
+      if (method.getParameterCount() > 0
+          || Modifier.isStatic(method.getModifiers())
+          || method.getDeclaringClass() != AuthorizationList.class) {
+        continue;
+      }
+      mExpect
+          .withMessage("%s.%s()", name, method.getName())
+          .that(invoke(method, lazy))
+          .isEqualTo(invoke(eager.getClass().getMethod(method.getName()), eager));
+    }
+  }
+
+  /** Calls {@code method}, returning a value that can be compared across both parsers. */
+  private static Object invoke(Method method, Object target) throws IllegalAccessException {
+    Object value;
+    try {
+      value = method.invoke(target);
+    } catch (InvocationTargetException e) {
+      return e.getCause().getClass().getName();
+    }
+    if (value instanceof byte[]) {
+      return BaseEncoding.base16().encode((byte[]) value);
+    }
+    if (value instanceof RootOfTrust
+        || value instanceof AttestationApplicationId
+        || value instanceof com.afwsamples.testdpc.policy.utils.eager.RootOfTrust
+        || value instanceof com.afwsamples.testdpc.policy.utils.eager.AttestationApplicationId) {
+      return value.toString();
+    }
+    return value;
+  }
+
+  private static DERSequence attestationApplicationId() {
+    return new DERSequence(
+        new ASN1Encodable[] {
+          new DERSet(
+              new ASN1Encodable[] {
+                packageInfo("com.example", 42), packageInfo("com.example.shared", 7)
+              }),
+          new DERSet(
+              new ASN1Encodable[] {
+                new DEROctetString(new byte[] {1, 2, 3}), new DEROctetString(new byte[] {4, 5})
+              })
+        });
+  }
+
+  private static ASN1Encodable packageInfo(String packageName, long version) {
+    return new DERSequence(
+        new ASN1Encodable[] {new DEROctetString(utf8(packageName)), integer(version)});
+  }
+
+  private static ASN1Integer integer(long value) {
+    return new ASN1Integer(value);
+  }
+
+  private static byte[] utf8(String value) {
+    return value.getBytes(StandardCharsets.UTF_8);
+  }
+}
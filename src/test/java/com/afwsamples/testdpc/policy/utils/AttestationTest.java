@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy.utils;
+
+import static com.afwsamples.testdpc.policy.utils.TestCertificates.CHALLENGE;
+import static com.afwsamples.testdpc.policy.utils.TestCertificates.authorizationList;
+import static com.afwsamples.testdpc.policy.utils.TestCertificates.extensionValue;
+import static com.afwsamples.testdpc.policy.utils.TestCertificates.keyDescription;
+import static com.afwsamples.testdpc.policy.utils.TestCertificates.rootOfTrust;
+import static com.afwsamples.testdpc.policy.utils.TestCertificates.tagged;
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import android.os.Build.VERSION_CODES;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.CertificateParsingException;
+import java.util.Arrays;
+import java.util.Date;
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.DERSet;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/** Parses attestation extensions encoded with BouncyCastle. */
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = VERSION_CODES.R)
+public class AttestationTest {
+
+  private static final byte[] VERIFIED_BOOT_KEY = new byte[32];
+  private static final byte[] SIGNATURE_DIGEST = new byte[] {1, 2, 3};
+  private static final long CREATION_TIME = 1640995200000L;
+
+  @Test
+  public void parse_readsAllFields() throws Exception {
+    byte[] extension = extension(softwareEnforced(), teeEnforced());
+
+    Attestation attestation = new Attestation(extension);
+
+    assertThat(attestation.getExtensionValue()).isEqualTo(extension);
+    assertThat(attestation.getAttestationVersion()).isEqualTo(3);
+    assertThat(attestation.getAttestationSecurityLevel()).isEqualTo(1);
+    assertThat(attestation.getKeymasterVersion()).isEqualTo(4);
+    assertThat(attestation.getKeymasterSecurityLevel()).isEqualTo(1);
+    assertThat(attestation.getAttestationChallenge()).isEqualTo(CHALLENGE);
+    assertThat(attestation.getUniqueId()).isEqualTo(new byte[0]);
+
+    AuthorizationList software = attestation.getSoftwareEnforced();
+    assertThat(software.getCreationDateTime()).isEqualTo(new Date(CREATION_TIME));
+    AttestationApplicationId applicationId = software.getAttestationApplicationId();
+    assertThat(applicationId.getAttestationPackageInfos()).hasSize(1);
+    assertThat(applicationId.getAttestationPackageInfos().get(0).getPackageName())
+        .isEqualTo("com.example");
+    assertThat(applicationId.getAttestationPackageInfos().get(0).getVersion()).isEqualTo(42);
+    assertThat(applicationId.getSignatureDigests().get(0)).isEqualTo(SIGNATURE_DIGEST);
+    assertThat(software.getAlgorithm()).isNull();
+
+    AuthorizationList tee = attestation.getTeeEnforced();
+    assertThat(tee.getPurposes()).containsExactly(2, 3);
+    assertThat(tee.getAlgorithm()).isEqualTo(AuthorizationList.KM_ALGORITHM_EC);
+    assertThat(tee.getKeySize()).isEqualTo(256);
+    assertThat(tee.getDigests()).containsExactly(AuthorizationList.KM_DIGEST_SHA_2_256);
+    assertThat(tee.getEcCurve()).isEqualTo(AuthorizationList.KM_EC_CURVE_P256);
+    assertThat(tee.isNoAuthRequired()).isTrue();
+    assertThat(tee.isRollbackResistant()).isFalse();
+    assertThat(tee.getOrigin()).isEqualTo(AuthorizationList.KM_ORIGIN_GENERATED);
+    assertThat(tee.getRootOfTrust().getVerifiedBootKey()).isEqualTo(VERIFIED_BOOT_KEY);
+    assertThat(tee.getRootOfTrust().isDeviceLocked()).isTrue();
+    assertThat(tee.getRootOfTrust().getVerifiedBootState())
+        .isEqualTo(RootOfTrust.KM_VERIFIED_BOOT_VERIFIED);
+    assertThat(tee.getOsVersion()).isEqualTo(110000);
+    assertThat(tee.getOsPatchLevel()).isEqualTo(202201);
+    assertThat(tee.getSerialNumber()).isEqualTo("SERIAL");
+    assertThat(tee.getImei()).isNull();
+  }
+
+  @Test
+  public void toString_includesDecodedFields() throws Exception {
+    Attestation attestation = new Attestation(extension(softwareEnforced(), teeEnforced()));
+
+    assertThat(attestation.toString()).contains("Attest version: 3");
+    assertThat(attestation.toString()).contains("Challenge: [challenge]");
+    assertThat(attestation.toString()).contains("KeySize: 256");
+    assertThat(attestation.toString()).contains("OS Patchlevel: 202201");
+  }
+
+  @Test
+  public void parse_repeatedTag_lastOneWins() throws Exception {
+    Attestation attestation =
+        new Attestation(
+            extension(
+                authorizationList(),
+                authorizationList(
+                    tagged(705, new ASN1Integer(100000)), tagged(705, new ASN1Integer(110000)))));
+
+    assertThat(attestation.getTeeEnforced().getOsVersion()).isEqualTo(110000);
+  }
+
+  @Test
+  public void parse_unknownTag_throws() throws Exception {
+    byte[] extension =
+        extension(authorizationList(), authorizationList(tagged(9999, DERNull.INSTANCE)));
+
+    assertThrows(CertificateParsingException.class, () -> new Attestation(extension));
+  }
+
+  @Test
+  public void parse_negativeInteger_throws() throws Exception {
+    byte[] extension =
+        extension(authorizationList(), authorizationList(tagged(3, new ASN1Integer(-1))));
+
+    assertThrows(CertificateParsingException.class, () -> new Attestation(extension));
+  }
+
+  @Test
+  public void parse_wrongType_throws() throws Exception {
+    byte[] extension =
+        extension(authorizationList(), authorizationList(tagged(713, new ASN1Integer(1))));
+
+    assertThrows(CertificateParsingException.class, () -> new Attestation(extension));
+  }
+
+  @Test
+  public void parse_truncated_throws() throws Exception {
+    byte[] extension = extension(softwareEnforced(), teeEnforced());
+    byte[] truncated = Arrays.copyOf(extension, extension.length - 1);
+
+    assertThrows(CertificateParsingException.class, () -> new Attestation(truncated));
+  }
+
+  @Test
+  public void parse_invalidRootOfTrust_throws() throws Exception {
+    byte[] extension =
+        extension(
+            authorizationList(),
+            authorizationList(tagged(704, new DERSequence(new ASN1Integer(1)))));
+
+    assertThrows(CertificateParsingException.class, () -> new Attestation(extension));
+  }
+
+  @Test
+  public void parse_invalidAttestationApplicationId_throws() throws Exception {
+    DERSequence applicationId =
+        new DERSequence(
+            new ASN1Encodable[] {
+              new DERSet(new DERSequence(new ASN1Integer(42))),
+              new DERSet(new DEROctetString(SIGNATURE_DIGEST))
+            });
+    byte[] extension =
+        extension(
+            authorizationList(tagged(709, new DEROctetString(applicationId.getEncoded()))),
+            authorizationList());
+
+    assertThrows(CertificateParsingException.class, () -> new Attestation(extension));
+  }
+
+  private static ASN1Encodable softwareEnforced() throws Exception {
+    DERSequence applicationId =
+        new DERSequence(
+            new ASN1Encodable[] {
+              new DERSet(
+                  new DERSequence(
+                      new ASN1Encodable[] {
+                        new DEROctetString("com.example".getBytes(StandardCharsets.UTF_8)),
+                        new ASN1Integer(42)
+                      })),
+              new DERSet(new DEROctetString(SIGNATURE_DIGEST))
+            });
+    return authorizationList(
+        tagged(701, new ASN1Integer(CREATION_TIME)),
+        tagged(709, new DEROctetString(applicationId.getEncoded())));
+  }
+
+  private static ASN1Encodable teeEnforced() {
+    return authorizationList(
+        tagged(1, new DERSet(new ASN1Encodable[] {new ASN1Integer(2), new ASN1Integer(3)})),
+        tagged(2, new ASN1Integer(AuthorizationList.KM_ALGORITHM_EC)),
+        tagged(3, new ASN1Integer(256)),
+        tagged(5, new DERSet(new ASN1Integer(AuthorizationList.KM_DIGEST_SHA_2_256))),
+        tagged(10, new ASN1Integer(AuthorizationList.KM_EC_CURVE_P256)),
+        tagged(503, DERNull.INSTANCE),
+        tagged(702, new ASN1Integer(AuthorizationList.KM_ORIGIN_GENERATED)),
+        tagged(704, rootOfTrust(/* deviceLocked= */ true, RootOfTrust.KM_VERIFIED_BOOT_VERIFIED)),
+        tagged(705, new ASN1Integer(110000)),
+        tagged(706, new ASN1Integer(202201)),
+        tagged(713, new DEROctetString("SERIAL".getBytes(StandardCharsets.UTF_8))));
+  }
+
+  private static byte[] extension(ASN1Encodable softwareEnforced, ASN1Encodable teeEnforced)
+      throws Exception {
+    return extensionValue(
+        keyDescription(
+            Attestation.KM_SECURITY_LEVEL_TRUSTED_ENVIRONMENT, softwareEnforced, teeEnforced));
+  }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy.utils;
+
+import static com.afwsamples.testdpc.policy.utils.TestCertificates.authorizationList;
+import static com.afwsamples.testdpc.policy.utils.TestCertificates.certificate;
+import static com.afwsamples.testdpc.policy.utils.TestCertificates.keyDescription;
+import static com.afwsamples.testdpc.policy.utils.TestCertificates.rootOfTrust;
+import static com.afwsamples.testdpc.policy.utils.TestCertificates.tagged;
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.Build.VERSION_CODES;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = VERSION_CODES.R)
+public class AttestationVerifierTest {
+
+  private static final long DAY_MILLIS = 24 * 60 * 60 * 1000;
+
+  private final ExecutorService mExecutor = Executors.newFixedThreadPool(2);
+  private final AttestationPolicy mPolicy =
+      AttestationPolicy.builder().setMinOsPatchLevel(202201).build();
+
+  private KeyPair mRootKeyPair;
+  private KeyPair mIntermediateKeyPair;
+  private KeyPair mLeafKeyPair;
+  private X509Certificate mRoot;
+  private X509Certificate mIntermediate;
+
+  @Before
+  public void setUp() throws Exception {
+    AttestationVerifier.clearCache();
+    mRootKeyPair = TestCertificates.generateKeyPair();
+    mIntermediateKeyPair = TestCertificates.generateKeyPair();
+    mLeafKeyPair = TestCertificates.generateKeyPair();
+    mRoot = certificate(mRootKeyPair, "root", mRootKeyPair, "root", /* keyDescription= */ null);
+    mIntermediate =
+        certificate(
+            mIntermediateKeyPair, "intermediate", mRootKeyPair, "root", /* keyDescription= */ null);
+  }
+
+  @After
+  public void tearDown() {
+    mExecutor.shutdownNow();
+  }
+
+  @Test
+  public void verify_validChain_isValid() throws Exception {
+    AttestationVerifier.Result result =
+        verifier().verify(chain(teeEnforced(/* deviceLocked= */ true, 202201)));
+
+    assertThat(result.isValid()).isTrue();
+    assertThat(result.getChainErrors()).isEmpty();
+    assertThat(result.isRootTrusted()).isTrue();
+    assertThat(result.getPolicyViolations()).isEmpty();
+    assertThat(result.getAttestation().getTeeEnforced().getOsPatchLevel()).isEqualTo(202201);
+  }
+
+  @Test
+  public void verify_untrustedRoot_isInvalid() throws Exception {
+    X509Certificate otherRoot =
+        certificate(mLeafKeyPair, "root", mLeafKeyPair, "root", /* keyDescription= */ null);
+    AttestationVerifier verifier =
+        new AttestationVerifier(Collections.singletonList(otherRoot), mPolicy, mExecutor);
+
+    AttestationVerifier.Result result =
+        verifier.verify(chain(teeEnforced(/* deviceLocked= */ true, 202201)));
+
+    assertThat(result.isValid()).isFalse();
+    assertThat(result.isRootTrusted()).isFalse();
+    assertThat(result.getChainErrors()).isEmpty();
+  }
+
+  @Test
+  public void verify_leafNotSignedByIntermediate_reportsSignature() throws Exception {
+    X509Certificate leaf =
+        certificate(
+            mLeafKeyPair,
+            "leaf",
+            mRootKeyPair,
+            "intermediate",
+            keyDescription(
+                Attestation.KM_SECURITY_LEVEL_TRUSTED_ENVIRONMENT,
+                authorizationList(),
+                teeEnforced(/* deviceLocked= */ true, 202201)));
+
+    AttestationVerifier.Result result =
+        verifier().verify(Arrays.asList(leaf, mIntermediate, mRoot));
+
+    assertThat(result.isValid()).isFalse();
+    assertThat(result.getChainErrors()).hasSize(1);
+    assertThat(result.getChainErrors().get(0)).contains("Certificate 0 has an invalid signature");
+  }
+
+  @Test
+  public void verify_afterExpiry_reportsValidity() throws Exception {
+    List<X509Certificate> chain = chain(teeEnforced(/* deviceLocked= */ true, 202201));
+
+    AttestationVerifier.Result result =
+        verifier().verify(chain, System.currentTimeMillis() + 2 * DAY_MILLIS);
+
+    assertThat(result.isValid()).isFalse();
+    assertThat(result.getChainErrors()).hasSize(3);
+  }
+
+  @Test
+  public void verify_policyNotMet_reportsViolations() throws Exception {
+    X509Certificate leaf =
+        certificate(
+            mLeafKeyPair,
+            "leaf",
+            mIntermediateKeyPair,
+            "intermediate",
+            keyDescription(
+                Attestation.KM_SECURITY_LEVEL_SOFTWARE,
+                authorizationList(),
+                teeEnforced(/* deviceLocked= */ false, 202112)));
+
+    AttestationVerifier.Result result =
+        verifier().verify(Arrays.asList(leaf, mIntermediate, mRoot));
+
+    assertThat(result.isValid()).isFalse();
+    assertThat(result.getChainErrors()).isEmpty();
+    assertThat(result.getPolicyViolations())
+        .containsExactly(
+            "Security level is Software, expected at least TEE",
+            "Bootloader is unlocked",
+            "OS patch level is 202112, expected at least 202201");
+  }
+
+  @Test
+  public void verify_sameChainTwice_verifiesSignaturesOnce() throws Exception {
+    List<X509Certificate> chain = chain(teeEnforced(/* deviceLocked= */ true, 202201));
+    AttestationVerifier verifier = verifier();
+
+    verifier.verify(chain);
+    AttestationVerifier.Result result = verifier.verify(chain);
+
+    assertThat(result.isValid()).isTrue();
+    assertThat(AttestationVerifier.getStats()).isEqualTo(new long[] {3, 3});
+  }
+
+  @Test
+  public void verify_newLeafSameIntermediate_verifiesLeafSignatureOnly() throws Exception {
+    AttestationVerifier verifier = verifier();
+    verifier.verify(chain(teeEnforced(/* deviceLocked= */ true, 202201)));
+
+    AttestationVerifier.Result result =
+        verifier.verify(chain(teeEnforced(/* deviceLocked= */ true, 202202)));
+
+    assertThat(result.isValid()).isTrue();
+    // The intermediate and root signatures were cached by the first chain
+    assertThat(AttestationVerifier.getStats()).isEqualTo(new long[] {2, 4});
+  }
+
+  @Test
+  public void verify_intermediateNotCa_reportsIt() throws Exception {
+    // An attestation certificate used to sign another key
+    X509Certificate notCa =
+        certificate(
+            mIntermediateKeyPair,
+            "intermediate",
+            mRootKeyPair,
+            "root",
+            keyDescription(
+                Attestation.KM_SECURITY_LEVEL_TRUSTED_ENVIRONMENT,
+                authorizationList(),
+                authorizationList()));
+    List<X509Certificate> chain = chain(teeEnforced(/* deviceLocked= */ true, 202201));
+
+    AttestationVerifier.Result result =
+        verifier().verify(Arrays.asList(chain.get(0), notCa, mRoot));
+
+    assertThat(result.isValid()).isFalse();
+    assertThat(result.getChainErrors()).containsExactly("Certificate 1 isn't a CA certificate");
+  }
+
+  @Test
+  public void verify_defaultRoots_onlyTrustGoogleRoots() throws Exception {
+    AttestationVerifier.Result result =
+        new AttestationVerifier(mPolicy)
+            .verify(chain(teeEnforced(/* deviceLocked= */ true, 202201)));
+
+    assertThat(result.isRootTrusted()).isFalse();
+    assertThat(result.getChainErrors()).isEmpty();
+  }
+
+  private AttestationVerifier verifier() {
+    return new AttestationVerifier(Collections.singletonList(mRoot), mPolicy, mExecutor);
+  }
+
+  private List<X509Certificate> chain(ASN1Encodable teeEnforced) throws Exception {
+    X509Certificate leaf =
+        certificate(
+            mLeafKeyPair,
+            "leaf",
+            mIntermediateKeyPair,
+            "intermediate",
+            keyDescription(
+                Attestation.KM_SECURITY_LEVEL_TRUSTED_ENVIRONMENT,
+                authorizationList(),
+                teeEnforced));
+    return Arrays.asList(leaf, mIntermediate, mRoot);
+  }
+
+  private static ASN1Encodable teeEnforced(boolean deviceLocked, int osPatchLevel) {
+    return authorizationList(
+        tagged(704, rootOfTrust(deviceLocked, RootOfTrust.KM_VERIFIED_BOOT_VERIFIED)),
+        tagged(706, new ASN1Integer(osPatchLevel)));
+  }
+}
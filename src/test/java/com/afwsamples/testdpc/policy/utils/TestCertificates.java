@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.policy.utils;
+
+import java.io.ByteArrayInputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import org.bouncycastle.asn1.ASN1Boolean;
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1Enumerated;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.DERTaggedObject;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+/** Builds attestation extensions and certificates carrying them, for tests. */
+final class TestCertificates {
+
+  static final byte[] CHALLENGE = "challenge".getBytes(StandardCharsets.UTF_8);
+
+  private static final long DAY_MILLIS = 24 * 60 * 60 * 1000;
+
+  private static final AtomicLong sSerialNumber = new AtomicLong();
+
+  private TestCertificates() {}
+
+  /** An explicitly tagged AuthorizationList entry. */
+  static ASN1Encodable tagged(int tag, ASN1Encodable value) {
+    return new DERTaggedObject(/* explicit= */ true, tag, value);
+  }
+
+  static ASN1Encodable authorizationList(ASN1Encodable... entries) {
+    return new DERSequence(entries);
+  }
+
+  static ASN1Encodable rootOfTrust(boolean deviceLocked, int verifiedBootState) {
+    return new DERSequence(
+        new ASN1Encodable[] {
+          new DEROctetString(new byte[32]),
+          ASN1Boolean.getInstance(deviceLocked),
+          new ASN1Enumerated(verifiedBootState),
+          new DEROctetString(new byte[32])
+        });
+  }
+
+  /** A version 3 KeyDescription with {@link #CHALLENGE}. */
+  static ASN1Encodable keyDescription(
+      int securityLevel, ASN1Encodable softwareEnforced, ASN1Encodable teeEnforced) {
+    ASN1EncodableVector keyDescription = new ASN1EncodableVector();
+    keyDescription.add(new ASN1Integer(3));
+    keyDescription.add(new ASN1Enumerated(securityLevel));
+    keyDescription.add(new ASN1Integer(4));
+    keyDescription.add(new ASN1Enumerated(securityLevel));
+    keyDescription.add(new DEROctetString(CHALLENGE));
+    keyDescription.add(new DEROctetString(new byte[0]));
+    keyDescription.add(softwareEnforced);
+    keyDescription.add(teeEnforced);
+    return new DERSequence(keyDescription);
+  }
+
+  /** Encodes {@code keyDescription} as returned by {@code X509Certificate.getExtensionValue}. */
+  static byte[] extensionValue(ASN1Encodable keyDescription) throws Exception {
+    return new DEROctetString(keyDescription.toASN1Primitive().getEncoded()).getEncoded();
+  }
+
+  static KeyPair generateKeyPair() throws GeneralSecurityException {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+    generator.initialize(256);
+    return generator.generateKeyPair();
+  }
+
+  /** A certificate valid from yesterday until tomorrow. */
+  static X509Certificate certificate(
+      KeyPair subject,
+      String subjectName,
+      KeyPair issuer,
+      String issuerName,
+      ASN1Encodable keyDescription)
+      throws Exception {
+    long now = System.currentTimeMillis();
+    return certificate(
+        subject,
+        subjectName,
+        issuer,
+        issuerName,
+        new Date(now - DAY_MILLIS),
+        new Date(now + DAY_MILLIS),
+        keyDescription);
+  }
+
+  /**
+   * A certificate of {@code subject} signed by {@code issuer}, with an attestation extension if
+   * {@code keyDescription} isn't {@code null}, or else marked as a CA certificate, like the roots
+   * and intermediates of real chains.
+   */
+  static X509Certificate certificate(
+      KeyPair subject,
+      String subjectName,
+      KeyPair issuer,
+      String issuerName,
+      Date notBefore,
+      Date notAfter,
+      ASN1Encodable keyDescription)
+      throws Exception {
+    X509v3CertificateBuilder builder =
+        new X509v3CertificateBuilder(
+            new X500Name("CN=" + issuerName),
+            BigInteger.valueOf(sSerialNumber.incrementAndGet()),
+            notBefore,
+            notAfter,
+            new X500Name("CN=" + subjectName),
+            SubjectPublicKeyInfo.getInstance(subject.getPublic().getEncoded()));
+    if (keyDescription != null) {
+      builder.addExtension(
+          new ASN1ObjectIdentifier(Attestation.KEY_DESCRIPTION_OID), false, keyDescription);
+    } else {
+      builder.addExtension(Extension.basicConstraints, true, new BasicConstraints(true));
+    }
+    byte[] encoded =
+        builder
+            .build(new JcaContentSignerBuilder("SHA256withECDSA").build(issuer.getPrivate()))
+            .getEncoded();
+    return (X509Certificate)
+        CertificateFactory.getInstance("X.509")
+            .generateCertificate(new ByteArrayInputStream(encoded));
+  }
+}
@@ -14,7 +14,7 @@
  * limitations under the License.
  */
 
-package com.afwsamples.testdpc.policy.utils;
+package com.afwsamples.testdpc.policy.utils.eager;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.tools;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.cert.CertificateFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Runs on a plain JVM, like the tool. */
+@RunWith(JUnit4.class)
+public class AttestationAnalyzerTest {
+
+  @Rule public final TemporaryFolder mFolder = new TemporaryFolder();
+
+  @Test
+  public void readNdjson_readsChainsAndKeepsInvalidLinesAsErrors() throws Exception {
+    File file = mFolder.newFile("chains.ndjson");
+    Files.write(
+        file.toPath(),
+        Arrays.asList(
+            "{\"id\": \"pixel\", \"chain\": [\"AAAA\", \"BBBB\"]}",
+            "",
+            "not json",
+            "{\"chain\": [\"CCCC\"]}",
+            "{\"id\": \"no chain\"}"),
+        StandardCharsets.UTF_8);
+
+    List<AttestationAnalyzer.Chain> chains = AttestationAnalyzer.readNdjson(file.toPath());
+
+    assertThat(chains).hasSize(4);
+    assertThat(chains.get(0).mId).isEqualTo("pixel");
+    assertThat(chains.get(0).mBase64).containsExactly("AAAA", "BBBB").inOrder();
+    assertThat(chains.get(1).mId).isEqualTo("line 3");
+    assertThat(chains.get(1).mError).startsWith("Invalid JSON");
+    assertThat(chains.get(2).mId).isEqualTo("line 4");
+    assertThat(chains.get(2).mBase64).containsExactly("CCCC");
+    assertThat(chains.get(3).mId).isEqualTo("no chain");
+    assertThat(chains.get(3).mError).startsWith("Invalid JSON");
+  }
+
+  @Test
+  public void summarize_invalidCertificate_reportsError() throws Exception {
+    AttestationAnalyzer.Chain chain =
+        new AttestationAnalyzer.Chain("broken", Arrays.asList("bm90IGEgY2VydGlmaWNhdGU="));
+
+    String[] row = AttestationAnalyzer.summarize(CertificateFactory.getInstance("X.509"), chain);
+
+    assertThat(row[0]).isEqualTo("broken");
+    assertThat(row[1]).isNull();
+    assertThat(row[row.length - 1]).isNotNull();
+  }
+
+  @Test
+  public void summarizeTask_upToThreshold_runsOneTask() {
+    assertThat(summarizeAll(AttestationAnalyzer.SummarizeTask.THRESHOLD)).isEqualTo(1);
+  }
+
+  @Test
+  public void summarizeTask_overThreshold_splitsInHalves() {
+    assertThat(summarizeAll(AttestationAnalyzer.SummarizeTask.THRESHOLD + 1)).isEqualTo(2);
+    assertThat(summarizeAll(4 * AttestationAnalyzer.SummarizeTask.THRESHOLD)).isEqualTo(4);
+  }
+
+  @Test
+  public void writeCsv_quotesSeparatorsQuotesAndNewlines() {
+    StringWriter out = new StringWriter();
+    try (PrintWriter writer = new PrintWriter(out)) {
+      AttestationAnalyzer.writeCsv(
+          writer,
+          new String[][] {
+            {"plain", "a,b", "say \"hi\"", "two\nlines", "cr\rhere", null, ""}
+          });
+    }
+
+    String[] lines = out.toString().split("\r\n", -1);
+    assertThat(lines).hasLength(3);
+    assertThat(lines[0]).startsWith("id,chain_length,");
+    assertThat(lines[1])
+        .isEqualTo("plain,\"a,b\",\"say \"\"hi\"\"\",\"two\nlines\",\"cr\rhere\",,");
+    assertThat(lines[2]).isEmpty();
+  }
+
+  /** Summarizes {@code size} invalid chains, returning how many tasks summarized them. */
+  private static int summarizeAll(int size) {
+    List<AttestationAnalyzer.Chain> chains = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      chains.add(AttestationAnalyzer.Chain.invalid("chain " + i, "error " + i));
+    }
+    String[][] rows = new String[size][];
+    AttestationAnalyzer.SummarizeTask task = new AttestationAnalyzer.SummarizeTask(chains, rows);
+
+    ForkJoinPool pool = new ForkJoinPool(2);
+    try {
+      pool.invoke(task);
+    } finally {
+      pool.shutdown();
+    }
+
+    for (int i = 0; i < size; i++) {
+      assertThat(rows[i][0]).isEqualTo("chain " + i);
+      assertThat(rows[i][rows[i].length - 1]).isEqualTo("error " + i);
+    }
+    return task.getLeafTasks();
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.trace;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.ComponentName;
+import android.os.Build.VERSION_CODES;
+import com.afwsamples.testdpc.DevicePolicyManagerGateway;
+import com.afwsamples.testdpc.InMemoryDevicePolicyManagerGateway;
+import com.google.common.base.Strings;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(minSdk = VERSION_CODES.R)
+public class GatewayTraceTest {
+
+  private static final ComponentName ADMIN = new ComponentName("com.example.dpc", "Admin");
+
+  @Rule public final TemporaryFolder mFolder = new TemporaryFolder();
+
+  @After
+  public void stopRecording() throws Exception {
+    GatewayTraceRecorder.stop();
+  }
+
+  @Test
+  public void recordAndReplay_roundTrip() throws Exception {
+    File file = new File(mFolder.getRoot(), "calls.trace");
+    GatewayTraceRecorder.start(file);
+    DevicePolicyManagerGateway gateway =
+        GatewayTraceRecorder.wrapIfRecording(new InMemoryDevicePolicyManagerGateway(ADMIN));
+    gateway.setUserRestriction("no_fun", true);
+    gateway.hasUserRestriction("no_fun");
+    gateway.setOrganizationName("ACME", (v) -> {}, (e) -> {});
+    GatewayTraceRecorder.stop();
+
+    List<GatewayTrace.Call> calls = GatewayTrace.read(file);
+    InMemoryDevicePolicyManagerGateway target = new InMemoryDevicePolicyManagerGateway(ADMIN);
+    Map<String, GatewayTraceReplayer.MethodStats> stats =
+        new GatewayTraceReplayer().replay(calls, target);
+
+    assertThat(calls).hasSize(3);
+    assertThat(calls.get(0).method).isEqualTo("setUserRestriction(String,boolean)");
+    assertThat(calls.get(0).args).asList().containsExactly("no_fun", true).inOrder();
+    assertThat(calls.get(1).result).isEqualTo(true);
+    assertThat(calls.get(2).outcome).isEqualTo(GatewayTrace.OUTCOME_SUCCESS);
+    assertThat(target.hasUserRestriction("no_fun")).isTrue();
+    assertThat(target.getOrganizationName().toString()).isEqualTo("ACME");
+    assertThat(stats.get("setUserRestriction(String,boolean)").replayed.count).isEqualTo(1);
+    assertThat(stats.get("setUserRestriction(String,boolean)").skipped).isEqualTo(0);
+  }
+
+  @Test
+  public void record_stringOver64k_roundTrips() throws Exception {
+    File file = new File(mFolder.getRoot(), "calls.trace");
+    String name = Strings.repeat("ACME \u00e9", 20_000);
+    GatewayTraceRecorder.start(file);
+    DevicePolicyManagerGateway gateway =
+        GatewayTraceRecorder.wrapIfRecording(new InMemoryDevicePolicyManagerGateway(ADMIN));
+    gateway.setOrganizationName(name, (v) -> {}, (e) -> {});
+    gateway.setUserRestriction("no_fun", true);
+    GatewayTraceRecorder.stop();
+
+    List<GatewayTrace.Call> calls = GatewayTrace.read(file);
+
+    assertThat(calls).hasSize(2);
+    assertThat(calls.get(0).args[0]).isEqualTo(name);
+    assertThat(calls.get(1).args[0]).isEqualTo("no_fun");
+  }
+
+  @Test
+  public void replay_skipsUserCreationAndKeyRemoval() throws Exception {
+    File file = new File(mFolder.getRoot(), "calls.trace");
+    GatewayTraceRecorder.start(file);
+    DevicePolicyManagerGateway gateway =
+        GatewayTraceRecorder.wrapIfRecording(new InMemoryDevicePolicyManagerGateway(ADMIN));
+    gateway.createAndManageUser("user", /* flags= */ 0, (v) -> {}, (e) -> {});
+    gateway.removeKeyPair("key", (v) -> {}, (e) -> {});
+    GatewayTraceRecorder.stop();
+
+    Map<String, GatewayTraceReplayer.MethodStats> stats =
+        new GatewayTraceReplayer()
+            .replay(GatewayTrace.read(file), new InMemoryDevicePolicyManagerGateway(ADMIN));
+
+    assertThat(stats.get("createAndManageUser(String,int,Consumer,Consumer)").skipped)
+        .isEqualTo(1);
+    assertThat(stats.get("removeKeyPair(String,Consumer,Consumer)").skipped).isEqualTo(1);
+  }
+
+  @Test
+  public void start_afterTornTail_truncatesIt() throws Exception {
+    File file = new File(mFolder.getRoot(), "calls.trace");
+    GatewayTraceRecorder.start(file);
+    GatewayTraceRecorder.wrapIfRecording(new InMemoryDevicePolicyManagerGateway(ADMIN))
+        .setUserRestriction("no_fun", true);
+    GatewayTraceRecorder.stop();
+    long sessionLength = file.length();
+    try (FileOutputStream out = new FileOutputStream(file, /* append= */ true)) {
+      // A call record torn right after its method id
+      out.write(new byte[] {GatewayTrace.RECORD_CALL, 0});
+    }
+
+    GatewayTraceRecorder.start(file);
+    GatewayTraceRecorder.wrapIfRecording(new InMemoryDevicePolicyManagerGateway(ADMIN))
+        .setUserRestriction("no_games", true);
+    GatewayTraceRecorder.stop();
+
+    List<GatewayTrace.Call> calls = GatewayTrace.read(file);
+    assertThat(calls).hasSize(2);
+    assertThat(calls.get(0).args[0]).isEqualTo("no_fun");
+    assertThat(calls.get(1).args[0]).isEqualTo("no_games");
+    assertThat(file.length()).isGreaterThan(sessionLength);
+  }
+}
@@ -0,0 +1,424 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.afwsamples.testdpc.tools;
+
+import com.afwsamples.testdpc.policy.utils.Attestation;
+import com.afwsamples.testdpc.policy.utils.AttestationApplicationId;
+import com.afwsamples.testdpc.policy.utils.AttestationPackageInfo;
+import com.afwsamples.testdpc.policy.utils.AuthorizationList;
+import com.afwsamples.testdpc.policy.utils.RootOfTrust;
+import com.google.common.io.BaseEncoding;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Summarizes attestation chains collected from devices, one CSV row per chain, with the parsers
+ * TestDPC uses on devices.
+ *
+ * <p>Usage: {@code bazel run //:attestation_analyzer -- [--threads N] [--output FILE] INPUT},
+ * where {@code INPUT} is either:
+ *
+ * <ul>
+ *   <li>a directory with one chain per file, as PEM or DER certificates, or as base64 certificates
+ *       one per line (the way TestDPC logs them);
+ *   <li>an NDJSON file with one {@code {"id": "...", "chain": ["<base64>", ...]}} object per line.
+ * </ul>
+ *
+ * <p>Chains are read first, then their leaf certificates are decoded and parsed in parallel on a
+ * {@link ForkJoinPool}. Chains that can't be parsed get a row with the error. A summary of the
+ * security levels and verified boot states is printed to stderr.
+ */
+public final class AttestationAnalyzer {
+
+  private static final String USAGE =
+      "Usage: attestation_analyzer [--threads N] [--output FILE] DIRECTORY|FILE.ndjson";
+
+  private static final String[] COLUMNS = {
+    "id",
+    "chain_length",
+    "attestation_version",
+    "attestation_security_level",
+    "keymaster_version",
+    "keymaster_security_level",
+    "os_version",
+    "os_patch_level",
+    "vendor_patch_level",
+    "boot_patch_level",
+    "verified_boot_state",
+    "device_locked",
+    "packages",
+    "signature_digests",
+    "error"
+  };
+  private static final int SECURITY_LEVEL_COLUMN = 3;
+  private static final int VERIFIED_BOOT_STATE_COLUMN = 10;
+  private static final int ERROR_COLUMN = COLUMNS.length - 1;
+
+  private AttestationAnalyzer() {}
+
+  public static void main(String[] args) throws Exception {
+    int threads = Runtime.getRuntime().availableProcessors();
+    Path output = null;
+    Path input = null;
+    try {
+      for (int i = 0; i < args.length; i++) {
+        switch (args[i]) {
+          case "--threads":
+            threads = Integer.parseInt(args[++i]);
+            break;
+          case "--output":
+            output = Paths.get(args[++i]);
+            break;
+          default:
+            if (input != null || args[i].startsWith("--")) {
+              throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+            }
+            input = Paths.get(args[i]);
+        }
+      }
+      if (input == null || threads <= 0) {
+        throw new IllegalArgumentException("Missing input or invalid thread count");
+      }
+    } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+      System.err.println(e.getMessage());
+      System.err.println(USAGE);
+      System.exit(2);
+      return;
+    }
+
+    long start = System.nanoTime();
+    List<Chain> chains = Files.isDirectory(input) ? readDirectory(input) : readNdjson(input);
+    String[][] rows = new String[chains.size()][];
+    SummarizeTask task = new SummarizeTask(chains, rows);
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    try {
+      pool.invoke(task);
+    } finally {
+      pool.shutdown();
+    }
+
+    Writer out =
+        output == null
+            ? new OutputStreamWriter(System.out, StandardCharsets.UTF_8)
+            : Files.newBufferedWriter(output, StandardCharsets.UTF_8);
+    try (PrintWriter writer = new PrintWriter(new BufferedWriter(out))) {
+      writeCsv(writer, rows);
+    }
+    printSummary(rows, threads, task.getLeafTasks(), System.nanoTime() - start);
+  }
+
+  /** Reads one chain per regular file of {@code dir}, in file name order. */
+  static List<Chain> readDirectory(Path dir) throws IOException {
+    List<Path> files;
+    try (Stream<Path> stream = Files.list(dir)) {
+      files = stream.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+    }
+    List<Chain> chains = new ArrayList<>(files.size());
+    for (Path file : files) {
+      String id = file.getFileName().toString();
+      byte[] bytes = Files.readAllBytes(file);
+      if (isEncodedCertificates(bytes)) {
+        chains.add(new Chain(id, bytes));
+      } else {
+        List<String> lines = new ArrayList<>();
+        for (String line : new String(bytes, StandardCharsets.US_ASCII).split("\n")) {
+          if (!line.trim().isEmpty()) {
+            lines.add(line.trim());
+          }
+        }
+        chains.add(new Chain(id, lines));
+      }
+    }
+    return chains;
+  }
+
+  /** Reads one chain per line of {@code file}; lines that aren't valid are kept as errors. */
+  static List<Chain> readNdjson(Path file) throws IOException {
+    List<Chain> chains = new ArrayList<>();
+    try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      int lineNumber = 0;
+      String line;
+      while ((line = reader.readLine()) != null) {
+        lineNumber++;
+        if (line.trim().isEmpty()) {
+          continue;
+        }
+        String id = "line " + lineNumber;
+        try {
+          JSONObject object = new JSONObject(line);
+          id = object.optString("id", id);
+          JSONArray array = object.getJSONArray("chain");
+          List<String> certificates = new ArrayList<>(array.length());
+          for (int i = 0; i < array.length(); i++) {
+            certificates.add(array.getString(i));
+          }
+          chains.add(new Chain(id, certificates));
+        } catch (JSONException e) {
+          chains.add(Chain.invalid(id, "Invalid JSON: " + e.getMessage()));
+        }
+      }
+    }
+    return chains;
+  }
+
+  /** Returns a CSV row for {@code chain}, which is only decoded up to its leaf certificate. */
+  static String[] summarize(CertificateFactory factory, Chain chain) {
+    String[] row = new String[COLUMNS.length];
+    row[0] = chain.mId;
+    if (chain.mError != null) {
+      row[ERROR_COLUMN] = chain.mError;
+      return row;
+    }
+    try {
+      X509Certificate leaf;
+      int length;
+      if (chain.mEncoded != null) {
+        Collection<? extends Certificate> certificates =
+            factory.generateCertificates(new ByteArrayInputStream(chain.mEncoded));
+        if (certificates.isEmpty()) {
+          throw new CertificateException("No certificates");
+        }
+        leaf = (X509Certificate) certificates.iterator().next();
+        length = certificates.size();
+      } else {
+        if (chain.mBase64.isEmpty()) {
+          throw new CertificateException("No certificates");
+        }
+        byte[] encoded = Base64.getMimeDecoder().decode(chain.mBase64.get(0));
+        leaf = (X509Certificate) factory.generateCertificate(new ByteArrayInputStream(encoded));
+        length = chain.mBase64.size();
+      }
+      row[1] = String.valueOf(length);
+
+      Attestation attestation = new Attestation(leaf);
+      int securityLevel = attestation.getAttestationSecurityLevel();
+      row[2] = String.valueOf(attestation.getAttestationVersion());
+      row[SECURITY_LEVEL_COLUMN] = Attestation.securityLevelToString(securityLevel);
+      row[4] = String.valueOf(attestation.getKeymasterVersion());
+      row[5] = Attestation.securityLevelToString(attestation.getKeymasterSecurityLevel());
+
+      // Software attestations only have a software enforced list
+      AuthorizationList enforced =
+          securityLevel == Attestation.KM_SECURITY_LEVEL_SOFTWARE
+              ? attestation.getSoftwareEnforced()
+              : attestation.getTeeEnforced();
+      row[6] = toString(enforced.getOsVersion());
+      row[7] = toString(enforced.getOsPatchLevel());
+      row[8] = toString(enforced.getVendorPatchLevel());
+      row[9] = toString(enforced.getBootPatchLevel());
+      RootOfTrust rootOfTrust = enforced.getRootOfTrust();
+      if (rootOfTrust != null) {
+        row[VERIFIED_BOOT_STATE_COLUMN] =
+            RootOfTrust.verifiedBootStateToString(rootOfTrust.getVerifiedBootState());
+        row[11] = String.valueOf(rootOfTrust.isDeviceLocked());
+      }
+
+      AttestationApplicationId applicationId =
+          attestation.getSoftwareEnforced().getAttestationApplicationId();
+      if (applicationId != null) {
+        row[12] =
+            applicationId.getAttestationPackageInfos().stream()
+                .map(AttestationAnalyzer::toString)
+                .collect(Collectors.joining(";"));
+        row[13] =
+            applicationId.getSignatureDigests().stream()
+                .map(BaseEncoding.base16().lowerCase()::encode)
+                .collect(Collectors.joining(";"));
+      }
+    } catch (CertificateException | IllegalArgumentException | ClassCastException e) {
+      // CertificateParsingException is a CertificateException; IllegalArgumentException is
+      // thrown for invalid base64
+      row[ERROR_COLUMN] = e.toString();
+    }
+    return row;
+  }
+
+  static void writeCsv(PrintWriter writer, String[][] rows) {
+    writeCsvRow(writer, COLUMNS);
+    for (String[] row : rows) {
+      writeCsvRow(writer, row);
+    }
+  }
+
+  private static void writeCsvRow(PrintWriter writer, String[] row) {
+    for (int i = 0; i < row.length; i++) {
+      if (i > 0) {
+        writer.print(',');
+      }
+      String value = row[i];
+      if (value == null) {
+        continue;
+      }
+      if (value.indexOf(',') >= 0
+          || value.indexOf('"') >= 0
+          || value.indexOf('\n') >= 0
+          || value.indexOf('\r') >= 0) {
+        writer.print('"' + value.replace("\"", "\"\"") + '"');
+      } else {
+        writer.print(value);
+      }
+    }
+    // CSV lines end with CRLF (RFC 4180)
+    writer.print("\r\n");
+  }
+
+  private static void printSummary(
+      String[][] rows, int threads, int tasks, long elapsedNanos) {
+    Map<String, Integer> securityLevels = new TreeMap<>();
+    Map<String, Integer> verifiedBootStates = new TreeMap<>();
+    int errors = 0;
+    for (String[] row : rows) {
+      if (row[ERROR_COLUMN] != null) {
+        errors++;
+        continue;
+      }
+      securityLevels.merge(row[SECURITY_LEVEL_COLUMN], 1, Integer::sum);
+      String verifiedBootState = row[VERIFIED_BOOT_STATE_COLUMN];
+      verifiedBootStates.merge(
+          verifiedBootState == null ? "No root of trust" : verifiedBootState, 1, Integer::sum);
+    }
+    System.err.printf(
+        "Analyzed %d chains (%d errors) in %d ms with %d threads and %d tasks\n",
+        rows.length, errors, elapsedNanos / 1_000_000, threads, tasks);
+    System.err.printf("Security levels: %s\n", securityLevels);
+    System.err.printf("Verified boot states: %s\n", verifiedBootStates);
+  }
+
+  private static boolean isEncodedCertificates(byte[] bytes) {
+    // DER starts with a SEQUENCE, PEM with a -----BEGIN line
+    return bytes.length > 0 && (bytes[0] == 0x30 || bytes[0] == '-');
+  }
+
+  private static String toString(Integer value) {
+    return value == null ? null : value.toString();
+  }
+
+  private static String toString(AttestationPackageInfo info) {
+    return info.getPackageName() + ":" + info.getVersion();
+  }
+
+  /** A chain read from the input, not decoded yet. */
+  static final class Chain {
+    final String mId;
+    // Exactly one of these is set
+    final byte[] mEncoded;
+    final List<String> mBase64;
+    final String mError;
+
+    private Chain(String id, byte[] encoded, List<String> base64, String error) {
+      mId = id;
+      mEncoded = encoded;
+      mBase64 = base64;
+      mError = error;
+    }
+
+    /** A chain of PEM or DER certificates. */
+    Chain(String id, byte[] encoded) {
+      this(id, encoded, null, null);
+    }
+
+    /** A chain of base64 DER certificates, leaf first. */
+    Chain(String id, List<String> base64) {
+      this(id, null, base64, null);
+    }
+
+    static Chain invalid(String id, String error) {
+      return new Chain(id, null, null, error);
+    }
+  }
+
+  /** Summarizes {@code chains} from {@code start} until {@code end} into {@code rows}. */
+  static final class SummarizeTask extends RecursiveAction {
+    // Parsing a chain takes tens of microseconds, so smaller tasks would mostly add overhead
+    static final int THRESHOLD = 64;
+
+    private final List<Chain> mChains;
+    private final String[][] mRows;
+    private final int mStart;
+    private final int mEnd;
+    // Shared by all the tasks split from the same one
+    private final AtomicInteger mLeafTasks;
+
+    /** Summarizes all of {@code chains} into {@code rows}, which has the same size. */
+    SummarizeTask(List<Chain> chains, String[][] rows) {
+      this(chains, rows, 0, rows.length, new AtomicInteger());
+    }
+
+    private SummarizeTask(
+        List<Chain> chains, String[][] rows, int start, int end, AtomicInteger leafTasks) {
+      mChains = chains;
+      mRows = rows;
+      mStart = start;
+      mEnd = end;
+      mLeafTasks = leafTasks;
+    }
+
+    /** Gets how many tasks summarized chains, rather than splitting them. */
+    int getLeafTasks() {
+      return mLeafTasks.get();
+    }
+
+    @Override
+    protected void compute() {
+      if (mEnd - mStart > THRESHOLD) {
+        int middle = (mStart + mEnd) >>> 1;
+        invokeAll(
+            new SummarizeTask(mChains, mRows, mStart, middle, mLeafTasks),
+            new SummarizeTask(mChains, mRows, middle, mEnd, mLeafTasks));
+        return;
+      }
+      mLeafTasks.incrementAndGet();
+      // CertificateFactory isn't thread safe
+      CertificateFactory factory;
+      try {
+        factory = CertificateFactory.getInstance("X.509");
+      } catch (CertificateException e) {
+        throw new IllegalStateException("X.509 is always available", e);
+      }
+      for (int i = mStart; i < mEnd; i++) {
+        mRows[i] = summarize(factory, mChains.get(i));
+      }
+    }
+  }
+}